@@ -49,6 +49,20 @@ public class ImageOutput {
 	 * @throws Exception
 	 */
 	public static void writeScreenshotFile(BufferedImage bim, String format, File file, AtomData data, ViewerGLJPanel viewer) throws Exception{
+		writeScreenshotFile(bim, format, file, data, viewer.getPov());
+	}
+	
+	/**
+	 * Writes an image to a file and includes metadata, see 
+	 * {@link #writeScreenshotFile(BufferedImage, String, File, AtomData, ViewerGLJPanel)}
+	 * @param bim The image to be saved
+	 * @param format A format string
+	 * @param file The file where the image is to be stored
+	 * @param data the instance of which the image is created, the original data-filename is read from this
+	 * @param pov the point of view used to create the image, as provided by {@link ViewerGLJPanel#getPov()}
+	 * @throws Exception
+	 */
+	public static void writeScreenshotFile(BufferedImage bim, String format, File file, AtomData data, float[] pov) throws Exception{
 		ImageWriter writer = null;
 		IIOMetadata metadata = null;
 		ImageWriteParam writeParam = null;
@@ -69,7 +83,6 @@ public class ImageOutput {
 		//Write metadata if possible
 		if (metadata != null){
 			 //POV as a text string
-		    float[] pov = viewer.getPov();
 		    StringBuilder povString = new StringBuilder();
 		    for (float p : pov){
 		    	povString.append(p);
@@ -0,0 +1,265 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2016  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/> 
+
+package common;
+
+/**
+ * A ray in three dimensional space, defined by its origin and a normalized direction.
+ * Provides intersection tests with simple geometric primitives. All tests return
+ * the distance along the ray to the first intersection in front of the origin, 
+ * or Float.POSITIVE_INFINITY if the primitive is not hit.
+ */
+public class Ray {
+	private static final float EPSILON = 1e-7f;
+	
+	private final Vec3 origin;
+	private final Vec3 direction;
+	private final float invDirX, invDirY, invDirZ;
+	
+	/**
+	 * @param origin starting point of the ray
+	 * @param direction direction of the ray, does not need to be normalized
+	 */
+	public Ray(Vec3 origin, Vec3 direction) {
+		this.origin = origin.clone();
+		this.direction = direction.normalizeClone();
+		this.invDirX = 1f/this.direction.x;
+		this.invDirY = 1f/this.direction.y;
+		this.invDirZ = 1f/this.direction.z;
+	}
+	
+	public Vec3 getOrigin() {
+		return origin;
+	}
+	
+	public Vec3 getDirection() {
+		return direction;
+	}
+	
+	/**
+	 * The point on the ray at the given distance from the origin
+	 * @param distance
+	 * @return
+	 */
+	public Vec3 getPoint(float distance){
+		return direction.multiplyClone(distance).add(origin);
+	}
+	
+	/**
+	 * Intersection with a sphere
+	 * @param x center of the sphere
+	 * @param y center of the sphere
+	 * @param z center of the sphere
+	 * @param radius
+	 * @return distance to the first intersection
+	 */
+	public float intersectSphere(float x, float y, float z, float radius){
+		float ox = origin.x - x;
+		float oy = origin.y - y;
+		float oz = origin.z - z;
+		float b = ox*direction.x + oy*direction.y + oz*direction.z;
+		float c = ox*ox + oy*oy + oz*oz - radius*radius;
+		if (c > 0f && b > 0f) return Float.POSITIVE_INFINITY;	//Outside and pointing away
+		float disc = b*b - c;
+		if (disc < 0f) return Float.POSITIVE_INFINITY;
+		float sqrtDisc = (float)Math.sqrt(disc);
+		float t = -b - sqrtDisc;
+		if (t < 0f) t = -b + sqrtDisc;	//Origin inside the sphere
+		return t < 0f ? Float.POSITIVE_INFINITY : t;
+	}
+	
+	public float intersectSphere(Vec3 center, float radius){
+		return intersectSphere(center.x, center.y, center.z, radius);
+	}
+	
+	/**
+	 * Intersection with a triangle, independent of its orientation
+	 * (Möller-Trumbore algorithm)
+	 * @param v coordinates of the three corners, stored as x,y,z triplets
+	 * @param i1 index of the x-coordinate of the first corner in v
+	 * @param i2 index of the x-coordinate of the second corner in v
+	 * @param i3 index of the x-coordinate of the third corner in v
+	 * @return distance to the intersection
+	 */
+	public float intersectTriangle(float[] v, int i1, int i2, int i3){
+		float e1x = v[i2] - v[i1], e1y = v[i2+1] - v[i1+1], e1z = v[i2+2] - v[i1+2];
+		float e2x = v[i3] - v[i1], e2y = v[i3+1] - v[i1+1], e2z = v[i3+2] - v[i1+2];
+		
+		float px = direction.y*e2z - direction.z*e2y;
+		float py = direction.z*e2x - direction.x*e2z;
+		float pz = direction.x*e2y - direction.y*e2x;
+		float det = e1x*px + e1y*py + e1z*pz;
+		if (det > -EPSILON && det < EPSILON) return Float.POSITIVE_INFINITY;	//Parallel
+		float invDet = 1f/det;
+		
+		float tx = origin.x - v[i1], ty = origin.y - v[i1+1], tz = origin.z - v[i1+2];
+		float u = (tx*px + ty*py + tz*pz) * invDet;
+		if (u < 0f || u > 1f) return Float.POSITIVE_INFINITY;
+		
+		float qx = ty*e1z - tz*e1y;
+		float qy = tz*e1x - tx*e1z;
+		float qz = tx*e1y - ty*e1x;
+		float w = (direction.x*qx + direction.y*qy + direction.z*qz) * invDet;
+		if (w < 0f || u + w > 1f) return Float.POSITIVE_INFINITY;
+		
+		float t = (e2x*qx + e2y*qy + e2z*qz) * invDet;
+		return t < 0f ? Float.POSITIVE_INFINITY : t;
+	}
+	
+	public float intersectTriangle(Vec3 a, Vec3 b, Vec3 c){
+		return intersectTriangle(new float[]{a.x, a.y, a.z, b.x, b.y, b.z, c.x, c.y, c.z}, 0, 3, 6);
+	}
+	
+	/**
+	 * Intersection with an axis aligned box (slab method)
+	 * @param min lower corner of the box
+	 * @param max upper corner of the box
+	 * @return distance to the point where the ray enters the box, 0 if the origin is inside the box
+	 */
+	public float intersectBox(Vec3 min, Vec3 max){
+		return intersectBox(new float[]{min.x, min.y, min.z, max.x, max.y, max.z}, 0);
+	}
+	
+	/**
+	 * Intersection with an axis aligned box (slab method)
+	 * @param b the lower corner of the box followed by the upper corner
+	 * @param offset index of the x-coordinate of the lower corner in b 
+	 * @return distance to the point where the ray enters the box, 0 if the origin is inside the box
+	 */
+	public float intersectBox(float[] b, int offset){
+		float t1 = (b[offset]   - origin.x) * invDirX;
+		float t2 = (b[offset+3] - origin.x) * invDirX;
+		float tmin = Math.min(t1, t2);
+		float tmax = Math.max(t1, t2);
+		
+		t1 = (b[offset+1] - origin.y) * invDirY;
+		t2 = (b[offset+4] - origin.y) * invDirY;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+		
+		t1 = (b[offset+2] - origin.z) * invDirZ;
+		t2 = (b[offset+5] - origin.z) * invDirZ;
+		tmin = Math.max(tmin, Math.min(t1, t2));
+		tmax = Math.min(tmax, Math.max(t1, t2));
+		
+		//Comparisons with NaN (ray in the plane of a slab) are false and thus count as a miss
+		if (!(tmax >= tmin) || tmax < 0f) return Float.POSITIVE_INFINITY;
+		return Math.max(tmin, 0f);
+	}
+	
+	/**
+	 * Intersection with a tube of the given radius around a line segment.
+	 * The tube is approximated as a capsule, i.e. with hemispherical caps
+	 * @param p1 start of the segment
+	 * @param p2 end of the segment
+	 * @param radius
+	 * @return distance to the point on the ray closest to the segment, if the tube is hit
+	 */
+	public float intersectSegment(Vec3 p1, Vec3 p2, float radius){
+		return intersectSegment(new float[]{p1.x, p1.y, p1.z, p2.x, p2.y, p2.z}, 0, 3, radius);
+	}
+	
+	/**
+	 * Intersection with a tube of the given radius around a line segment, see
+	 * {@link #intersectSegment(Vec3, Vec3, float)}
+	 * @param v coordinates of the end points, stored as x,y,z triplets
+	 * @param i1 index of the x-coordinate of the start point in v
+	 * @param i2 index of the x-coordinate of the end point in v
+	 * @param radius
+	 * @return
+	 */
+	public float intersectSegment(float[] v, int i1, int i2, float radius){
+		float ux = v[i2] - v[i1], uy = v[i2+1] - v[i1+1], uz = v[i2+2] - v[i1+2];
+		float wx = origin.x - v[i1], wy = origin.y - v[i1+1], wz = origin.z - v[i1+2];
+		
+		float a = ux*ux + uy*uy + uz*uz;
+		float b = ux*direction.x + uy*direction.y + uz*direction.z;
+		float d = ux*wx + uy*wy + uz*wz;
+		float e = direction.x*wx + direction.y*wy + direction.z*wz;
+		
+		float denom = a - b*b;	//the direction is normalized
+		float s;	//parameter on the segment
+		if (a < EPSILON) s = 0f;
+		else if (denom < EPSILON*a) s = 0f;	//Parallel
+		else s = (d - b*e) / denom;
+		if (s < 0f) s = 0f;
+		else if (s > 1f) s = 1f;
+		
+		float t = s*b - e;	//parameter on the ray closest to the point on the segment
+		if (t < 0f) t = 0f;
+		
+		float dx = origin.x + t*direction.x - (v[i1]   + s*ux);
+		float dy = origin.y + t*direction.y - (v[i1+1] + s*uy);
+		float dz = origin.z + t*direction.z - (v[i1+2] + s*uz);
+		
+		if (dx*dx + dy*dy + dz*dz > radius*radius) return Float.POSITIVE_INFINITY;
+		return t;
+	}
+	
+	/**
+	 * Intersection with a capsule, i.e. a cylinder of the given radius around a line segment
+	 * closed by hemispherical caps. In contrast to {@link #intersectSegment(Vec3, Vec3, float)}
+	 * the distance to the surface is returned.
+	 * @param p1 start of the segment
+	 * @param p2 end of the segment
+	 * @param radius
+	 * @return distance to the point where the ray enters the capsule
+	 */
+	public float intersectCapsule(Vec3 p1, Vec3 p2, float radius){
+		return intersectCapsule(new float[]{p1.x, p1.y, p1.z, p2.x, p2.y, p2.z}, 0, 3, radius);
+	}
+	
+	/**
+	 * Intersection with a capsule, see {@link #intersectCapsule(Vec3, Vec3, float)}
+	 * @param v coordinates of the end points, stored as x,y,z triplets
+	 * @param i1 index of the x-coordinate of the start point in v
+	 * @param i2 index of the x-coordinate of the end point in v
+	 * @param radius
+	 * @return
+	 */
+	public float intersectCapsule(float[] v, int i1, int i2, float radius){
+		//The caps are spheres around the end points
+		float t = Math.min(intersectSphere(v[i1], v[i1+1], v[i1+2], radius),
+				intersectSphere(v[i2], v[i2+1], v[i2+2], radius));
+		
+		float ux = v[i2] - v[i1], uy = v[i2+1] - v[i1+1], uz = v[i2+2] - v[i1+2];
+		float wx = origin.x - v[i1], wy = origin.y - v[i1+1], wz = origin.z - v[i1+2];
+		
+		float uu = ux*ux + uy*uy + uz*uz;
+		float ud = ux*direction.x + uy*direction.y + uz*direction.z;
+		float uw = ux*wx + uy*wy + uz*wz;
+		float dw = direction.x*wx + direction.y*wy + direction.z*wz;
+		float ww = wx*wx + wy*wy + wz*wz;
+		
+		//Infinite cylinder, components perpendicular to the axis scaled by uu
+		float a = uu - ud*ud;	//the direction is normalized
+		if (uu < EPSILON || a < EPSILON*uu) return t;	//Degenerated or parallel, only the caps can be hit
+		float b = uu*dw - uw*ud;
+		float c = uu*ww - uw*uw - radius*radius*uu;
+		float disc = b*b - a*c;
+		if (disc < 0f) return t;
+		float sqrtDisc = (float)Math.sqrt(disc);
+		float tc = (-b - sqrtDisc) / a;
+		if (tc < 0f) tc = (-b + sqrtDisc) / a;	//Origin inside the cylinder
+		if (tc < 0f) return t;
+		//The hit must be between the end points
+		float s = uw + tc*ud;
+		if (s >= 0f && s <= uu && tc < t) t = tc;
+		return t;
+	}
+}
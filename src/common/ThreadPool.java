@@ -18,6 +18,7 @@
 
 package common;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.*;
 
@@ -79,6 +80,29 @@ public class ThreadPool {
 		}
 	}
 	
+	/**
+	 * Executes the tasks in parallel and rethrows the first exception of any task as an IOException
+	 */
+	public static void executeParallelOrThrow(List<? extends Callable<Void>> tasks) throws IOException{
+		List<Future<Void>> futures = executeParallel(tasks);
+		if (futures == null) throw new IOException("Interrupted");
+		List<Throwable> errors = new ArrayList<Throwable>();
+		for (Future<Void> f : futures){
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted");
+			} catch (ExecutionException e) {
+				errors.add(e.getCause());
+			}
+		}
+		if (!errors.isEmpty()){
+			Throwable t = errors.get(0);
+			if (t instanceof IOException) throw (IOException)t;
+			throw new IOException(t);
+		}
+	}
+	
 	/**
 	 * Submit a single callable that is executed asynchronously,
 	 * whenever the ThreadPool has free resources 
@@ -20,8 +20,6 @@ package crystalStructures;
 
 import java.util.*;
 
-import common.Tupel;
-import common.Vec3;
 import model.*;
 import model.BurgersVector.BurgersVectorType;
 import model.polygrain.grainDetection.*;
@@ -57,8 +55,9 @@ public class B2NiTi extends BCCStructure{
 	
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		ArrayList<Tupel<Atom, Vec3>> d_cont  = nnb.getNeighAndNeighVec(atom);
-		if (d_cont.size()<=10) return 6;
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
+		if (neighbors<=10) return 6;
 				
 		int co_x0_same = 0;
 		int co_x0_other = 0;
@@ -72,20 +71,16 @@ public class B2NiTi extends BCCStructure{
 		int num_same = 0;
 		int num_other = 0;
 		
-		for (int i = 0; i < d_cont.size(); i++) {
-			int type_i = d_cont.get(i).o1.getElement()%2;
-			Vec3 v = d_cont.get(i).o2;
-			float v_length = v.getLength();
+		for (int i = 0; i < neighbors; i++) {
+			int type_i = kernel.getNeighbor(i).getElement()%2;
 						
 			if (type_i == (atom.getElement()%2)) num_same++;
 			else num_other++;
 			
 			for (int j = 0; j < i; j++) {
-				int type_j = d_cont.get(j).o1.getElement()%2;
+				int type_j = kernel.getNeighbor(j).getElement()%2;
 				if (type_i == type_j){
-					Vec3 u = d_cont.get(j).o2;
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
+					float a = kernel.getCosine(i, j);
 					
 					boolean same = type_i == atom.getElement()%2;
 					
@@ -37,6 +37,16 @@ public class BCCStructure extends CrystalStructure {
 		bvClassifcationPattern.add(new RBVToBVPattern(100, 1, 2, 100, 1, BurgersVectorType.SUPER));
 	}
 	
+	/**
+	 * Bins of the cosines in the bond angle analysis, see {@link BondAngleKernel#countAngles(float[])}
+	 * Bin 3 contains the open interval (t1, t2), with t1=-0.75, t2=-0.67 and 
+	 * t1=-0.77, t2=-0.69 for high temperatures
+	 */
+	static final float[] angleBins = {BondAngleKernel.lessThan(-.945), BondAngleKernel.lessThan(-.915),
+		BondAngleKernel.lessOrEqual(-.75f), -0.67f};
+	static final float[] angleBinsHighTemp = {BondAngleKernel.lessThan(-.945), BondAngleKernel.lessThan(-.915),
+		BondAngleKernel.lessOrEqual(-.77f), -.69f};
+	
 	protected BooleanProperty highTempProperty = 
 			new BooleanProperty("highTempADA", "optimize defect classification for >150K",
 					"<html>Modifies the thresholds to classify atoms.<br>"
@@ -87,9 +97,8 @@ public class BCCStructure extends CrystalStructure {
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
 		int threshold = highTempProperty.getValue() ? 3 : 2;
-		float t1 = highTempProperty.getValue() ? -.77f : -.75f;
-		float t2 = highTempProperty.getValue() ? -.69f : -0.67f;
-		ArrayList<Vec3> neigh = nnb.getNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		/*
 		 * type=0: bcc
 		 * type=1: fcc
@@ -100,37 +109,22 @@ public class BCCStructure extends CrystalStructure {
 		 * type=6: less than 11 neighbors
 		 * type=7: unknown
 		 */
-		if (neigh.size() < 11) return 6;
-		else if (neigh.size() == 11) return 4;
-		else if (neigh.size() == 13) return 4;
-		else if (neigh.size() == 15) return 5;
-		else if (neigh.size() > 15) return 7;
+		if (neighbors < 11) return 6;
+		else if (neighbors == 11) return 4;
+		else if (neighbors == 13) return 4;
+		else if (neighbors == 15) return 5;
+		else if (neighbors > 15) return 7;
 		else {
-			int co_x0 = 0;
-			int co_x1 = 0;
-			int co_x2 = 0;
-			for (int i = 0; i < neigh.size(); i++) {
-				Vec3 v = neigh.get(i);
-				float v_length = v.getLength();
-				
-				for (int j = 0; j < i; j++) {
-					Vec3 u = neigh.get(j);
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
-					
-					if (a < -.945)
-						co_x0++;
-					else if (a < -.915)
-						co_x1++;
-					else if (a > t1 && a< t2)
-						co_x2++;
-				}
-			}
+			//Bins: cos < -0.945, < -0.915, <= t1, < t2
+			int[] co = kernel.countAngles(highTempProperty.getValue() ? angleBinsHighTemp : angleBins);
+			int co_x0 = co[0];
+			int co_x1 = co[1];
+			int co_x2 = co[3];
 			
-			if (co_x0 > 5 && co_x0+co_x1==7 && co_x2<=threshold && neigh.size()==14) return 0;
-			else if (co_x0 == 6 && neigh.size() == 12) return 1;
-			else if (co_x0 == 3 && neigh.size() == 12) return 2;
-			else if (neigh.size() == 12) return 4;
+			if (co_x0 > 5 && co_x0+co_x1==7 && co_x2<=threshold && neighbors==14) return 0;
+			else if (co_x0 == 6 && neighbors == 12) return 1;
+			else if (co_x0 == 3 && neighbors == 12) return 2;
+			else if (neighbors == 12) return 4;
 			else return 3;
 		}
 	}
@@ -0,0 +1,187 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2014  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package crystalStructures;
+
+import model.Atom;
+import model.NearestNeighborBuilder;
+
+/**
+ * The neighborhood of a single atom stored in primitive arrays, used for the bond angle analyses in
+ * {@link CrystalStructure#identifyAtomType(Atom, NearestNeighborBuilder)}.
+ * The length of each neighbor vector is computed once instead of once per pair of neighbors.
+ * Cosines are computed exactly as v.dot(u)/(v.getLength()*u.getLength()), so that classifications
+ * are identical to those computed on lists of Vec3.
+ * The kernel is not thread-safe, each thread uses its own instance provided by {@link #getInstance()}.
+ */
+public final class BondAngleKernel {
+	private static final ThreadLocal<BondAngleKernel> instances = new ThreadLocal<BondAngleKernel>(){
+		@Override
+		protected BondAngleKernel initialValue() {
+			return new BondAngleKernel();
+		}
+	};
+
+	private float[] vec = new float[3*32];
+	private float[] length = new float[32];
+	private Atom[] neigh = new Atom[32];
+	private int size = 0;
+	private int[] histogram = new int[8];
+
+	private BondAngleKernel() {}
+
+	/**
+	 * @return the instance assigned to the calling thread
+	 */
+	public static BondAngleKernel getInstance(){
+		return instances.get();
+	}
+
+	/**
+	 * Fetches all neighbors of an atom from the nearest neighbor builder
+	 * @param atom
+	 * @param nnb
+	 * @return the number of neighbors
+	 */
+	public int setNeighbors(Atom atom, NearestNeighborBuilder<Atom> nnb){
+		int n = nnb.getNeighAndNeighVec(atom, vec, neigh);
+		if (n > neigh.length){
+			int capacity = Math.max(n, 2*neigh.length);
+			vec = new float[3*capacity];
+			length = new float[capacity];
+			neigh = new Atom[capacity];
+			n = nnb.getNeighAndNeighVec(atom, vec, neigh);
+		}
+		size = n;
+		for (int i=0; i<n; i++){
+			float x = vec[3*i], y = vec[3*i+1], z = vec[3*i+2];
+			length[i] = (float)Math.sqrt(x*x + y*y + z*z);
+		}
+		return n;
+	}
+
+	/**
+	 * Removes all neighbors whose squared distance is not smaller than the given value.
+	 * The order of the remaining neighbors is preserved
+	 * @param sqrDistance
+	 * @return the number of remaining neighbors
+	 */
+	public int retainCloserThan(float sqrDistance){
+		int n = 0;
+		for (int i=0; i<size; i++){
+			float x = vec[3*i], y = vec[3*i+1], z = vec[3*i+2];
+			if (x*x + y*y + z*z < sqrDistance){
+				vec[3*n] = x;
+				vec[3*n+1] = y;
+				vec[3*n+2] = z;
+				length[n] = length[i];
+				neigh[n] = neigh[i];
+				n++;
+			}
+		}
+		size = n;
+		return n;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public Atom getNeighbor(int i){
+		return neigh[i];
+	}
+
+	public float getX(int i){
+		return vec[3*i];
+	}
+
+	public float getY(int i){
+		return vec[3*i+1];
+	}
+
+	public float getZ(int i){
+		return vec[3*i+2];
+	}
+
+	public float getLength(int i){
+		return length[i];
+	}
+
+	/**
+	 * The cosine of the angle between the vectors to the neighbors i and j
+	 * @param i
+	 * @param j
+	 * @return
+	 */
+	public float getCosine(int i, int j){
+		float dot = vec[3*i]*vec[3*j] + vec[3*i+1]*vec[3*j+1] + vec[3*i+2]*vec[3*j+2];
+		return dot / (length[i]*length[j]);
+	}
+
+	/**
+	 * Counts the cosines of the angles between all pairs of neighbors in bins.
+	 * Bin k contains all pairs with edges[k-1] &lt;= cos &lt; edges[k], the first bin all pairs with
+	 * cos &lt; edges[0] and the last bin (index edges.length) all remaining pairs.
+	 * Use {@link #lessThan(double)} and {@link #lessOrEqual(double)} to create edges
+	 * equivalent to comparisons in double precision or to open intervals.
+	 * @param edges upper bounds of the bins in ascending order
+	 * @return the number of pairs in each bin. The array is reused by the next call on this instance.
+	 */
+	public int[] countAngles(float[] edges){
+		if (histogram.length < edges.length+1)
+			histogram = new int[edges.length+1];
+		for (int k=0; k<=edges.length; k++)
+			histogram[k] = 0;
+
+		for (int i=0; i<size; i++){
+			float x = vec[3*i], y = vec[3*i+1], z = vec[3*i+2];
+			float l = length[i];
+			for (int j=0; j<i; j++){
+				float a = (x*vec[3*j] + y*vec[3*j+1] + z*vec[3*j+2]) / (l*length[j]);
+				//Most pairs are located in the last bin, thus bins are searched from top
+				int bin = edges.length;
+				while (bin > 0 && a < edges[bin-1]) bin--;
+				histogram[bin]++;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Creates a bin edge such that for any float value a: a &lt; d if and only if a &lt; edge
+	 * @param d
+	 * @return
+	 */
+	public static float lessThan(double d){
+		float f = (float)d;
+		if (f < d) f = Math.nextUp(f);
+		return f;
+	}
+
+	/**
+	 * Creates a bin edge such that for any float value a: a &lt;= d if and only if a &lt; edge.
+	 * Thus a value a &gt; d is located in a bin starting at this edge
+	 * @param d
+	 * @return
+	 */
+	public static float lessOrEqual(double d){
+		float f = (float)d;
+		if (f <= d) f = Math.nextUp(f);
+		return f;
+	}
+}
@@ -598,6 +598,17 @@ public abstract class CrystalStructure{
 		ProgressMonitor.getProgressMonitor().addToCounter((end-start)%10000);
 	}
 	
+	/**
+	 * Indicates if {@link #identifyDefectAtoms(List, NearestNeighborBuilder, int, int, CyclicBarrier)}
+	 * assigns the type of each atom independently by {@link #identifyAtomType(Atom, NearestNeighborBuilder)}.
+	 * Only in this case the classification can be combined with other per atom analyses in a single pass.
+	 * Must return false if identifyDefectAtoms is overridden with additional phases
+	 * @return
+	 */
+	public boolean isClassificationPerAtom(){
+		return true;
+	}
+	
 	/**
 	 * If it is not needed for some atoms to check the neighbor configuration,
 	 * they can be ignored using this filter
@@ -30,6 +30,12 @@ import processingModules.skeletonizer.processors.BurgersVectorAnalyzer.RBVToBVPa
  */
 public class DiamondCubicStructure extends CrystalStructure {
 
+	/**
+	 * Bins of the cosines in the bond angle analysis, see {@link BondAngleKernel#countAngles(float[])}
+	 */
+	private static final float[] angleBins = {BondAngleKernel.lessOrEqual(-0.5), 
+		BondAngleKernel.lessThan(-0.173648178)};
+
 	private static Vec3[] neighPerfDC = new Vec3[]{
 		new Vec3(-0.25f,  0.25f, -0.25f),
 		new Vec3( 0.25f,  0.25f,  0.25f),
@@ -78,34 +84,18 @@ public class DiamondCubicStructure extends CrystalStructure {
 	
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		ArrayList<Vec3> neighVec = nnb.getNeighVec(atom);
-		if (neighVec.size()<=12) return 6; 
-		ArrayList<Vec3> c = new ArrayList<Vec3>();
-		for (Vec3 f : neighVec){
-			if (f.getLengthSqr()<(0.25f*latticeConstant*latticeConstant))
-				c.add(f);
-		}
-		neighVec = c;
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		if (kernel.setNeighbors(atom, nnb)<=12) return 6; 
+		int neighbors = kernel.retainCloserThan(0.25f*latticeConstant*latticeConstant);
 		
-		if (neighVec.size() == 5) return 3;
-		if (neighVec.size() == 3) return 4;
-		if (neighVec.size() <3) return 6;
-		if (neighVec.size() >5) return 5;
+		if (neighbors == 5) return 3;
+		if (neighbors == 3) return 4;
+		if (neighbors <3) return 6;
+		if (neighbors >5) return 5;
 		
 		else {
-			int co_x0 = 0;
-			for (int i = 0; i < neighVec.size(); i++) {
-				Vec3 v = neighVec.get(i);
-				float v_length = v.getLength();
-				
-				for (int j = 0; j < i; j++) {
-					Vec3 u = neighVec.get(j);
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
-					
-					if (a < -0.173648178 && a > -0.5 ) co_x0++; 
-				}
-			}
+			//-0.5 < cos < -0.173648178 in bin 1
+			int co_x0 = kernel.countAngles(angleBins)[1];
 		
 			if (co_x0 == 6) return 0;
 			return 1;
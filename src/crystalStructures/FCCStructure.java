@@ -34,6 +34,12 @@ public class FCCStructure extends CrystalStructure {
 	private final static int FCC = 1;
 	private final static int HCP = 2;
 	
+	/**
+	 * Bins of the cosines in the bond angle analysis, see {@link BondAngleKernel#countAngles(float[])}
+	 */
+	private final static float[] angleBins = {-0.965f, -.915f, -.775f};
+	private final static float[] angleBinsHighTemp = {-0.945f, -.915f, -.775f};
+	
 	private static Vec3[] neighPerfFCC = new Vec3[]{
 		new Vec3(0f, 0.5f, 0.5f),
 		new Vec3(0f,-0.5f,-0.5f),
@@ -128,9 +134,8 @@ public class FCCStructure extends CrystalStructure {
 	
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		float threshold = highTempProperty.getValue() ? -0.945f : -0.965f;
-		
-		ArrayList<Vec3> neigh = nnb.getNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		/*
 		 * type=0: bcc
 		 * type=1: fcc
@@ -140,32 +145,21 @@ public class FCCStructure extends CrystalStructure {
 		 * type=5: more than 12 neighbors
 		 * type=6: less than 10 neighbors
 		 */
-		if (neigh.size() < 10) return 6;
-		else if (neigh.size() < 12) return 4;
-		else if (neigh.size() > 14) return 7;
+		if (neighbors < 10) return 6;
+		else if (neighbors < 12) return 4;
+		else if (neighbors > 14) return 7;
 		else {
-			int co_x0 = 0;
-			int co_x1 = 0;
-			int co_x2 = 0;
-			for (int i = 0; i < neigh.size(); i++) {
-				Vec3 v = neigh.get(i);
-				float v_length = v.getLength();
-				for (int j = 0; j < i; j++) {
-					Vec3 u = neigh.get(j);
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
-					
-					if (a < threshold) co_x0++; // 0.945
-					else if (a < -.915f) co_x1++;
-					else if (a < -.775f) co_x2++; // 0.755
-				}
-			}
+			//Bins: cos < threshold (0.945), < -0.915, < -0.775 (0.755)
+			int[] co = kernel.countAngles(highTempProperty.getValue() ? angleBinsHighTemp : angleBins);
+			int co_x0 = co[0];
+			int co_x1 = co[1];
+			int co_x2 = co[2];
 
-			if (co_x0 == 7 && neigh.size() == 14) return 0;
-			else if (co_x0 == 6 && neigh.size() == 12) return FCC;
-			else if (co_x0 == 3 && co_x1 <= 1 && co_x2 > 2 && neigh.size() == 12) return HCP;
-			else if (neigh.size() > 12) return 5;
-			else if (neigh.size() == 12) return 3;
+			if (co_x0 == 7 && neighbors == 14) return 0;
+			else if (co_x0 == 6 && neighbors == 12) return FCC;
+			else if (co_x0 == 3 && co_x1 <= 1 && co_x2 > 2 && neighbors == 12) return HCP;
+			else if (neighbors > 12) return 5;
+			else if (neighbors == 12) return 3;
 			else return 4;
 		}
 	}
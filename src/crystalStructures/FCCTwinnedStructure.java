@@ -87,6 +87,11 @@ public class FCCTwinnedStructure extends FCCStructure {
 		return 7;
 	}
 	
+	@Override
+	public boolean isClassificationPerAtom() {
+		return false;
+	}
+	
 	@Override
 	public void identifyDefectAtoms(List<Atom> atoms, NearestNeighborBuilder<Atom> nnb, 
 			int start, int end, CyclicBarrier barrier) {
@@ -18,9 +18,7 @@
 
 package crystalStructures;
 
-import java.util.ArrayList;
 
-import common.Vec3;
 import model.Atom;
 import model.Filter;
 import model.NearestNeighborBuilder;
@@ -93,41 +91,24 @@ public class FeCStructure extends BCCStructure {
 		if (atom.getElement()%numTypes == 1) return 7;
 		
 		int threshold = highTempProperty.getValue() ? 3 : 2;
-		float t1 = highTempProperty.getValue() ? -.77f : -.75f;
-		float t2 = highTempProperty.getValue() ? -.69f : -0.67f;
-		ArrayList<Vec3> neigh = nnb.getNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		
 		//count Fe neighbors for Fe atoms
-		int count = neigh.size();
+		int count = neighbors;
 		
 		if (count < 11) return 6;
 		else if (count == 11) return 4;
 		else if (count >= 15) return 5;
 		else {
-			int co_x0 = 0;
-			int co_x1 = 0;
-			int co_x2 = 0;
-			for (int i = 0; i < neigh.size(); i++) {
-				Vec3 v = neigh.get(i);
-				
-				float v_length = v.getLength();
-				
-				for (int j = 0; j < i; j++) {
-					Vec3 u = neigh.get(j);
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
-					
-					if (a < -.945)
-						co_x0++;
-					else if (a < -.915)
-						co_x1++;
-					else if (a > t1 && a< t2)
-						co_x2++;
-				}
-			}
+			//Bins: cos < -0.945, < -0.915, <= t1, < t2
+			int[] co = kernel.countAngles(highTempProperty.getValue() ? angleBinsHighTemp : angleBins);
+			int co_x0 = co[0];
+			int co_x1 = co[1];
+			int co_x2 = co[3];
 			
 			if (co_x0 > 5 && co_x0+co_x1==7 && co_x2<=threshold && count==14) return 0;
-			else if (count==13 && neigh.size()==14 && co_x0==6) return 0;
+			else if (count==13 && neighbors==14 && co_x0==6) return 0;
 			else if (count == 13) return 4;
 			else if (count == 12) return 4;
 			else return 3;
@@ -24,7 +24,6 @@ import model.AtomData;
 import model.NearestNeighborBuilder;
 import model.polygrain.grainDetection.DefaultGrainDetectionCriteria;
 import model.polygrain.grainDetection.GrainDetectionCriteria;
-import common.Tupel;
 import common.Vec3;
 
 public class L10_Structure extends FCCStructure{
@@ -95,7 +94,8 @@ public class L10_Structure extends FCCStructure{
 	
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		ArrayList<Tupel<Atom, Vec3>> d_cont  = nnb.getNeighAndNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		/* type=0: L10
 		 * type=1: APB
 		 * type=2: CSF
@@ -105,9 +105,9 @@ public class L10_Structure extends FCCStructure{
 		 * type=6: >=13 neighbors
 		 * type=7: <10 neighbors (surface)
 		 */
-		if (d_cont.size() < 10) return 7;
-		else if (d_cont.size() < 11) return 5;
-		else if (d_cont.size() > 13) return 6;
+		if (neighbors < 10) return 7;
+		else if (neighbors < 11) return 5;
+		else if (neighbors > 13) return 6;
 		else {
 			//There are three type of bond within the binary system with an atom of type A in the middle of the bond
 			//type 0: B-A-B (both neighbor the same, but other type)
@@ -119,15 +119,13 @@ public class L10_Structure extends FCCStructure{
 			int type_atom = atom.getElement()%2;
 			
 			
-			for (int i = 0; i < d_cont.size(); i++) {
+			for (int i = 0; i < neighbors; i++) {
 				//Element of the first bond atom
-				int type_i = d_cont.get(i).o1.getElement()%2;
-				Vec3 v = d_cont.get(i).o2;
-				float v_length = v.getLength();
+				int type_i = kernel.getNeighbor(i).getElement()%2;
 				
 				for (int j = 0; j < i; j++) {
 					//Element of the second bond atom
-					int type_j = d_cont.get(j).o1.getElement()%2;
+					int type_j = kernel.getNeighbor(j).getElement()%2;
 					
 					int bondType = 0;
 					//Identify the type of bond 
@@ -136,9 +134,7 @@ public class L10_Structure extends FCCStructure{
 						if (type_i == type_atom) bondType = 2;
 						else bondType = 0;
 					}
-					Vec3 u = d_cont.get(j).o2;
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
+					float a = kernel.getCosine(i, j);
 					
 					for (int k=0; k<bondsAngleClasses.length; k++){
 						if (a>=bondsAngleClasses[k][0] && a<=bondsAngleClasses[k][1]) bonds[k][bondType]++;
@@ -154,8 +150,8 @@ public class L10_Structure extends FCCStructure{
 			if (bonds[0][0] == 2 && bonds[0][2] == 1 && bonds[1][2] == 2 && bonds[1][1] == 2 && bonds[1][0] == 2) return 2; //CSF
 			if (bonds[0][0] == 2 && bonds[0][2] == 1 && bonds[1][0] == 2 && bonds[1][1] == 4) return 3; //SISF
 			
-			if (d_cont.size() < 12) return 5;
-			else if (d_cont.size() > 12) return 6;
+			if (neighbors < 12) return 5;
+			else if (neighbors > 12) return 6;
 			else return 4;
 		}
 	}	
@@ -21,7 +21,6 @@ package crystalStructures;
 import java.util.*;
 import java.util.concurrent.CyclicBarrier;
 
-import common.Tupel;
 import common.Vec3;
 import gui.PrimitiveProperty.BooleanProperty;
 import model.Atom;
@@ -84,6 +83,11 @@ public class L12_Ni3AlStructure extends FCCStructure{
 		return 0.25f;
 	}
 	
+	@Override
+	public boolean isClassificationPerAtom() {
+		return false;
+	}
+	
 	@Override
 	public void identifyDefectAtoms(List<Atom> atoms, NearestNeighborBuilder<Atom> nnb, 
 			int start, int end, CyclicBarrier barrier) {
@@ -134,7 +138,8 @@ public class L12_Ni3AlStructure extends FCCStructure{
 	
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		ArrayList<Tupel<Atom, Vec3>> d_cont  = nnb.getNeighAndNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		
 		boolean flipNiAlConvention = flipNiAlelementIDConventionProperty.getValue();
 		
@@ -149,9 +154,9 @@ public class L12_Ni3AlStructure extends FCCStructure{
 		 * type=7: <10 neighbors (surface)
 		 * type=8: pseudoTwin
 		 */
-		if (d_cont.size() < 10) return 7;
-		else if (d_cont.size() < 11) return 5;
-		else if (d_cont.size() > 13) return 6;
+		if (neighbors < 10) return 7;
+		else if (neighbors < 11) return 5;
+		else if (neighbors > 13) return 6;
 		else {
 			//There are three type of bond within the binary system with an atom of type A in the middle of the bond
 			//type 0: B-A-B (both neighbor the same, but other type)
@@ -164,17 +169,15 @@ public class L12_Ni3AlStructure extends FCCStructure{
 			if (flipNiAlConvention)
 				type_atom = 1-type_atom;
 			
-			for (int i = 0; i < d_cont.size(); i++) {
+			for (int i = 0; i < neighbors; i++) {
 				//Element of the first bond atom
-				int type_i = d_cont.get(i).o1.getElement()%2;
+				int type_i = kernel.getNeighbor(i).getElement()%2;
 				if (flipNiAlConvention)
 					type_i = 1-type_i;
-				Vec3 v = d_cont.get(i).o2;
-				float v_length = v.getLength();
 				
 				for (int j = 0; j < i; j++) {
 					//Element of the second bond atom
-					int type_j = d_cont.get(j).o1.getElement()%2;
+					int type_j = kernel.getNeighbor(j).getElement()%2;
 					if (flipNiAlConvention)
 						type_j = 1-type_j;
 					int bondType = 0;
@@ -184,9 +187,7 @@ public class L12_Ni3AlStructure extends FCCStructure{
 						if (type_i == type_atom) bondType = 2;
 						else bondType = 0;
 					}
-					Vec3 u = d_cont.get(j).o2;
-					float u_length = u.getLength();
-					float a = v.dot(u) / (v_length*u_length);
+					float a = kernel.getCosine(i, j);
 					
 					for (int k=0; k<bondsAngleClasses.length; k++){
 						if (a>=bondsAngleClasses[k][0] && a<=bondsAngleClasses[k][1]) bonds[k][bondType]++;
@@ -221,8 +222,8 @@ public class L12_Ni3AlStructure extends FCCStructure{
 				if (bonds[0][2] == 1 && bonds[0][0] == 5  && bonds[1][2] == 0) return 8; //Pseudo-twin
 			}
 			
-			if (d_cont.size() < 12) return 5;
-			else if (d_cont.size() > 12) return 6;
+			if (neighbors < 12) return 5;
+			else if (neighbors > 12) return 6;
 			else return 4;
 		}
 	}
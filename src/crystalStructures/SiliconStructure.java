@@ -18,14 +18,18 @@
 
 package crystalStructures;
 
-import java.util.ArrayList;
 
 import model.Atom;
 import model.NearestNeighborBuilder;
-import common.Vec3;
 
 public class SiliconStructure extends DiamondCubicStructure{
 
+	/**
+	 * Bins of the cosines in the bond angle analysis, see {@link BondAngleKernel#countAngles(float[])}
+	 */
+	private static final float[] angleBins = {BondAngleKernel.lessOrEqual(-0.6), BondAngleKernel.lessThan(-0.1),
+		BondAngleKernel.lessOrEqual(0.14), BondAngleKernel.lessThan(0.6)};
+
 	@Override
 	protected String getIDName() {
 		return "Silicon";
@@ -43,66 +47,43 @@ public class SiliconStructure extends DiamondCubicStructure{
 	 */
 	@Override
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
-		ArrayList<Vec3> neighVecLongRange = nnb.getNeighVec(atom);
-		if (neighVecLongRange.size() <= 12) return 6;
-		ArrayList<Vec3> neighVec = new ArrayList<Vec3>();
-		for (Vec3 f : neighVecLongRange)
-			if (f.getLengthSqr() < (0.25f * latticeConstant * latticeConstant)) neighVec.add(f);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		if (kernel.setNeighbors(atom, nnb) <= 12) return 6;
+		int neighbors = kernel.retainCloserThan(0.25f * latticeConstant * latticeConstant);
 
-		if (neighVec.size() == 3) return 5; //3 neighbors distorted surface
-		if (neighVec.size() < 3) return 6; // free surface
+		if (neighbors == 3) return 5; //3 neighbors distorted surface
+		if (neighbors < 3) return 6; // free surface
 		else {
-			int co_x0 = 0;
-			// int co_betaTin = 0;
-			int co_betaTin2 = 0;
-			int co_bct5 = 0;
-			for (int i = 0; i < neighVec.size(); i++) {
-				float v_length = neighVec.get(i).getLength();
-
-				for (int j = 0; j < i; j++) {
-					float u_length = neighVec.get(j).getLength();
-					float a = neighVec.get(i).dot(neighVec.get(j));
-					a /= (v_length * u_length); /* cos(angle) */
-
-					// if (a < -0.7) co_betaTin++;
-					if (a > 0.14 && a < 0.6) co_betaTin2++;
-
-					/* if (a < -0.173648178 && a > -0.6 ) co_x0++; */
-					if (a < -0.1 && a > -0.6) co_x0++;
-
-					if (a < 0.60) co_bct5++;
-					/*
-					 * if (a> -0.84 && a < 0.30) co_bct5++; /* if (a > -0.21 &&
-					 * a < 0.30) co_bct5++; if (a > -0.51 && a < -0.23)
-					 * co_bct5_2++; if (a > -0.84 && a < -0.61) co_bct5_3++;
-					 */
-				}
-			}
+			//Bins: cos <= -0.6, < -0.1, <= 0.14, < 0.6
+			int[] co = kernel.countAngles(angleBins);
+			int co_x0 = co[1];
+			int co_betaTin2 = co[3];
+			int co_bct5 = co[0] + co[1] + co[2] + co[3];
 
-			if (neighVec.size() < 3) return 6;
+			if (neighbors < 3) return 6;
 
-			 //if (neighVec.size()==6 && co_betaTin == 3 && co_betaTin2 == 4)
+			 //if (neighbors==6 && co_betaTin == 3 && co_betaTin2 == 4)
 			 //return 1;
-			if (neighVec.size() == 6) {
+			if (neighbors == 6) {
 				/* if (co_betaTin == 3 && co_betaTin2 == 4) return 1; /* BetaSn */
 				if (co_betaTin2 == 4) return 1;
 				else return 4; /* 6 neighbors distorted atoms */
 			}
 
-			if (neighVec.size() == 5) {
+			if (neighbors == 5) {
 				if (co_bct5 == 10) return 2; /* BCT5 */
 				else return 7; /* 5 neighbors distorted atoms */
 			}
 
 			
-			//if (neighVec.size()==5 && co_bct5==4 && co_betaTin == 2 && co_x0 == 4) return 2;
-			//if (neighVec.size()==5 && co_bct5==4 && co_bct5_2 == 4 && * co_bct5_3 == 2) return 2; /* BCT5 phase*/
+			//if (neighbors==5 && co_bct5==4 && co_betaTin == 2 && co_x0 == 4) return 2;
+			//if (neighbors==5 && co_bct5==4 && co_bct5_2 == 4 && * co_bct5_3 == 2) return 2; /* BCT5 phase*/
 
-			if (neighVec.size() == 4) {
+			if (neighbors == 4) {
 				if (co_x0 == 6) return 0; /* Diamond Cubic */
 				else return 3; /* bc8/r8 */
 			}
-			/* if (neighVec.size() == 5) return 2; /* distorted 5 neighbors */
+			/* if (neighbors == 5) return 2; /* distorted 5 neighbors */
 			else return 8; /* > 6 neighbors atoms */
 		}
 	}
@@ -21,7 +21,6 @@ package crystalStructures;
 import java.util.*;
 
 import common.ColorTable;
-import common.Vec3;
 import gui.PrimitiveProperty.BooleanProperty;
 import model.Atom;
 import model.Filter;
@@ -29,6 +28,11 @@ import model.NearestNeighborBuilder;
 
 public class YSZStructure extends FCCStructure {
 	
+	/**
+	 * Bins of the cosines in the bond angle analysis, see {@link BondAngleKernel#countAngles(float[])}
+	 */
+	private final static float[] angleBins = {-0.945f, -.915f, -.775f, 0.573576436f};
+	
 	protected BooleanProperty dontImportOxygen = 
 			new BooleanProperty("dontImportOxygen", "Do not import oxygen",
 					"Ignores all oxygen atoms during import",false);
@@ -97,52 +101,45 @@ public class YSZStructure extends FCCStructure {
 	public int identifyAtomType(Atom atom, NearestNeighborBuilder<Atom> nnb) {
 		if (atom.getElement() % getNumberOfElements() == 1) return 0;
 		
-		ArrayList<Vec3> neigh = nnb.getNeighVec(atom);
+		BondAngleKernel kernel = BondAngleKernel.getInstance();
+		int neighbors = kernel.setNeighbors(atom, nnb);
 		
-		if (neigh.size()<10){
-			if (neigh.size()<6) return 8;
+		if (neighbors<10){
+			if (neighbors<6) return 8;
 			//Test if all atoms are located almost in a half-space of the center atom
 			//Compute the sum of all neighbor vectors and negate 
-			Vec3 con = new Vec3();
-			for (Vec3 n : neigh)
-				con.sub(n);
+			float cx = 0f, cy = 0f, cz = 0f;
+			for (int i = 0; i < neighbors; i++){
+				cx -= kernel.getX(i);
+				cy -= kernel.getY(i);
+				cz -= kernel.getZ(i);
+			}
 			//Normalize this vector --> this normal splits the volume into two half-spaces 
-			con.normalize();
+			float l = 1f/(float)Math.sqrt(cx*cx + cy*cy + cz*cz);
+			cx *= l; cy *= l; cz *= l;
 			boolean surface = true;
 			//Test if all neighbors either on one side of the halfplane (dot product < 0) or only 
 			//slightly off
-			for (Vec3 n : neigh){
-				if (con.dot(n.normalizeClone())>0.35f)
+			for (int i = 0; i < neighbors; i++){
+				float li = 1f/kernel.getLength(i);
+				if (cx*(kernel.getX(i)*li) + cy*(kernel.getY(i)*li) + cz*(kernel.getZ(i)*li) > 0.35f)
 					surface = false;
 			}
 			if (surface) return 7;
 		}
-		if (neigh.size()>12) return 6;
+		if (neighbors>12) return 6;
 		
-		int co_x0 = 0;
-		int co_x1 = 0;
-		int co_x2 = 0;
-		int co_x3 = 0;
-		for (int i = 0; i < neigh.size(); i++) {
-			Vec3 v = neigh.get(i);
-			float v_length = v.getLength();
-			for (int j = 0; j < i; j++) {
-				Vec3 u = neigh.get(j);
-				float u_length = u.getLength();
-				float a = v.dot(u) / (v_length*u_length);
-				
-				if (a < -0.945f) co_x0++; // 0.945
-				else if (a < -.915f) co_x1++;
-				else if (a < -.775f) co_x2++; // 0.755
-				else if (a < 0.573576436f) co_x3++;
-				
-			}
-		}
+		//Bins: cos < -0.945, < -0.915, < -0.775 (0.755), < 0.5736
+		int[] co = kernel.countAngles(angleBins);
+		int co_x0 = co[0];
+		int co_x1 = co[1];
+		int co_x2 = co[2];
+		int co_x3 = co[3];
 		
 		if (co_x0 == 6) return 1;
 		else if (co_x0 == 5 && co_x3>=3) return 2;
 		else if (co_x0 == 3 && co_x1 <= 1 && co_x2 > 2) return 3;
-		else if (neigh.size()<12) return 5;
+		else if (neighbors<12) return 5;
 		else return 4;
 	}
 
@@ -17,7 +17,7 @@ import processingModules.toolchain.Toolchain.ReferenceMode;
 
 public class BatchProcessing {
 
-	private enum Arguments {INPUT_FORMAT, INPUT_FILES, REFERENCE_FILE, CRYSTAL_CONF, PBC, OUTPUT_PATTERN, OUTPUT_FORMAT, TOOLCHAIN}
+	private enum Arguments {INPUT_FORMAT, INPUT_FILES, REFERENCE_FILE, CRYSTAL_CONF, PBC, OUTPUT_PATTERN, OUTPUT_FORMAT, TOOLCHAIN, IMAGE_SIZE, POV, SLABS}
 	
 	public void processBatch(String[] args){
 		if (!args[0].equals("-b")){
@@ -40,14 +40,14 @@ public class BatchProcessing {
 					fileLoader = new XYZFileLoader();
 				else if (type.toLowerCase().equals("cfg"))
 					fileLoader = new CfgFileLoader();
+				else if (type.toLowerCase().equals("avs"))
+					fileLoader = new SnapshotFileLoader();
 				else throw new RuntimeException("Input format "+type+" is not valid.");
 			}
 			else
 				fileLoader = new ImdFileLoader();
 			
 			Toolchain toolchain = null;
-			boolean keepPreviousFile = false;
-			boolean keepFirstFile = false;
 			
 			if (arguments.get(Arguments.TOOLCHAIN) != null){
 				File toolchainFile = new File(arguments.get(Arguments.TOOLCHAIN)[0]);
@@ -61,15 +61,22 @@ public class BatchProcessing {
 						throw new RuntimeException("Toolchains with references to the following or next file in a sequence are not supported for batch processing");
 					if (pm.getReferenceModeUsed() == ReferenceMode.REF && arguments.get(Arguments.REFERENCE_FILE)==null)
 						throw new RuntimeException("No reference file specified, but requested in the selected toolchain");
-					if (pm.getReferenceModeUsed() == ReferenceMode.FIRST)
-						keepFirstFile = true;
-					if (pm.getReferenceModeUsed() == ReferenceMode.PREVIOUS)
-						keepPreviousFile = true;
 				}
 				fis.close();
 			}
 			
 			
+			SlabProcessor slabProcessor = null;
+			if (arguments.get(Arguments.SLABS) != null){
+				if (!(fileLoader instanceof ImdFileLoader))
+					throw new RuntimeException("Slab processing is only supported for the IMD format");
+				if (arguments.get(Arguments.IMAGE_SIZE) != null)
+					throw new RuntimeException("Images cannot be rendered in slab processing");
+				String[] slabs = arguments.get(Arguments.SLABS);
+				slabProcessor = new SlabProcessor((ImdFileLoader)fileLoader, toolchain, 
+						Float.parseFloat(slabs[1]), Integer.parseInt(slabs[0]));
+			}
+			
 			Configuration.setCurrentFileLoader(fileLoader);
 			final SwingWorker<AtomData, String> worker = fileLoader.getNewSwingWorker();
 			
@@ -119,26 +126,62 @@ public class BatchProcessing {
 				Configuration.setLastOpenedFolder(inputFile.getParentFile());
 				Filter<Atom> filter = ImportConfiguration.getInstance().getCrystalStructure().getIgnoreAtomsDuringImportFilter();
 				
-				reference = fileLoader.readInputData(inputFile, null, filter);
-				reference.setAsReferenceForProcessingModule();
-				if (toolchain != null){
-					for (ProcessingModule pm : toolchain.getProcessingModules()){
-						reference.applyProcessingModule(pm);
+				if (slabProcessor != null){
+					//The reference is read slab by slab as well
+					slabProcessor.setReference(inputFile, filter);
+				} else {
+					reference = fileLoader.readInputData(inputFile, null, filter);
+					reference.setAsReferenceForProcessingModule();
+					if (toolchain != null){
+						for (ProcessingModule pm : toolchain.getProcessingModules()){
+							reference.applyProcessingModule(pm);
+						}
 					}
 				}
 			}
 			
-			AtomData previousFile = null;
-			AtomData firstFile = null;
 			int countFiles = 0;
+			boolean binaryOutput = false;
+			if (arguments.get(Arguments.OUTPUT_FORMAT) != null && 
+					arguments.get(Arguments.OUTPUT_FORMAT)[0].equals("imd_b")){
+				binaryOutput = true;
+			}
 			
-			//loop over all files
+			ArrayList<File> inputFiles = new ArrayList<File>();
 			if (arguments.get(Arguments.INPUT_FILES) != null){
 				for (String f : arguments.get(Arguments.INPUT_FILES)){
 					File inputFile = new File(f);
 					if (!inputFile.exists())
 						throw new RuntimeException("Input file "+f+" not found");
+					inputFiles.add(inputFile);
+				}
+			}
+			
+			if (slabProcessor != null){
+				for (File inputFile : inputFiles){
+					readCrystalConf(arguments, ic, inputFile);
+					Configuration.create();
+					Configuration.setLastOpenedFolder(inputFile.getParentFile());
+					Filter<Atom> filter = ImportConfiguration.getInstance().getCrystalStructure().getIgnoreAtomsDuringImportFilter();
+					
+					String outfile;
+					if (inputFiles.size() >1)
+						outfile = String.format("%s.%05d.chkpt", arguments.get(Arguments.OUTPUT_PATTERN)[0], countFiles);
+					else outfile = arguments.get(Arguments.OUTPUT_PATTERN)[0];
 					
+					ImdFileWriter writer = new ImdFileWriter(binaryOutput, false);
+					slabProcessor.process(inputFile, null, writer, null, outfile, filter);
+					countFiles++;
+				}
+			} else {
+				//loop over all frames, frames not needed as references are released after being written
+				TrajectorySource source = new TrajectorySource(fileLoader, inputFiles, toolchain);
+				source.setReference(reference);
+				//Files are indexed only when they are read, thus the number of frames is unknown in advance
+				boolean multipleFrames = inputFiles.size() > 1;
+				
+				while (source.hasNext()){
+					File inputFile = source.getNextFile();
 					readCrystalConf(arguments, ic, inputFile);
 	
 					Configuration.create();
@@ -146,53 +189,43 @@ public class BatchProcessing {
 					Configuration.setLastOpenedFolder(inputFile.getParentFile());
 					Filter<Atom> filter = ImportConfiguration.getInstance().getCrystalStructure().getIgnoreAtomsDuringImportFilter();
 					
-					if (keepFirstFile){
-						previousFile = firstFile;
-						previousFile.setNextToNull();
-					}
-					AtomData data = fileLoader.readInputData(inputFile, previousFile, filter);
-					if (toolchain != null){
-						for (ProcessingModule pm : toolchain.getProcessingModules()){
-							data.applyProcessingModule(pm);
-						}
-					}
-					if (keepFirstFile && countFiles == 0){
-						firstFile = data;
-					}
-					
-					if (keepPreviousFile){
-						if (data.getPrevious()!=null)
-							data.getPrevious().setNextToNull();
-						previousFile = data;
-					}
+					AtomData data = source.next(filter);
+					if (countFiles == 0 && source.hasNext()) multipleFrames = true;
 					
 					//File output
 					String outfile;
-					if (arguments.get(Arguments.INPUT_FILES).length >1)
+					if (multipleFrames)
 						outfile = String.format("%s.%05d.chkpt", arguments.get(Arguments.OUTPUT_PATTERN)[0], countFiles);
 					else outfile = arguments.get(Arguments.OUTPUT_PATTERN)[0];
 					
-					boolean binaryOutput = false;
+					MDFileWriter writer;
 					if (arguments.get(Arguments.OUTPUT_FORMAT) != null && 
-							arguments.get(Arguments.OUTPUT_FORMAT)[0].equals("imd_b")){
-						binaryOutput = true;
-					}
-					
-					ImdFileWriter writer = new ImdFileWriter(binaryOutput, false);
+							arguments.get(Arguments.OUTPUT_FORMAT)[0].equals("avs"))
+						writer = new SnapshotFileWriter();
+					else writer = new ImdFileWriter(binaryOutput, false);
 					writer.setDataToExport(true, true, true, true, true, 
 							data.getDataColumnInfos().toArray(new DataColumnInfo[data.getDataColumnInfos().size()]));
 					writer.writeFile(null, outfile, data, null);
-					countFiles++;
 					
-//					DataContainer dc = Configuration.getCurrentAtomData().getDataContainer(Skeletonizer.class);
-//					Skeletonizer skel = null;
-//					if (dc != null)
-//						skel = (Skeletonizer)dc;
-//					
-//					if (exportDislocations && skel != null){
-//						outfile = args[4]+"_dislocation.txt";
-//						skel.writeDislocationSkeleton(new File(outfile));
-//					}
+					//Image output, rendered on the CPU
+					if (arguments.get(Arguments.IMAGE_SIZE) != null){
+						String imagefile;
+						if (multipleFrames)
+							imagefile = String.format("%s.%05d.png", arguments.get(Arguments.OUTPUT_PATTERN)[0], countFiles);
+						else imagefile = arguments.get(Arguments.OUTPUT_PATTERN)[0]+".png";
+						
+						String[] size = arguments.get(Arguments.IMAGE_SIZE);
+						HeadlessRenderer renderer = new HeadlessRenderer(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+						if (arguments.get(Arguments.POV) != null){
+							String[] p = arguments.get(Arguments.POV)[0].split(";");
+							float[] pov = new float[p.length];
+							for (int i=0; i<p.length; i++)
+								pov[i] = Float.parseFloat(p[i]);
+							renderer.setPOV(pov);
+						}
+						renderer.renderToFile(data, new File(imagefile));
+					}
+					countFiles++;
 				}
 			}
 			
@@ -264,15 +297,28 @@ public class BatchProcessing {
 		System.out.println("              lammps: Lammps ascii dump");
 		System.out.println("              xyz: (extended) XYZ format");
 		System.out.println("              cfg: Cfg format");
+		System.out.println("              avs: AtomViewer snapshot");
 		System.out.println("-of <format>: Select output format. Valid formats:");
 		System.out.println("              imd_a: Output in IMD ASCII format (default)");
 		System.out.println("              imd_b: Output in IMD binary format");
+		System.out.println("              avs: AtomViewer snapshot, stores all results");
 		System.out.println("-cc <crystal.Conf file>: File containing the crystal information");
 		System.out.println("                         (usually named crystal.conf).If not give, ");
 		System.out.println("                         AtomViewer tries to read the file");
 		System.out.println("                         from the same folder as the input files");
 		System.out.println("-tc <Toolchain file>: Toolchain file to be applied to each input file");
 		System.out.println("-ref <Reference file>: A reference file is needed for a toolchain");
+		System.out.println("-img <width> <height>: Additionally render each file into a PNG image");
+		System.out.println("                       of the given size. No graphics card is needed.");
+		System.out.println("-pov <point of view>: Perspective used for rendering images, as stored");
+		System.out.println("                      in the metadata of screenshots (values separated by ;)");
+		System.out.println("-slab <atoms> <halo>: Process IMD files that do not fit into memory in");
+		System.out.println("                      slabs of at most the given number of atoms, surrounded");
+		System.out.println("                      by a halo of the given thickness. The halo must be");
+		System.out.println("                      at least the largest cutoff radius in the toolchain.");
+		System.out.println("                      Toolchains can only refer to the file given by -ref,");
+		System.out.println("                      which is processed in slabs too. The halo must then");
+		System.out.println("                      also exceed the largest displacement of an atom.");
 		System.out.println("-pbc <0|1 0|1 0|1>: Enable/disable periodicity. By default");
 		System.out.println("                    periodicity is disabled. If PBCs are provide by the");
 		System.out.println("                    input file, this setting is ignored.");
@@ -341,6 +387,35 @@ public class BatchProcessing {
 					arguments.put(Arguments.INPUT_FILES, inputfiles.toArray(new String[inputfiles.size()]));
 				}
 				
+				//Read image size
+				if (args[i].equals("-img")){
+					String[] size = new String[2];
+					for (int j = 1; j<=2;j++){
+						if (args.length<=i+j || args[i+j].startsWith("-"))
+							throw new RuntimeException("Image size missing after -img");
+						size[j-1] = args[i+j];
+					}
+					arguments.put(Arguments.IMAGE_SIZE, size);
+				}
+				
+				//Read point of view for images
+				if (args[i].equals("-pov")){
+					if (args.length<=i+1) 
+						throw new RuntimeException("Point of view missing after -pov");
+					arguments.put(Arguments.POV, new String[]{args[i+1]});
+				}
+				
+				//Read slab size and halo width
+				if (args[i].equals("-slab")){
+					String[] slab = new String[2];
+					for (int j = 1; j<=2;j++){
+						if (args.length<=i+j || args[i+j].startsWith("-"))
+							throw new RuntimeException("Number of atoms and halo width missing after -slab");
+						slab[j-1] = args[i+j];
+					}
+					arguments.put(Arguments.SLABS, slab);
+				}
+				
 				if (args[i].equals("-pbc")){
 					String[] pbcs = new String[3];
 					for (int j = 1; j<=3;j++){
@@ -0,0 +1,675 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2016  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/> 
+
+package gui;
+
+import gnu.trove.list.array.TByteArrayList;
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.ColorTable;
+import common.ImageOutput;
+import common.Ray;
+import common.ThreadPool;
+import common.Vec3;
+import crystalStructures.CrystalStructure;
+import gui.ViewerGLJPanel.RenderOption;
+import gui.glUtils.GLMatrix;
+import model.Atom;
+import model.AtomData;
+import model.BoxParameter;
+import model.BurgersVector.BurgersVectorType;
+import model.DataColumnInfo;
+import model.FilterSet;
+import model.RenderingConfiguration;
+import model.mesh.FinalMesh;
+import model.mesh.FinalizedTriangle;
+import model.mesh.Mesh;
+import model.polygrain.Grain;
+import processingModules.DataContainer;
+import processingModules.otherModules.SurfaceApproximationModule.SurfaceApproximationDataContainer;
+import processingModules.skeletonizer.Dislocation;
+import processingModules.skeletonizer.JDislocationMenuPanel;
+import processingModules.skeletonizer.PlanarDefect;
+import processingModules.skeletonizer.SkeletonNode;
+import processingModules.skeletonizer.Skeletonizer;
+
+/**
+ * Renders atoms, dislocation cores, stacking faults, grain meshes and approximated surfaces into an image without requiring OpenGL.
+ * Rays are traced on the CPU through a bounding volume hierarchy over all objects,
+ * the image is processed in tiles in parallel.
+ * The camera follows the conventions of {@link ViewerGLJPanel}, a point of view obtained from
+ * {@link ViewerGLJPanel#getPov()} thus creates the same perspective.
+ * Atoms are filtered by {@link RenderingConfiguration#getAtomFilterset()} and are colored
+ * by the selected data column in {@link RenderingConfiguration}, or by their type if no column is selected.
+ * Stacking faults and meshes are rendered opaque.
+ */
+public class HeadlessRenderer {
+	private static final int TILE_SIZE = 32;
+	private static final int MAX_PRIMITIVES_PER_LEAF = 4;
+	private static final int MAX_TRAVERSAL_DEPTH = 128;
+	private static final byte CAPSULE = 0;
+	private static final byte TRIANGLE = 1;
+	private static final int SHAPE_STRIDE = 9;	//Floats per shape, three corners of a triangle
+	
+	private final int width, height;
+	private float[] pov = null;
+	private float sphereSize = 1.5f;
+	private boolean perspective = false;
+	private int supersampling = 1;
+	private float[] backgroundColor = new float[]{1f, 1f, 1f};
+	
+	//Scene, primitives [0, numSpheres) are spheres, all following indices refer to shapes
+	private int numSpheres;
+	private float[] spheres;		//x, y, z, radius
+	private float[] sphereColors;	//r, g, b
+	private TFloatArrayList shapes = new TFloatArrayList();
+	private TFloatArrayList shapeColors = new TFloatArrayList();
+	private TByteArrayList shapeTypes = new TByteArrayList();
+	private float[] shapeData;		//Shapes as array, created once the scene is complete
+	private float[] shapeColorData;
+	
+	//Bounding volume hierarchy
+	private int[] primitives;
+	private float[] nodeBounds;	//lower and upper corner per node
+	//Per node: for inner nodes the indices of the two children,
+	//for leafs -(index of first primitive+1) and the number of primitives
+	private int[] nodeChildren;
+	
+	public HeadlessRenderer(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+	
+	/**
+	 * Sets the point of view in the format provided by {@link ViewerGLJPanel#getPov()}
+	 * @param pov 
+	 */
+	public void setPOV(float[] pov) {
+		if (pov == null || pov.length<=19) this.pov = null;
+		else this.pov = pov.clone();
+	}
+	
+	public void setSphereSize(float sphereSize) {
+		this.sphereSize = sphereSize;
+	}
+	
+	public void setPerspective(boolean perspective) {
+		this.perspective = perspective;
+	}
+	
+	/**
+	 * Number of samples per pixel in each direction used for anti-aliasing
+	 * @param supersampling
+	 */
+	public void setSupersampling(int supersampling) {
+		this.supersampling = Math.max(1, supersampling);
+	}
+	
+	public void setBackgroundColor(float[] backgroundColor) {
+		this.backgroundColor = backgroundColor.clone();
+	}
+	
+	/**
+	 * Renders the data and writes the result as a PNG file
+	 * @param data
+	 * @param file
+	 * @throws Exception
+	 */
+	public void renderToFile(AtomData data, File file) throws Exception{
+		BufferedImage bi = render(data);
+		ImageOutput.writeScreenshotFile(bi, "png", file, data, getPov());
+	}
+	
+	/**
+	 * Renders the atoms and the dislocation networks of the given data 
+	 * @param data
+	 * @return
+	 */
+	public BufferedImage render(AtomData data){
+		createScene(data);
+		buildBVH();
+		
+		GLMatrix inverseMVP = createProjectionMatrix();
+		inverseMVP.mult(createModelViewMatrix(data));
+		inverseMVP.inverse();
+		
+		final int[] pixels = new int[width*height];
+		final GLMatrix camera = inverseMVP;
+		final int tilesX = (width+TILE_SIZE-1)/TILE_SIZE;
+		final int tilesY = (height+TILE_SIZE-1)/TILE_SIZE;
+		final AtomicInteger nextTile = new AtomicInteger();
+		
+		Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int[] stack = new int[MAX_TRAVERSAL_DEPTH];
+					float[] color = new float[3];
+					int tile;
+					while ((tile = nextTile.getAndIncrement()) < tilesX*tilesY){
+						int x0 = (tile%tilesX)*TILE_SIZE;
+						int y0 = (tile/tilesX)*TILE_SIZE;
+						for (int y=y0; y<Math.min(y0+TILE_SIZE, height); y++){
+							for (int x=x0; x<Math.min(x0+TILE_SIZE, width); x++){
+								float r = 0f, g = 0f, b = 0f;
+								for (int sy=0; sy<supersampling; sy++){
+									for (int sx=0; sx<supersampling; sx++){
+										float px = x + (sx+0.5f)/supersampling;
+										float py = y + (sy+0.5f)/supersampling;
+										Ray ray = camera.unprojectRay(2f*px/width - 1f, 1f - 2f*py/height);
+										shade(ray, stack, color);
+										r += color[0]; g += color[1]; b += color[2];
+									}
+								}
+								float norm = 255f/(supersampling*supersampling);
+								pixels[y*width+x] = (toByte(r*norm)<<16) | (toByte(g*norm)<<8) | toByte(b*norm); 
+							}
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(tasks);
+		
+		BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		bi.setRGB(0, 0, width, height, pixels, 0, width);
+		return bi;
+	}
+	
+	private float[] getPov(){
+		if (pov != null) return pov;
+		float[] m = new float[22];
+		m[0] = 1f; m[5] = 1f; m[10] = 1f; m[15] = 1f;
+		m[16] = 1f;
+		return m;
+	}
+	
+	private static int toByte(float v){
+		if (v < 0f) return 0;
+		if (v > 255f) return 255;
+		return (int)v;
+	}
+	
+	//region camera
+	/**
+	 * Same transformations as in {@link ViewerGLJPanel}, for a single frame the
+	 * box of the frame replaces the largest box in a sequence 
+	 */
+	private GLMatrix createModelViewMatrix(AtomData data){
+		float[] m = getPov();
+		GLMatrix mv = new GLMatrix();
+		
+		mv.translate(-m[17], -m[18], 0);
+		mv.mult(m);
+		Vec3 bounds = data.getBox().getHeight();
+		float scale = 1f / bounds.maxComponent();
+		mv.scale(scale, scale, scale);
+		//Shift to the center of the box
+		mv.translate(-bounds.x*0.5f, -bounds.y*0.5f, -bounds.z*0.5f);
+		//Shift again if the focus is placed on some object
+		if (m.length >= 22)
+			mv.translate(-m[19], -m[20], -m[21]);
+		return mv;
+	}
+	
+	private GLMatrix createProjectionMatrix(){
+		float zoom = getPov()[16];
+		GLMatrix pm = new GLMatrix();
+		float aspect = width / (float) height;
+		
+		if (!perspective){
+			if (aspect > 1) pm.createOrtho(-aspect, aspect, -1f, 1f, -2, +2);
+			else pm.createOrtho(-1f, 1f, (-1f / aspect), (1f / aspect), -2, +2);
+			pm.scale(zoom, zoom, 1f);
+		} else {
+			float viewPaneCorrection = 0.5f;
+			float right = viewPaneCorrection, top = viewPaneCorrection;
+			float left = -viewPaneCorrection, bottom = -viewPaneCorrection;
+			if (width<height){
+				bottom /= aspect;
+				top    /= aspect;
+			} else {
+				left   *= aspect;
+				right  *= aspect;
+			}
+			pm.createFrustum(left, right, bottom, top, 1.2f, 10f);
+			pm.translate(0f, 0f, -3.2f);
+			pm.scale(zoom, zoom, 1f);
+		}
+		return pm;
+	}
+	//endregion camera
+	
+	//region scene creation
+	private void createScene(final AtomData data){
+		final List<Atom> atoms = data.getAtoms();
+		final CrystalStructure cs = data.getCrystalStructure();
+		final int numEle = cs.getNumberOfElements();
+		final float[] sphereSizes = cs.getSphereSizeScalings();
+		for (int i=0; i<sphereSizes.length; i++)
+			sphereSizes[i] *= sphereSize;
+		
+		final FilterSet<Atom> filter = RenderingConfiguration.getAtomFilterset();
+		final int radiusColumn = data.getComponentIndex(DataColumnInfo.Component.PARTICLE_RADIUS);
+		
+		DataColumnInfo dci = RenderingConfiguration.getSelectedColumn();
+		final int colorColumn = dci == null ? -1 : data.getDataColumnIndex(dci);
+		final float min = dci == null ? 0f : dci.getLowerLimit();
+		final float max = dci == null ? 0f : dci.getUpperLimit();
+		final boolean filterMin = colorColumn != -1 && RenderingConfiguration.isFilterMin();
+		final boolean filterMax = colorColumn != -1 && RenderingConfiguration.isFilterMax();
+		final boolean inversed = RenderingConfiguration.isFilterInversed();
+		
+		final float[] sphereData = new float[atoms.size()*4];
+		final float[] colorData = new float[atoms.size()*3];
+		final boolean[] accepted = new boolean[atoms.size()];
+		
+		Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(atoms.size(), i);
+			final int end = ThreadPool.getSliceEnd(atoms.size(), i);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++){
+						Atom a = atoms.get(i);
+						if (!filter.accept(a)) continue;
+						if (filterMin || filterMax){
+							float v = a.getData(colorColumn, data);
+							if ((filterMin && v<min) || (filterMax && v>max)){
+								if (!inversed) continue;
+							} else if (inversed) continue;
+						}
+						accepted[i] = true;
+						float s = sphereSizes[a.getElement() % numEle];
+						if (radiusColumn != -1) s *= a.getData(radiusColumn, data);
+						sphereData[4*i+0] = a.x; sphereData[4*i+1] = a.y;
+						sphereData[4*i+2] = a.z; sphereData[4*i+3] = s;
+						float[] col = colorColumn == -1 ? cs.getGLColor(a.getType()) :
+							ColorTable.getIntensityGLColor(min, max, a.getData(colorColumn, data));
+						colorData[3*i+0] = col[0]; colorData[3*i+1] = col[1]; colorData[3*i+2] = col[2];
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(tasks);
+		
+		//Compact the accepted atoms
+		int n = 0;
+		for (int i=0; i<accepted.length; i++){
+			if (!accepted[i]) continue;
+			System.arraycopy(sphereData, 4*i, sphereData, 4*n, 4);
+			System.arraycopy(colorData, 3*i, colorData, 3*n, 3);
+			n++;
+		}
+		this.numSpheres = n;
+		this.spheres = sphereData;
+		this.sphereColors = colorData;
+		
+		shapes.clear();
+		shapeColors.clear();
+		shapeTypes.clear();
+		for (DataContainer dc : data.getAdditionalData()){
+			if (dc instanceof Skeletonizer)
+				addSkeleton((Skeletonizer)dc, data);
+			else if (dc instanceof SurfaceApproximationDataContainer){
+				SurfaceApproximationDataContainer sadc = (SurfaceApproximationDataContainer)dc;
+				for (Mesh m : sadc.getVisibleMeshes())
+					addMesh(m.getFinalMesh(), sadc.getColor());
+			}
+		}
+		
+		if (RenderOption.GRAINS.isEnabled() && data.isPolyCrystalline())
+			addGrains(data);
+	}
+	
+	/**
+	 * Adds the grain meshes, colored like in the viewer
+	 * @param data
+	 */
+	private void addGrains(AtomData data){
+		ArrayList<Integer> sortGrainIndices = new ArrayList<Integer>(data.getGrains().size());
+		for (Grain g : data.getGrains())
+			sortGrainIndices.add(g.getGrainNumber());
+		Collections.sort(sortGrainIndices);
+		float[][] colors = ColorTable.createColorTable(sortGrainIndices.size()+2, 0.5f);
+		
+		for (Grain g : data.getGrains())
+			addMesh(g.getMesh().getFinalMesh(), colors[Collections.binarySearch(sortGrainIndices, g.getGrainNumber())]);
+	}
+	
+	private void addMesh(FinalMesh mesh, float[] col){
+		for (FinalizedTriangle t : mesh.getTriangles()){
+			Vec3[] c = t.getCorners();
+			addShape(TRIANGLE, col, c[0], c[1], c[2]);
+		}
+	}
+	
+	private void addSkeleton(Skeletonizer skel, AtomData data){
+		BoxParameter box = data.getBox();
+		
+		if (JDislocationMenuPanel.Option.DISLOCATIONS.isEnabled()){
+			for (Dislocation dis : skel.getDislocations()){
+				if (dis.getBurgersVectorInfo().getBurgersVector().getType() == BurgersVectorType.DONT_SHOW) continue;
+				float[] col = dis.getBurgersVectorInfo().getBurgersVector().getType().getColor();
+				SkeletonNode[] line = dis.getLine();
+				for (int j=0; j<line.length-1; j++){
+					if (!box.isVectorInPBC(line[j].subClone(line[j+1]))) continue;
+					addShape(CAPSULE, col, line[j], line[j+1], new Vec3(Skeletonizer.CORE_THICKNESS*0.5f, 0f, 0f));
+				}
+			}
+		}
+		
+		if (JDislocationMenuPanel.Option.STACKING_FAULT.isEnabled()){
+			CrystalStructure cs = data.getCrystalStructure();
+			for (PlanarDefect pd : skel.getPlanarDefects()){
+				float[] col = cs.hasMultipleStackingFaultTypes() ? 
+						cs.getGLColor(pd.getPlaneComposedOfType()) : new float[]{0.8f, 0.8f, 0.8f};
+				Atom[] f = pd.getFaces();
+				for (int j = 0; j < f.length; j+=3) {
+					if (box.isVectorInPBC(f[j].subClone(f[j+1])) && box.isVectorInPBC(f[j].subClone(f[j+2])) && 
+							box.isVectorInPBC(f[j+1].subClone(f[j+2])))
+						addShape(TRIANGLE, col, f[j], f[j+1], f[j+2]);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a capsule (two end points, radius as x-component of the third vector) or a triangle 
+	 */
+	private void addShape(byte type, float[] color, Vec3 a, Vec3 b, Vec3 c){
+		shapeTypes.add(type);
+		shapeColors.add(color, 0, 3);
+		shapes.add(new float[]{a.x, a.y, a.z, b.x, b.y, b.z, c.x, c.y, c.z});
+	}
+	//endregion scene creation
+	
+	//region BVH
+	private float getCentroid(int p, int axis){
+		if (p < numSpheres) return spheres[4*p+axis];
+		int o = (p-numSpheres)*SHAPE_STRIDE;
+		if (shapeTypes.getQuick(p-numSpheres) == CAPSULE)
+			return 0.5f*(shapeData[o+axis] + shapeData[o+3+axis]);
+		return (shapeData[o+axis] + shapeData[o+3+axis] + shapeData[o+6+axis])/3f;
+	}
+	
+	private void extendBounds(int p, float[] b, int offset){
+		if (p < numSpheres){
+			float r = spheres[4*p+3];
+			for (int i=0; i<3; i++){
+				b[offset+i]   = Math.min(b[offset+i],   spheres[4*p+i]-r);
+				b[offset+3+i] = Math.max(b[offset+3+i], spheres[4*p+i]+r);
+			}
+		} else {
+			int o = (p-numSpheres)*SHAPE_STRIDE;
+			boolean capsule = shapeTypes.getQuick(p-numSpheres) == CAPSULE;
+			float r = capsule ? shapeData[o+6] : 0f;
+			for (int i=0; i<3; i++){
+				float lo = Math.min(shapeData[o+i], shapeData[o+3+i]) - r;
+				float hi = Math.max(shapeData[o+i], shapeData[o+3+i]) + r;
+				if (!capsule){
+					lo = Math.min(lo, shapeData[o+6+i]);
+					hi = Math.max(hi, shapeData[o+6+i]);
+				}
+				b[offset+i]   = Math.min(b[offset+i], lo);
+				b[offset+3+i] = Math.max(b[offset+3+i], hi);
+			}
+		}
+	}
+	
+	/**
+	 * Builds the hierarchy by splitting at the median of the longest axis of the centroids' bounds. 
+	 * The upper levels are created serially until enough independent subtrees exist,
+	 * these subtrees are then constructed in parallel.
+	 */
+	private void buildBVH(){
+		shapeData = shapes.toArray();
+		shapeColorData = shapeColors.toArray();
+		int numPrimitives = numSpheres + shapeTypes.size();
+		primitives = new int[numPrimitives];
+		for (int i=0; i<numPrimitives; i++)
+			primitives[i] = i;
+		
+		final BVHBuilder top = new BVHBuilder(Math.max(numPrimitives/(4*ThreadPool.availProcessors()), 
+				MAX_PRIMITIVES_PER_LEAF));
+		top.build(0, numPrimitives);
+		
+		final List<BVHBuilder> subtrees = new ArrayList<BVHBuilder>();
+		Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+		for (int i=0; i<top.deferredNodes.size(); i++){
+			final int node = top.deferredNodes.get(i);
+			final BVHBuilder sub = new BVHBuilder(0);
+			subtrees.add(sub);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int start = -top.children.get(2*node)-1;
+					sub.build(start, start+top.children.get(2*node+1));
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(tasks);
+		
+		//Merge all subtrees into one array, the deferred nodes are replaced by the roots of the subtrees
+		int numNodes = top.numNodes;
+		for (BVHBuilder b : subtrees) numNodes += b.numNodes;
+		nodeBounds = new float[6*numNodes];
+		nodeChildren = new int[2*numNodes];
+		System.arraycopy(top.bounds.toArray(), 0, nodeBounds, 0, 6*top.numNodes);
+		System.arraycopy(top.children.toArray(), 0, nodeChildren, 0, 2*top.numNodes);
+		
+		int offset = top.numNodes;
+		for (int i=0; i<subtrees.size(); i++){
+			BVHBuilder b = subtrees.get(i);
+			int[] c = b.children.toArray();
+			for (int j=0; j<c.length; j+=2){
+				if (c[j] >= 0){
+					c[j] += offset;
+					c[j+1] += offset;
+				}
+			}
+			System.arraycopy(b.bounds.toArray(), 0, nodeBounds, 6*offset, 6*b.numNodes);
+			System.arraycopy(c, 0, nodeChildren, 2*offset, c.length);
+			int deferred = top.deferredNodes.get(i);
+			nodeChildren[2*deferred] = c[0];
+			nodeChildren[2*deferred+1] = c[1];
+			offset += b.numNodes;
+		}
+	}
+	
+	private class BVHBuilder {
+		final int deferredSize;	//Ranges of at most this size are only marked to be built later, 0 to build all
+		TFloatArrayList bounds = new TFloatArrayList();
+		TIntArrayList children = new TIntArrayList();
+		TIntArrayList deferredNodes = new TIntArrayList();
+		int numNodes = 0;
+		
+		BVHBuilder(int deferredSize) {
+			this.deferredSize = deferredSize;
+		}
+		
+		int build(int start, int end){
+			int node = numNodes++;
+			float[] b = new float[]{Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+					Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+			float[] cb = b.clone();	//Bounds of the centroids
+			for (int i=start; i<end; i++){
+				extendBounds(primitives[i], b, 0);
+				for (int j=0; j<3; j++){
+					float c = getCentroid(primitives[i], j);
+					cb[j] = Math.min(cb[j], c);
+					cb[j+3] = Math.max(cb[j+3], c);
+				}
+			}
+			bounds.add(b);
+			//Initialize as a leaf
+			children.add(-start-1);
+			children.add(end-start);
+			
+			if (end-start <= MAX_PRIMITIVES_PER_LEAF) return node;
+			if (deferredSize > 0 && end-start <= deferredSize){
+				deferredNodes.add(node);
+				return node;
+			}
+			
+			int axis = 0;
+			if (cb[4]-cb[1] > cb[3+axis]-cb[axis]) axis = 1;
+			if (cb[5]-cb[2] > cb[3+axis]-cb[axis]) axis = 2;
+			if (!(cb[3+axis] > cb[axis])) return node;	//All centroids identical
+			
+			int mid = (start+end)>>>1;
+			select(start, end-1, mid, axis);
+			
+			int left = build(start, mid);
+			int right = build(mid, end);
+			children.set(2*node, left);
+			children.set(2*node+1, right);
+			return node;
+		}
+		
+		/**
+		 * Partially sorts the primitives, such that the element at position k is at the position
+		 * in sorted order along the axis, all elements before are not larger, all after not smaller 
+		 */
+		private void select(int lo, int hi, int k, int axis){
+			while (hi > lo){
+				float pivot = getCentroid(primitives[(lo+hi)>>>1], axis);
+				int i = lo, j = hi;
+				while (i <= j){
+					while (getCentroid(primitives[i], axis) < pivot) i++;
+					while (getCentroid(primitives[j], axis) > pivot) j--;
+					if (i <= j){
+						int tmp = primitives[i]; primitives[i] = primitives[j]; primitives[j] = tmp;
+						i++; j--;
+					}
+				}
+				if (k <= j) hi = j;
+				else if (k >= i) lo = i;
+				else return;
+			}
+		}
+	}
+	//endregion BVH
+	
+	//region ray tracing
+	/**
+	 * Traces a ray and computes the color of the closest hit,
+	 * using a head light with diffuse and specular components 
+	 */
+	private void shade(Ray ray, int[] stack, float[] color){
+		float closest = Float.POSITIVE_INFINITY;
+		int hit = -1;
+		
+		int sp = 0;
+		if (primitives.length > 0) stack[sp++] = 0;
+		while (sp > 0){
+			int node = stack[--sp];
+			if (ray.intersectBox(nodeBounds, 6*node) >= closest) continue;
+			int c1 = nodeChildren[2*node];
+			int c2 = nodeChildren[2*node+1];
+			if (c1 < 0){
+				int start = -c1-1;
+				for (int i=start; i<start+c2; i++){
+					float d = intersect(ray, primitives[i]);
+					if (d < closest){
+						closest = d;
+						hit = primitives[i];
+					}
+				}
+			} else {
+				//Visit the closer child first
+				float d1 = ray.intersectBox(nodeBounds, 6*c1);
+				float d2 = ray.intersectBox(nodeBounds, 6*c2);
+				if (d1 < d2){
+					if (d2 < closest) stack[sp++] = c2;
+					if (d1 < closest) stack[sp++] = c1;
+				} else {
+					if (d1 < closest) stack[sp++] = c1;
+					if (d2 < closest) stack[sp++] = c2;
+				}
+			}
+		}
+		
+		if (hit == -1){
+			color[0] = backgroundColor[0]; color[1] = backgroundColor[1]; color[2] = backgroundColor[2];
+			return;
+		}
+		
+		Vec3 p = ray.getPoint(closest);
+		Vec3 n;
+		float[] col;
+		int colOffset;
+		if (hit < numSpheres){
+			n = new Vec3(p.x-spheres[4*hit], p.y-spheres[4*hit+1], p.z-spheres[4*hit+2]);
+			col = sphereColors;
+			colOffset = 3*hit;
+		} else {
+			int s = hit-numSpheres;
+			int o = s*SHAPE_STRIDE;
+			if (shapeTypes.getQuick(s) == CAPSULE){
+				//Normal points from the closest point on the core line to the hit point
+				Vec3 a = new Vec3(shapeData[o], shapeData[o+1], shapeData[o+2]);
+				Vec3 u = new Vec3(shapeData[o+3], shapeData[o+4], shapeData[o+5]).sub(a);
+				float t = u.getLengthSqr() > 0f ? p.subClone(a).dot(u)/u.getLengthSqr() : 0f;
+				t = Math.max(0f, Math.min(1f, t));
+				n = p.subClone(a.add(u.multiply(t)));
+			} else {
+				Vec3 a = new Vec3(shapeData[o], shapeData[o+1], shapeData[o+2]);
+				Vec3 e1 = new Vec3(shapeData[o+3], shapeData[o+4], shapeData[o+5]).sub(a);
+				Vec3 e2 = new Vec3(shapeData[o+6], shapeData[o+7], shapeData[o+8]).sub(a);
+				n = e1.cross(e2);
+				if (n.dot(ray.getDirection()) > 0f) n.multiply(-1f);
+			}
+			col = shapeColorData;
+			colOffset = 3*s;
+		}
+		if (n.getLengthSqr() > 0f) n.normalize();
+		
+		float diffuse = Math.max(0f, -n.dot(ray.getDirection()));
+		float specular = (float)Math.pow(diffuse, 32.)*0.3f;
+		float light = 0.25f + 0.75f*diffuse;
+		color[0] = col[colOffset]*light + specular;
+		color[1] = col[colOffset+1]*light + specular;
+		color[2] = col[colOffset+2]*light + specular;
+	}
+	
+	private float intersect(Ray ray, int p){
+		if (p < numSpheres)
+			return ray.intersectSphere(spheres[4*p], spheres[4*p+1], spheres[4*p+2], spheres[4*p+3]);
+		int o = (p-numSpheres)*SHAPE_STRIDE;
+		if (shapeTypes.getQuick(p-numSpheres) == CAPSULE)
+			return ray.intersectCapsule(shapeData, o, o+3, shapeData[o+6]);
+		return ray.intersectTriangle(shapeData, o, o+3, o+6);
+	}
+	//endregion ray tracing
+}
@@ -32,6 +32,7 @@ import model.io.CfgFileLoader;
 import model.io.ImdFileLoader;
 import model.io.LammpsAsciiDumpLoader;
 import model.io.MDFileLoader;
+import model.io.SnapshotFileLoader;
 import model.io.XYZFileLoader;
 import model.Configuration;
 import model.ImportConfiguration;
@@ -59,6 +60,7 @@ public class JMDFileChooser extends JFileChooser{
 		fileLoader.add(new LammpsAsciiDumpLoader());
 		fileLoader.add(new XYZFileLoader());
 		fileLoader.add(new CfgFileLoader());
+		fileLoader.add(new SnapshotFileLoader());
 	}
 	
 	public JMDFileChooser(){
@@ -858,12 +858,14 @@ public class JMainWindow extends JFrame implements WindowListener, AtomDataChang
 			optionPanel.setLayout(new BoxLayout(optionPanel, BoxLayout.Y_AXIS));
 			final JCheckBox exportAll = new JCheckBox("Export all files at once");
 			optionPanel.add(exportAll);
+			final JCheckBox exportSnapshot = new JCheckBox("AtomViewer snapshot format");
+			exportSnapshot.setToolTipText("Binary format that stores all results to be reopened quickly");
+			optionPanel.add(exportSnapshot);
 			chooser.setAccessory(optionPanel);
 			
-			final MDFileWriter writer = new ImdFileWriter();
-			
 			int result = chooser.showSaveDialog(JMainWindow.this);
 			if (result == JFileChooser.APPROVE_OPTION){
+				final MDFileWriter writer = exportSnapshot.isSelected() ? new SnapshotFileWriter() : new ImdFileWriter();
 				
 				final AtomData current = Configuration.getCurrentAtomData();
 				
@@ -237,6 +237,71 @@ public abstract class PrimitiveProperty<T> extends JPanel{
         }
 	}
 
+	public static class LongProperty extends PrimitiveProperty<Long>{
+		private static final long serialVersionUID = 1L;
+		long value, defaultValue;
+		long max, min;
+		JSpinner valueSpinner;
+		
+		public LongProperty(String id, String label, String tooltip, long defaultValue, long min, long max){
+			super(id, label, tooltip);
+			this.min = min;
+			this.max = max;
+			this.value = defaultValue;
+			this.defaultValue = defaultValue;
+			assert (value>=min && value<=max);
+			
+			valueSpinner = new JSpinner(new SpinnerNumberModel(Long.valueOf(value), Long.valueOf(min), 
+					Long.valueOf(max), Long.valueOf(1)));
+			valueSpinner.addChangeListener(new ChangeListener() {
+				@Override
+				public void stateChanged(ChangeEvent arg0) {
+					value = ((Number)(((JSpinner)arg0.getSource()).getValue())).longValue();
+				}
+			});
+			super.initControlPanel(false);
+		}
+		
+		@Override
+		public JComponent getEditor() {
+			return valueSpinner;
+		}
+		
+		@Override
+		public void setToDefault() {
+			this.value = defaultValue;
+			if (valueSpinner!=null){
+				valueSpinner.setValue(this.value);
+			}
+		}
+		
+		public void setDefaultValue(long defaultValue) {
+			this.defaultValue = defaultValue;
+		}
+		
+		public Long getValue() {
+			return value;
+		}
+		
+		@Override
+		public void setValue(Long t) {
+			value = t;
+			valueSpinner.setValue(t);
+		}
+		
+		@Override
+		public void save(Properties prop) {
+			prop.setProperty(id, Long.toString(this.getValue()));
+		}
+		
+		@Override
+		public void load(Properties prop) {
+			String s = prop.getProperty(id, Long.toString(this.getValue()));
+			this.setDefaultValue(Long.parseLong(s));
+			this.setToDefault();
+		}
+	}
+
 	public static class FloatProperty extends PrimitiveProperty<Float>{
 		private static final long serialVersionUID = 1L;
 		float value, defaultValue;
@@ -1597,64 +1597,26 @@ public class ViewerGLJPanel extends GLJPanel implements MouseMotionListener, Mou
 	 * @param e 
 	 */
 	private void performPicking(MouseEvent e){
-		final int picksize = 3;
-		
 		if (atomData==null) return;
-		pickList.clear();
 		
 		boolean adjustPOVOnObject = false;
 		if ((e.getModifiersEx() & (InputEvent.SHIFT_DOWN_MASK | InputEvent.CTRL_DOWN_MASK))
 				== (InputEvent.SHIFT_DOWN_MASK | InputEvent.CTRL_DOWN_MASK)){
 			adjustPOVOnObject = true;
 		}
-
-		GL3 gl = this.getGLFromContext();
-		updateIntInAllShader(gl, "noShading", 1);
-		
-		//Extract viewport
-		int[] viewport = new int[4];
-		gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
-		Point p = e.getPoint();
-		
-		gl.glClear(GL.GL_COLOR_BUFFER_BIT);
-		//Render in Picking mode
-		gl.glEnable(GL.GL_SCISSOR_TEST);
-		gl.glScissor(p.x-picksize/2, viewport[3] - p.y-picksize/2, picksize, picksize);
-		renderScene(gl, true ,0, null);
-		gl.glDisable(GL.GL_SCISSOR_TEST);
-		
-		if (pickList.size() > 16777214){
-			JLogPanel.getJLogPanel().addError("Picking not possible", "Too many objects in the scene. Only 2^24 objects can be visible for picking."
-					+ " Show less objects to enable picking");
-			pickList.clear();
-			return;
-		}
 		
-		float[] selectBuf = new float[3*picksize*picksize];
-		FloatBuffer wrappedBuffer = FloatBuffer.wrap(selectBuf);
-		gl.glReadPixels(p.x-picksize, viewport[3] - p.y-picksize/2, picksize, picksize, GL.GL_RGB, GL.GL_FLOAT, wrappedBuffer);
-		
-		int hits = 0;
-		
-		//Identify unique objects
-		TreeSet<Integer> hitMap = new TreeSet<Integer>();
-		for (int i=0; i<selectBuf.length/3; i++){
-			int r = (int)(selectBuf[i*3]*255f);
-			int g = (int)(selectBuf[i*3+1]*255f);
-			int b = (int)(selectBuf[i*3+2]*255f);
-			int num = (r<<16) | (g<<8) | b ;
-			hitMap.add(num);
-		}
+		//Intersect a ray with the scene if all visible objects support it,
+		//otherwise render the scene in picking mode
+		Collection<Pickable> pickedObjects = performRayPicking(e.getPoint());
+		if (pickedObjects == null)
+			pickedObjects = performRenderPicking(e.getPoint());
 		
 		boolean repaintRequired = false;
 		boolean cleared = false;
+		int hits = 0;
 		
 		//Process hits
-		for (Integer num : hitMap){			
-			if (num == 0x000000) continue; //Pure black > Background
-			
-			Pickable picked = pickList.get(num-1);
-			
+		for (Pickable picked : pickedObjects){
 			//Modify the parameters for the modelview matrix to focus on
 			//the picked object
 			if (adjustPOVOnObject){
@@ -1696,14 +1658,123 @@ public class ViewerGLJPanel extends GLJPanel implements MouseMotionListener, Mou
 				repaintRequired = true;
 			}
 		}
-		pickList.clear();
 		
-		updateIntInAllShader(gl,"noShading", 0);
 		if (repaintRequired){
 			reRenderTexture = true;
 			this.reDraw();
 		}
 	}
+	
+	/**
+	 * Identifies the objects below the given point by rendering the scene
+	 * with a unique color per object
+	 * @param p
+	 * @return
+	 */
+	private Collection<Pickable> performRenderPicking(Point p){
+		final int picksize = 3;
+		pickList.clear();
+		
+		GL3 gl = this.getGLFromContext();
+		updateIntInAllShader(gl, "noShading", 1);
+		
+		//Extract viewport
+		int[] viewport = new int[4];
+		gl.glGetIntegerv(GL.GL_VIEWPORT, viewport, 0);
+		
+		gl.glClear(GL.GL_COLOR_BUFFER_BIT);
+		//Render in Picking mode
+		gl.glEnable(GL.GL_SCISSOR_TEST);
+		gl.glScissor(p.x-picksize/2, viewport[3] - p.y-picksize/2, picksize, picksize);
+		renderScene(gl, true ,0, null);
+		gl.glDisable(GL.GL_SCISSOR_TEST);
+		
+		ArrayList<Pickable> picked = new ArrayList<Pickable>();
+		
+		if (pickList.size() > 16777214){
+			JLogPanel.getJLogPanel().addError("Picking not possible", "Too many objects in the scene. Only 2^24 objects can be visible for picking."
+					+ " Show less objects to enable picking");
+			pickList.clear();
+			updateIntInAllShader(gl,"noShading", 0);
+			return picked;
+		}
+		
+		float[] selectBuf = new float[3*picksize*picksize];
+		FloatBuffer wrappedBuffer = FloatBuffer.wrap(selectBuf);
+		gl.glReadPixels(p.x-picksize, viewport[3] - p.y-picksize/2, picksize, picksize, GL.GL_RGB, GL.GL_FLOAT, wrappedBuffer);
+		
+		//Identify unique objects
+		TreeSet<Integer> hitMap = new TreeSet<Integer>();
+		for (int i=0; i<selectBuf.length/3; i++){
+			int r = (int)(selectBuf[i*3]*255f);
+			int g = (int)(selectBuf[i*3+1]*255f);
+			int b = (int)(selectBuf[i*3+2]*255f);
+			int num = (r<<16) | (g<<8) | b ;
+			hitMap.add(num);
+		}
+		
+		for (Integer num : hitMap){			
+			if (num == 0x000000) continue; //Pure black > Background
+			picked.add(pickList.get(num-1));
+		}
+		pickList.clear();
+		
+		updateIntInAllShader(gl,"noShading", 0);
+		return picked;
+	}
+	
+	/**
+	 * Identifies the object below the given point by intersecting the viewing ray
+	 * with all visible objects on the CPU, no rendering is required.
+	 * @param p
+	 * @return the closest object hit by the ray (an empty collection if none is hit), or null
+	 * if the scene contains visible objects that cannot be tested this way
+	 */
+	private Collection<Pickable> performRayPicking(Point p){
+		if (RenderOption.INDENTER.isEnabled() || atomRenderType == AtomRenderType.BINS) return null;
+		boolean atomsVisible = true;
+		if (renderingAtomsAsRBV && atomData.isRbvAvailable()) return null;
+		if (atomRenderType == AtomRenderType.VECTOR_DATA) return null;
+		if (atomRenderType == AtomRenderType.DATA && RenderingConfiguration.getSelectedColumn() == null)
+			atomsVisible = false;
+		for (DataContainer dc : atomData.getAdditionalData())
+			if (!dc.isRayPickingSupported()) return null;
+		
+		Ray ray = createPickingRay(p);
+		PickingHit hit = null;
+		
+		if (atomsVisible && renderData != null)
+			hit = renderData.pick(ray);
+		
+		for (DataContainer dc : atomData.getAdditionalData())
+			hit = PickingHit.closest(hit, dc.pick(ray, renderInterval, atomData));
+		
+		if (RenderOption.GRAINS.isEnabled() && atomData.isPolyCrystalline()){
+			for (Grain grain : atomData.getGrains()){
+				if (isGrainIgnored(grain.getGrainNumber())) continue;
+				float d = grain.getMesh().getFinalMesh().intersect(ray);
+				if (d != Float.POSITIVE_INFINITY)
+					hit = PickingHit.closest(hit, new PickingHit(grain, d));
+			}
+		}
+		
+		ArrayList<Pickable> picked = new ArrayList<Pickable>();
+		if (hit != null) picked.add(hit.getObject());
+		return picked;
+	}
+	
+	/**
+	 * Creates the ray from the camera through the given point on the screen in world coordinates,
+	 * using the modelview and projection matrices of the last rendered frame 
+	 * @param p
+	 * @return
+	 */
+	private Ray createPickingRay(Point p){
+		GLMatrix inv = projectionMatrix.clone();
+		inv.mult(modelViewMatrix);
+		inv.inverse();
+		return inv.unprojectRay(2f*p.x/width - 1f, 1f - 2f*p.y/height);
+	}
     
 	private void changeResolution(GL3 gl, int width, int height){
 		this.width = width;
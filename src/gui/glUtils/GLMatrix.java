@@ -21,6 +21,7 @@ package gui.glUtils;
 import java.nio.FloatBuffer;
 import com.jogamp.common.nio.Buffers;
 import common.MatrixOps;
+import common.Ray;
 import common.Vec3;
 
 /**
@@ -265,4 +266,25 @@ public class GLMatrix {
 		
 		return a;
 	}
+	
+	/**
+	 * Creates the ray through a point on the screen, assuming this instance is the
+	 * inverse of the combined projection and modelview matrix.
+	 * The ray starts on the near plane and points towards the far plane
+	 * @param x the x-coordinate of the point in normalized device coordinates [-1,1]
+	 * @param y the y-coordinate of the point in normalized device coordinates [-1,1]
+	 * @return the ray in world coordinates
+	 */
+	public Ray unprojectRay(float x, float y){
+		Vec3[] v = new Vec3[2];
+		for (int i=0; i<2; i++){
+			float z = i==0 ? -1f : 1f;
+			float wx = m.get(0)*x + m.get(4)*y + m.get(8)*z  + m.get(12);
+			float wy = m.get(1)*x + m.get(5)*y + m.get(9)*z  + m.get(13);
+			float wz = m.get(2)*x + m.get(6)*y + m.get(10)*z + m.get(14);
+			float w  = m.get(3)*x + m.get(7)*y + m.get(11)*z + m.get(15);
+			v[i] = new Vec3(wx/w, wy/w, wz/w);
+		}
+		return new Ray(v[0], v[1].subClone(v[0]));
+	}
 }
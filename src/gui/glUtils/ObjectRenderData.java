@@ -26,10 +26,13 @@ import java.util.Comparator;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 
+import gnu.trove.map.hash.TLongIntHashMap;
+import common.Ray;
 import common.ThreadPool;
 import common.Vec3;
 import model.AtomData;
 import model.Pickable;
+import model.PickingHit;
 
 /**
  * Creates a domain decomposition of a list of objects in three dimensional space
@@ -39,12 +42,22 @@ import model.Pickable;
 public class ObjectRenderData<T extends Vec3 & Pickable> {
 	public final static int MAX_ELEMENTS_PER_CELL = 6000;
 	public final static int APPROXIMATE_ELEMENTS_PER_INITIAL_CELL = 8*MAX_ELEMENTS_PER_CELL;
+	/**
+	 * Number of coarse levels in the level-of-detail pyramid of each cell.
+	 * Level n aggregates all objects in voxels of edge length lodBaseVoxelSize*2^n
+	 */
+	public final static int MAX_LOD_LEVELS = 12;
+	/**
+	 * Number of floats per aggregated representative: color (rgba) followed by position and radius
+	 */
+	public final static int FLOATS_PER_LOD_OBJECT = 8;
 	private int runningTasks = 0;	//Counting the number of cells waiting or running in the ThreadPool
 	
 	private final CellComparator cellComparator = new CellComparator();
 	Vector<Cell> allCells = new Vector<ObjectRenderData<T>.Cell>();
 	private boolean subdivided = false;
 	private AtomData data;
+	private float lodBaseVoxelSize = 1f;	//Average spacing of objects, voxel size of LOD level 0
 	
 	
 	public ObjectRenderData(Collection<T> objects, boolean subdivide, AtomData data) {
@@ -70,6 +83,13 @@ public class ObjectRenderData<T extends Vec3 & Pickable> {
 			}
 			Vec3 size = max.subClone(min);
 			rootCell = new Cell(min.add(size.multiplyClone(0.5f)), size);
+			
+			//Estimate the average spacing between objects, it defines the finest level of detail
+			lodBaseVoxelSize = (float)Math.cbrt(size.x*size.y*size.z/objects.size());
+			if (!(lodBaseVoxelSize > 0f))	//Flat or linear distributions
+				lodBaseVoxelSize = size.maxComponent()/(float)Math.sqrt(objects.size());
+			if (!(lodBaseVoxelSize > 0f))
+				lodBaseVoxelSize = 1f;
 		}
 		
 		this.subdivided = subdivide;
@@ -114,6 +134,86 @@ public class ObjectRenderData<T extends Vec3 & Pickable> {
 		ThreadPool.executeParallelSecondLevel(tasks);
 	}
 	
+	/**
+	 * Selects the level of detail whose voxels are at least as large as the given size.
+	 * @param voxelSize the smallest edge length of a voxel that is worth to be drawn individually
+	 * @return the level of detail, 0 if all objects must be drawn individually 
+	 */
+	public int getLODLevelForVoxelSize(float voxelSize){
+		if (!(voxelSize >= 2f*lodBaseVoxelSize)) return 0;
+		int level = (int)(Math.log(voxelSize/lodBaseVoxelSize)/Math.log(2.));
+		return Math.min(level, MAX_LOD_LEVELS);
+	}
+	
+	/**
+	 * The edge length of the voxels used to aggregate objects at the given level of detail
+	 * @param level
+	 * @return
+	 */
+	public float getLODVoxelSize(int level){
+		return lodBaseVoxelSize * (1<<level);
+	}
+	
+	/**
+	 * Creates the aggregated representatives for the given level of detail
+	 * in all cells containing visible objects. The data is cached in the cells
+	 * until their visibility, color or sizes are updated in {@link #reinitUpdatedCells()}.
+	 * @param level
+	 */
+	public void prepareLOD(final int level){
+		if (level <= 0) return;
+		final List<Cell> cells = getRenderableCells();
+		Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(cells.size(), i);
+			final int end = ThreadPool.getSliceEnd(cells.size(), i);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++){
+						Cell c = cells.get(i);
+						if (c.getNumVisibleObjects()>0)
+							c.getLODObjects(level);
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallelSecondLevel(tasks);
+	}
+	
+	/**
+	 * Finds the visible object closest to the origin of the ray.
+	 * Objects are treated as spheres with the radii given in the cells' size arrays. 
+	 * Cells not intersected by the ray or lying behind the closest hit so far are skipped.
+	 * @param ray
+	 * @return the closest hit or null if no visible object is hit
+	 */
+	public PickingHit pick(Ray ray){
+		T closest = null;
+		float closestDistance = Float.POSITIVE_INFINITY;
+		
+		for (Cell c : getRenderableCells()){
+			if (c.getNumVisibleObjects() == 0) continue;
+			Vec3 min = c.getOffset();
+			Vec3 max = c.getSize().add(min);
+			if (ray.intersectBox(min, max) >= closestDistance) continue;
+			
+			for (int i=0; i<c.objects.size(); i++){
+				if (!c.isObjectVisible[i]) continue;
+				T o = c.objects.get(i);
+				float d = ray.intersectSphere(o, c.sizes[i]);
+				if (d < closestDistance){
+					closestDistance = d;
+					closest = o;
+				}
+			}
+		}
+		
+		if (closest == null) return null;
+		return new PickingHit(closest, closestDistance);
+	}
+	
 	public boolean isSubdivided() {
 		return subdivided;
 	}
@@ -205,6 +305,8 @@ public class ObjectRenderData<T extends Vec3 & Pickable> {
 		private float[] color;
 		private float[] sizes;
 		private boolean[] isObjectVisible;
+		//Cached aggregated representatives per level of detail, reset if the cell is updated
+		private float[][] lodObjects = new float[MAX_LOD_LEVELS+1][];
 		
 		
 		public Cell(Vec3 center, Vec3 size) {
@@ -252,7 +354,94 @@ public class ObjectRenderData<T extends Vec3 & Pickable> {
 			return objects;
 		}
 		
+		/**
+		 * Provides a coarse representation of the visible objects in this cell.
+		 * All visible objects within a voxel of size {@link ObjectRenderData#getLODVoxelSize(int)}
+		 * are replaced by one sphere located in their center of mass, the color is
+		 * the dominant color among these objects.
+		 * Per representative {@link ObjectRenderData#FLOATS_PER_LOD_OBJECT} values are stored,
+		 * in the order r, g, b, a, x, y, z and radius.
+		 * @param level the level of detail, must be larger than 0
+		 * @return array of representatives, its length is a multiple of FLOATS_PER_LOD_OBJECT
+		 */
+		public synchronized float[] getLODObjects(int level){
+			if (lodObjects[level] == null)
+				lodObjects[level] = createLODObjects(getLODVoxelSize(level));
+			return lodObjects[level];
+		}
+		
+		private float[] createLODObjects(float voxelSize){
+			float invVoxelSize = 1f/voxelSize;
+			float ox = this.x - 0.5f*size.x;
+			float oy = this.y - 0.5f*size.y;
+			float oz = this.z - 0.5f*size.z;
+			
+			TLongIntHashMap voxelToSlot = new TLongIntHashMap(); 
+			//Per slot: sum of coordinates, number of objects, largest radius
+			float[] sum = new float[visibleObjects*3];
+			int[] count = new int[visibleObjects];
+			float[] radius = new float[visibleObjects];
+			//Majority vote to find the dominant color: candidate object and its counter
+			int[] colorCandidate = new int[visibleObjects];
+			int[] colorVotes = new int[visibleObjects];
+			int slots = 0;
+			
+			for (int i=0; i<objects.size(); i++){
+				if (!isObjectVisible[i]) continue;
+				T o = objects.get(i);
+				long vx = (long)((o.x-ox)*invVoxelSize);
+				long vy = (long)((o.y-oy)*invVoxelSize);
+				long vz = (long)((o.z-oz)*invVoxelSize);
+				long key = ((vx & 0x1fffff)<<42) | ((vy & 0x1fffff)<<21) | (vz & 0x1fffff);
+				
+				int s;
+				if (voxelToSlot.containsKey(key)){
+					s = voxelToSlot.get(key);
+				} else {
+					s = slots++;
+					voxelToSlot.put(key, s);
+					colorCandidate[s] = i;
+				}
+				
+				sum[3*s+0] += o.x;
+				sum[3*s+1] += o.y;
+				sum[3*s+2] += o.z;
+				count[s]++;
+				if (sizes[i] > radius[s]) radius[s] = sizes[i];
+				
+				int c = colorCandidate[s];
+				if (color[3*c] == color[3*i] && color[3*c+1] == color[3*i+1] && color[3*c+2] == color[3*i+2])
+					colorVotes[s]++;
+				else if (colorVotes[s] == 0){
+					colorCandidate[s] = i;
+					colorVotes[s] = 1;
+				} else colorVotes[s]--;
+			}
+			
+			float minRadius = 0.5f*voxelSize;
+			float[] lod = new float[slots*FLOATS_PER_LOD_OBJECT];
+			for (int s=0; s<slots; s++){
+				int c = colorCandidate[s];
+				float invCount = 1f/count[s];
+				int j = s*FLOATS_PER_LOD_OBJECT;
+				lod[j+0] = color[3*c+0];
+				lod[j+1] = color[3*c+1];
+				lod[j+2] = color[3*c+2];
+				lod[j+3] = 1f;
+				lod[j+4] = sum[3*s+0]*invCount;
+				lod[j+5] = sum[3*s+1]*invCount;
+				lod[j+6] = sum[3*s+2]*invCount;
+				lod[j+7] = Math.max(radius[s], minRadius);
+			}
+			return lod;
+		}
+		
 		void prepareRendering(){
+			synchronized (this) {
+				for (int i=0; i<lodObjects.length; i++)
+					lodObjects[i] = null;
+			}
+			
 			float minX = Float.POSITIVE_INFINITY;
 			float maxX = Float.NEGATIVE_INFINITY;
 			float minY = Float.POSITIVE_INFINITY;
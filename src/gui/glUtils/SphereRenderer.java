@@ -36,6 +36,15 @@ import common.*;
 
 public class SphereRenderer {
 	private static final int FLOATS_PER_SPHERE = 8;
+	/**
+	 * If the largest atom is smaller than this number of pixels on screen,
+	 * atoms are replaced by aggregated representatives
+	 */
+	private static final float LOD_MAX_ATOM_PIXEL_SIZE = 2f;
+	/**
+	 * Approximate size in pixels of a voxel that is aggregated into a single representative
+	 */
+	private static final float LOD_VOXEL_PIXEL_SIZE = 2f;
 	
 	private ViewerGLJPanel viewer;
 	
@@ -183,6 +192,16 @@ public class SphereRenderer {
 		gl.glBindVertexArray(0);
 		
 		ard.sortCells(viewer.getModelViewMatrix());
+		
+		//In zoomed out views, draw aggregated representatives instead of individual atoms
+		//Picking always requires the individual objects
+		int lodLevel = 0;
+		if (!picking && estimatePixelSizeOfAtom(ard.getData()) < LOD_MAX_ATOM_PIXEL_SIZE){
+			float unitLengthInPixels = viewer.estimateUnitLengthInPixels();
+			if (unitLengthInPixels > 0f)
+				lodLevel = ard.getLODLevelForVoxelSize(LOD_VOXEL_PIXEL_SIZE/unitLengthInPixels);
+			ard.prepareLOD(lodLevel);
+		}
 
 		boolean hasRenderedCell = true;	//Set to true if spheres have been rendered and to false in occlusion test
 		
@@ -241,8 +260,13 @@ public class SphereRenderer {
 				float[] sizes = c.getSizeArray();
 				List<T> objects = c.getObjects();
 				boolean[] visible = c.getVisibiltyArray();
+				int instances = c.getNumVisibleObjects();
 				//Fill render buffer, color values is either the given value or a picking color
-				if (picking){
+				if (lodLevel > 0){
+					float[] lod = c.getLODObjects(lodLevel);
+					buf.put(lod);
+					instances = lod.length/ObjectRenderData.FLOATS_PER_LOD_OBJECT;
+				} else if (picking){
 					for (int i=0; i<c.getNumObjects(); i++){
 						if (visible[i]){
 							Vec3 ra = objects.get(i);
@@ -261,7 +285,7 @@ public class SphereRenderer {
 					}
 				}
 				gl.glUnmapBuffer(cbr.bufferType);
-				gl.glDrawElementsInstanced(sphereVBOPrimitive, sphereVBOIndexCount, GL.GL_UNSIGNED_INT, 0, c.getNumVisibleObjects());
+				gl.glDrawElementsInstanced(sphereVBOPrimitive, sphereVBOIndexCount, GL.GL_UNSIGNED_INT, 0, instances);
 				
 				//Fencing currently disable
 //				cbr.fence = gl.glFenceSync(GL3.GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
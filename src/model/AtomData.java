@@ -103,8 +103,15 @@ public class AtomData {
 	//There is always only maximum one reference 
 	private boolean isReferenceForProcessingModule = false;
 	
+	/**
+	 * Cached statistics for each data column, see {@link #getDataColumnStatistics(DataColumnInfo)}
+	 */
+	private final HashMap<DataColumnInfo, DataColumnStatistics> dataColumnStatistics = 
+			new HashMap<DataColumnInfo, DataColumnStatistics>();
+	
 	public AtomData(AtomData previous, MDFileLoader.ImportDataContainer idc) throws Exception{
-		this.atomicData = new AtomicData(idc.atoms, idc.dataArrays, ImportConfiguration.getInstance().getDataColumns());
+		this.atomicData = new AtomicData(idc.atoms, idc.dataArrays, idc.dataColumns != null ? 
+				idc.dataColumns : ImportConfiguration.getInstance().getDataColumns());
 		
 		this.box = idc.box;
 		this.maxNumElements = idc.maxElementNumber;
@@ -133,8 +140,14 @@ public class AtomData {
 			}
 		}
 		
+		if (idc.toolchain != null)
+			this.toolchain = idc.toolchain;
+		
 		this.setPrevious(previous);
 		this.processInputData(idc);
+		
+		List<DataColumnInfo> columns = atomicData.dataColumns;
+		this.updateDataColumnStatistics(columns.toArray(new DataColumnInfo[columns.size()]));
 	}
 	
 	/**
@@ -144,27 +157,29 @@ public class AtomData {
 	 * @throws Exception
 	 */
 	private void processInputData(MDFileLoader.ImportDataContainer idc) throws Exception{
-		//Scale the data columns values of the remaining atoms
-		for (int i=0; i < atomicData.dataColumns.size(); i++){
-			float scale = atomicData.dataColumns.get(i).getScalingFactor();
-			if (scale != 1f){
-				TFloatArrayList values = atomicData.dataArrays.get(i);
-				for (int j=0; j<values.size(); j++)
-					values.setQuick(j, values.getQuick(j)*scale);
+		if (!idc.dataProcessed){
+			//Scale the data columns values of the remaining atoms
+			for (int i=0; i < atomicData.dataColumns.size(); i++){
+				float scale = atomicData.dataColumns.get(i).getScalingFactor();
+				if (scale != 1f){
+					TFloatArrayList values = atomicData.dataArrays.get(i);
+					for (int j=0; j<values.size(); j++)
+						values.setQuick(j, values.getQuick(j)*scale);
+				}
 			}
-		}
-		
-		for (DataColumnInfo dci : atomicData.dataColumns){
-			if (dci.isFirstVectorComponent()){
-				ProgressMonitor.getProgressMonitor().setActivityName("Compute norm of imported vectors");
-				new VectorNormModule(dci).process(this);
+			
+			for (DataColumnInfo dci : atomicData.dataColumns){
+				if (dci.isFirstVectorComponent()){
+					ProgressMonitor.getProgressMonitor().setActivityName("Compute norm of imported vectors");
+					new VectorNormModule(dci).process(this);
+				}
+			}
+			
+			Toolchain t = defaultCrystalStructure.getToolchainToApplyAtBeginningOfAnalysis();
+			if (t != null){
+				for (ProcessingModule pm : t.getProcessingModules())
+					this.applyProcessingModule(pm);
 			}
-		}
-		
-		Toolchain t = defaultCrystalStructure.getToolchainToApplyAtBeginningOfAnalysis();
-		if (t != null){
-			for (ProcessingModule pm : t.getProcessingModules())
-				this.applyProcessingModule(pm);
 		}
 		
 		//Bond Angle Analysis
@@ -177,10 +192,9 @@ public class AtomData {
 		if (isGrainsImported()){
 			ProgressMonitor.getProgressMonitor().setActivityName("Processing grains");
 			final List<Grain> gr = defaultCrystalStructure.identifyGrains(this, 0f);
-			for (Grain g : gr){
+			for (Grain g : gr)
 				this.addGrain(g);
-				g.getMesh(); //ensure the mesh is created in the worker thread
-			}
+			Grain.createMeshes(gr); //ensure the meshes are created in the worker thread
 		}
 		
 		ProgressMonitor.getProgressMonitor().setActivityName("Finalizing file");
@@ -219,6 +233,12 @@ public class AtomData {
 	 */
 	public void removeDataColumnInfo(DataColumnInfo dci){
 		atomicData.removeDataColumnInfo(dci);
+		synchronized (dataColumnStatistics) {
+			dataColumnStatistics.remove(dci);
+			if (dci.isVectorComponent())
+				for (DataColumnInfo d : dci.getVectorComponents())
+					dataColumnStatistics.remove(d);
+		}
 	}
 	
 	public FastTFloatArrayList getDataArray(int index){
@@ -252,6 +272,8 @@ public class AtomData {
 							pr.getResultInfoString());
 			}
 			if (pm.getDataColumnsInfo() != null){
+				//The module has (re-)written its columns, only these need to be updated
+				this.updateDataColumnStatistics(pm.getDataColumnsInfo());
 				for (DataColumnInfo dci : pm.getDataColumnsInfo())
 					if (!dci.isInitialized())
 						dci.findRange(this, false);
@@ -509,9 +531,61 @@ public class AtomData {
 		if (fileMetaData == null) return null;
 		return fileMetaData.get(s);
 	}
+	
+	/**
+	 * All meta data found in the file header
+	 * @return the meta data, may be null
+	 */
+	public Map<String, Object> getFileMetaData() {
+		if (fileMetaData == null) return null;
+		return Collections.unmodifiableMap(fileMetaData);
+	}
 
 	public void removeAtoms(Filter<Atom> filter){
 		atomicData.removeAtoms(filter);
+		synchronized (dataColumnStatistics) {
+			dataColumnStatistics.clear();
+		}
+	}
+	
+	/**
+	 * Returns the statistics (range, mean, histogram) of the values in the given data column.
+	 * The statistics are computed in parallel on the first request and cached afterwards.
+	 * Processing modules updates the cache for the columns they provide automatically; code writing
+	 * into data arrays by other means must call {@link #invalidateDataColumnStatistics(DataColumnInfo)}
+	 * @param dci
+	 * @return the statistics or null if the column does not exist
+	 */
+	public DataColumnStatistics getDataColumnStatistics(DataColumnInfo dci){
+		synchronized (dataColumnStatistics) {
+			DataColumnStatistics s = dataColumnStatistics.get(dci);
+			if (s != null) return s;
+		}
+		int index = getDataColumnIndex(dci);
+		if (index == -1) return null;
+		
+		DataColumnStatistics s = DataColumnStatistics.compute(getDataArray(index));
+		synchronized (dataColumnStatistics) {
+			dataColumnStatistics.put(dci, s);
+		}
+		return s;
+	}
+	
+	/**
+	 * Discards cached statistics of a data column after its values have been modified.
+	 * @param dci
+	 */
+	public void invalidateDataColumnStatistics(DataColumnInfo dci){
+		synchronized (dataColumnStatistics) {
+			dataColumnStatistics.remove(dci);
+		}
+	}
+	
+	private void updateDataColumnStatistics(DataColumnInfo ... dci){
+		for (DataColumnInfo d : dci){
+			invalidateDataColumnStatistics(d);
+			getDataColumnStatistics(d);
+		}
 	}
 	
 	/**
@@ -522,6 +596,9 @@ public class AtomData {
 	public void clear(){
 		this.atomicData.clear();
 		this.additionalData.clear();
+		synchronized (dataColumnStatistics) {
+			dataColumnStatistics.clear();
+		}
 		if (this.previous != null) previous.next = this.next;
 		this.next = null;
 		this.previous = null;
@@ -671,11 +748,14 @@ public class AtomData {
 					//lists are reduced by one. Order is not preserved, but
 					//deleting any number of element from linear lists is in total an O(n) operation
 					size--;
-					Atom rmAtom = atoms.remove(i);
+					atoms.remove(i);
 					for (FastTFloatArrayList f: dataArrays)
 						f.removeFast(i);
-					if (rbvStorage != null)
-						rbvStorage.removeAtom(rmAtom);
+					//The last atom is now placed at index i, its ID is updated in cleanup()
+					if (rbvStorage != null){
+						rbvStorage.removeID(i);
+						if (i != size) rbvStorage.moveID(size, i);
+					}
 				}
 			}
 			
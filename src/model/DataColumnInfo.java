@@ -227,10 +227,16 @@ public class DataColumnInfo {
 		return this.vectorComponentOrder;
 	}
 	
+	/**
+	 * Sets the lower and upper limit to the range of values in this column,
+	 * either in the given AtomData or in all AtomData in the same sequence.
+	 * The cached per-frame statistics are used, thus only frames not yet analyzed are scanned.
+	 * @param atomData
+	 * @param global
+	 */
 	public void findRange(AtomData atomData, boolean global){
 		if (fixedRange) return;
-		float min = Float.POSITIVE_INFINITY;
-		float max = Float.NEGATIVE_INFINITY;
+		DataColumnStatistics stats = null;
 		
 		if (global){
 			//rewind to beginning
@@ -238,28 +244,19 @@ public class DataColumnInfo {
 				atomData = atomData.getPrevious();
 			
 			while (atomData!=null){
-				int column = atomData.getDataColumnIndex(this);
-				if (column != -1){
-					float[] f = atomData.getDataArray(column).getData();
-					for (float v : f){
-						if (v < min) min = v;
-						if (v > max) max = v;
-					}
-				}
+				DataColumnStatistics s = atomData.getDataColumnStatistics(this);
+				if (s != null)
+					stats = stats == null ? s : stats.merge(s);
 				atomData = atomData.getNext();
 			}
 		} else {
-			int column = atomData.getDataColumnIndex(this);
-			if (column != -1){
-				float[] f = atomData.getDataArray(column).getData();
-				for (float v : f){
-					if (v < min) min = v;
-					if (v > max) max = v;
-				}
-			}
+			stats = atomData.getDataColumnStatistics(this);
+		}
+		
+		if (stats != null && stats.getCount() > 0){
+			lowerLimit = stats.getMin();
+			upperLimit = stats.getMax();
 		}
-		lowerLimit = Float.isInfinite(min) ? lowerLimit : min;
-		upperLimit = Float.isInfinite(max) ? upperLimit : max;
 		initialized = true;
 	}
 	
@@ -0,0 +1,239 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import common.FastTFloatArrayList;
+import common.ThreadPool;
+
+/**
+ * Summary of the values stored in a single data column of one {@link AtomData}:
+ * minimum, maximum, mean and a histogram over [min, max].
+ * Instances are immutable and can be combined across several frames using
+ * {@link #merge(DataColumnStatistics)} without touching the raw data again.
+ * Non-finite values (NaN, infinity) are ignored.
+ */
+public final class DataColumnStatistics {
+
+	public static final int HISTOGRAM_BINS = 64;
+
+	/**
+	 * Arrays smaller than this are processed in the calling thread
+	 */
+	private static final int MIN_PARALLEL_SIZE = 100000;
+
+	private final float min, max;
+	private final double sum;
+	private final long count;
+	private final long[] histogram;
+
+	private DataColumnStatistics(float min, float max, double sum, long count, long[] histogram) {
+		this.min = min;
+		this.max = max;
+		this.sum = sum;
+		this.count = count;
+		this.histogram = histogram;
+	}
+
+	/**
+	 * Computes the statistics of the given values. For large arrays the computation
+	 * is split into slices that are processed in parallel.
+	 * @param values
+	 * @return
+	 */
+	public static DataColumnStatistics compute(FastTFloatArrayList values){
+		final float[] data = values.getData();
+		final int size = values.size();
+
+		int slices = size < MIN_PARALLEL_SIZE ? 1 : ThreadPool.availProcessors();
+
+		//First pass: range, sum and count
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		double sum = 0.;
+		long count = 0;
+
+		if (slices == 1){
+			double[] r = scanRange(data, 0, size);
+			min = (float)r[0]; max = (float)r[1]; sum = r[2]; count = (long)r[3];
+		} else {
+			List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+			for (int i=0; i<slices; i++){
+				final int start = ThreadPool.getSliceStart(size, i);
+				final int end = ThreadPool.getSliceEnd(size, i);
+				tasks.add(new Callable<double[]>() {
+					@Override
+					public double[] call() throws Exception {
+						return scanRange(data, start, end);
+					}
+				});
+			}
+			for (double[] r : getResults(ThreadPool.executeParallel(tasks))){
+				min = Math.min(min, (float)r[0]);
+				max = Math.max(max, (float)r[1]);
+				sum += r[2];
+				count += (long)r[3];
+			}
+		}
+
+		//Second pass: histogram over the now known range
+		long[] histogram = new long[HISTOGRAM_BINS];
+		if (count > 0){
+			final float hMin = min, hMax = max;
+			if (slices == 1){
+				histogram = scanHistogram(data, 0, size, hMin, hMax);
+			} else {
+				List<Callable<long[]>> tasks = new ArrayList<Callable<long[]>>();
+				for (int i=0; i<slices; i++){
+					final int start = ThreadPool.getSliceStart(size, i);
+					final int end = ThreadPool.getSliceEnd(size, i);
+					tasks.add(new Callable<long[]>() {
+						@Override
+						public long[] call() throws Exception {
+							return scanHistogram(data, start, end, hMin, hMax);
+						}
+					});
+				}
+				for (long[] h : getResults(ThreadPool.executeParallel(tasks)))
+					for (int i=0; i<HISTOGRAM_BINS; i++)
+						histogram[i] += h[i];
+			}
+		}
+
+		return new DataColumnStatistics(min, max, sum, count, histogram);
+	}
+
+	/**
+	 * Combines two sets of statistics, e.g. of the same column in different frames.
+	 * Range, mean and count are exact. Since the histograms of both inputs may cover
+	 * different ranges, their bins are redistributed into the combined range by their centers.
+	 * @param other
+	 * @return the combined statistics, this instance if other is null
+	 */
+	public DataColumnStatistics merge(DataColumnStatistics other){
+		if (other == null || other.count == 0) return this;
+		if (this.count == 0) return other;
+
+		float min = Math.min(this.min, other.min);
+		float max = Math.max(this.max, other.max);
+		long[] histogram = new long[HISTOGRAM_BINS];
+		this.addHistogramTo(histogram, min, max);
+		other.addHistogramTo(histogram, min, max);
+
+		return new DataColumnStatistics(min, max, this.sum+other.sum, this.count+other.count, histogram);
+	}
+
+	private void addHistogramTo(long[] target, float min, float max){
+		float width = (this.max-this.min)/HISTOGRAM_BINS;
+		for (int i=0; i<HISTOGRAM_BINS; i++){
+			if (histogram[i] == 0) continue;
+			target[getBin(this.min + (i+0.5f)*width, min, max)] += histogram[i];
+		}
+	}
+
+	/**
+	 * Minimum and maximum, sum and count of all finite values in data[start...end-1]
+	 */
+	private static double[] scanRange(float[] data, int start, int end){
+		float min = Float.POSITIVE_INFINITY;
+		float max = Float.NEGATIVE_INFINITY;
+		double sum = 0.;
+		long count = 0;
+		for (int i=start; i<end; i++){
+			float v = data[i];
+			if (Float.isNaN(v) || Float.isInfinite(v)) continue;
+			if (v < min) min = v;
+			if (v > max) max = v;
+			sum += v;
+			count++;
+		}
+		return new double[]{min, max, sum, count};
+	}
+
+	private static long[] scanHistogram(float[] data, int start, int end, float min, float max){
+		long[] histogram = new long[HISTOGRAM_BINS];
+		for (int i=start; i<end; i++){
+			float v = data[i];
+			if (Float.isNaN(v) || Float.isInfinite(v)) continue;
+			histogram[getBin(v, min, max)]++;
+		}
+		return histogram;
+	}
+
+	private static int getBin(float v, float min, float max){
+		if (max <= min) return 0;
+		int bin = (int)((v-min)/(max-min)*HISTOGRAM_BINS);
+		return Math.max(0, Math.min(HISTOGRAM_BINS-1, bin));
+	}
+
+	private static <V> List<V> getResults(List<Future<V>> futures){
+		if (futures == null) throw new RuntimeException(new InterruptedException());
+		List<V> results = new ArrayList<V>(futures.size());
+		try {
+			for (Future<V> f : futures)
+				results.add(f.get());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	/**
+	 * Smallest finite value, positive infinity if no finite value exists
+	 * @return
+	 */
+	public float getMin() {
+		return min;
+	}
+
+	/**
+	 * Largest finite value, negative infinity if no finite value exists
+	 * @return
+	 */
+	public float getMax() {
+		return max;
+	}
+
+	public float getMean() {
+		return count == 0 ? 0f : (float)(sum/count);
+	}
+
+	/**
+	 * Number of finite values
+	 * @return
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * Histogram with {@link #HISTOGRAM_BINS} bins of equal width between min and max
+	 * @return
+	 */
+	public long[] getHistogram() {
+		return histogram.clone();
+	}
+}
@@ -18,6 +18,8 @@
 
 package model;
 
+import gnu.trove.map.hash.TLongObjectHashMap;
+
 import java.util.*;
 import java.util.concurrent.Callable;
 
@@ -39,20 +41,74 @@ import common.Vec3;
  * domains. In case of non-periodic systems, correct results are produced if elements are placed
  * outside the defined bounding box, but this may have a negative impact on performance. 
  * Internally a linked-cell scheme is used to detect neighbors, thus the runtime does not depend on the size
- * of the simulation box. The getNeigh methods are thread safe. The thread-safety of add and remove can be requested
+ * of the simulation box. The grid of cells is surrounded by a halo of one cell in each direction. In periodic
+ * directions, elements in boundary cells are additionally referenced in the halo cells on the opposite side 
+ * (ghosts), each halo cell stores the periodic shift of its ghosts. Queries are thus always local scans of 27
+ * cells without any special treatment of boundaries. The getNeigh methods are thread safe. The thread-safety of add and remove can be requested
  * during construction.
+ * Cells are stored in an array covering the complete grid. For large grids that are only sparsely occupied,
+ * e.g. a small subset of atoms or a particle in a large box, only the occupied cells are stored in a hash map,
+ * such that the memory depends on the number of elements instead of the size of the box. The storage is
+ * selected automatically from the number of elements passed to {@link #addAll(List)} or,
+ * for elements added one by one, changed to an array once the occupancy becomes high.
  * @param <T> The nearest neighbor builder can be used for any classes that is derived from {@link common.Vec3}
  */
 public class NearestNeighborBuilder<T extends Vec3> {
 	private BoxParameter box;
-	private final int dimX, dimY, dimZ, dimYZ;
+	private final int dimX, dimY, dimZ;
+	/**
+	 * Dimensions of the grid including the halo
+	 */
+	private final long haloDimY, haloDimZ, haloDimYZ;
+	private final long numCells;
 	private final boolean pbcX, pbcY, pbcZ;
 	private final float sqrCutoff;
 	private final float cutoff;
-	private boolean accessNeverSafe = false;
 	
-	private final List<T>[] cells;
-	private final int[] cellOffsets = new int[27];
+	/**
+	 * Array of all cells, null if the cells are stored in sparseCells
+	 */
+	private volatile List<T>[] cells;
+	/**
+	 * The occupied cells of large and sparsely occupied grids
+	 */
+	private final TLongObjectHashMap<List<T>> sparseCells = new TLongObjectHashMap<List<T>>();
+	private final long[] cellOffsets = new long[27];
+	/**
+	 * Index into shiftX/Y/Z for each cell in the array of all cells, non-zero only for halo cells
+	 */
+	private byte[] shiftOfCell;
+	/**
+	 * The periodic shift of ghosts in halo cells, indexed by (a+1)*9+(b+1)*3+(c+1)
+	 * for a shift of a, b, c box vectors
+	 */
+	private final float[] shiftX = new float[27], shiftY = new float[27], shiftZ = new float[27];
+	/**
+	 * Width of a cell perpendicular to its faces, used to bound the distance to a cell in k-nearest
+	 * neighbor queries
+	 */
+	private final float cellWidthX, cellWidthY, cellWidthZ;
+	/**
+	 * Tolerance in units of cells for the distance bounds, covering rounding errors in the
+	 * assignment of elements to cells
+	 */
+	private final float boundTolerance;
+	private final boolean orthogonal;
+	/**
+	 * Grids up to this number of cells are always stored in an array
+	 */
+	private static final long MIN_SPARSE_CELLS = 1<<20;
+	/**
+	 * Grids are stored sparsely if they contain more than this number of cells per element
+	 */
+	private static final int SPARSE_CELLS_PER_ELEMENT = 4;
+	private static final long MAX_DENSE_CELLS = Integer.MAX_VALUE-8;
+	private static final ThreadLocal<KNearestBuffer> kNearestBuffers = new ThreadLocal<KNearestBuffer>(){
+		@Override
+		protected KNearestBuffer initialValue() {
+			return new KNearestBuffer();
+		}
+	};
 	private boolean threadSafeAdd = false;
 	private Object mutex = new Object();
 	
@@ -86,9 +142,18 @@ public class NearestNeighborBuilder<T extends Vec3> {
 		dimX = ((int)(dim.x)) == 0 ? 1 : (int)(dim.x);
 		dimY = ((int)(dim.y)) == 0 ? 1 : (int)(dim.y);
 		dimZ = ((int)(dim.z)) == 0 ? 1 : (int)(dim.z);
-		dimYZ = dimY*dimZ;
-		         
-		cells = new ArrayList[dimX*dimY*dimZ];
+		long haloDimX = dimX+2;
+		haloDimY = dimY+2;
+		haloDimZ = dimZ+2;
+		haloDimYZ = haloDimY*haloDimZ;
+		numCells = haloDimX*haloDimYZ;
+		
+		Vec3 height = box.getHeight();
+		cellWidthX = Math.abs(height.x)/dimX;
+		cellWidthY = Math.abs(height.y)/dimY;
+		cellWidthZ = Math.abs(height.z)/dimZ;
+		boundTolerance = 1e-3f + 1e-5f*Math.max(dimX, Math.max(dimY, dimZ));
+		orthogonal = box.isOrtho();
 		
 		this.pbcX = box.getPbc()[0];
 		this.pbcY = box.getPbc()[1];
@@ -99,10 +164,21 @@ public class NearestNeighborBuilder<T extends Vec3> {
 		for (int i=-1; i<=1; i++)	
 			for (int j=-1; j<=1; j++)
 				for (int k=-1; k<=1; k++)
-					cellOffsets[l++] = i*dimYZ + j*dimZ + k;
+					cellOffsets[l++] = i*haloDimYZ + j*haloDimZ + k;
+		
+		//Periodic shifts of ghosts
+		Vec3[] size = box.getBoxSize();
+		for (int a=-1; a<=1; a++)
+			for (int b=-1; b<=1; b++)
+				for (int c=-1; c<=1; c++){
+					int s = (a+1)*9+(b+1)*3+(c+1);
+					shiftX[s] = a*size[0].x + b*size[1].x + c*size[2].x;
+					shiftY[s] = a*size[0].y + b*size[1].y + c*size[2].y;
+					shiftZ[s] = a*size[0].z + b*size[1].z + c*size[2].z;
+				}
 		
-		if(dimX <= 2 || dimY <= 2 || dimZ<=2)
-			accessNeverSafe = true;
+		if (numCells <= MIN_SPARSE_CELLS)
+			createDenseCells();
 	}
 	
 	public void addAll(final List<? extends T> c){
@@ -110,7 +186,14 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	}
 	
 	public void addAll(final List<? extends T> c, final Filter<T> filter){
+		//Choose the storage for a grid that is still empty
+		if (cells == null && sparseCells.isEmpty() && numCells <= MAX_DENSE_CELLS 
+				&& (long)c.size()*SPARSE_CELLS_PER_ELEMENT >= numCells)
+			createDenseCells();
+		
 		if (threadSafeAdd){
+			//Sparse cells are only accessible while holding the lock
+			final boolean sparse = cells == null;
 			Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
 			for (int i=0; i<ThreadPool.availProcessors(); i++){
 				final int j = i;
@@ -120,7 +203,9 @@ public class NearestNeighborBuilder<T extends Vec3> {
 						final int start = (int)(((long)c.size() * j)/ThreadPool.availProcessors());
 						final int end = (int)(((long)c.size() * (j+1))/ThreadPool.availProcessors());
 						
-						if (filter == null){
+						if (sparse){
+							addAllSparse(c, filter, start, end);
+						} else if (filter == null){
 							for (int i=start; i<end; i++){
 								add(c.get(i));
 							}
@@ -167,24 +252,242 @@ public class NearestNeighborBuilder<T extends Vec3> {
 		y = Math.max(0, Math.min(dimY-1, y));
 		z = Math.max(0, Math.min(dimZ-1, z));
 		
-		int p = x*dimYZ+y*dimZ+z;
+		addToCell(getCellIndex(x, y, z), c);
+		
+		//Ghosts in the halo for elements in boundary cells
+		for (int i=-1; i<=1; i++){
+			int gx = getGhostCoordinate(x, i, dimX, pbcX);
+			if (gx == NO_GHOST) continue;
+			for (int j=-1; j<=1; j++){
+				int gy = getGhostCoordinate(y, j, dimY, pbcY);
+				if (gy == NO_GHOST) continue;
+				for (int k=-1; k<=1; k++){
+					int gz = getGhostCoordinate(z, k, dimZ, pbcZ);
+					if (gz == NO_GHOST || (i==0 && j==0 && k==0)) continue;
+					addToCell(getCellIndex(gx, gy, gz), c);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Adds a range of elements to a sparse grid in a thread-safe way. The cells of all elements are
+	 * computed without synchronization, the elements are then inserted while holding the lock once.
+	 */
+	private void addAllSparse(List<? extends T> c, Filter<T> filter, int start, int end){
+		//Most elements are not located in boundary cells and have no ghosts
+		long[] cellIndices = new long[end-start+MAX_CELLS_PER_ELEMENT];
+		int[] elementIndices = new int[cellIndices.length];
+		int n = 0;
+		for (int i=start; i<end; i++){
+			T t = c.get(i);
+			if (filter != null && !filter.accept(t)) continue;
+			if (n+MAX_CELLS_PER_ELEMENT > cellIndices.length){
+				cellIndices = Arrays.copyOf(cellIndices, cellIndices.length + cellIndices.length/2 + MAX_CELLS_PER_ELEMENT);
+				elementIndices = Arrays.copyOf(elementIndices, cellIndices.length);
+			}
+			int m = getCellsOfElement(t, cellIndices, n);
+			for (int k=n; k<n+m; k++)
+				elementIndices[k] = i;
+			n += m;
+		}
+		
+		synchronized (mutex) {
+			for (int k=0; k<n; k++)
+				addToCell(cellIndices[k], c.get(elementIndices[k]));
+		}
+	}
+	
+	/**
+	 * Computes the cell containing an element and the halo cells containing its ghosts,
+	 * the same cells as in {@link #add(Vec3)}
+	 * @param c
+	 * @param cellIndices receives the indices of the cells, up to {@link #MAX_CELLS_PER_ELEMENT} entries
+	 * starting at offset
+	 * @param offset
+	 * @return the number of cells
+	 */
+	private int getCellsOfElement(T c, long[] cellIndices, int offset){
+		int x = (int) (dimX * c.dot(box.getTBoxSize()[0]));
+		int y = (int) (dimY * c.dot(box.getTBoxSize()[1]));
+		int z = (int) (dimZ * c.dot(box.getTBoxSize()[2]));
+		//Clamp range
+		x = Math.max(0, Math.min(dimX-1, x));
+		y = Math.max(0, Math.min(dimY-1, y));
+		z = Math.max(0, Math.min(dimZ-1, z));
+		
+		int n = offset;
+		cellIndices[n++] = getCellIndex(x, y, z);
+		
+		//Ghosts in the halo for elements in boundary cells
+		for (int i=-1; i<=1; i++){
+			int gx = getGhostCoordinate(x, i, dimX, pbcX);
+			if (gx == NO_GHOST) continue;
+			for (int j=-1; j<=1; j++){
+				int gy = getGhostCoordinate(y, j, dimY, pbcY);
+				if (gy == NO_GHOST) continue;
+				for (int k=-1; k<=1; k++){
+					int gz = getGhostCoordinate(z, k, dimZ, pbcZ);
+					if (gz == NO_GHOST || (i==0 && j==0 && k==0)) continue;
+					cellIndices[n++] = getCellIndex(gx, gy, gz);
+				}
+			}
+		}
+		return n-offset;
+	}
+	
+	private void addToCell(long p, T c){
+		List<T>[] cells = this.cells;
+		if (cells == null){
+			if (threadSafeAdd){
+				synchronized (mutex) {
+					//The storage may have been changed while waiting for the lock
+					if (this.cells == null){
+						addToSparseCell(p, c);
+						return;
+					}
+				}
+				cells = this.cells;
+			} else {
+				addToSparseCell(p, c);
+				return;
+			}
+		}
+		
+		int q = (int)p;
 		if (threadSafeAdd){
-			if (cells[p] == null){
+			if (cells[q] == null){
 				//Create a list. This operation must be threadsafe
 				synchronized (mutex) {
 					// Test again, another thread might have created the array while
 					// waiting for the lock
 					//Create a wrapped array list that synchronizes only add and remove
-					if (cells[p] == null) 
-						cells[p] = new LimitedSynchronizedList<T>(5);
+					if (cells[q] == null) 
+						cells[q] = new LimitedSynchronizedList<T>(5);
 				}
 			}
 		} else {
-			if (cells[p] == null)
-				cells[p] = new ArrayList<T>(5);
+			if (cells[q] == null)
+				cells[q] = new ArrayList<T>(5);
 		}
 		
-		cells[p].add(c);
+		cells[q].add(c);
+	}
+	
+	/**
+	 * Adds an element to a cell in the hash map, the caller must hold the lock if adding is thread-safe.
+	 * Once the occupancy of the grid is high enough, the cells are moved into an array
+	 */
+	private void addToSparseCell(long p, T c){
+		List<T> cell = sparseCells.get(p);
+		if (cell == null){
+			if (threadSafeAdd) cell = new LimitedSynchronizedList<T>(5);
+			else cell = new ArrayList<T>(5);
+			sparseCells.put(p, cell);
+		}
+		cell.add(c);
+		
+		if (numCells <= MAX_DENSE_CELLS && (long)sparseCells.size()*SPARSE_CELLS_PER_ELEMENT > numCells)
+			createDenseCells();
+	}
+	
+	/**
+	 * Switches to an array of all cells, cells stored in the hash map are moved into the array
+	 */
+	@SuppressWarnings("unchecked")
+	private void createDenseCells(){
+		//A ghost in the halo cell before the first cell is the image of an element in the last cell,
+		//located one box vector in negative direction, and vice versa
+		shiftOfCell = new byte[(int)numCells];
+		for (int i=0; i<numCells/haloDimYZ; i++)
+			for (int j=0; j<haloDimY; j++)
+				for (int k=0; k<haloDimZ; k++)
+					shiftOfCell[(int)(i*haloDimYZ+j*haloDimZ+k)] = (byte)getShiftOfCell(i, j, k);
+		
+		List<T>[] cells = new ArrayList[(int)numCells];
+		for (long p : sparseCells.keys())
+			cells[(int)p] = sparseCells.get(p);
+		sparseCells.clear();
+		this.cells = cells;
+	}
+	
+	/**
+	 * Index into shiftX/Y/Z for a cell with the given coordinates in the range 0...haloDim-1
+	 */
+	private int getShiftOfCell(long i, long j, long k){
+		int a = i==0 ? -1 : (i==dimX+1 ? 1 : 0);
+		int b = j==0 ? -1 : (j==dimY+1 ? 1 : 0);
+		int c = k==0 ? -1 : (k==dimZ+1 ? 1 : 0);
+		return (a+1)*9+(b+1)*3+(c+1);
+	}
+	
+	private int getShiftOfCell(long p){
+		byte[] shiftOfCell = this.shiftOfCell;
+		if (shiftOfCell != null) return shiftOfCell[(int)p];
+		return getShiftOfCell(p/haloDimYZ, (p/haloDimZ)%haloDimY, p%haloDimZ);
+	}
+	
+	/**
+	 * The cell at the given index for modifications, the hash map must not be accessed while
+	 * another thread adds elements
+	 */
+	private List<T> getCellForUpdate(long p){
+		if (threadSafeAdd && cells == null){
+			synchronized (mutex) {
+				return getCell(p);
+			}
+		}
+		return getCell(p);
+	}
+	
+	/**
+	 * The cell at the given index, null if the cell is empty
+	 */
+	private List<T> getCell(long p){
+		List<T>[] cells = this.cells;
+		if (cells != null) return cells[(int)p];
+		return sparseCells.get(p);
+	}
+	
+	private static final int NO_GHOST = Integer.MIN_VALUE;
+	/**
+	 * An element is stored in its cell and in up to 26 halo cells, if the box is periodic
+	 * and has a single cell along each axis
+	 */
+	private static final int MAX_CELLS_PER_ELEMENT = 27;
+	
+	/**
+	 * The coordinate of a ghost of an element in cell x along one axis.
+	 * For offset 0, this is the cell itself. For offset -1 and 1, it is the halo cell on the opposite side
+	 * if x is the last or first cell along a periodic axis, otherwise no ghost exists.
+	 */
+	private static int getGhostCoordinate(int x, int offset, int dim, boolean pbc){
+		if (offset == 0) return x;
+		if (!pbc) return NO_GHOST;
+		if (offset == -1 && x == dim-1) return -1;
+		if (offset == 1 && x == 0) return dim;
+		return NO_GHOST;
+	}
+	
+	/**
+	 * Index of a cell in the linear array, coordinates are in the range -1...dim (including the halo)
+	 */
+	private long getCellIndex(int x, int y, int z){
+		return (x+1)*haloDimYZ + (y+1)*haloDimZ + (z+1);
+	}
+	
+	/**
+	 * Index of the (non-halo) cell containing the given point
+	 */
+	private long getCellIndex(Vec3 c){
+		int x = (int) (dimX * c.dot(box.getTBoxSize()[0]));
+		int y = (int) (dimY * c.dot(box.getTBoxSize()[1]));
+		int z = (int) (dimZ * c.dot(box.getTBoxSize()[2]));
+		//Clamp range
+		x = Math.max(0, Math.min(dimX-1, x));
+		y = Math.max(0, Math.min(dimY-1, y));
+		z = Math.max(0, Math.min(dimZ-1, z));
+		return getCellIndex(x, y, z);
 	}
 	
 	/**
@@ -193,10 +496,25 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 */
 	public List<T> getAllElements(){
 		ArrayList<T> ele = new ArrayList<T>();
-		for (List<T> c : cells){
-			if (c != null)
-				ele.addAll(c);
+		if (cells == null){
+			//Occupied cells in the same order as in the array
+			long[] keys = sparseCells.keys();
+			Arrays.sort(keys);
+			for (long p : keys){
+				if (getShiftOfCell(p) == 13)
+					ele.addAll(sparseCells.get(p));
+			}
+			return ele;
 		}
+		
+		//Only cells inside the halo, the halo contains ghosts only
+		for (int x=0; x<dimX; x++)
+			for (int y=0; y<dimY; y++)
+				for (int z=0; z<dimZ; z++){
+					List<T> c = getCell(getCellIndex(x, y, z));
+					if (c != null)
+						ele.addAll(c);
+				}
 		return ele;
 	}
 	
@@ -216,14 +534,33 @@ public class NearestNeighborBuilder<T extends Vec3> {
 		y = Math.max(0, Math.min(dimY-1, y));
 		z = Math.max(0, Math.min(dimZ-1, z));
 		
-		int p = x*dimYZ+y*dimZ+z;
+		List<T> cell = getCellForUpdate(getCellIndex(x, y, z));
+		if (cell == null || !cell.remove(c))
+			return false;
 		
-		if (cells[p] != null)
-			return cells[p].remove(c);
-		return false;
+		//Remove the ghosts as well
+		for (int i=-1; i<=1; i++){
+			int gx = getGhostCoordinate(x, i, dimX, pbcX);
+			if (gx == NO_GHOST) continue;
+			for (int j=-1; j<=1; j++){
+				int gy = getGhostCoordinate(y, j, dimY, pbcY);
+				if (gy == NO_GHOST) continue;
+				for (int k=-1; k<=1; k++){
+					int gz = getGhostCoordinate(z, k, dimZ, pbcZ);
+					if (gz == NO_GHOST || (i==0 && j==0 && k==0)) continue;
+					List<T> g = getCellForUpdate(getCellIndex(gx, gy, gz));
+					if (g != null) g.remove(c);
+				}
+			}
+		}
+		return true;
 	}
 	
 	public void removeAll(){
+		if (cells == null){
+			sparseCells.clear();
+			return;
+		}
 		for (List<T> c : cells)
 			if (c != null)
 				c.clear();
@@ -240,65 +577,22 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @return a ArrayList containing all neighbors around the vicinity of c
 	 */
 	public ArrayList<T> getNeigh(Vec3 c){
-		int x = (int) (dimX * c.dot(box.getTBoxSize()[0]));
-		int y = (int) (dimY * c.dot(box.getTBoxSize()[1]));
-		int z = (int) (dimZ * c.dot(box.getTBoxSize()[2]));
-		//Clamp range
-		x = Math.max(0, Math.min(dimX-1, x));
-		y = Math.max(0, Math.min(dimY-1, y));
-		z = Math.max(0, Math.min(dimZ-1, z));
-		
-		boolean safeAccess = (!accessNeverSafe && x>0 && y>0 && z>0 && x<dimX-1 && y<dimY-1 && z<dimZ-1);
-		
+		long p = getCellIndex(c);
 		ArrayList<T> neigh = new ArrayList<T>(15);
 		
-		if (safeAccess){
-			//No need to handle boundary conditions
-			int p = x*dimYZ + y*dimZ + z;
-			for (int i=0; i<27; i++){				
-				List<T> possibleNeigh = cells[p+cellOffsets[i]];
-				if (possibleNeigh!=null){
-					for (int l=0, len = possibleNeigh.size(); l<len; l++){
-						T s = possibleNeigh.get(l);
-						if (!s.equals(c) && c.getSqrDistTo(s)<=sqrCutoff) neigh.add(s);
-					}
+		for (int i=0; i<27; i++){
+			long q = p+cellOffsets[i];
+			List<T> possibleNeigh = getCell(q);
+			if (possibleNeigh!=null){
+				//Position of c relative to the ghosts in this cell
+				int s = getShiftOfCell(q);
+				float vx = c.x-shiftX[s], vy = c.y-shiftY[s], vz = c.z-shiftZ[s];
+				for (int l=0, len = possibleNeigh.size(); l<len; l++){
+					T n = possibleNeigh.get(l);
+					float dx = n.x-vx, dy = n.y-vy, dz = n.z-vz;
+					if (dx*dx+dy*dy+dz*dz<=sqrCutoff && !n.equals(c)) neigh.add(n);
 				}
 			}
-		} else {
-			//Access with handling boundary conditions
-			Vec3 v = new Vec3();
-			for (int i=-1; i<=1; i++){
-				Vec3 pbcCorrectionX = new Vec3();
-				if (pbcX) {
-					if (x + i < 0) pbcCorrectionX.sub(box.getBoxSize()[0]);
-					else if (x + i >= this.dimX) pbcCorrectionX.add(box.getBoxSize()[0]);
-				} 
-				
-				for (int j=-1; j<=1; j++){
-					Vec3 pbcCorrectionY = pbcCorrectionX.clone();
-					if (pbcY) {
-						if (y + j < 0) pbcCorrectionY.sub(box.getBoxSize()[1]);
-						else if (y + j >= this.dimY) pbcCorrectionY.add(box.getBoxSize()[1]);
-					}
-					
-					for (int k=-1; k<=1; k++){
-						Vec3 pbcCorrection = pbcCorrectionY.clone();
-						if (pbcZ) {
-							if (z + k < 0) pbcCorrection.sub(box.getBoxSize()[2]);
-							else if (z + k >= this.dimZ) pbcCorrection.add(box.getBoxSize()[2]);
-						}
-						v.setTo(c).sub(pbcCorrection);
-						
-						List<T> possibleNeigh = accessCell(x+i, y+j, z+k);
-						if (possibleNeigh!=null){
-							for (int l=0, len = possibleNeigh.size(); l<len; l++){
-								T s = possibleNeigh.get(l);
-								if (!s.equals(c) && v.getSqrDistTo(s)<=sqrCutoff) neigh.add(s);
-							}
-						}
-					}	
-				}	
-			}
 		}
 		
 		return neigh;
@@ -313,65 +607,21 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @return a ArrayList containing the vectors to neighbors around the vicinity of c
 	 */
 	public ArrayList<Vec3> getNeighVec(Vec3 c){
-		int x = (int) (dimX * c.dot(box.getTBoxSize()[0]));
-		int y = (int) (dimY * c.dot(box.getTBoxSize()[1]));
-		int z = (int) (dimZ * c.dot(box.getTBoxSize()[2]));
-		//Clamp range
-		x = Math.max(0, Math.min(dimX-1, x));
-		y = Math.max(0, Math.min(dimY-1, y));
-		z = Math.max(0, Math.min(dimZ-1, z));
-		
-		boolean safeAccess = (!accessNeverSafe && x>0 && y>0 && z>0 && x<dimX-1 && y<dimY-1 && z<dimZ-1);
-		
+		long p = getCellIndex(c);
 		ArrayList<Vec3> neigh = new ArrayList<Vec3>(15);
 		
-		if (safeAccess){
-			//No need to handle boundary conditions
-			int p = x*dimYZ + y*dimZ + z;
-			for (int i=0; i<27; i++){				
-				List<T> possibleNeigh = cells[p+cellOffsets[i]];
-				if (possibleNeigh!=null){
-					for (int l=0, len = possibleNeigh.size(); l<len; l++){
-						T s = possibleNeigh.get(l);
-						if (!s.equals(c) && s.getSqrDistTo(c)<=sqrCutoff) neigh.add(s.subClone(c));
-					}
+		for (int i=0; i<27; i++){
+			long q = p+cellOffsets[i];
+			List<T> possibleNeigh = getCell(q);
+			if (possibleNeigh!=null){
+				int s = getShiftOfCell(q);
+				float vx = c.x-shiftX[s], vy = c.y-shiftY[s], vz = c.z-shiftZ[s];
+				for (int l=0, len = possibleNeigh.size(); l<len; l++){
+					T n = possibleNeigh.get(l);
+					float dx = n.x-vx, dy = n.y-vy, dz = n.z-vz;
+					if (dx*dx+dy*dy+dz*dz<=sqrCutoff && !n.equals(c)) neigh.add(new Vec3(dx, dy, dz));
 				}
 			}
-		} else {
-			//Access with handling boundary conditions
-			for (int i=-1; i<=1; i++){
-				Vec3 pbcCorrectionX = new Vec3();
-				if (pbcX) {
-					if (x + i < 0) pbcCorrectionX.sub(box.getBoxSize()[0]);
-					else if (x + i >= this.dimX) pbcCorrectionX.add(box.getBoxSize()[0]);
-				} 
-				
-				for (int j=-1; j<=1; j++){
-					Vec3 pbcCorrectionY = pbcCorrectionX.clone();
-					if (pbcY) {
-						if (y + j < 0) pbcCorrectionY.sub(box.getBoxSize()[1]);
-						else if (y + j >= this.dimY) pbcCorrectionY.add(box.getBoxSize()[1]);
-					}
-					
-					for (int k=-1; k<=1; k++){
-						Vec3 pbcCorrection = pbcCorrectionY.clone();
-						if (pbcZ) {
-							if (z + k < 0) pbcCorrection.sub(box.getBoxSize()[2]);
-							else if (z + k >= this.dimZ) pbcCorrection.add(box.getBoxSize()[2]);
-						}
-						Vec3 cclone = c.clone().sub(pbcCorrection);
-						
-						List<T> possibleNeigh = accessCell(x + i, y + j, z + k);
-						if (possibleNeigh!=null){
-							for (int l=0, len = possibleNeigh.size(); l<len; l++){
-								T s = possibleNeigh.get(l);
-								Vec3 t = s.subClone(cclone);
-								if (!s.equals(c) && t.getLengthSqr()<=sqrCutoff) neigh.add(t);
-							}
-						}
-					}	
-				}	
-			}
 		}
 		
 		return neigh;
@@ -385,72 +635,69 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @return a ArrayList containing the neighbors and the vectors to neighbors as Tupel around the vicinity of c
 	 */
 	public ArrayList<Tupel<T, Vec3>> getNeighAndNeighVec(Vec3 c){
-		int x = (int) (dimX * c.dot(box.getTBoxSize()[0]));
-		int y = (int) (dimY * c.dot(box.getTBoxSize()[1]));
-		int z = (int) (dimZ * c.dot(box.getTBoxSize()[2]));
-		//Clamp range
-		x = Math.max(0, Math.min(dimX-1, x));
-		y = Math.max(0, Math.min(dimY-1, y));
-		z = Math.max(0, Math.min(dimZ-1, z));
-		
-		boolean safeAccess = (!accessNeverSafe && x>0 && y>0 && z>0 && x<dimX-1 && y<dimY-1 && z<dimZ-1);
-		
+		long p = getCellIndex(c);
 		ArrayList<Tupel<T, Vec3>> neigh = new ArrayList<Tupel<T, Vec3>>(15);
 		
-		if (safeAccess){
-			//No need to handle boundary conditions
-			int p = x*dimYZ + y*dimZ + z;
-			for (int i=0; i<27; i++){				
-				List<T> possibleNeigh = cells[p+cellOffsets[i]];
-				if (possibleNeigh!=null){
-					for (int l=0; l<possibleNeigh.size(); l++){
-						T s = possibleNeigh.get(l);
-						if (!s.equals(c) && s.getSqrDistTo(c)<= sqrCutoff)
-							neigh.add(new Tupel<T, Vec3>(s, s.subClone(c)));
-					}	
-				}	
-			}
-		} else {
-			//Access with handling boundary conditions
-			for (int i=-1; i<=1; i++){
-				Vec3 pbcCorrectionX = new Vec3();
-				if (pbcX) {
-					if (x + i < 0) pbcCorrectionX.sub(box.getBoxSize()[0]);
-					else if (x + i >= this.dimX) pbcCorrectionX.add(box.getBoxSize()[0]);
-				} 
-				
-				for (int j=-1; j<=1; j++){
-					Vec3 pbcCorrectionY = pbcCorrectionX.clone();
-					if (pbcY) {
-						if (y + j < 0) pbcCorrectionY.sub(box.getBoxSize()[1]);
-						else if (y + j >= this.dimY) pbcCorrectionY.add(box.getBoxSize()[1]);
-					}
-					
-					for (int k=-1; k<=1; k++){
-						Vec3 pbcCorrection = pbcCorrectionY.clone();
-						if (pbcZ) {
-							if (z + k < 0) pbcCorrection.sub(box.getBoxSize()[2]);
-							else if (z + k >= this.dimZ) pbcCorrection.add(box.getBoxSize()[2]);
-						}
-						Vec3 cclone = c.clone().sub(pbcCorrection);
-						
-						List<T> possibleNeigh = accessCell(x + i, y + j, z + k);
-						if (possibleNeigh!=null){
-							for (int l=0, len = possibleNeigh.size(); l<len; l++){
-								T s = possibleNeigh.get(l);
-								Vec3 t = s.subClone(cclone);
-								if (!s.equals(c) && t.getLengthSqr()<= sqrCutoff)
-									neigh.add(new Tupel<T, Vec3>(s, t));
-							}
-						}
-					}
-				}	
+		for (int i=0; i<27; i++){
+			long q = p+cellOffsets[i];
+			List<T> possibleNeigh = getCell(q);
+			if (possibleNeigh!=null){
+				int s = getShiftOfCell(q);
+				float vx = c.x-shiftX[s], vy = c.y-shiftY[s], vz = c.z-shiftZ[s];
+				for (int l=0, len = possibleNeigh.size(); l<len; l++){
+					T n = possibleNeigh.get(l);
+					float dx = n.x-vx, dy = n.y-vy, dz = n.z-vz;
+					if (dx*dx+dy*dy+dz*dz<=sqrCutoff && !n.equals(c))
+						neigh.add(new Tupel<T, Vec3>(n, new Vec3(dx, dy, dz)));
+				}
 			}
 		}
 		
 		return neigh;
 	}
 	
+	/**
+	 * Stores the nearest neighbors and the vectors towards them in the given arrays without creating
+	 * any objects. The neighbors and vectors are identical and in the same order as those provided by
+	 * {@linkplain #getNeighAndNeighVec(Vec3)}.
+	 * If more neighbors are found than fit into the arrays, the arrays contain only the first ones and
+	 * the query needs to be repeated with larger arrays.
+	 * @param c an element defining the center of the sphere in which neighbors are found
+	 * @param neighVec receives the vectors to the neighbors, three consecutive components per neighbor
+	 * @param neigh receives the neighbors, can be null if only the vectors are needed
+	 * @return the number of neighbors found, which can be larger than the capacity of the arrays
+	 */
+	public int getNeighAndNeighVec(Vec3 c, float[] neighVec, T[] neigh){
+		long p = getCellIndex(c);
+		int capacity = neighVec.length/3;
+		if (neigh != null) capacity = Math.min(capacity, neigh.length);
+		int count = 0;
+
+		for (int i=0; i<27; i++){
+			long q = p+cellOffsets[i];
+			List<T> possibleNeigh = getCell(q);
+			if (possibleNeigh!=null){
+				int s = getShiftOfCell(q);
+				float vx = c.x-shiftX[s], vy = c.y-shiftY[s], vz = c.z-shiftZ[s];
+				for (int l=0, len = possibleNeigh.size(); l<len; l++){
+					T n = possibleNeigh.get(l);
+					float dx = n.x-vx, dy = n.y-vy, dz = n.z-vz;
+					if (dx*dx+dy*dy+dz*dz<=sqrCutoff && !n.equals(c)){
+						if (count < capacity){
+							neighVec[3*count] = dx;
+							neighVec[3*count+1] = dy;
+							neighVec[3*count+2] = dz;
+							if (neigh != null) neigh[count] = n;
+						}
+						count++;
+					}
+				}
+			}
+		}
+
+		return count;
+	}
+
 	/**
 	 * Creates a list of nearest neighbors within the cut-off radius and are
 	 * not equal to the given argument c
@@ -477,20 +724,17 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @param maxNeigh the maximum number of neighbors to be returned.
 	 * @return a ArrayList containing the nearest neighbors and the vectors to neighbors as Tupel around the vicinity of c
 	 */
+	@SuppressWarnings("unchecked")
 	public ArrayList<Tupel<T, Vec3>> getNeighAndNeighVec(Vec3 c, int maxNeigh){
-		ArrayList<Tupel<T,Vec3>> n = getNeighAndNeighVec(c);
-		if (n.size()<=maxNeigh) return n;
+		if (maxNeigh <= 0) return new ArrayList<Tupel<T,Vec3>>();
+		float[] neighVec = new float[3*maxNeigh];
+		T[] neigh = (T[])new Vec3[maxNeigh];
+		int n = getKNearest(c, maxNeigh, neighVec, neigh);
 		
-		Collections.sort(n, new Comparator<Tupel<T,Vec3>>() {
-			@Override
-			public int compare(Tupel<T,Vec3> o1, Tupel<T,Vec3> o2) {
-				return (int)Math.signum(o1.getO2().getLengthSqr()-o2.getO2().getLengthSqr());
-			}
-		});
-		ArrayList<Tupel<T,Vec3>> n2 = new ArrayList<Tupel<T,Vec3>>();
-		for (int i=0; i<maxNeigh; i++)
-			n2.add(n.get(i));
-		return n2;
+		ArrayList<Tupel<T,Vec3>> nb = new ArrayList<Tupel<T,Vec3>>(n);
+		for (int i=0; i<n; i++)
+			nb.add(new Tupel<T, Vec3>(neigh[i], new Vec3(neighVec[3*i], neighVec[3*i+1], neighVec[3*i+2])));
+		return nb;
 	}
 	
 	/**
@@ -504,19 +748,14 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @return a ArrayList containing the vectors to neighbors around the vicinity of c
 	 */
 	public ArrayList<Vec3> getNeighVec(Vec3 c, int maxNeigh){
-		ArrayList<Vec3> n = getNeighVec(c);
-		if (n.size()<=maxNeigh) return n;
+		if (maxNeigh <= 0) return new ArrayList<Vec3>();
+		float[] neighVec = new float[3*maxNeigh];
+		int n = getKNearest(c, maxNeigh, neighVec, null);
 		
-		Collections.sort(n, new Comparator<Vec3>() {
-			@Override
-			public int compare(Vec3 o1, Vec3 o2) {
-				return (int)Math.signum(o1.getLengthSqr()-o2.getLengthSqr());
-			}
-		});
-		ArrayList<Vec3> n2 = new ArrayList<Vec3>();
-		for (int i=0; i<maxNeigh; i++)
-			n2.add(n.get(i));
-		return n2;
+		ArrayList<Vec3> nb = new ArrayList<Vec3>(n);
+		for (int i=0; i<n; i++)
+			nb.add(new Vec3(neighVec[3*i], neighVec[3*i+1], neighVec[3*i+2]));
+		return nb;
 	}
 	
 	/**
@@ -526,20 +765,9 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @return
 	 */
 	public Vec3 getVectorToNearest(Vec3 c){
-		ArrayList<Vec3> n = getNeighVec(c);
-		if (n.size() == 0) return null;
-		int closest = 0;
-		float dist = n.get(0).getLength();
-		
-		for (int i=1; i<n.size(); i++){
-			float a = n.get(i).getLength();
-			if (a<dist){
-				dist = a;
-				closest = i;
-			}
-		}
-		
-		return n.get(closest);
+		float[] neighVec = new float[3];
+		if (getKNearest(c, 1, neighVec, null) == 0) return null;
+		return new Vec3(neighVec[0], neighVec[1], neighVec[2]);
 	}
 	
 	/**
@@ -548,40 +776,232 @@ public class NearestNeighborBuilder<T extends Vec3> {
 	 * @param c
 	 * @return
 	 */
+	@SuppressWarnings("unchecked")
 	public T getNearest(Vec3 c){
-		ArrayList<Tupel<T,Vec3>> n = getNeighAndNeighVec(c);
-		if (n.size() == 0) return null;
-		int closest = 0;
-		float dist = n.get(0).o2.getLengthSqr();
-		
-		for (int i=1; i<n.size(); i++){
-			float a = n.get(i).o2.getLengthSqr();
-			if (a<dist){
-				dist = a;
-				closest = i;
+		T[] neigh = (T[])new Vec3[1];
+		if (getKNearest(c, 1, new float[3], neigh) == 0) return null;
+		return neigh[0];
+	}
+	
+	/**
+	 * Stores the k nearest neighbors within the cut-off radius and the vectors towards them in the given
+	 * arrays without creating any objects. The neighbors are identical and in the same order as those
+	 * provided by {@linkplain #getNeighAndNeighVec(Vec3, int)}: if more than k neighbors exist, the
+	 * nearest ones are returned in ascending order of their distance, neighbors at equal distance in the
+	 * order of {@linkplain #getNeighAndNeighVec(Vec3)}. Otherwise all neighbors are returned in the
+	 * order of {@linkplain #getNeighAndNeighVec(Vec3)}.
+	 * The k nearest neighbors are collected in a bounded max-heap, cells that cannot contain a closer
+	 * neighbor than the farthest one in the heap are skipped.
+	 * @param c an element defining the center of the sphere in which neighbors are found
+	 * @param k the maximum number of neighbors to be returned
+	 * @param neighVec receives the vectors to the neighbors, must provide space for 3*k values
+	 * @param neigh receives the neighbors, must provide space for k elements.
+	 * Can be null if only the vectors are needed
+	 * @return the number of neighbors stored, at most k
+	 */
+	public int getKNearest(Vec3 c, int k, float[] neighVec, T[] neigh){
+		return getKNearest(c, k, neighVec, neigh, 0, kNearestBuffers.get());
+	}
+	
+	/**
+	 * Computes the k nearest neighbors for all elements in a range of a list in parallel,
+	 * see {@linkplain #getKNearest(Vec3, int, float[], Vec3[])}.
+	 * The results for the element at index i are stored in a block of fixed size starting at
+	 * neighbor (i-start)*k, i.e. at index 3*(i-start)*k in neighVec and (i-start)*k in neigh.
+	 * @param c list of elements defining the centers of the spheres in which neighbors are found
+	 * @param start first index in the list (inclusive)
+	 * @param end last index in the list (exclusive)
+	 * @param k the maximum number of neighbors per element
+	 * @param neighVec receives the vectors to the neighbors, must provide space for 3*k*(end-start) values
+	 * @param neigh receives the neighbors, must provide space for k*(end-start) elements.
+	 * Can be null if only the vectors are needed
+	 * @return the number of neighbors stored for each element in the range
+	 */
+	public int[] getKNearest(final List<? extends Vec3> c, final int start, final int end, final int k,
+			final float[] neighVec, final T[] neigh){
+		final int[] count = new int[end-start];
+		
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int j = i;
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final int s = start + ThreadPool.getSliceStart(end-start, j);
+					final int e = start + ThreadPool.getSliceEnd(end-start, j);
+					KNearestBuffer buffer = kNearestBuffers.get();
+					
+					for (int i=s; i<e; i++)
+						count[i-start] = getKNearest(c.get(i), k, neighVec, neigh, (i-start)*k, buffer);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+		return count;
+	}
+	
+	/**
+	 * Implementation of the k nearest neighbor query.
+	 * Neighbors are stored in the output arrays starting at neighbor index offset. Up to k neighbors
+	 * are simply appended in the order of the scan. Only if more neighbors are found, the arrays are
+	 * turned into a max-heap ordered by the distance and the position in the scan, which is
+	 * encoded as cell number in the upper and index in the cell in the lower 32 bits of a key.
+	 */
+	private int getKNearest(Vec3 c, int k, float[] neighVec, T[] neigh, int offset, KNearestBuffer b){
+		if (k <= 0) return 0;
+		b.ensureCapacity(k);
+		float[] dist = b.dist;
+		long[] key = b.key;
+		
+		long p = computeCellBounds(c, b);
+		int found = 0;
+		
+		for (int i=0; i<27; i++){
+			float bound = b.bound[i];
+			//Skip cells that cannot contain neighbors or, once the heap is built, any closer neighbor
+			if (bound > sqrCutoff || (found > k && bound > dist[0])) continue;
+			
+			long q = p+cellOffsets[i];
+			List<T> possibleNeigh = getCell(q);
+			if (possibleNeigh==null) continue;
+			
+			int s = getShiftOfCell(q);
+			float vx = c.x-shiftX[s], vy = c.y-shiftY[s], vz = c.z-shiftZ[s];
+			for (int l=0, len = possibleNeigh.size(); l<len; l++){
+				T n = possibleNeigh.get(l);
+				float dx = n.x-vx, dy = n.y-vy, dz = n.z-vz;
+				float d = dx*dx+dy*dy+dz*dz;
+				if (d<=sqrCutoff && !n.equals(c)){
+					long kk = ((long)i<<32) | l;
+					int h;
+					if (found < k){
+						h = found;
+					} else {
+						if (found == k){
+							for (int j=k/2-1; j>=0; j--)
+								siftDown(j, k, neighVec, neigh, offset, b);
+						}
+						//Neighbors are scanned in ascending order of keys, an equal distance is never closer
+						if (d >= dist[0]){
+							found++;
+							continue;
+						}
+						h = 0;
+					}
+					found++;
+					
+					dist[h] = d; key[h] = kk;
+					neighVec[3*(offset+h)] = dx;
+					neighVec[3*(offset+h)+1] = dy;
+					neighVec[3*(offset+h)+2] = dz;
+					if (neigh != null) neigh[offset+h] = n;
+					if (found > k) siftDown(0, k, neighVec, neigh, offset, b);
+				}
 			}
 		}
 		
-		return n.get(closest).o1;
+		if (found <= k) return found;
+		
+		//Heapsort into ascending order
+		for (int i=k-1; i>0; i--){
+			swap(0, i, neighVec, neigh, offset, b);
+			siftDown(0, i, neighVec, neigh, offset, b);
+		}
+		return k;
 	}
 	
-	private List<T> accessCell(int x, int y, int z){
-		if (pbcX){
-			if (x>=dimX) x -= dimX;
-			else if (x<0) x += dimX;
-		} else if(x>=dimX || x<0) return null;
-		if (pbcY){
-			if (y>=dimY) y -= dimY;
-			else if (y<0) y += dimY;
-		} else if(y>=dimY || y<0) return null;
-		if (pbcZ){
-			if (z>=dimZ) z -= dimZ;
-			else if (z<0) z += dimZ;
-		} else if(z>=dimZ || z<0) return null;
+	/**
+	 * Computes a lower bound of the squared distance from c to each of the 27 cells around the
+	 * cell of c
+	 * @return the index of the cell of c
+	 */
+	private long computeCellBounds(Vec3 c, KNearestBuffer b){
+		float ux = dimX * c.dot(box.getTBoxSize()[0]);
+		float uy = dimY * c.dot(box.getTBoxSize()[1]);
+		float uz = dimZ * c.dot(box.getTBoxSize()[2]);
+		int x = Math.max(0, Math.min(dimX-1, (int)ux));
+		int y = Math.max(0, Math.min(dimY-1, (int)uy));
+		int z = Math.max(0, Math.min(dimZ-1, (int)uz));
 		
-		int p = x*dimYZ+y*dimZ+z;
-
-		return cells[p];
+		float[] gx = b.gapX, gy = b.gapY, gz = b.gapZ;
+		for (int i=-1; i<=1; i++){
+			gx[i+1] = getGap(ux, x+i, dimX, pbcX) * cellWidthX;
+			gy[i+1] = getGap(uy, y+i, dimY, pbcY) * cellWidthY;
+			gz[i+1] = getGap(uz, z+i, dimZ, pbcZ) * cellWidthZ;
+		}
+		
+		//Same order as cellOffsets
+		int l=0;
+		for (int i=0; i<3; i++)
+			for (int j=0; j<3; j++)
+				for (int k=0; k<3; k++){
+					//The distances perpendicular to the faces are independent only in orthogonal boxes
+					if (orthogonal) b.bound[l++] = gx[i]*gx[i] + gy[j]*gy[j] + gz[k]*gz[k];
+					else b.bound[l++] = Math.max(gx[i]*gx[i], Math.max(gy[j]*gy[j], gz[k]*gz[k]));
+				}
+		
+		return getCellIndex(x, y, z);
+	}
+	
+	/**
+	 * Distance in units of cells from coordinate u to the cell with coordinate x along one axis.
+	 * Elements outside a non-periodic box are stored in the boundary cells, these cells thus
+	 * extend to infinity.
+	 */
+	private float getGap(float u, int x, int dim, boolean pbc){
+		float gap = 0f;
+		if (u < x && (pbc || x > 0)) gap = x - u;
+		else if (u > x+1 && (pbc || x < dim-1)) gap = u - (x+1);
+		return Math.max(0f, gap - boundTolerance);
+	}
+	
+	private void siftDown(int h, int size, float[] neighVec, T[] neigh, int offset, KNearestBuffer b){
+		while (true){
+			int child = 2*h+1;
+			if (child >= size) break;
+			if (child+1 < size && b.isGreater(child+1, child)) child++;
+			if (!b.isGreater(child, h)) break;
+			swap(h, child, neighVec, neigh, offset, b);
+			h = child;
+		}
+	}
+	
+	private void swap(int i, int j, float[] neighVec, T[] neigh, int offset, KNearestBuffer b){
+		float d = b.dist[i]; b.dist[i] = b.dist[j]; b.dist[j] = d;
+		long k = b.key[i]; b.key[i] = b.key[j]; b.key[j] = k;
+		for (int m=0; m<3; m++){
+			float v = neighVec[3*(offset+i)+m];
+			neighVec[3*(offset+i)+m] = neighVec[3*(offset+j)+m];
+			neighVec[3*(offset+j)+m] = v;
+		}
+		if (neigh != null){
+			T n = neigh[offset+i]; neigh[offset+i] = neigh[offset+j]; neigh[offset+j] = n;
+		}
+	}
+	
+	/**
+	 * Temporary arrays of a k nearest neighbor query, one instance per thread
+	 */
+	private static class KNearestBuffer {
+		float[] dist = new float[16];
+		long[] key = new long[16];
+		final float[] bound = new float[27];
+		final float[] gapX = new float[3], gapY = new float[3], gapZ = new float[3];
+		
+		void ensureCapacity(int k){
+			if (dist.length < k){
+				dist = new float[k];
+				key = new long[k];
+			}
+		}
+		
+		/**
+		 * Order of entries in the heap by distance and position in the scan
+		 */
+		boolean isGreater(int i, int j){
+			return dist[i] > dist[j] || (dist[i] == dist[j] && key[i] > key[j]);
+		}
 	}
 	
 	/**
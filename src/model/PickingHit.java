@@ -0,0 +1,52 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2016  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/> 
+
+package model;
+
+/**
+ * An object hit by a picking ray and the distance from the origin of the ray 
+ */
+public class PickingHit {
+	private final Pickable object;
+	private final float distance;
+	
+	public PickingHit(Pickable object, float distance) {
+		this.object = object;
+		this.distance = distance;
+	}
+	
+	public Pickable getObject() {
+		return object;
+	}
+	
+	public float getDistance() {
+		return distance;
+	}
+	
+	/**
+	 * Selects the hit closer to the origin of the ray
+	 * @param h1 may be null
+	 * @param h2 may be null
+	 * @return the closer hit, or null if both are null
+	 */
+	public static PickingHit closest(PickingHit h1, PickingHit h2){
+		if (h1 == null) return h2;
+		if (h2 == null) return h1;
+		return h1.distance <= h2.distance ? h1 : h2;
+	}
+}
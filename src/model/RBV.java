@@ -28,6 +28,11 @@ public class RBV {
 		this.lineDirection = lineDirection.clone();
 	}
 	
+	RBV(float bx, float by, float bz, float lx, float ly, float lz) {
+		this.bv = new Vec3(bx, by, bz);
+		this.lineDirection = new Vec3(lx, ly, lz);
+	}
+	
 	private RBV(RBV rbv){
 		this.bv = rbv.bv.clone();
 		this.lineDirection = rbv.lineDirection.clone();
@@ -18,18 +18,65 @@
 
 package model;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import gnu.trove.map.hash.TIntIntHashMap;
 import common.Vec3;
 
 /**
  * A thread safe implementation that maps Atoms to resultant Burgers vectors (RBVs)
+ * The values are stored in six float columns (Burgers vector and line direction) addressed by
+ * the ID of an atom (see {@link Atom#getID()}), no objects are stored per atom.
+ * As long as only a small fraction of atoms is associated with a RBV, the columns are compact and 
+ * the position of each ID is stored in a hash map. Once more than half of all IDs are in use, the
+ * columns are indexed directly by the ID and the presence of a RBV is stored in a bitset.
+ * 
+ * Since the storage is addressed by IDs, it must be kept consistent if the IDs of atoms are changed,
+ * see {@link #removeID(int)} and {@link #moveID(int, int)}. 
  * @author Christoph Begau
  *
  */
 public class RBVStorage {
-	private Map<Atom, RBV> rbvData = Collections.synchronizedMap(new HashMap<Atom, RBV>());
+	private static final int INITIAL_CAPACITY = 16;
+	/**
+	 * The dense representation is never used for less than this number of IDs
+	 */
+	private static final int MIN_DENSE_SIZE = 1024;
+	
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	/**
+	 * bv.x, bv.y, bv.z, lineDirection.x, lineDirection.y, lineDirection.z
+	 * Indexed by slot in the sparse representation, indexed by ID in the dense one
+	 */
+	private float[][] columns;
+	private int count;
+	private boolean dense;
+	private int maxID;
+	
+	//Sparse representation
+	private TIntIntHashMap slotOfID;
+	private int[] idOfSlot;
+	
+	//Dense representation
+	private BitSet present;
+	
+	public RBVStorage() {
+		initSparse();
+	}
+	
+	private void initSparse(){
+		this.columns = new float[6][INITIAL_CAPACITY];
+		this.idOfSlot = new int[INITIAL_CAPACITY];
+		this.slotOfID = new TIntIntHashMap(INITIAL_CAPACITY, 0.5f, -1, -1);
+		this.present = null;
+		this.dense = false;
+		this.count = 0;
+		this.maxID = -1;
+	}
 	
 	/**
 	 * Sets the values for the resultant Burgers vector and the line direction to this atom
@@ -38,23 +85,192 @@ public class RBVStorage {
 	 * @param lineDirection the lineDirection, should be a unit vector, must not be null
 	 */
 	public void addRBV(Atom a, Vec3 rbv, Vec3 lineDirection ){
-		assert (rbv != null && lineDirection != null); 		
-		rbvData.put(a, new model.RBV(rbv, lineDirection));
+		addRBV(a.getID(), rbv, lineDirection);
+	}
+	
+	/**
+	 * Sets the values for the resultant Burgers vector and the line direction to the atom with the given ID.
+	 * Intended for file loaders, which know the IDs the atoms are going to have,
+	 * i.e. their index in the list of imported atoms, before they are assigned. 
+	 * @param id the ID of the atom associated with this RBV
+	 * @param rbv The resultant Burgers vector, must not be null
+	 * @param lineDirection the lineDirection, should be a unit vector, must not be null
+	 */
+	public void addRBV(int id, Vec3 rbv, Vec3 lineDirection ){
+		assert (rbv != null && lineDirection != null && id >= 0);
+		lock.writeLock().lock();
+		try {
+			int index;
+			if (dense){
+				ensureCapacity(id+1);
+				if (!present.get(id)){
+					present.set(id);
+					count++;
+				}
+				index = id;
+			} else {
+				index = slotOfID.get(id);
+				if (index == -1){
+					index = count++;
+					ensureCapacity(count);
+					slotOfID.put(id, index);
+					idOfSlot[index] = id;
+				}
+			}
+			set(index, rbv, lineDirection);
+			
+			if (id > maxID){
+				maxID = id;
+			}
+			if (!dense && maxID >= MIN_DENSE_SIZE && 2*count > maxID+1)
+				convertToDense();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 	
 	public RBV getRBV(Atom a){
-		return rbvData.get(a);
+		return getRBV(a.getID());
+	}
+	
+	/**
+	 * The Burgers vector stored for the atom with the given ID
+	 * @param id
+	 * @return the Burgers vector or null if none is stored
+	 */
+	public RBV getRBV(int id){
+		lock.readLock().lock();
+		try {
+			int index = getIndex(id);
+			if (index == -1) return null;
+			return new RBV(columns[0][index], columns[1][index], columns[2][index], 
+					columns[3][index], columns[4][index], columns[5][index]);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 	
 	public boolean isEmpty(){
-		return rbvData.isEmpty();
+		lock.readLock().lock();
+		try {
+			return count == 0;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 	
 	public boolean removeAtom(Atom a){
-		return (rbvData.remove(a)!=null);
+		return removeID(a.getID());
+	}
+	
+	/**
+	 * Removes the RBV associated with the given ID
+	 * @param id
+	 * @return true if a RBV existed for this ID
+	 */
+	boolean removeID(int id){
+		lock.writeLock().lock();
+		try {
+			int index = getIndex(id);
+			if (index == -1) return false;
+			if (dense){
+				present.clear(id);
+			} else {
+				//Fill the gap with the last slot
+				int last = count-1;
+				slotOfID.remove(id);
+				if (index != last){
+					for (int i=0; i<6; i++)
+						columns[i][index] = columns[i][last];
+					idOfSlot[index] = idOfSlot[last];
+					slotOfID.put(idOfSlot[index], index);
+				}
+			}
+			count--;
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Reassigns the RBV of an atom whose ID is changed.
+	 * No RBV must be associated with the new ID
+	 * @param from the old ID
+	 * @param to the new ID
+	 */
+	void moveID(int from, int to){
+		lock.writeLock().lock();
+		try {
+			assert (getIndex(to) == -1);
+			int index = getIndex(from);
+			if (index == -1) return;
+			if (dense){
+				for (int i=0; i<6; i++)
+					columns[i][to] = columns[i][from];
+				present.clear(from);
+				present.set(to);
+			} else {
+				slotOfID.remove(from);
+				slotOfID.put(to, index);
+				idOfSlot[index] = to;
+			}
+			if (to > maxID) maxID = to;
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 	
 	public void clear(){
-		rbvData.clear();
+		lock.writeLock().lock();
+		try {
+			initSparse();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * The index in the columns for the given ID, -1 if no RBV is stored for the ID
+	 */
+	private int getIndex(int id){
+		if (dense)
+			return (id < columns[0].length && present.get(id)) ? id : -1;
+		return slotOfID.get(id);
+	}
+	
+	private void set(int index, Vec3 rbv, Vec3 lineDirection){
+		columns[0][index] = rbv.x;
+		columns[1][index] = rbv.y;
+		columns[2][index] = rbv.z;
+		columns[3][index] = lineDirection.x;
+		columns[4][index] = lineDirection.y;
+		columns[5][index] = lineDirection.z;
+	}
+	
+	private void ensureCapacity(int capacity){
+		int oldCapacity = columns[0].length;
+		if (capacity <= oldCapacity) return;
+		int newCapacity = Math.max(capacity, oldCapacity + (oldCapacity >> 1));
+		for (int i=0; i<6; i++)
+			columns[i] = Arrays.copyOf(columns[i], newCapacity);
+		if (!dense)
+			idOfSlot = Arrays.copyOf(idOfSlot, newCapacity);
+	}
+	
+	private void convertToDense(){
+		float[][] denseColumns = new float[6][maxID+1 + ((maxID+1) >> 1)];
+		BitSet present = new BitSet(denseColumns[0].length);
+		for (int slot=0; slot<count; slot++){
+			int id = idOfSlot[slot];
+			for (int i=0; i<6; i++)
+				denseColumns[i][id] = columns[i][slot];
+			present.set(id);
+		}
+		this.columns = denseColumns;
+		this.present = present;
+		this.slotOfID = null;
+		this.idOfSlot = null;
+		this.dense = true;
 	}
 }
@@ -0,0 +1,142 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+/**
+ * A growable buffer of ASCII characters, into which numbers are formatted directly.
+ * The output is identical to {@link String#format(String, Object...)} using "%d" for integers
+ * and "%.nf" for floats (with a locale using '.' as decimal separator and no grouping), but
+ * without creating any intermediate objects.
+ */
+final class AsciiBuffer {
+	private static final long[] POW10 = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+		100000000L};
+
+	private byte[] buffer;
+	private int size = 0;
+
+	AsciiBuffer(int initialCapacity){
+		buffer = new byte[Math.max(16, initialCapacity)];
+	}
+
+	byte[] getBuffer(){
+		return buffer;
+	}
+
+	int size(){
+		return size;
+	}
+
+	void clear(){
+		size = 0;
+	}
+
+	AsciiBuffer append(char c){
+		ensureCapacity(1);
+		buffer[size++] = (byte)c;
+		return this;
+	}
+
+	AsciiBuffer append(String s){
+		ensureCapacity(s.length());
+		for (int i=0; i<s.length(); i++)
+			buffer[size++] = (byte)s.charAt(i);
+		return this;
+	}
+
+	AsciiBuffer append(long v){
+		ensureCapacity(21);
+		if (v<0){
+			buffer[size++] = '-';
+			//The absolute value of Long.MIN_VALUE is not representable
+			if (v == Long.MIN_VALUE) return append("9223372036854775808");
+			v = -v;
+		}
+		appendDigits(v, 1);
+		return this;
+	}
+
+	/**
+	 * Appends a float value with the given number of decimal places, identical to
+	 * String.format("%.nf", v).
+	 * The exact binary value of the float is scaled by 10^decimals and rounded half up using integer
+	 * arithmetic. Values larger than 2^24 and non-finite values are handled by String.format.
+	 * @param v
+	 * @param decimals number of decimal places, must be in the range [1..8]
+	 * @return
+	 */
+	AsciiBuffer append(float v, int decimals){
+		int bits = Float.floatToRawIntBits(v);
+		int biasedExp = (bits>>>23) & 0xFF;
+		long mantissa = bits & 0x7FFFFF;
+		int shift; // v = mantissa * 2^-shift
+		if (biasedExp == 0){
+			shift = 149;
+		} else {
+			mantissa |= 0x800000;
+			shift = 150 - biasedExp;
+		}
+		if (biasedExp == 0xFF || shift < 0)
+			return append(String.format("%."+decimals+"f", v));
+
+		ensureCapacity(decimals+12);
+		if (bits < 0) buffer[size++] = '-';
+
+		long scaled = mantissa * POW10[decimals];
+		long q;
+		if (shift >= 62){
+			//Value is below 2^51 * 2^-62, rounds to zero
+			q = 0;
+		} else if (shift == 0){
+			q = scaled;
+		} else {
+			q = scaled >>> shift;
+			long remainder = scaled - (q << shift);
+			if (remainder >= (1L << (shift-1))) q++;
+		}
+
+		appendDigits(q / POW10[decimals], 1);
+		buffer[size++] = '.';
+		appendDigits(q % POW10[decimals], decimals);
+		return this;
+	}
+
+	/**
+	 * Appends a non-negative value, padded with leading zeros to the given minimum number of digits
+	 */
+	private void appendDigits(long v, int minDigits){
+		int digits = 1;
+		for (long t = v; t >= 10; t /= 10) digits++;
+		if (digits < minDigits) digits = minDigits;
+		int end = size + digits;
+		for (int i = end-1; i >= size; i--){
+			buffer[i] = (byte)('0' + (v % 10));
+			v /= 10;
+		}
+		size = end;
+	}
+
+	private void ensureCapacity(int additional){
+		if (size + additional > buffer.length){
+			byte[] tmp = new byte[Math.max(buffer.length*2, size + additional)];
+			System.arraycopy(buffer, 0, tmp, 0, size);
+			buffer = tmp;
+		}
+	}
+}
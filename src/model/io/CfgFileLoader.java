@@ -105,12 +105,13 @@ public class CfgFileLoader extends MDFileLoader {
 			}
 			
 			
+			FieldScanner fields = new FieldScanner();
 			if (header.isExtended){
 				//Extended CFG-format
 				while (s != null){
-					String[] parts = p.split(s);
-					if (parts.length == 1){
-						currentMass = Float.parseFloat(parts[0]);
+					fields.setLine(s);
+					if (!fields.hasField(1)){
+						currentMass = fields.getFloat(0);
 						s = inputReader.readLine();
 						String element = s.trim();
 						if (!typeMap.containsKey(element))
@@ -118,9 +119,9 @@ public class CfgFileLoader extends MDFileLoader {
 						currentType = typeMap.get(element);
 					} else {
 						Vec3 pos = new Vec3();
-						pos.x = Float.parseFloat(parts[0]);
-						pos.y = Float.parseFloat(parts[1]);
-						pos.z = Float.parseFloat(parts[2]);
+						pos.x = fields.getFloat(0);
+						pos.y = fields.getFloat(1);
+						pos.z = fields.getFloat(2);
 						
 						Vec3 xyzPos = new Vec3();
 						xyzPos.x = pos.dot(boxVec[0]);
@@ -140,7 +141,7 @@ public class CfgFileLoader extends MDFileLoader {
 							//Custom columns
 							for (int j = 0; j<dataColumns.length; j++){
 								if (dataColumns[j] != -1)
-									idc.dataArrays.get(j).add(Float.parseFloat(parts[dataColumns[j]]));
+									idc.dataArrays.get(j).add(fields.getFloat(dataColumns[j]));
 							}
 							
 							if (massColumn != -1){
@@ -155,16 +156,16 @@ public class CfgFileLoader extends MDFileLoader {
 			} else {
 				//Standard CFG-format
 				while (s != null){
-					String[] parts = p.split(s);
+					fields.setLine(s);
 					
-					String element = parts[1];
+					String element = fields.getString(1);
 					if (!typeMap.containsKey(element))
 						typeMap.put(element, typeMap.size());
 					int type = typeMap.get(element);
 					Vec3 pos = new Vec3();
-					pos.x = Float.parseFloat(parts[2]);
-					pos.y = Float.parseFloat(parts[3]);
-					pos.z = Float.parseFloat(parts[4]);
+					pos.x = fields.getFloat(2);
+					pos.y = fields.getFloat(3);
+					pos.z = fields.getFloat(4);
 					
 					Vec3 xyzPos = new Vec3();
 					xyzPos.x = pos.dot(boxVec[0]);
@@ -184,10 +185,10 @@ public class CfgFileLoader extends MDFileLoader {
 						//Custom columns
 						for (int j = 0; j<dataColumns.length; j++){
 							if (dataColumns[j] != -1)
-								idc.dataArrays.get(j).add(Float.parseFloat(parts[dataColumns[j]]));
+								idc.dataArrays.get(j).add(fields.getFloat(dataColumns[j]));
 						}
 						if (massColumn != -1){
-							idc.dataArrays.get(massColumn).add(Float.parseFloat(parts[0]));
+							idc.dataArrays.get(massColumn).add(fields.getFloat(0));
 						}
 					}
 					
@@ -0,0 +1,209 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+/**
+ * Access to the whitespace separated fields of a line in an ASCII file, replacing
+ * splitting the line into an array of strings.
+ * Fields are located lazily, the line is only scanned up to the last field that is requested.
+ * Fields that are never requested (e.g. unused columns or all columns of an atom rejected by
+ * the import filter) are neither copied nor converted.
+ * Numbers are converted directly from the characters of the line, the results are identical to
+ * those of {@link Float#parseFloat(String)} and {@link Integer#parseInt(String)}.
+ */
+final class FieldScanner {
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final long MAX_EXACT_MANTISSA = 1L<<53;
+
+	private String line;
+	private int length;
+	private int position;
+	private int located;
+	private int[] start = new int[32];
+	private int[] end = new int[32];
+
+	/**
+	 * Assigns a new line, all previously located fields are discarded
+	 * @param line
+	 */
+	void setLine(String line){
+		this.line = line;
+		this.length = line.length();
+		this.position = 0;
+		this.located = 0;
+	}
+
+	/**
+	 * Tests if the line contains the given field
+	 * @param field index of the field, starting at 0
+	 * @return
+	 */
+	boolean hasField(int field){
+		return locate(field);
+	}
+
+	String getString(int field){
+		check(field);
+		return line.substring(start[field], end[field]);
+	}
+
+	int getInt(int field){
+		check(field);
+		int s = start[field], e = end[field];
+		boolean negative = false;
+		char c = line.charAt(s);
+		if (c == '-' || c == '+'){
+			negative = c == '-';
+			s++;
+		}
+		//Up to nine digits cannot overflow
+		if (s == e || e-s > 9) return Integer.parseInt(line.substring(start[field], end[field]));
+		int v = 0;
+		for (int i=s; i<e; i++){
+			int d = line.charAt(i)-'0';
+			if (d<0 || d>9) return Integer.parseInt(line.substring(start[field], end[field]));
+			v = v*10 + d;
+		}
+		return negative ? -v : v;
+	}
+
+	long getLong(int field){
+		check(field);
+		int s = start[field], e = end[field];
+		boolean negative = false;
+		char c = line.charAt(s);
+		if (c == '-' || c == '+'){
+			negative = c == '-';
+			s++;
+		}
+		if (s == e || e-s > 18) return Long.parseLong(line.substring(start[field], end[field]));
+		long v = 0;
+		for (int i=s; i<e; i++){
+			int d = line.charAt(i)-'0';
+			if (d<0 || d>9) return Long.parseLong(line.substring(start[field], end[field]));
+			v = v*10L + d;
+		}
+		return negative ? -v : v;
+	}
+
+	/**
+	 * Converts a field into a float.
+	 * Plain decimal numbers with an optional exponent whose mantissa fits into a double without loss
+	 * are converted by a single correctly rounded double operation. The conversion of this
+	 * double into float is exact unless it is located precisely halfway between two floats,
+	 * these rare cases and all other formats are delegated to {@link Float#parseFloat(String)}
+	 * @param field
+	 * @return
+	 */
+	float getFloat(int field){
+		check(field);
+		int i = start[field], e = end[field];
+		boolean negative = false;
+		char c = line.charAt(i);
+		if (c == '-' || c == '+'){
+			negative = c == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int exp10 = 0;
+		int digits = 0;
+		boolean point = false;
+		for (; i<e; i++){
+			c = line.charAt(i);
+			if (c>='0' && c<='9'){
+				if (mantissa >= MAX_EXACT_MANTISSA/10) return parseFloatFallback(field);
+				mantissa = mantissa*10L + (c-'0');
+				if (point) exp10--;
+				digits++;
+			} else if (c == '.' && !point){
+				point = true;
+			} else break;
+		}
+		if (digits == 0) return parseFloatFallback(field);
+
+		if (i<e){
+			if (c != 'e' && c != 'E') return parseFloatFallback(field);
+			i++;
+			if (i == e) return parseFloatFallback(field);
+			boolean negativeExp = false;
+			c = line.charAt(i);
+			if (c == '-' || c == '+'){
+				negativeExp = c == '-';
+				i++;
+			}
+			if (i == e || e-i > 3) return parseFloatFallback(field);
+			int exp = 0;
+			for (; i<e; i++){
+				int d = line.charAt(i)-'0';
+				if (d<0 || d>9) return parseFloatFallback(field);
+				exp = exp*10 + d;
+			}
+			exp10 += negativeExp ? -exp : exp;
+		}
+
+		if (exp10 < -22 || exp10 > 22) return parseFloatFallback(field);
+		double d = exp10 < 0 ? mantissa/POW10[-exp10] : mantissa*POW10[exp10];
+		//The double value is exactly the midpoint between two floats if the 29 least significant
+		//bits of the mantissa are 1000...0, rounding twice may then differ from rounding once
+		if ((Double.doubleToRawLongBits(d) & 0x1FFFFFFFL) == 0x10000000L) return parseFloatFallback(field);
+		float f = (float)d;
+		return negative ? -f : f;
+	}
+
+	private float parseFloatFallback(int field){
+		return Float.parseFloat(line.substring(start[field], end[field]));
+	}
+
+	private void check(int field){
+		if (!locate(field))
+			throw new IllegalArgumentException(
+					String.format("Missing value in column %d in line: %s", field+1, line));
+	}
+
+	private boolean locate(int field){
+		while (located <= field){
+			int i = position;
+			while (i<length && isWhitespace(line.charAt(i))) i++;
+			if (i == length){
+				position = i;
+				return false;
+			}
+			if (located == start.length){
+				int[] tmp = new int[2*start.length];
+				System.arraycopy(start, 0, tmp, 0, start.length);
+				start = tmp;
+				tmp = new int[2*end.length];
+				System.arraycopy(end, 0, tmp, 0, end.length);
+				end = tmp;
+			}
+			start[located] = i;
+			while (i<length && !isWhitespace(line.charAt(i))) i++;
+			end[located] = i;
+			position = i;
+			located++;
+		}
+		return true;
+	}
+
+	private static boolean isWhitespace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+}
@@ -0,0 +1,624 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import common.CommonUtils;
+import common.Vec3;
+import gui.PrimitiveProperty;
+import gui.PrimitiveProperty.IntegerProperty;
+import gui.PrimitiveProperty.LongProperty;
+import model.Atom;
+import model.AtomData;
+import model.Filter;
+import model.io.MDFileLoader.ImportDataContainer;
+
+/**
+ * Index of the frames (time steps) stored one after another in a single file.
+ * The index is created by a quick scan of the file, in which only the header of each frame
+ * is parsed and the lines of the atoms are skipped. For files containing more than one frame,
+ * the index is stored next to the file (with the extension {@link #SIDECAR_EXTENSION}) and reused
+ * as long as the file is not modified. Files containing a single frame are usually not scanned at all,
+ * see {@link FrameReader}.
+ * Offsets are given in bytes of the uncompressed data, seeking in gzipped files therefore
+ * requires decompressing the data in front of a frame, but not parsing it.
+ */
+public class FrameIndex {
+	public static final String SIDECAR_EXTENSION = ".avidx";
+
+	private static final int MAGIC = 0x41564958;
+	private static final int VERSION = 1;
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private final List<Frame> frames;
+
+	private FrameIndex(List<Frame> frames){
+		this.frames = Collections.unmodifiableList(frames);
+	}
+
+	/**
+	 * All frames in the order they are stored in the file
+	 * @return
+	 */
+	public List<Frame> getFrames(){
+		return frames;
+	}
+
+	public int size(){
+		return frames.size();
+	}
+
+	/**
+	 * Selects a subset of frames
+	 * @param stride only every n-th frame inside the range of timesteps is selected
+	 * @param firstTimestep frames with smaller timesteps are ignored
+	 * @param lastTimestep frames with larger timesteps are ignored
+	 * @return
+	 */
+	public List<Frame> select(int stride, long firstTimestep, long lastTimestep){
+		List<Frame> selection = new ArrayList<Frame>();
+		int n = 0;
+		for (Frame f : frames){
+			if (f.timestep < firstTimestep || f.timestep > lastTimestep) continue;
+			if (n++ % stride == 0) selection.add(f);
+		}
+		return selection;
+	}
+
+	/**
+	 * Provides the index of a file, either from its sidecar file if it is up to date,
+	 * or by scanning the file
+	 * @param f
+	 * @param scanner parses the frame headers of the file format
+	 * @return
+	 * @throws IOException
+	 */
+	static FrameIndex getIndex(File f, FrameScanner scanner) throws IOException {
+		File sidecar = new File(f.getPath()+SIDECAR_EXTENSION);
+		if (sidecar.exists()){
+			FrameIndex index = read(sidecar, f);
+			if (index != null) return index;
+		}
+
+		List<Frame> frames = new ArrayList<Frame>();
+		LineInput in = open(f);
+		try {
+			Frame frame;
+			while ((frame = scanner.scanFrame(in, frames.size())) != null)
+				frames.add(frame);
+		} finally {
+			in.close();
+		}
+
+		FrameIndex index = new FrameIndex(frames);
+		if (frames.size() > 1){
+			try {
+				index.write(sidecar, f);
+			} catch (IOException e){
+				//The sidecar is only a cache, e.g. the directory may not be writable
+				sidecar.delete();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * Provides the index of a file from its sidecar file
+	 * @param f
+	 * @return the index or null if no up to date sidecar file exists
+	 */
+	static FrameIndex getIndexFromSidecar(File f){
+		File sidecar = new File(f.getPath()+SIDECAR_EXTENSION);
+		if (!sidecar.exists()) return null;
+		return read(sidecar, f);
+	}
+
+	private static FrameIndex read(File sidecar, File source){
+		DataInputStream dis = null;
+		try {
+			dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+			if (dis.readInt() != MAGIC || dis.readInt() != VERSION) return null;
+			if (dis.readLong() != source.length() || dis.readLong() != source.lastModified()) return null;
+			int n = dis.readInt();
+			List<Frame> frames = new ArrayList<Frame>(n);
+			for (int i=0; i<n; i++){
+				long offset = dis.readLong();
+				long timestep = dis.readLong();
+				int atoms = dis.readInt();
+				float[] box = new float[12];
+				for (int j=0; j<box.length; j++)
+					box[j] = dis.readFloat();
+				frames.add(new Frame(i, offset, timestep, atoms, box));
+			}
+			return new FrameIndex(frames);
+		} catch (IOException e){
+			return null;
+		} finally {
+			if (dis != null){
+				try {
+					dis.close();
+				} catch (IOException e) {}
+			}
+		}
+	}
+
+	private void write(File sidecar, File source) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar)));
+		try {
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(source.length());
+			dos.writeLong(source.lastModified());
+			dos.writeInt(frames.size());
+			for (Frame f : frames){
+				dos.writeLong(f.offset);
+				dos.writeLong(f.timestep);
+				dos.writeInt(f.numberOfAtoms);
+				for (int j=0; j<f.box.length; j++)
+					dos.writeFloat(f.box[j]);
+			}
+		} finally {
+			dos.close();
+		}
+	}
+
+	/**
+	 * Opens a file for reading lines, gzipped files are decompressed
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	static LineInput open(File f) throws IOException {
+		boolean gzipped = CommonUtils.isFileGzipped(f);
+		FileInputStream fis = new FileInputStream(f);
+		InputStream is = fis;
+		try {
+			if (gzipped) is = new GZIPInputStream(fis, 16384*64);
+		} catch (IOException ex){
+			fis.close();
+			throw ex;
+		}
+		return new LineInput(is);
+	}
+
+	/**
+	 * Header data of a single frame
+	 */
+	public static class Frame {
+		private final int index;
+		private final long offset;
+		private final long timestep;
+		private final int numberOfAtoms;
+		//Offset followed by the three box vectors
+		private final float[] box;
+
+		Frame(int index, long offset, long timestep, int numberOfAtoms, float[] box){
+			this.index = index;
+			this.offset = offset;
+			this.timestep = timestep;
+			this.numberOfAtoms = numberOfAtoms;
+			this.box = box;
+		}
+
+		/**
+		 * The position of this frame in the file, starting at 0
+		 * @return
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Offset of the first byte of the frame in the (uncompressed) file
+		 * @return
+		 */
+		public long getOffset() {
+			return offset;
+		}
+
+		/**
+		 * The timestep given in the header, or the index of the frame if the format does not provide timesteps
+		 * @return
+		 */
+		public long getTimestep() {
+			return timestep;
+		}
+
+		public int getNumberOfAtoms() {
+			return numberOfAtoms;
+		}
+
+		public Vec3 getBoxOffset(){
+			return new Vec3(box[0], box[1], box[2]);
+		}
+
+		public Vec3[] getBoxVectors(){
+			return new Vec3[]{new Vec3(box[3], box[4], box[5]), new Vec3(box[6], box[7], box[8]),
+					new Vec3(box[9], box[10], box[11])};
+		}
+	}
+
+	/**
+	 * Format specific parsing of the frame headers
+	 */
+	interface FrameScanner {
+		/**
+		 * Reads the header of the frame starting at the current position and skips the remaining
+		 * lines of the frame
+		 * @param in
+		 * @param index the index of the frame
+		 * @return the frame or null if the end of the file is reached
+		 * @throws IOException
+		 */
+		Frame scanFrame(LineInput in, int index) throws IOException;
+	}
+
+	/**
+	 * Format specific parsing of a complete frame
+	 */
+	interface FrameParser {
+		/**
+		 * Reads the frame starting at the current position
+		 * @param in
+		 * @param name the name of the data set
+		 * @param atomFilter A filter that ignores certain atoms already during import, can be null
+		 * @return
+		 * @throws Exception
+		 */
+		ImportDataContainer parseFrame(LineInput in, String name, Filter<Atom> atomFilter) throws Exception;
+	}
+
+	/**
+	 * Reads the selected frames of a file one after another, keeping the file open in between.
+	 * Unless an up to date sidecar file exists or the selection is restricted, the first frame is
+	 * parsed directly. Only if more data follows, the file is indexed to locate the remaining frames.
+	 * Thus files containing a single frame are read in a single pass.
+	 * The file is closed after the last frame is read or by {@link #close()}.
+	 */
+	static final class FrameReader {
+		private final File f;
+		private final MDFileLoader loader;
+		private final Selection selection;
+		private final FrameParser parser;
+
+		private FrameIndex index;
+		private List<Frame> selected;
+		private int position = 0;
+		//The first frame is to be parsed before the file is indexed
+		private boolean parseFirst = false;
+		private LineInput in;
+
+		/**
+		 * @param f
+		 * @param loader creates the index of the file if needed
+		 * @param selection
+		 * @param parser parses a complete frame in the file format
+		 */
+		FrameReader(File f, MDFileLoader loader, Selection selection, FrameParser parser){
+			this.f = f;
+			this.loader = loader;
+			this.selection = selection;
+			this.parser = parser;
+		}
+
+		/**
+		 * Indexes the file if needed to know the selected frames, the file is not indexed
+		 * if the first frame can be parsed directly
+		 * @throws IOException
+		 */
+		private void prepare() throws IOException {
+			if (selected != null || parseFirst) return;
+			index = getIndexFromSidecar(f);
+			if (index == null && !selection.isRestricted()){
+				parseFirst = true;
+				return;
+			}
+			if (index == null) index = loader.getFrameIndex(f);
+			selected = selection.select(index);
+		}
+
+		/**
+		 * Tests if another frame is selected, without parsing any frame
+		 * @return
+		 * @throws IOException
+		 */
+		boolean hasNext() throws IOException {
+			prepare();
+			return parseFirst || position < selected.size();
+		}
+
+		/**
+		 * Reads the next selected frame
+		 * @param atomFilter A filter that ignores certain atoms already during import, can be null
+		 * @return
+		 * @throws Exception
+		 */
+		ImportDataContainer next(Filter<Atom> atomFilter) throws Exception {
+			if (!hasNext()) throw new NoSuchElementException();
+			if (parseFirst){
+				parseFirst = false;
+				in = open(f);
+				ImportDataContainer idc = parser.parseFrame(in, f.getName(), atomFilter);
+				if (in.isAtEnd()){
+					close();
+					selected = Collections.emptyList();
+					return idc;
+				}
+				//All frames are selected, continue behind the first one
+				index = loader.getFrameIndex(f);
+				idc.name = getName(index.getFrames().get(0));
+				selected = index.getFrames();
+				position = 1;
+				return idc;
+			}
+			Frame frame = selected.get(position++);
+			if (in == null) in = open(f);
+			in.skipTo(frame.getOffset());
+			ImportDataContainer idc = parser.parseFrame(in, getName(frame), atomFilter);
+			if (position == selected.size()) close();
+			return idc;
+		}
+
+		/**
+		 * Reads all remaining frames
+		 * @param previous
+		 * @param atomFilter A filter that ignores certain atoms already during import, can be null
+		 * @return the last frame read, linked to its predecessors
+		 * @throws Exception
+		 */
+		AtomData readAll(AtomData previous, Filter<Atom> atomFilter) throws Exception {
+			try {
+				while (hasNext())
+					previous = new AtomData(previous, next(atomFilter));
+			} finally {
+				close();
+			}
+			return previous;
+		}
+
+		void close() throws IOException {
+			if (in != null){
+				in.close();
+				in = null;
+			}
+		}
+
+		private String getName(Frame frame){
+			//If there is only a single data set in the file, do not append numbers
+			if (index.size() <= 1) return f.getName();
+			return String.format("%s (%05d)", f.getName(), frame.getIndex());
+		}
+	}
+
+	/**
+	 * The options to select the frames to import from a file
+	 */
+	public static class Selection {
+		//Created on demand, the editors of the properties cannot be created in headless mode
+		private IntegerProperty stride;
+		private LongProperty firstTimestep, lastTimestep;
+
+		public void addOptions(List<PrimitiveProperty<?>> options){
+			if (stride == null){
+				stride = new IntegerProperty("frameStride", "Import every n-th frame",
+						"Only every n-th frame is imported from files containing multiple frames", 1, 1, Integer.MAX_VALUE);
+				firstTimestep = new LongProperty("firstTimestep", "First timestep",
+						"Frames with smaller timesteps are not imported", 0L, 0L, Long.MAX_VALUE);
+				lastTimestep = new LongProperty("lastTimestep", "Last timestep",
+						"Frames with larger timesteps are not imported", Long.MAX_VALUE, 0L, Long.MAX_VALUE);
+			}
+			options.add(stride);
+			options.add(firstTimestep);
+			options.add(lastTimestep);
+		}
+
+		public List<Frame> select(FrameIndex index){
+			//Without restrictions all frames are imported, regardless of their timesteps
+			if (!isRestricted())
+				return index.getFrames();
+			return index.select(stride.getValue(), firstTimestep.getValue(), lastTimestep.getValue());
+		}
+		
+		/**
+		 * @return true if not all frames are selected
+		 */
+		public boolean isRestricted(){
+			return stride != null && (stride.getValue() != 1 || firstTimestep.getValue() != 0L
+					|| lastTimestep.getValue() != Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Reads lines from a stream, while keeping track of the byte offsets in the stream.
+	 * Lines can be skipped without decoding them into strings.
+	 */
+	static final class LineInput {
+		private final InputStream in;
+		private byte[] buffer = new byte[1<<20];
+		private int pos = 0, limit = 0;
+		//Offset in the stream of buffer[0]
+		private long bufferStart = 0L;
+		private long lineStart = 0L;
+		private boolean eof = false;
+
+		private LineInput(InputStream in){
+			this.in = in;
+		}
+
+		/**
+		 * The offset of the last line returned by {@link #readLine()}
+		 * @return
+		 */
+		long getLineStart(){
+			return lineStart;
+		}
+
+		long getPosition(){
+			return bufferStart + pos;
+		}
+
+		/**
+		 * Reads the next line, terminated by '\n' or "\r\n"
+		 * @return the line or null if the end of the stream is reached
+		 * @throws IOException
+		 */
+		String readLine() throws IOException {
+			lineStart = getPosition();
+			//Number of bytes of the current line already scanned for a line break
+			int scanned = 0;
+			while (true){
+				for (int i = pos+scanned; i<limit; i++){
+					if (buffer[i] == '\n'){
+						int end = (i>pos && buffer[i-1] == '\r') ? i-1 : i;
+						String s = new String(buffer, pos, end-pos, CHARSET);
+						pos = i+1;
+						return s;
+					}
+				}
+				scanned = limit - pos;
+				if (!fillKeepingLine()){
+					if (pos == limit) return null;
+					String s = new String(buffer, pos, limit-pos, CHARSET);
+					pos = limit;
+					return s;
+				}
+			}
+		}
+
+		/**
+		 * Skips the given number of lines
+		 * @param n
+		 * @return the number of lines actually skipped, less than n if the end of the stream is reached
+		 * @throws IOException
+		 */
+		int skipLines(int n) throws IOException {
+			int skipped = 0;
+			while (skipped < n){
+				if (pos == limit && !fill()) return skipped;
+				int i = pos;
+				while (i<limit && skipped < n){
+					if (buffer[i++] == '\n') skipped++;
+				}
+				pos = i;
+			}
+			return skipped;
+		}
+
+		/**
+		 * Skips forward to the given offset in the stream
+		 * @param offset
+		 * @throws IOException if the offset is behind the current position or beyond the end of the stream
+		 */
+		void skipTo(long offset) throws IOException {
+			long remaining = offset - getPosition();
+			if (remaining < 0) throw new IOException("Cannot seek backwards in stream");
+			if (remaining <= limit - pos){
+				pos += (int)remaining;
+				return;
+			}
+			remaining -= limit - pos;
+			bufferStart += limit;
+			pos = limit = 0;
+			while (remaining > 0){
+				long n = in.skip(remaining);
+				if (n <= 0){
+					if (in.read() == -1) throw new IOException("Unexpected end of file");
+					n = 1;
+				}
+				remaining -= n;
+				bufferStart += n;
+			}
+		}
+
+		/**
+		 * Tests if the end of the stream is reached, without changing the position
+		 * @return true if nothing but whitespace follows
+		 * @throws IOException
+		 */
+		boolean isAtEnd() throws IOException {
+			int i = pos;
+			while (true){
+				for (; i<limit; i++){
+					byte b = buffer[i];
+					if (b != ' ' && b != '\t' && b != '\r' && b != '\n') return false;
+				}
+				int scanned = i - pos;
+				if (!fillKeepingLine()) return true;
+				i = pos + scanned;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+
+		/**
+		 * Discards the buffer content and reads new data
+		 */
+		private boolean fill() throws IOException {
+			bufferStart += limit;
+			pos = limit = 0;
+			return read();
+		}
+
+		/**
+		 * Reads new data, keeping the data starting at the current position
+		 */
+		private boolean fillKeepingLine() throws IOException {
+			int remaining = limit - pos;
+			if (pos == 0 && remaining == buffer.length){
+				byte[] tmp = new byte[buffer.length*2];
+				System.arraycopy(buffer, 0, tmp, 0, remaining);
+				buffer = tmp;
+			} else if (pos > 0){
+				System.arraycopy(buffer, pos, buffer, 0, remaining);
+				bufferStart += pos;
+			}
+			pos = 0;
+			limit = remaining;
+			return read();
+		}
+
+		private boolean read() throws IOException {
+			if (eof) return false;
+			int n = in.read(buffer, limit, buffer.length-limit);
+			if (n < 0){
+				eof = true;
+				return false;
+			}
+			limit += n;
+			return true;
+		}
+	}
+}
@@ -113,8 +113,24 @@ public class ImdFileLoader extends MDFileLoader{
 	 * @throws IOException
 	 */
 	protected ImportDataContainer readFile(File f, final Filter<Atom> atomFilter) throws IOException{
+		return readFile(f, atomFilter, null, 0);
+	}
+	
+	/**
+	 * Read IMD-files, passing the atoms in blocks to the given handler
+	 * instead of keeping them in the returned container
+	 * @param f File to read
+	 * @param atomFilter
+	 * @param blockHandler receives blocks of atoms, if null all atoms are kept in the container
+	 * @param blockSize maximum number of atoms per block
+	 * @return the container with the metadata of the file, the atoms that are not yet passed to the handler
+	 * @throws IOException
+	 */
+	protected ImportDataContainer readFile(File f, final Filter<Atom> atomFilter, 
+			AtomBlockHandler blockHandler, int blockSize) throws IOException{
 		ProgressMonitor.getProgressMonitor().setActivityName("Reading file");		
 		final ImportDataContainer idc = new ImportDataContainer();
+		idc.setAtomBlockHandler(blockHandler, blockSize);
 		idc.name = f.getName();
 		idc.fullPathAndFilename = f.getCanonicalPath();
 		
@@ -189,6 +205,7 @@ public class ImdFileLoader extends MDFileLoader{
 					readBinaryFile(f, idc, gzipped, header, filter);
 			}
 			else throw new IllegalArgumentException("File format not supported");
+			idc.flushBlock();
 		}catch (IOException ex){
 			throw ex;
 		} finally {
@@ -238,7 +255,7 @@ public class ImdFileLoader extends MDFileLoader{
         }
         
         //Set an approximate size of the array to store atoms and avoid frequent reallocations
-        int approxAtoms = (int)(filesize/bytesPerAtom);
+        int approxAtoms = (int)Math.min(filesize/bytesPerAtom, idc.getBlockSize());
         idc.atoms.ensureCapacity(idc.atoms.size()+approxAtoms);
         for (FastTFloatArrayList fa : idc.dataArrays)
             fa.ensureCapacity(idc.atoms.size()+approxAtoms);
@@ -340,7 +357,7 @@ public class ImdFileLoader extends MDFileLoader{
                             rbv.x = bar.readFloat(rbvBuffer, 3*inc);
                             rbv.y = bar.readFloat(rbvBuffer, 4*inc);
                             rbv.z = bar.readFloat(rbvBuffer, 5*inc);   
-                            idc.rbvStorage.addRBV(a, rbv, lineDirection);
+                            idc.rbvStorage.addRBV(idc.atoms.size(), rbv, lineDirection);
                         }
                     }
                 } else if (idc.rbvAvailable && atomFilter.accept(a) ) {
@@ -351,7 +368,7 @@ public class ImdFileLoader extends MDFileLoader{
                     rbv.x = bar.readFloat(byteBuffer, (header.rbvX_Column + 0) * inc - offsetCorrector);
                     rbv.y = bar.readFloat(byteBuffer, (header.rbvX_Column + 1) * inc - offsetCorrector);
                     rbv.z = bar.readFloat(byteBuffer, (header.rbvX_Column + 2) * inc - offsetCorrector);
-                    idc.rbvStorage.addRBV(a, rbv, lineDirection);   
+                    idc.rbvStorage.addRBV(idc.atoms.size(), rbv, lineDirection);   
                 }
                 
                 if (atomFilter.accept(a)){
@@ -366,6 +383,7 @@ public class ImdFileLoader extends MDFileLoader{
                         
                         idc.dataArrays.get(i).add(value);
                     }
+                    idc.atomImported();
                 }
                 
                 //Gzip stores the file size module 2^32
@@ -394,7 +412,7 @@ public class ImdFileLoader extends MDFileLoader{
 			byte type = 0;
 			int num = 0;
 			byte element = 0;
-			Pattern p = Pattern.compile("\\s+");
+			FieldScanner fields = new FieldScanner();
 			int atomRead = 0;
 			
 			ProgressMonitor.getProgressMonitor().start(fis.getChannel().size());
@@ -415,22 +433,22 @@ public class ImdFileLoader extends MDFileLoader{
 					s = inputReader.readLine();
 					continue;
 				}
-				String[] parts = p.split(s);
+				fields.setLine(s);
 				
-				if (idc.atomTypesAvailable) type = (byte)Integer.parseInt(parts[header.atomTypeColumn]);
+				if (idc.atomTypesAvailable) type = (byte)fields.getInt(header.atomTypeColumn);
 				
 				if (header.elementColumn!=-1) {
-					element = (byte)Integer.parseInt(parts[header.elementColumn]);
+					element = (byte)fields.getInt(header.elementColumn);
 					if (element + 1 > idc.maxElementNumber) idc.maxElementNumber = (byte)(element + 1);
 				}
 				
 				
 				if (header.numberColumn != -1)
-					num = Integer.parseInt(parts[header.numberColumn]);
+					num = fields.getInt(header.numberColumn);
 				
-				pos.x = Float.parseFloat(parts[header.xColumn]);
-				pos.y = Float.parseFloat(parts[header.xColumn+1]);
-				pos.z = Float.parseFloat(parts[header.xColumn+2]);
+				pos.x = fields.getFloat(header.xColumn);
+				pos.y = fields.getFloat(header.xColumn+1);
+				pos.z = fields.getFloat(header.xColumn+2);
 				
 				//Put atoms back into the simulation box, they might be slightly outside
 				idc.box.backInBox(pos);
@@ -441,7 +459,7 @@ public class ImdFileLoader extends MDFileLoader{
 				if (idc.grainsImported) {
                     //Parse as float and cast to int used for backwards compatibility.
                     //Old formats stored value as ints, new implementations do use float
-                    int grain = (int)Float.parseFloat(parts[header.grainColumn]);
+                    int grain = (int)fields.getFloat(header.grainColumn);
                     a.setGrain(grain);  //Assign grain number if found
                 }
 				
@@ -452,7 +470,7 @@ public class ImdFileLoader extends MDFileLoader{
 					//Custom columns
 					for (int i = 0; i<header.dataColumns.length; i++){
 						if (header.dataColumns[i]!=-1)
-							idc.dataArrays.get(i).add(Float.parseFloat(parts[header.dataColumns[i]])); 
+							idc.dataArrays.get(i).add(fields.getFloat(header.dataColumns[i])); 
 					}
 					
 					if (idc.rbvAvailable){
@@ -460,27 +478,28 @@ public class ImdFileLoader extends MDFileLoader{
 						Vec3 lineDirection = new Vec3();
 	
 						if (header.rbv_data == -1){
-							rbv.x = Float.parseFloat(parts[header.rbvX_Column]);
-							rbv.y = Float.parseFloat(parts[header.rbvX_Column+1]);
-							rbv.z = Float.parseFloat(parts[header.rbvX_Column+2]);
+							rbv.x = fields.getFloat(header.rbvX_Column);
+							rbv.y = fields.getFloat(header.rbvX_Column+1);
+							rbv.z = fields.getFloat(header.rbvX_Column+2);
 								
-							lineDirection.x = Float.parseFloat(parts[header.lsX_Column]);
-							lineDirection.y = Float.parseFloat(parts[header.lsX_Column+1]);
-							lineDirection.z = Float.parseFloat(parts[header.lsX_Column+2]);
+							lineDirection.x = fields.getFloat(header.lsX_Column);
+							lineDirection.y = fields.getFloat(header.lsX_Column+1);
+							lineDirection.z = fields.getFloat(header.lsX_Column+2);
 						} else {
-							int data = Integer.parseInt(parts[header.rbv_data]);
+							int data = fields.getInt(header.rbv_data);
 							if (data == 1){
-								lineDirection.x = Float.parseFloat(parts[header.rbv_data+1]);
-								lineDirection.y = Float.parseFloat(parts[header.rbv_data+2]);
-								lineDirection.z = Float.parseFloat(parts[header.rbv_data+3]);
+								lineDirection.x = fields.getFloat(header.rbv_data+1);
+								lineDirection.y = fields.getFloat(header.rbv_data+2);
+								lineDirection.z = fields.getFloat(header.rbv_data+3);
 								
-								rbv.x = Float.parseFloat(parts[header.rbv_data+4]);
-								rbv.y = Float.parseFloat(parts[header.rbv_data+5]);
-								rbv.z = Float.parseFloat(parts[header.rbv_data+6]);
+								rbv.x = fields.getFloat(header.rbv_data+4);
+								rbv.y = fields.getFloat(header.rbv_data+5);
+								rbv.z = fields.getFloat(header.rbv_data+6);
 							}
 						}
-						idc.rbvStorage.addRBV(a, rbv, lineDirection);
+						idc.rbvStorage.addRBV(idc.atoms.size()-1, rbv, lineDirection);
 					}
+					idc.atomImported();
 				}
 				
 				s = inputReader.readLine();
@@ -1,19 +1,26 @@
 package model.io;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
 import java.util.zip.GZIPOutputStream;
 
+import common.ThreadPool;
 import common.Vec3;
 import gui.PrimitiveProperty;
 import gui.PrimitiveProperty.BooleanProperty;
 import model.Atom;
 import model.AtomData;
+import model.BoxParameter;
 import model.DataColumnInfo;
 import model.Filter;
 import model.RBV;
@@ -23,6 +30,9 @@ import model.polygrain.Grain;
 
 public class ImdFileWriter extends MDFileWriter {
 	
+	//Number of atoms per block that is formatted in parallel in ASCII files
+	private static final int ASCII_BLOCK_SIZE = 8192;
+	
 	private BooleanProperty binaryExport = new PrimitiveProperty.BooleanProperty("binary", "Binary export",
 			"Using big endian, single precision binary format for export, otherwise use ASCII format", false);
 	private BooleanProperty gzippedExport = new PrimitiveProperty.BooleanProperty("gzip", "GZip compression",
@@ -71,6 +81,179 @@ public class ImdFileWriter extends MDFileWriter {
 		if (useFilter.getValue() && filter == null)
 			filter = RenderingConfiguration.getAtomFilterset();			
 		
+		ColumnLayout layout = new ColumnLayout(data, data.isPolyCrystalline() && exportGrain, 
+				exportRBV && data.isRbvAvailable());
+		Stream out = createStream(path, filenamePrefix);
+		
+		try {
+			out.writeHeader(data, data.getBox(), layout);
+			out.write(data, layout, filter);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Opens a file into which the atoms of several data sets are written one after another,
+	 * e.g. parts of a data set that is too large to be processed at once.
+	 * All data sets must provide the same data columns as the template.
+	 * Grains are not exported, Burgers vector columns are written if enabled, regardless
+	 * if Burgers vectors are available in the template. If no data columns are selected
+	 * for export, all columns of the template are exported.
+	 * @param path the path in which the file is to be stored
+	 * @param filenamePrefix The start of the filename
+	 * @param template data set from which the columns and metadata are taken
+	 * @param box the simulation box written into the header
+	 * @return
+	 * @throws IOException
+	 */
+	public Stream openStream(File path, String filenamePrefix, AtomData template, BoxParameter box) throws IOException{
+		if (toExportColumns == null)
+			toExportColumns = template.getDataColumnInfos().toArray(new DataColumnInfo[template.getDataColumnInfos().size()]);
+		Stream out = createStream(path, filenamePrefix);
+		try {
+			out.writeHeader(template, box, new ColumnLayout(template, false, exportRBV));
+		} catch (IOException e){
+			out.close();
+			throw e;
+		}
+		return out;
+	}
+	
+	/**
+	 * An open file created by {@link ImdFileWriter#openStream(File, String, AtomData, BoxParameter)}.
+	 * Binary files are written sequentially through a (compressed) stream.
+	 * ASCII files are written in blocks of atoms that are formatted and, if requested, compressed
+	 * in parallel. The blocks are written in their original order, compressed blocks are stored
+	 * as individual gzip members, which are read as a single stream by gzip decompressors.
+	 */
+	public class Stream {
+		private final DataOutputStream dos;
+		private final FileOutputStream fos;
+		private final FileChannel channel;
+		private final boolean gzip;
+		private ColumnLayout layout;
+		
+		private Stream(File out) throws IOException{
+			this.gzip = gzippedExport.getValue();
+			if (binaryExport.getValue()){
+				if (gzip){
+					dos = new DataOutputStream(new BufferedOutputStream(
+							new GZIPOutputStream(new FileOutputStream(out), 1024*1024), 4096*1024));
+				} else dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 4096*1024));
+				fos = null;
+				channel = null;
+			} else {
+				dos = null;
+				fos = new FileOutputStream(out);
+				channel = fos.getChannel();
+			}
+		}
+		
+		/**
+		 * Appends all atoms of the data set accepted by the filter
+		 * @param data
+		 * @param filter may be null 
+		 * @throws IOException
+		 */
+		public void append(AtomData data, Filter<Atom> filter) throws IOException {
+			ColumnLayout l = new ColumnLayout(data, layout.writeGrain, layout.writeRBV);
+			if (!l.hasSameColumns(layout))
+				throw new IllegalArgumentException("Data columns of "+data.getName()+" do not match the file header");
+			write(data, l, filter);
+		}
+		
+		public void close() throws IOException {
+			if (dos != null) dos.close();
+			else fos.close();
+		}
+		
+		private void writeHeader(AtomData data, BoxParameter box, ColumnLayout l) throws IOException {
+			this.layout = l;
+			if (dos != null){
+				ImdFileWriter.this.writeHeader(dos, data, box, l);
+			} else {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				DataOutputStream header = new DataOutputStream(bos);
+				ImdFileWriter.this.writeHeader(header, data, box, l);
+				header.flush();
+				writeBlock(bos.toByteArray(), bos.size());
+			}
+		}
+		
+		private void write(AtomData data, ColumnLayout l, Filter<Atom> filter) throws IOException {
+			if (dos != null) writeBinaryAtoms(dos, data, l, filter);
+			else writeAsciiAtoms(data, l, filter);
+		}
+		
+		private void writeAsciiAtoms(final AtomData data, final ColumnLayout l, final Filter<Atom> filter)
+				throws IOException {
+			final List<Atom> atoms = data.getAtoms();
+			int blocks = (atoms.size()+ASCII_BLOCK_SIZE-1)/ASCII_BLOCK_SIZE;
+			int blocksPerRound = 2*ThreadPool.availProcessors();
+			final AsciiBuffer[] buffers = new AsciiBuffer[Math.min(blocks, blocksPerRound)];
+			final byte[][] compressed = new byte[buffers.length][];
+			
+			for (int firstBlock = 0; firstBlock < blocks; firstBlock += blocksPerRound){
+				int blocksInRound = Math.min(blocksPerRound, blocks-firstBlock);
+				Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+				for (int i=0; i<blocksInRound; i++){
+					final int slot = i;
+					final int start = (firstBlock+i)*ASCII_BLOCK_SIZE;
+					final int end = Math.min(atoms.size(), start+ASCII_BLOCK_SIZE);
+					parallelTasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							if (buffers[slot] == null) buffers[slot] = new AsciiBuffer(ASCII_BLOCK_SIZE*128);
+							AsciiBuffer b = buffers[slot];
+							b.clear();
+							for (int j=start; j<end; j++){
+								Atom a = atoms.get(j);
+								//Test and apply filtering
+								if (filter!=null && !filter.accept(a)) continue;
+								formatAtom(b, a, data, l);
+							}
+							if (gzip && b.size()>0){
+								ByteArrayOutputStream bos = new ByteArrayOutputStream(b.size()/3+64);
+								GZIPOutputStream gz = new GZIPOutputStream(bos, 65536);
+								gz.write(b.getBuffer(), 0, b.size());
+								gz.close();
+								compressed[slot] = bos.toByteArray();
+							}
+							return null;
+						}
+					});
+				}
+				ThreadPool.executeParallelOrThrow(parallelTasks);
+				
+				for (int i=0; i<blocksInRound; i++){
+					if (buffers[i].size() == 0) continue;
+					if (gzip){
+						writeFully(compressed[i], compressed[i].length);
+						compressed[i] = null;
+					} else writeFully(buffers[i].getBuffer(), buffers[i].size());
+				}
+			}
+		}
+		
+		private void writeBlock(byte[] b, int length) throws IOException {
+			if (gzip){
+				ByteArrayOutputStream bos = new ByteArrayOutputStream();
+				GZIPOutputStream gz = new GZIPOutputStream(bos);
+				gz.write(b, 0, length);
+				gz.close();
+				writeFully(bos.toByteArray(), bos.size());
+			} else writeFully(b, length);
+		}
+		
+		private void writeFully(byte[] b, int length) throws IOException {
+			ByteBuffer bb = ByteBuffer.wrap(b, 0, length);
+			while (bb.hasRemaining())
+				channel.write(bb);
+		}
+	}
+	
+	private Stream createStream(File path, String filenamePrefix) throws IOException {
 		//Construct the file to export, based on options
 		String fullFilename = filenamePrefix;
 		if (gzippedExport.getValue()){
@@ -83,226 +266,241 @@ public class ImdFileWriter extends MDFileWriter {
 				fullFilename+=".chkpt";
 		}
 		
-		File out = new File(path, fullFilename);
+		return new Stream(new File(path, fullFilename));
+	}
+	
+	/**
+	 * The assignment of values to the columns in the output of a data set 
+	 */
+	private class ColumnLayout {
+		int massColumn = -1;
+		int vxColumn = -1, vyColumn = -1, vzColumn = -1;
+		//Tag which data need not to be exported in the end of each line
+		final int[] mapData;
+		boolean hasMass;
+		boolean hasVelocity = false;
+		final boolean writeGrain;
+		final boolean writeRBV;
+		int countExportFields = 0;
 		
-		DataOutputStream dos;	
+		ColumnLayout(AtomData data, boolean writeGrain, boolean writeRBV){
+			this.writeGrain = writeGrain;
+			this.writeRBV = writeRBV;
+			
+			for (int i=0; i<toExportColumns.length; i++){
+				if (toExportColumns[i].getComponent() == Component.MASS)
+					massColumn = data.getDataColumnIndex(toExportColumns[i]);
+				if (toExportColumns[i].getComponent() == Component.VELOCITY_X)
+					vxColumn = data.getDataColumnIndex(toExportColumns[i]);
+				if (toExportColumns[i].getComponent() == Component.VELOCITY_Y)
+					vyColumn = data.getDataColumnIndex(toExportColumns[i]);
+				if (toExportColumns[i].getComponent() == Component.VELOCITY_Z)
+					vzColumn = data.getDataColumnIndex(toExportColumns[i]);
+			}
+			
+			mapData = new int[toExportColumns.length];
+			for (int i=0; i<mapData.length;i++){
+				mapData[i] = data.getDataColumnIndex(toExportColumns[i]);
+			}
+			
+			hasMass = massColumn!=-1;
+			if (hasMass)
+				mapData[massColumn] = -1;
+			
+			if (vxColumn != -1 && vyColumn != -1 && vzColumn != -1){
+				hasVelocity = true;
+				mapData[vxColumn] = -1; mapData[vyColumn] = -1; mapData[vzColumn] = -1;
+			}
+			
+			for (int i=0; i<mapData.length;i++)
+				if (mapData[i] != -1) countExportFields++;
+			
+			countExportFields += (writeGrain ? 1 : 0);
+			countExportFields += (exportType ? 1 : 0);
+			if (writeRBV)
+				countExportFields += compressedRBV.getValue() ? 1 : 6;
+		}
 		
-		if (gzippedExport.getValue()){
-			dos = new DataOutputStream(new BufferedOutputStream(
-					new GZIPOutputStream(new FileOutputStream(out), 1024*1024), 4096*1024));
+		boolean hasSameColumns(ColumnLayout l){
+			if (hasMass != l.hasMass || hasVelocity != l.hasVelocity || countExportFields != l.countExportFields)
+				return false;
+			for (int i=0; i<mapData.length; i++)
+				if ((mapData[i] == -1) != (l.mapData[i] == -1)) return false;
+			return true;
 		}
-		else dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 4096*1024));
+	}
+	
+	private void writeHeader(DataOutputStream dos, AtomData data, BoxParameter box, ColumnLayout l) throws IOException {
+		if (binaryExport.getValue()) dos.writeBytes("#F b ");
+		else dos.writeBytes("#F A ");
+		dos.writeBytes(String.format("%d %d %d 3 %d %d\n", (exportNumber?1:0), (exportElement?1:0), 
+				(l.hasMass?1:0), (l.hasVelocity?3:0), l.countExportFields ));
 		
+		dos.writeBytes(String.format("#C %s%s%sx y z %s", exportNumber?"number ":"",
+				exportElement?"type ":"", l.hasMass?"mass ":"", l.hasVelocity?"vx vy vz ":""));
 
-		int massColumn = -1;
-		int vxColumn = -1, vyColumn = -1, vzColumn = -1;
-		for (int i=0; i<toExportColumns.length; i++){
-			if (toExportColumns[i].getComponent() == Component.MASS)
-				massColumn = data.getDataColumnIndex(toExportColumns[i]);
-			if (toExportColumns[i].getComponent() == Component.VELOCITY_X)
-				vxColumn = data.getDataColumnIndex(toExportColumns[i]);
-			if (toExportColumns[i].getComponent() == Component.VELOCITY_Y)
-				vyColumn = data.getDataColumnIndex(toExportColumns[i]);
-			if (toExportColumns[i].getComponent() == Component.VELOCITY_Z)
-				vzColumn = data.getDataColumnIndex(toExportColumns[i]);
+		for (int i=0; i<l.mapData.length; i++){
+			if (l.mapData[i] != -1){
+				String id = " "+data.getDataColumnInfos().get(l.mapData[i]).getId();
+				dos.writeBytes(id);
+			}
 		}
 		
-		//Tag which data need not to be exported in the end of each line
-		int[] mapData = new int[toExportColumns.length];
-		for (int i=0; i<mapData.length;i++){
-			mapData[i] = data.getDataColumnIndex(toExportColumns[i]);
+		if (exportType) dos.writeBytes(" struct_type");
+		if (l.writeGrain) dos.writeBytes(" grainID");
+		//rbv always at the end
+		if (l.writeRBV){
+			if (compressedRBV.getValue())
+				dos.writeBytes(" rbv_data");
+			else dos.writeBytes(" ls_x ls_y ls_z rbv_x rbv_y rbv_z");
 		}
+		dos.writeBytes("\n");
+
 		
-		boolean hasMass = massColumn!=-1;
-		if (hasMass)
-			mapData[massColumn] = -1;
+		Vec3[] b = box.getBoxSize();
+		dos.writeBytes(String.format("#X %.8f %.8f %.8f\n", b[0].x, b[0].y, b[0].z));
+		dos.writeBytes(String.format("#Y %.8f %.8f %.8f\n", b[1].x, b[1].y, b[1].z));
+		dos.writeBytes(String.format("#Z %.8f %.8f %.8f\n", b[2].x, b[2].y, b[2].z));
 		
-		boolean hasVelocity = false;
-		if (vxColumn != -1 && vyColumn != -1 && vzColumn != -1){
-			hasVelocity = true;
-			mapData[vxColumn] = -1; mapData[vyColumn] = -1; mapData[vzColumn] = -1;
+		dos.writeBytes("##META\n");
+		if (l.writeGrain){
+			for (Grain g: data.getGrains()){
+				float[][] rot = g.getCystalRotationTools().getDefaultRotationMatrix();
+				dos.writeBytes(String.format("##grain %d %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f\n",
+						g.getGrainNumber(), rot[0][0], rot[1][0], rot[2][0]
+						, rot[0][1], rot[1][1], rot[2][1]
+						, rot[0][2], rot[1][2], rot[2][2]));
+				dos.writeBytes(String.format("##atomsInGrain %d %d\n",
+						g.getGrainNumber(), g.getNumberOfAtoms()));
+				g.getMesh().getFinalMesh().printMetaData(dos, g.getGrainNumber());
+			}
+		}
+		if (data.getFileMetaData("extpot") != null){
+			double[] indent = (double[]) data.getFileMetaData("extpot");
+			dos.writeBytes(String.format("##extpot %.4f %.4f %.4f %.4f %.4f\n", indent[0], indent[1], indent[2], indent[3], indent[4]));
+		}
+		if (data.getFileMetaData("wall") != null){
+			double[] wall = (double[]) data.getFileMetaData("wall");
+			dos.writeBytes(String.format("##wall %.4f %.4f %.4f\n", wall[0], wall[1], wall[2]));
+		}
+		if (data.getFileMetaData("timestep") != null){
+			double[] timestep = (double[])data.getFileMetaData("timestep");
+			dos.writeBytes(String.format("##timestep %f\n", timestep[0]));
 		}
 		
-		int countExportFields = 0;
-		for (int i=0; i<mapData.length;i++)
-			if (mapData[i] != -1) countExportFields++;
-		
-		countExportFields += (data.isPolyCrystalline() && exportGrain ? 1 : 0);
-		countExportFields += (exportType ? 1 : 0);
-		if (exportRBV && data.isRbvAvailable())
-			countExportFields += compressedRBV.getValue() ? 1 : 6;
-		
-		
+		dos.writeBytes("##METAEND\n");
+		dos.writeBytes("#E\n");
+	}
+	
+	private void writeBinaryAtoms(DataOutputStream dos, AtomData data, ColumnLayout l, Filter<Atom> filter) throws IOException {
+		int massColumn = l.massColumn;
+		int vxColumn = l.vxColumn, vyColumn = l.vyColumn, vzColumn = l.vzColumn;
+		int[] mapData = l.mapData;
+		boolean hasMass = l.hasMass;
+		boolean hasVelocity = l.hasVelocity;
 		
-		try {
-			//Write header 
-			if (binaryExport.getValue()) dos.writeBytes("#F b ");
-			else dos.writeBytes("#F A ");
-			dos.writeBytes(String.format("%d %d %d 3 %d %d\n", (exportNumber?1:0), (exportElement?1:0), 
-					(hasMass?1:0), (hasVelocity?3:0), countExportFields ));
+		for (Atom a : data.getAtoms()){
+			//Test and apply filtering
+			if (filter!=null && !filter.accept(a)) continue;
 			
-			dos.writeBytes(String.format("#C %s%s%sx y z %s", exportNumber?"number ":"",
-					exportElement?"type ":"", hasMass?"mass ":"", hasVelocity?"vx vy vz ":""));
-
-			for (int i=0; i<mapData.length; i++){
-				if (mapData[i] != -1){
-					String id = " "+data.getDataColumnInfos().get(mapData[i]).getId();
-					dos.writeBytes(id);
-				}
-			}
-			
-			if (exportType) dos.writeBytes(" struct_type");
-			if (data.isPolyCrystalline() && exportGrain) dos.writeBytes(" grainID");
-			//rbv always at the end
-			if (exportRBV && data.isRbvAvailable()){
-				if (compressedRBV.getValue())
-					dos.writeBytes(" rbv_data");
-				else dos.writeBytes(" ls_x ls_y ls_z rbv_x rbv_y rbv_z");
-			}
-			dos.writeBytes("\n");
-
+			if (exportNumber) dos.writeInt(a.getNumber());
+			if (exportElement) dos.writeInt(a.getElement());
+			if (hasMass) dos.writeFloat(a.getData(massColumn, data));
 			
-			Vec3[] b = data.getBox().getBoxSize();
-			dos.writeBytes(String.format("#X %.8f %.8f %.8f\n", b[0].x, b[0].y, b[0].z));
-			dos.writeBytes(String.format("#Y %.8f %.8f %.8f\n", b[1].x, b[1].y, b[1].z));
-			dos.writeBytes(String.format("#Z %.8f %.8f %.8f\n", b[2].x, b[2].y, b[2].z));
+			dos.writeFloat(a.x); dos.writeFloat(a.y); dos.writeFloat(a.z);
 			
-			dos.writeBytes("##META\n");
-			if (data.isPolyCrystalline() && exportGrain){
-				for (Grain g: data.getGrains()){
-					float[][] rot = g.getCystalRotationTools().getDefaultRotationMatrix();
-					dos.writeBytes(String.format("##grain %d %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f\n",
-							g.getGrainNumber(), rot[0][0], rot[1][0], rot[2][0]
-							, rot[0][1], rot[1][1], rot[2][1]
-							, rot[0][2], rot[1][2], rot[2][2]));
-					dos.writeBytes(String.format("##atomsInGrain %d %d\n",
-							g.getGrainNumber(), g.getNumberOfAtoms()));
-					g.getMesh().getFinalMesh().printMetaData(dos, g.getGrainNumber());
-				}
-			}
-			if (data.getFileMetaData("extpot") != null){
-				double[] indent = (double[]) data.getFileMetaData("extpot");
-				dos.writeBytes(String.format("##extpot %.4f %.4f %.4f %.4f %.4f\n", indent[0], indent[1], indent[2], indent[3], indent[4]));
-			}
-			if (data.getFileMetaData("wall") != null){
-				double[] wall = (double[]) data.getFileMetaData("wall");
-				dos.writeBytes(String.format("##wall %.4f %.4f %.4f\n", wall[0], wall[1], wall[2]));
-			}
-			if (data.getFileMetaData("timestep") != null){
-				double[] timestep = (double[])data.getFileMetaData("timestep");
-				dos.writeBytes(String.format("##timestep %f\n", timestep[0]));
+			if (hasVelocity){
+				dos.writeFloat(a.getData(vxColumn, data));
+				dos.writeFloat(a.getData(vyColumn, data));
+				dos.writeFloat(a.getData(vzColumn, data));
 			}
 			
-			dos.writeBytes("##METAEND\n");
-			dos.writeBytes("#E\n");
+			for (int i = 0; i < mapData.length; i++)
+				if (mapData[i] != -1)
+					dos.writeFloat(a.getData(mapData[i], data));
 			
+			if (exportType) dos.writeFloat(a.getType());
 			
+			if (l.writeGrain)
+				dos.writeFloat(a.getGrain());
 			
-			if (binaryExport.getValue()){
-				for (Atom a : data.getAtoms()){
-					//Test and apply filtering
-					if (filter!=null && !filter.accept(a)) continue;
-					
-					if (exportNumber) dos.writeInt(a.getNumber());
-					if (exportElement) dos.writeInt(a.getElement());
-					if (hasMass) dos.writeFloat(a.getData(massColumn, data));
-					
-					dos.writeFloat(a.x); dos.writeFloat(a.y); dos.writeFloat(a.z);
-					
-					if (hasVelocity){
-						dos.writeFloat(a.getData(vxColumn, data));
-						dos.writeFloat(a.getData(vyColumn, data));
-						dos.writeFloat(a.getData(vzColumn, data));
-					}
-					
-					for (int i = 0; i < mapData.length; i++)
-						if (mapData[i] != -1)
-							dos.writeFloat(a.getData(mapData[i], data));
-					
-					if (exportType) dos.writeFloat(a.getType());
-					
-					if (data.isPolyCrystalline() && exportGrain)
-						dos.writeFloat(a.getGrain());
-					
-					if (exportRBV && data.isRbvAvailable()){
-						boolean writeRBV = false;
-						RBV rbv = data.getRbvStorage().getRBV(a);
-						if (compressedRBV.getValue()){
-							if (rbv!=null){
-								dos.writeInt(1);
-								writeRBV = true;
-							} else  dos.writeInt(0);
-						} else writeRBV = true;
-						
-						if (writeRBV){
-							if (rbv!=null){
-								dos.writeFloat(rbv.lineDirection.x);
-								dos.writeFloat(rbv.lineDirection.y);
-								dos.writeFloat(rbv.lineDirection.z);
-								dos.writeFloat(rbv.bv.x); 
-								dos.writeFloat(rbv.bv.y); 
-								dos.writeFloat(rbv.bv.z);
-							} else {
-								dos.writeFloat(0); dos.writeFloat(0); dos.writeFloat(0);
-								dos.writeFloat(0); dos.writeFloat(0); dos.writeFloat(0);
-							}
-						}
+			if (l.writeRBV){
+				boolean writeRBV = false;
+				RBV rbv = data.getRbvStorage().getRBV(a);
+				if (compressedRBV.getValue()){
+					if (rbv!=null){
+						dos.writeInt(1);
+						writeRBV = true;
+					} else  dos.writeInt(0);
+				} else writeRBV = true;
+				
+				if (writeRBV){
+					if (rbv!=null){
+						dos.writeFloat(rbv.lineDirection.x);
+						dos.writeFloat(rbv.lineDirection.y);
+						dos.writeFloat(rbv.lineDirection.z);
+						dos.writeFloat(rbv.bv.x); 
+						dos.writeFloat(rbv.bv.y); 
+						dos.writeFloat(rbv.bv.z);
+					} else {
+						dos.writeFloat(0); dos.writeFloat(0); dos.writeFloat(0);
+						dos.writeFloat(0); dos.writeFloat(0); dos.writeFloat(0);
 					}
 				}
-			} else {
-				for (Atom a : data.getAtoms()){
-					//Test and apply filtering
-					if (filter!=null && !filter.accept(a)) continue;
-					if (exportNumber) dos.writeBytes(String.format(" %d", a.getNumber()));
-					if (exportElement) dos.writeBytes(String.format(" %d", a.getElement()));
-					
-					if (hasMass)
-						dos.writeBytes(String.format(" %.8f", a.getData(massColumn, data)));
-					dos.writeBytes(String.format(" %.8f %.8f %.8f", a.x, a.y, a.z));
-					if (hasVelocity)
-						dos.writeBytes(String.format(" %.8f %.8f %.8f", 
-								a.getData(vxColumn, data), a.getData(vyColumn, data), a.getData(vzColumn, data)));
-					
-					
-					for (int i = 0; i < mapData.length; i++)
-						if (mapData[i] != -1)
-								dos.writeBytes(String.format(" %.8f",a.getData(mapData[i], data)));
-					
-					if (exportType) dos.writeBytes(String.format(" %d", a.getType()));
-					
-					if (data.isPolyCrystalline() && exportGrain)
-						dos.writeBytes(String.format(" %d", a.getGrain()));
-					
-					
-					if (exportRBV && data.isRbvAvailable()){
-						boolean writeRBV = false;
-						RBV rbv = data.getRbvStorage().getRBV(a);
-						if (compressedRBV.getValue()){
-							if (rbv!=null){
-								dos.writeBytes(" 1");
-								writeRBV = true;
-							} else  dos.writeBytes(" 0");
-						} else writeRBV = true;
-						
-						if (writeRBV){
-							if (rbv!=null){
-								dos.writeBytes(String.format(" %.4f %.4f %.4f %.4f %.4f %.4f",
-										rbv.lineDirection.x, rbv.lineDirection.y, rbv.lineDirection.z,
-										rbv.bv.x, rbv.bv.y, rbv.bv.z));
-							} else {
-								dos.writeBytes(" 0. 0. 0. 0. 0. 0.");
-							}
-						}
-					}
-					dos.writeBytes("\n");
+			}
+		}
+	}
+	
+	/**
+	 * Formats a single atom as a line in an ASCII file, each value is formatted identical to
+	 * String.format(" %d"), String.format(" %.8f") or String.format(" %.4f") for Burgers vectors
+	 */
+	private void formatAtom(AsciiBuffer b, Atom a, AtomData data, ColumnLayout l){
+		if (exportNumber) b.append(' ').append(a.getNumber());
+		if (exportElement) b.append(' ').append(a.getElement());
+		
+		if (l.hasMass)
+			b.append(' ').append(a.getData(l.massColumn, data), 8);
+		b.append(' ').append(a.x, 8).append(' ').append(a.y, 8).append(' ').append(a.z, 8);
+		if (l.hasVelocity){
+			b.append(' ').append(a.getData(l.vxColumn, data), 8);
+			b.append(' ').append(a.getData(l.vyColumn, data), 8);
+			b.append(' ').append(a.getData(l.vzColumn, data), 8);
+		}
+		
+		for (int i = 0; i < l.mapData.length; i++)
+			if (l.mapData[i] != -1)
+				b.append(' ').append(a.getData(l.mapData[i], data), 8);
+		
+		if (exportType) b.append(' ').append(a.getType());
+		
+		if (l.writeGrain)
+			b.append(' ').append(a.getGrain());
+		
+		if (l.writeRBV){
+			boolean writeRBV = false;
+			RBV rbv = data.getRbvStorage().getRBV(a);
+			if (compressedRBV.getValue()){
+				if (rbv!=null){
+					b.append(" 1");
+					writeRBV = true;
+				} else b.append(" 0");
+			} else writeRBV = true;
+			
+			if (writeRBV){
+				if (rbv!=null){
+					b.append(' ').append(rbv.lineDirection.x, 4);
+					b.append(' ').append(rbv.lineDirection.y, 4);
+					b.append(' ').append(rbv.lineDirection.z, 4);
+					b.append(' ').append(rbv.bv.x, 4);
+					b.append(' ').append(rbv.bv.y, 4);
+					b.append(' ').append(rbv.bv.z, 4);
+				} else {
+					b.append(" 0. 0. 0. 0. 0. 0.");
 				}
 			}
-		} catch (IOException e){
-			throw e;
-		} finally {
-			dos.close();
 		}
-
+		b.append('\n');
 	}
 	
 	
@@ -21,6 +21,7 @@ package model.io;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -29,6 +30,7 @@ import javax.swing.filechooser.FileFilter;
 
 import common.CommonUtils;
 import common.Vec3;
+import gui.PrimitiveProperty;
 import gui.ProgressMonitor;
 import model.*;
 import model.DataColumnInfo.Component;
@@ -40,11 +42,20 @@ public class LammpsAsciiDumpLoader extends MDFileLoader {
 		return "Lammps dump (ascii)";
 	}
 	
+	private FrameIndex.Selection frameSelection = new FrameIndex.Selection();
+	
 	@Override
 	public AtomData readInputData(File f, AtomData previous, Filter<Atom> atomFilter) throws Exception{
 		return readFile(f, previous, atomFilter);
 	}
 	
+	@Override
+	public List<PrimitiveProperty<?>> getOptions(){
+		ArrayList<PrimitiveProperty<?>> list = new ArrayList<PrimitiveProperty<?>>();
+		frameSelection.addOptions(list);
+		return list;
+	}
+	
 	@Override
 	public FileFilter getDefaultFileFilter() {
 		FileFilter lammpsFileFilterBasic = new FileFilter() {
@@ -116,10 +127,79 @@ public class LammpsAsciiDumpLoader extends MDFileLoader {
 	 */
 	private AtomData readFile(File f, AtomData previous, Filter<Atom> atomFilter) throws Exception {
 		ProgressMonitor.getProgressMonitor().setActivityName("Reading file");
-		FileInputStream fis = new FileInputStream(f);
-		boolean gzipped = CommonUtils.isFileGzipped(f);
-		BufferedReader inputReader = CommonUtils.createBufferedReader(fis, gzipped);
-		
+		return getFrameReader(f).readAll(previous, atomFilter);
+	}
+	
+	@Override
+	FrameIndex.FrameReader getFrameReader(final File f){
+		return new FrameIndex.FrameReader(f, this, frameSelection, new FrameIndex.FrameParser() {
+			@Override
+			public ImportDataContainer parseFrame(FrameIndex.LineInput in, String name, Filter<Atom> atomFilter) throws Exception {
+				return readFrame(f, in, name, atomFilter);
+			}
+		});
+	}
+	
+	@Override
+	public FrameIndex getFrameIndex(File f) throws IOException {
+		return FrameIndex.getIndex(f, new FrameIndex.FrameScanner() {
+			@Override
+			public FrameIndex.Frame scanFrame(FrameIndex.LineInput in, int index) throws IOException {
+				String s = in.readLine();
+				while (s != null && s.trim().isEmpty()) s = in.readLine();
+				if (s == null) return null;
+				
+				long offset = in.getLineStart();
+				long timestep = index;
+				int atomsCount = 0;
+				float[] box = new float[12];
+				Pattern p = Pattern.compile("\\s+");
+				
+				while (s != null){
+					if (s.contains("ITEM: TIMESTEP")){
+						timestep = Long.parseLong(in.readLine().trim());
+					} else if (s.contains("ITEM: NUMBER OF ATOMS")) {
+						atomsCount = Integer.parseInt(in.readLine().trim());
+					} else if (s.contains("ITEM: BOX BOUNDS")) {
+						float[] tilt = new float[3];
+						for (int i=0; i<3; i++){
+							String[] parts = p.split(in.readLine().trim());
+							float min = Float.parseFloat(parts[0]);
+							float max = Float.parseFloat(parts[1]);
+							if (parts.length>2) tilt[i] = Float.parseFloat(parts[2]);
+							box[i] = min;
+							box[3+4*i] = max - min;
+						}
+						box[6] = tilt[0];
+						box[9] = tilt[1];
+						box[10] = tilt[2];
+					} else if (s.contains("ITEM: ATOMS")) {
+						in.skipLines(atomsCount);
+						return new FrameIndex.Frame(index, offset, timestep, atomsCount, box);
+					}
+					s = in.readLine();
+				}
+				throw new IOException("Incomplete frame at the end of the file");
+			}
+		});
+	}
+	
+	@Override
+	public AtomData readFrame(File f, FrameIndex.Frame frame, AtomData previous, Filter<Atom> atomFilter) throws Exception {
+		FrameIndex.LineInput in = FrameIndex.open(f);
+		try {
+			in.skipTo(frame.getOffset());
+			String name = String.format("%s (%05d)", f.getName(), frame.getIndex());
+			return new AtomData(previous, readFrame(f, in, name, atomFilter));
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads a single frame starting at the current position of the input
+	 */
+	private ImportDataContainer readFrame(File f, FrameIndex.LineInput in, String name, Filter<Atom> atomFilter) throws Exception {
 		int elementColumn = -1;
 		int xColumn = -1;
 		int numberColumn = -1;
@@ -132,177 +212,165 @@ public class LammpsAsciiDumpLoader extends MDFileLoader {
 		Pattern p = Pattern.compile("\\s+");
 
 		ImportDataContainer idc = new ImportDataContainer();
-		int num=0;
-		try {
-			String s = inputReader.readLine();
-			while (s != null) {
-				idc.fullPathAndFilename = f.getCanonicalPath();
-				idc.name = String.format("%s (%05d)", f.getName(), num++);
+		idc.fullPathAndFilename = f.getCanonicalPath();
+		idc.name = name;
+		
+		String s = in.readLine();
+		while (s != null && s.trim().isEmpty()) s = in.readLine();
+		if (s == null) throw new IllegalArgumentException("No data found");
+		
+		boolean headerRead = false;
+		int atomsCount = 0;
+
+		idc.fileMetaData = new HashMap<String, Object>();
+		while (!headerRead) {
+			if (s.contains("ITEM: NUMBER OF ATOMS")) {
+				s = in.readLine();
+				atomsCount = Integer.parseInt(s);
+				s = in.readLine();
+			} else if (s.contains("ITEM: BOX BOUNDS")) {
+				String[] parts = p.split(s);
+				boolean triclinic = false;
+				float xy = 0f, xz = 0f, yz = 0f; 
+				if (parts.length >= 6){
+					if (parts.length >= 9){
+						//Triclinic box
+						if (parts[3].equals("xy"))
+							triclinic = true;
+						idc.pbc[0] = parts[6].startsWith("p");
+						idc.pbc[1] = parts[7].startsWith("p");
+						idc.pbc[2] = parts[8].startsWith("p");
+					} else {
+						idc.pbc[0] = parts[3].startsWith("p");
+						idc.pbc[1] = parts[4].startsWith("p");
+						idc.pbc[2] = parts[5].startsWith("p");
+					}
+				}
 				
-				boolean headerRead = false;
-				int atomsCount = 0;
+				s = in.readLine();
+				parts = p.split(s);
+				float min = Float.parseFloat(parts[0]);
+				float max = Float.parseFloat(parts[1]);
+				if(triclinic) xy = Float.parseFloat(parts[2]);
+				idc.offset.x = min;
+				idc.boxSizeX.x = max - min;
 
-				idc.fileMetaData = new HashMap<String, Object>();
-				while (!headerRead) {
-					if (s.contains("ITEM: NUMBER OF ATOMS")) {
-						s = inputReader.readLine();
-						atomsCount = Integer.parseInt(s);
-						s = inputReader.readLine();
-					} else if (s.contains("ITEM: BOX BOUNDS")) {
+				s = in.readLine();
+				parts = p.split(s);
+				min = Float.parseFloat(parts[0]);
+				max = Float.parseFloat(parts[1]);
+				if(triclinic) xz = Float.parseFloat(parts[2]);
+				idc.offset.y = min;
+				idc.boxSizeY.x = xy;
+				idc.boxSizeY.y = max - min;
+				
+				s = in.readLine();
+				parts = p.split(s);
+				min = Float.parseFloat(parts[0]);
+				max = Float.parseFloat(parts[1]);
+				if(triclinic) yz = Float.parseFloat(parts[2]);
+				idc.offset.z = min;
+				idc.boxSizeZ.x = xz;
+				idc.boxSizeZ.y = yz;
+				idc.boxSizeZ.z = max - min;
+				s = in.readLine();
+				
+				idc.makeBox();
+			} else if (s.contains("ITEM: ATOMS")) {
+				headerRead = true;
+				String[] parts = p.split(s);
+				for (int i = 0; i < parts.length; i++) {
+					if (parts[i].equals("id")) numberColumn = i - 2;
+					if (parts[i].equals("x") || parts[i].equals("xu")) xColumn = i - 2;
+					if (parts[i].equals("xs") || parts[i].equals("xsu")){
+						xColumn = i - 2;
+						scaledCoords = true;
+					}
+					if (parts[i].equals("type")) elementColumn = i - 2;
+					
+					for (int j = 0; j<ImportConfiguration.getInstance().getDataColumns().size(); j++){
+						if (parts[i].equals(ImportConfiguration.getInstance().getDataColumns().get(j).getId()))
+							dataColumns[j] = i - 2;
+					}
+				}
+			} else if (s.startsWith("ITEM:")){
+				try{ // Try reading additional lines, read each line until the next item
+					//and put everything into an array of floats
+					String label = s.substring(6);
+					ArrayList<Double> values = new ArrayList<Double>();
+					s = in.readLine();
+					while (!s.startsWith("ITEM:")){
 						String[] parts = p.split(s);
-						boolean triclinic = false;
-						float xy = 0f, xz = 0f, yz = 0f; 
-						if (parts.length >= 6){
-							if (parts.length >= 9){
-								//Triclinic box
-								if (parts[3].equals("xy"))
-									triclinic = true;
-								idc.pbc[0] = parts[6].startsWith("p");
-								idc.pbc[1] = parts[7].startsWith("p");
-								idc.pbc[2] = parts[8].startsWith("p");
-							} else {
-								idc.pbc[0] = parts[3].startsWith("p");
-								idc.pbc[1] = parts[4].startsWith("p");
-								idc.pbc[2] = parts[5].startsWith("p");
-							}
-						}
-						
-						s = inputReader.readLine();
-						parts = p.split(s);
-						float min = Float.parseFloat(parts[0]);
-						float max = Float.parseFloat(parts[1]);
-						if(triclinic) xy = Float.parseFloat(parts[2]);
-						idc.offset.x = min;
-						idc.boxSizeX.x = max - min;
-
-						s = inputReader.readLine();
-						parts = p.split(s);
-						min = Float.parseFloat(parts[0]);
-						max = Float.parseFloat(parts[1]);
-						if(triclinic) xz = Float.parseFloat(parts[2]);
-						idc.offset.y = min;
-						idc.boxSizeY.x = xy;
-						idc.boxSizeY.y = max - min;
 						
-						s = inputReader.readLine();
-						parts = p.split(s);
-						min = Float.parseFloat(parts[0]);
-						max = Float.parseFloat(parts[1]);
-						if(triclinic) yz = Float.parseFloat(parts[2]);
-						idc.offset.z = min;
-						idc.boxSizeZ.x = xz;
-						idc.boxSizeZ.y = yz;
-						idc.boxSizeZ.z = max - min;
-						s = inputReader.readLine();
-						
-						idc.makeBox();
-					} else if (s.contains("ITEM: ATOMS")) {
-						headerRead = true;
-						String[] parts = p.split(s);
-						for (int i = 0; i < parts.length; i++) {
-							if (parts[i].equals("id")) numberColumn = i - 2;
-							if (parts[i].equals("x") || parts[i].equals("xu")) xColumn = i - 2;
-							if (parts[i].equals("xs") || parts[i].equals("xsu")){
-								xColumn = i - 2;
-								scaledCoords = true;
-							}
-							if (parts[i].equals("type")) elementColumn = i - 2;
-							
-							for (int j = 0; j<ImportConfiguration.getInstance().getDataColumns().size(); j++){
-								if (parts[i].equals(ImportConfiguration.getInstance().getDataColumns().get(j).getId()))
-									dataColumns[j] = i - 2;
-							}
-						}
-						s = inputReader.readLine();
-					} else if (s.startsWith("ITEM:")){
-						try{ // Try reading additional lines, read each line until the next item
-							//and put everything into an array of floats
-							String label = s.substring(6);
-							ArrayList<Double> values = new ArrayList<Double>();
-							s = inputReader.readLine();
-							while (!s.startsWith("ITEM:")){
-								String[] parts = p.split(s);
-								
-								for (int i=0; i<parts.length; i++){
-									values.add(Double.parseDouble(parts[i]));
-								}
-								s = inputReader.readLine();
-							}
-							double[] tmp = new double[values.size()];
-							for (int i=0; i<values.size(); i++)
-								tmp[i] = values.get(i); 
-							
-							idc.fileMetaData.put(label.toLowerCase(), tmp);
-						} catch (Exception e) {
-						} finally{
-							while(!s.startsWith("ITEM:")){
-								s = inputReader.readLine();
-							}
+						for (int i=0; i<parts.length; i++){
+							values.add(Double.parseDouble(parts[i]));
 						}
+						s = in.readLine();
+					}
+					double[] tmp = new double[values.size()];
+					for (int i=0; i<values.size(); i++)
+						tmp[i] = values.get(i); 
+					
+					idc.fileMetaData.put(label.toLowerCase(), tmp);
+				} catch (Exception e) {
+				} finally{
+					while(!s.startsWith("ITEM:")){
+						s = in.readLine();
 					}
-					//Nothing done, process next line
-					else s = inputReader.readLine();
 				}
-				
-				if (xColumn == -1) throw new IllegalArgumentException("Broken header, no coordinates x y z");
+			}
+			//Nothing done, process next line
+			else s = in.readLine();
+		}
+		
+		if (xColumn == -1) throw new IllegalArgumentException("Broken header, no coordinates x y z");
 
-				if (idc.boxSizeX.x <= 0f || idc.boxSizeY.y <= 0f || idc.boxSizeZ.z <= 0f) {
-					throw new IllegalArgumentException("Broken header, box sizes must be larger than 0");
-				}
+		if (idc.boxSizeX.x <= 0f || idc.boxSizeY.y <= 0f || idc.boxSizeZ.z <= 0f) {
+			throw new IllegalArgumentException("Broken header, box sizes must be larger than 0");
+		}
 
-				Vec3 pos = new Vec3();
-				byte element = 0;
-				int number = 0;
+		Vec3 pos = new Vec3();
+		byte element = 0;
+		int number = 0;
+		FieldScanner fields = new FieldScanner();
 
-				for (int i = 0; i < atomsCount; i++) {
-					s = s.trim();
-					String[] parts = p.split(s);
+		for (int i = 0; i < atomsCount; i++) {
+			s = in.readLine();
+			fields.setLine(s);
 
-					if (elementColumn != -1) {
-						element = (byte)Integer.parseInt(parts[elementColumn]);
-						if (element + 1 > idc.maxElementNumber) idc.maxElementNumber = (byte)(element + 1);
-					}
+			if (elementColumn != -1) {
+				element = (byte)fields.getInt(elementColumn);
+				if (element + 1 > idc.maxElementNumber) idc.maxElementNumber = (byte)(element + 1);
+			}
 
-					if (numberColumn != -1)
-						number = (int)Long.parseLong(parts[numberColumn]);
+			if (numberColumn != -1)
+				number = (int)fields.getLong(numberColumn);
 
-					if (scaledCoords){
-						pos.x = Float.parseFloat(parts[xColumn + 0])*idc.boxSizeX.x - idc.offset.x;
-						pos.y = Float.parseFloat(parts[xColumn + 1])*idc.boxSizeY.y - idc.offset.y;
-						pos.z = Float.parseFloat(parts[xColumn + 2])*idc.boxSizeZ.z - idc.offset.z;
-					} else {
-						pos.x = Float.parseFloat(parts[xColumn + 0]) - idc.offset.x;
-						pos.y = Float.parseFloat(parts[xColumn + 1]) - idc.offset.y;
-						pos.z = Float.parseFloat(parts[xColumn + 2]) - idc.offset.z;
-					}
-					
-					//Put atoms back into the simulation box, they might be slightly outside
-					idc.box.backInBox(pos);
+			if (scaledCoords){
+				pos.x = fields.getFloat(xColumn + 0)*idc.boxSizeX.x - idc.offset.x;
+				pos.y = fields.getFloat(xColumn + 1)*idc.boxSizeY.y - idc.offset.y;
+				pos.z = fields.getFloat(xColumn + 2)*idc.boxSizeZ.z - idc.offset.z;
+			} else {
+				pos.x = fields.getFloat(xColumn + 0) - idc.offset.x;
+				pos.y = fields.getFloat(xColumn + 1) - idc.offset.y;
+				pos.z = fields.getFloat(xColumn + 2) - idc.offset.z;
+			}
+			
+			//Put atoms back into the simulation box, they might be slightly outside
+			idc.box.backInBox(pos);
 
-					Atom a = new Atom(pos, number, element);
+			Atom a = new Atom(pos, number, element);
 
-					if (atomFilter == null || atomFilter.accept(a)){
-						idc.atoms.add(a);
-						//Custom columns
-						for (int j = 0; j<dataColumns.length; j++){
-							if (dataColumns[j] != -1)
-								idc.dataArrays.get(j).add(Float.parseFloat(parts[dataColumns[j]])); 
-						}
-					}
-					
-					s = inputReader.readLine();
+			if (atomFilter == null || atomFilter.accept(a)){
+				idc.atoms.add(a);
+				//Custom columns
+				for (int j = 0; j<dataColumns.length; j++){
+					if (dataColumns[j] != -1)
+						idc.dataArrays.get(j).add(fields.getFloat(dataColumns[j])); 
 				}
-				//If there is only a single data set in the lammps dump, do not append numbers
-				if (num <= 1)
-					idc.name = f.getName();
-
-				previous = new AtomData(previous, idc);
-				idc = new ImportDataContainer();
 			}
-		} finally {
-			inputReader.close();
 		}
-		return previous;
+		return idc;
 	}
 	
 	@Override
@@ -38,6 +38,7 @@ import common.FastTFloatArrayList;
 import common.Vec3;
 import model.*;
 import model.ImportConfiguration.ImportStates;
+import processingModules.toolchain.Toolchain;
 
 public abstract class MDFileLoader{
 	protected File[] filesToRead;
@@ -98,6 +99,42 @@ public abstract class MDFileLoader{
 	 */
 	public abstract AtomData readInputData(File f, AtomData previous, Filter<Atom> atomFilter) throws Exception;
 	
+	/**
+	 * Creates an index of the frames in a file, for file formats that can store multiple frames
+	 * in a single file.
+	 * @param f
+	 * @return the index of all frames in the file or null if the format stores only a single
+	 * frame per file
+	 * @throws IOException
+	 */
+	public FrameIndex getFrameIndex(File f) throws IOException {
+		return null;
+	}
+	
+	/**
+	 * Reads a single frame of a file containing multiple frames
+	 * @param f the file containing the atomic data
+	 * @param frame a frame taken from the index provided by {@link #getFrameIndex(File)}
+	 * @param previous an instance of AtomData that is the previous data in a linked list.
+	 * May be null if this is the first file in a list.
+	 * @param atomFilter A filter that ignores certain atoms already during import.
+	 * Can be null, in which case no atoms are filtered 
+	 * @return
+	 * @throws Exception
+	 */
+	public AtomData readFrame(File f, FrameIndex.Frame frame, AtomData previous, Filter<Atom> atomFilter) throws Exception {
+		throw new UnsupportedOperationException(getName()+" files contain only a single frame");
+	}
+	
+	/**
+	 * Provides the frames of a file one after another, as selected in the options of the loader
+	 * @param f
+	 * @return the reader or null if the format stores only a single frame per file
+	 */
+	FrameIndex.FrameReader getFrameReader(File f){
+		return null;
+	}
+	
 	public abstract FileFilter getDefaultFileFilter();
 	
 	/**
@@ -173,6 +210,27 @@ public abstract class MDFileLoader{
 		
 		public BoxParameter box;
 		
+		/**
+		 * Descriptions of the values in dataArrays. If null, the data columns
+		 * of the current ImportConfiguration are used
+		 */
+		public List<DataColumnInfo> dataColumns = null;
+		
+		/**
+		 * Modules that have been applied to the data before, can be null
+		 */
+		public Toolchain toolchain = null;
+		
+		/**
+		 * Set to true if the data has already been processed, e.g. restored from a snapshot.
+		 * Values are not scaled, vector norms are not recomputed and the initial toolchain of the
+		 * crystal structure is not applied again
+		 */
+		public boolean dataProcessed = false;
+		
+		private AtomBlockHandler blockHandler = null;
+		private int blockSize = Integer.MAX_VALUE;
+		
 		public ImportDataContainer() {
 			for (int i=0; i<ImportConfiguration.getInstance().getDataColumns().size(); i++)
 				dataArrays.add(new FastTFloatArrayList());
@@ -182,5 +240,61 @@ public abstract class MDFileLoader{
 			box = new BoxParameter(boxSizeX, boxSizeY, boxSizeZ, pbc[0], pbc[1], pbc[2]);
 			box.setOffset(offset);
 		}
+		
+		/**
+		 * Passes the imported atoms in blocks of the given size to the handler instead of
+		 * keeping all of them in this container. Only supported by loaders that call
+		 * {@link #atomImported()} after each atom.
+		 * @param handler
+		 * @param blockSize
+		 */
+		public void setAtomBlockHandler(AtomBlockHandler handler, int blockSize){
+			this.blockHandler = handler;
+			this.blockSize = handler == null ? Integer.MAX_VALUE : Math.max(1, blockSize);
+		}
+		
+		/**
+		 * The maximum number of atoms kept in this container at the same time
+		 * @return
+		 */
+		public int getBlockSize(){
+			return blockSize;
+		}
+		
+		/**
+		 * Must be called by loaders after an atom, its data values and Burgers vector are
+		 * added completely. Passes the current block to the handler if it is full.
+		 * @throws IOException
+		 */
+		public void atomImported() throws IOException{
+			if (blockHandler != null && atoms.size() >= blockSize)
+				flushBlock();
+		}
+		
+		/**
+		 * Passes all atoms currently stored to the handler, if set, and removes them from this container
+		 * @throws IOException
+		 */
+		public void flushBlock() throws IOException{
+			if (blockHandler == null || atoms.isEmpty()) return;
+			blockHandler.processBlock(this);
+			atoms.clear();
+			for (FastTFloatArrayList fa : dataArrays)
+				fa.resetQuick();
+			rbvStorage.clear();
+		}
+	}
+	
+	/**
+	 * Receives blocks of atoms during import, see {@link ImportDataContainer#setAtomBlockHandler(AtomBlockHandler, int)}
+	 */
+	public interface AtomBlockHandler{
+		/**
+		 * Processes the atoms currently stored in the container,
+		 * atoms, data values and Burgers vectors are discarded afterwards 
+		 * @param idc
+		 * @throws IOException
+		 */
+		public void processBlock(ImportDataContainer idc) throws IOException;
 	}
 }
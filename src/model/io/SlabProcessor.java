@@ -0,0 +1,467 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import common.Vec3;
+import gui.ProgressMonitor;
+import model.*;
+import model.io.MDFileLoader.AtomBlockHandler;
+import model.io.MDFileLoader.ImportDataContainer;
+import processingModules.ProcessingModule;
+import processingModules.toolchain.Toolchain;
+import processingModules.toolchain.Toolchain.ReferenceMode;
+
+/**
+ * Processes IMD files that are too large to be kept in memory as a single instance of {@link AtomData}.
+ * The atoms are streamed from the input file into thin bins along the longest box axis, which are
+ * stored in scratch files. Consecutive bins are then merged into slabs of limited size. Each slab is
+ * loaded together with a halo of atoms from the adjacent bins, the toolchain is applied and the atoms
+ * inside the slab are appended to the output file. The halo must be at least as thick as the largest
+ * cutoff radius used by the modules in the toolchain, otherwise values of atoms close to the slab
+ * boundaries differ from processing the complete file.
+ * Only modules computing per-atom values are meaningful in this mode, other results like grains,
+ * dislocation networks or surfaces are discarded after each slab.
+ * Modules can use a reference file ({@link ReferenceMode#REF}), which is partitioned into bins the same way.
+ * Each slab is then linked to the reference atoms within the slab and its halo, thus the halo must also
+ * be thicker than the largest displacement between the reference and the input.
+ */
+public class SlabProcessor {
+	private static final int DEFAULT_NUMBER_OF_BINS = 256;
+
+	private final ImdFileLoader loader;
+	private final Toolchain toolchain;
+	private final float haloWidth;
+	private final int maxAtomsPerSlab;
+	private int numBins = DEFAULT_NUMBER_OF_BINS;
+
+	private File referenceFile;
+	private Filter<Atom> referenceFilter;
+	private boolean needsReference = false;
+
+	//Values captured during the partitioning of the input file
+	private int numDataColumns;
+	private int axis = -1;
+	private Partition input, reference;
+
+	/**
+	 * @param loader the loader used to stream the input file
+	 * @param toolchain modules applied to each slab, may be null.
+	 * Modules can only refer to a reference file, see {@link #setReference(File, Filter)}.
+	 * @param haloWidth thickness of the halo around each slab, should be the largest cutoff radius of the toolchain
+	 * @param maxAtomsPerSlab the number of atoms in a slab, excluding the halo. Slabs can only be larger if
+	 * a single bin contains more atoms
+	 */
+	public SlabProcessor(ImdFileLoader loader, Toolchain toolchain, float haloWidth, int maxAtomsPerSlab){
+		if (toolchain != null){
+			for (ProcessingModule pm : toolchain.getProcessingModules()){
+				ReferenceMode mode = pm.getReferenceModeUsed();
+				if (mode == ReferenceMode.REF) needsReference = true;
+				else if (mode != null)
+					throw new IllegalArgumentException("Only references to a reference file are supported for slab processing");
+			}
+		}
+		if (haloWidth < 0f) throw new IllegalArgumentException("Halo width must not be negative");
+		if (maxAtomsPerSlab < 1) throw new IllegalArgumentException("Slabs must contain at least one atom");
+
+		this.loader = loader;
+		this.toolchain = toolchain;
+		this.haloWidth = haloWidth;
+		this.maxAtomsPerSlab = maxAtomsPerSlab;
+	}
+
+	/**
+	 * Sets the number of bins the file is partitioned into. Slabs consist of one or more consecutive bins,
+	 * thus more bins allow slab sizes closer to the requested maximum, at the cost of more open scratch files.
+	 * @param numBins
+	 */
+	public void setNumberOfBins(int numBins){
+		this.numBins = Math.max(1, numBins);
+	}
+
+	/**
+	 * Sets the file used by modules with the reference mode {@link ReferenceMode#REF}.
+	 * The file is streamed into bins like the input files, it is never loaded completely.
+	 * @param referenceFile
+	 * @param atomFilter A filter that ignores certain atoms already during import, can be null
+	 */
+	public void setReference(File referenceFile, Filter<Atom> atomFilter){
+		this.referenceFile = referenceFile;
+		this.referenceFilter = atomFilter;
+	}
+
+	/**
+	 * Processes the input file slab by slab and writes the result
+	 * @param input the IMD file to be processed
+	 * @param scratchDir the directory for temporary files, requires space for a copy of the input data.
+	 * If null, the default temporary directory is used.
+	 * @param writer the writer for the output, with all columns to be exported configured
+	 * @param path the path in which the output is to be stored
+	 * @param filenamePrefix the output filename
+	 * @param atomFilter A filter that ignores certain atoms already during import, can be null
+	 * @throws Exception
+	 */
+	public void process(File input, File scratchDir, ImdFileWriter writer, File path, String filenamePrefix,
+			Filter<Atom> atomFilter) throws Exception{
+		if (needsReference && referenceFile == null)
+			throw new IllegalStateException("The toolchain requires a reference, but none is set");
+		numDataColumns = ImportConfiguration.getInstance().getDataColumns().size();
+		axis = -1;
+		try {
+			this.input = partition(input, scratchDir, atomFilter);
+			//The reference is partitioned along the axis determined by the input
+			if (needsReference) this.reference = partition(referenceFile, scratchDir, referenceFilter);
+			processSlabs(writer, path, filenamePrefix);
+		} finally {
+			if (this.input != null) this.input.delete();
+			if (this.reference != null) this.reference.delete();
+			this.input = null;
+			this.reference = null;
+		}
+	}
+
+	/**
+	 * The bins of a file stored in scratch files
+	 */
+	private static class Partition {
+		ImportDataContainer header;
+		long[] atomsInBin;
+		File[] binFiles;
+
+		void delete(){
+			for (File f : binFiles)
+				if (f != null) f.delete();
+		}
+	}
+
+	/**
+	 * Streams a file into the scratch files of the bins.
+	 * The axis of the partitioning is determined from the box of the first file partitioned.
+	 */
+	private Partition partition(File file, File scratchDir, Filter<Atom> atomFilter) throws IOException{
+		final Partition p = new Partition();
+		p.atomsInBin = new long[numBins];
+		p.binFiles = new File[numBins];
+		final DataOutputStream[] binStreams = new DataOutputStream[numBins];
+
+		boolean complete = false;
+		try {
+			for (int i=0; i<numBins; i++){
+				p.binFiles[i] = File.createTempFile("slab"+i+"_", ".bin", scratchDir);
+				binStreams[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(p.binFiles[i]), 65536));
+			}
+
+			AtomBlockHandler handler = new AtomBlockHandler() {
+				@Override
+				public void processBlock(ImportDataContainer idc) throws IOException {
+					if (p.header == null){
+						//The box is known once the first atoms are read
+						if (axis == -1){
+							Vec3 h = idc.box.getHeight();
+							axis = 0;
+							if (h.y > h.x) axis = 1;
+							if (h.z > (axis == 0 ? h.x : h.y)) axis = 2;
+						}
+						p.header = idc;
+					}
+					Vec3 t = idc.box.getTBoxSize()[axis];
+					for (int i=0; i<idc.atoms.size(); i++){
+						Atom a = idc.atoms.get(i);
+						int bin = getBin(a.dot(t));
+						p.atomsInBin[bin]++;
+						writeAtom(binStreams[bin], idc, i);
+					}
+				}
+			};
+
+			ImportDataContainer idc = loader.readFile(file, atomFilter, handler, Math.min(maxAtomsPerSlab, 1<<20));
+			//The container is still needed for the metadata if the file does not contain atoms
+			if (p.header == null) p.header = idc;
+			if (axis == -1) axis = 0;
+			complete = true;
+		} finally {
+			for (DataOutputStream dos : binStreams)
+				if (dos != null) dos.close();
+			if (!complete) p.delete();
+		}
+		return p;
+	}
+
+	private int getBin(float frac){
+		int bin = (int)Math.floor(frac*numBins);
+		return Math.max(0, Math.min(numBins-1, bin));
+	}
+
+	private void writeAtom(DataOutputStream dos, ImportDataContainer idc, int i) throws IOException{
+		Atom a = idc.atoms.get(i);
+		dos.writeInt(a.getNumber());
+		dos.writeByte(a.getElement());
+		dos.writeByte(a.getType());
+		dos.writeShort(a.getGrain());
+		dos.writeFloat(a.x); dos.writeFloat(a.y); dos.writeFloat(a.z);
+		for (int j=0; j<numDataColumns; j++)
+			dos.writeFloat(idc.dataArrays.get(j).getQuick(i));
+		RBV rbv = idc.rbvStorage.getRBV(i);
+		if (rbv == null){
+			dos.writeByte(0);
+		} else {
+			dos.writeByte(1);
+			dos.writeFloat(rbv.lineDirection.x); dos.writeFloat(rbv.lineDirection.y); dos.writeFloat(rbv.lineDirection.z);
+			dos.writeFloat(rbv.bv.x); dos.writeFloat(rbv.bv.y); dos.writeFloat(rbv.bv.z);
+		}
+	}
+
+	private void processSlabs(ImdFileWriter writer, File path, String filenamePrefix) throws Exception{
+		BoxParameter box = input.header.box;
+		boolean periodic = box.getPbc()[axis];
+		float haloFrac = haloWidth / box.getHeight().asArray()[axis];
+
+		long totalAtoms = 0;
+		for (long c : input.atomsInBin) totalAtoms += c;
+
+		ImdFileWriter.Stream out = null;
+		ProgressMonitor.getProgressMonitor().setActivityName("Processing slabs");
+		try {
+			int firstBin = 0;
+			long atomsProcessed = 0;
+			do {
+				//Merge consecutive bins until the slab is full
+				long atomsInSlab = input.atomsInBin[firstBin];
+				int endBin = firstBin+1;
+				while (endBin < numBins && atomsInSlab + input.atomsInBin[endBin] <= maxAtomsPerSlab)
+					atomsInSlab += input.atomsInBin[endBin++];
+
+				boolean singleSlab = firstBin == 0 && endBin == numBins;
+				float start = firstBin/(float)numBins;
+				float end = endBin/(float)numBins;
+				if (!singleSlab && periodic && end-start+2*haloFrac > 1f)
+					throw new IllegalArgumentException("The halo is too thick for the box, increase the number of atoms per slab");
+
+				final SlabAtoms slab = new SlabAtoms();
+				if (!singleSlab) slab.origin.setTo(box.getBoxSize()[axis].multiplyClone(start - haloFrac));
+				
+				//The reference atoms of the slab and its halo, in the same coordinates as the slab
+				AtomData referenceData = null;
+				if (reference != null){
+					SlabAtoms referenceSlab = new SlabAtoms();
+					referenceSlab.origin.setTo(slab.origin);
+					referenceData = loadSlab(reference, firstBin, endBin, singleSlab, start, end, haloFrac, periodic, referenceSlab);
+					referenceData.setAsReferenceForProcessingModule();
+					applyToolchain(referenceData);
+				}
+				
+				AtomData data = loadSlab(input, firstBin, endBin, singleSlab, start, end, haloFrac, periodic, slab);
+				//The reference is appended behind the slab, where Toolchain.getReferenceData finds it
+				if (referenceData != null) referenceData.setPrevious(data);
+				applyToolchain(data);
+				slab.restorePositions(data);
+
+				if (out == null)
+					out = writer.openStream(path, filenamePrefix, data, box);
+				out.append(data, new Filter<Atom>() {
+					@Override
+					public boolean accept(Atom a) {
+						return !slab.halo.contains(a);
+					}
+				});
+
+				atomsProcessed += atomsInSlab;
+				ProgressMonitor.getProgressMonitor().setActivityName(
+						String.format("Processing slabs (%d of %d atoms)", atomsProcessed, totalAtoms));
+
+				data.clear();
+				if (referenceData != null) referenceData.clear();
+				firstBin = endBin;
+			} while (firstBin < numBins);
+		} finally {
+			if (out != null) out.close();
+		}
+	}
+
+	private void applyToolchain(AtomData data) throws Exception{
+		if (toolchain != null){
+			for (ProcessingModule pm : toolchain.getProcessingModules())
+				data.applyProcessingModule(pm);
+		}
+	}
+
+	/**
+	 * Creates the data of a slab, consisting of the bins firstBin...endBin-1 of a partition plus the halo.
+	 * Unless the slab covers the whole box, a box of the size of the slab and its halo is used,
+	 * which is not periodic along the partitioning axis. All atoms are shifted by the origin of the slab.
+	 * @param slab provides the origin of the slab box and receives the halo atoms
+	 */
+	private AtomData loadSlab(Partition p, int firstBin, int endBin, boolean singleSlab, float start, float end,
+			float haloFrac, boolean periodic, SlabAtoms slab) throws Exception{
+		ImportDataContainer header = p.header;
+		BoxParameter box = header.box;
+		ImportDataContainer idc = new ImportDataContainer();
+		idc.name = header.name;
+		idc.fullPathAndFilename = header.fullPathAndFilename;
+		idc.fileMetaData = header.fileMetaData;
+		idc.elementNames = header.elementNames;
+		idc.maxElementNumber = header.maxElementNumber;
+		idc.atomTypesAvailable = header.atomTypesAvailable;
+		idc.rbvAvailable = header.rbvAvailable;
+
+		idc.pbc = box.getPbc().clone();
+		idc.boxSizeX.setTo(box.getBoxSize()[0]);
+		idc.boxSizeY.setTo(box.getBoxSize()[1]);
+		idc.boxSizeZ.setTo(box.getBoxSize()[2]);
+		if (!singleSlab){
+			Vec3 axisVector = box.getBoxSize()[axis];
+			Vec3 slabAxis = axisVector.multiplyClone(end - start + 2*haloFrac);
+			if (axis == 0) idc.boxSizeX.setTo(slabAxis);
+			if (axis == 1) idc.boxSizeY.setTo(slabAxis);
+			if (axis == 2) idc.boxSizeZ.setTo(slabAxis);
+			idc.pbc[axis] = false;
+		}
+		idc.offset.setTo(box.getOffset());
+		idc.makeBox();
+
+		for (int bin = 0; bin < numBins; bin++){
+			boolean core = bin >= firstBin && bin < endBin;
+			if (!core && (singleSlab || !isHaloCandidate(bin, start, end, haloFrac, periodic))) continue;
+			readBin(p, bin, core, idc, slab, start, end, haloFrac, periodic);
+		}
+
+		return new AtomData(null, idc);
+	}
+
+	/**
+	 * The atoms in the halo of a slab and the information to restore the positions of the other atoms
+	 */
+	private static class SlabAtoms {
+		final Set<Atom> halo = Collections.newSetFromMap(new IdentityHashMap<Atom, Boolean>());
+		final Vec3 origin = new Vec3();
+		/**
+		 * Atoms whose positions cannot be restored exactly by adding the origin
+		 */
+		final Map<Atom, Vec3> exactPositions = new IdentityHashMap<Atom, Vec3>();
+
+		/**
+		 * Moves all atoms not in the halo back to their position in the original box
+		 */
+		void restorePositions(AtomData data){
+			for (Atom a : data.getAtoms()){
+				if (halo.contains(a)) continue;
+				Vec3 p = exactPositions.get(a);
+				if (p != null) a.setTo(p);
+				else a.add(origin);
+			}
+		}
+	}
+
+	/**
+	 * Tests if the bin may contain atoms within the halo of the slab
+	 */
+	private boolean isHaloCandidate(int bin, float start, float end, float haloFrac, boolean periodic){
+		float lower = bin/(float)numBins;
+		float upper = (bin+1)/(float)numBins;
+		//Outer bins also contain atoms outside the box
+		if (!periodic && bin == 0) lower = Float.NEGATIVE_INFINITY;
+		if (!periodic && bin == numBins-1) upper = Float.POSITIVE_INFINITY;
+		for (int s = periodic ? -1 : 0; s <= (periodic ? 1 : 0); s++){
+			if (upper+s > start-haloFrac && lower+s < start) return true;
+			if (lower+s < end+haloFrac && upper+s > end) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The periodic shift (in units of the box vector) that moves the fractional coordinate into the halo,
+	 * or NaN if the coordinate is not inside the halo
+	 */
+	private float getHaloShift(float frac, float start, float end, float haloFrac, boolean periodic){
+		for (int s = periodic ? -1 : 0; s <= (periodic ? 1 : 0); s++){
+			float f = frac + s;
+			if ((f >= start-haloFrac && f < start) || (f >= end && f < end+haloFrac)) return s;
+		}
+		return Float.NaN;
+	}
+
+	private void readBin(Partition p, int bin, boolean core, ImportDataContainer idc, SlabAtoms slab,
+			float start, float end, float haloFrac, boolean periodic) throws IOException{
+		Vec3 origin = slab.origin;
+		Vec3 t = p.header.box.getTBoxSize()[axis];
+		Vec3 axisVector = p.header.box.getBoxSize()[axis];
+		Vec3 pos = new Vec3();
+		Vec3 rbv = new Vec3(), lineDirection = new Vec3();
+		float[] values = new float[numDataColumns];
+
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(p.binFiles[bin]), 65536));
+		try {
+			for (long i=0; i<p.atomsInBin[bin]; i++){
+				int number = dis.readInt();
+				byte element = dis.readByte();
+				byte type = dis.readByte();
+				short grain = dis.readShort();
+				pos.x = dis.readFloat(); pos.y = dis.readFloat(); pos.z = dis.readFloat();
+				for (int j=0; j<numDataColumns; j++)
+					values[j] = dis.readFloat();
+				boolean hasRBV = dis.readByte() == 1;
+				if (hasRBV){
+					lineDirection.x = dis.readFloat(); lineDirection.y = dis.readFloat(); lineDirection.z = dis.readFloat();
+					rbv.x = dis.readFloat(); rbv.y = dis.readFloat(); rbv.z = dis.readFloat();
+				}
+
+				float shift = 0f;
+				if (!core){
+					shift = getHaloShift(pos.dot(t), start, end, haloFrac, periodic);
+					if (Float.isNaN(shift)) continue;
+				}
+				Vec3 original = null;
+				if (shift != 0f) pos.add(axisVector.multiplyClone(shift));
+				else original = pos.clone();
+				pos.sub(origin);
+
+				Atom a = new Atom(pos, number, element);
+				a.setType(type);
+				a.setGrain(grain);
+				if (!core) slab.halo.add(a);
+				//Keep the original position if shifting back is not exact
+				else if (a.x+origin.x != original.x || a.y+origin.y != original.y || a.z+origin.z != original.z)
+					slab.exactPositions.put(a, original);
+
+				if (hasRBV)
+					idc.rbvStorage.addRBV(idc.atoms.size(), rbv, lineDirection);
+				idc.atoms.add(a);
+				for (int j=0; j<numDataColumns; j++)
+					idc.dataArrays.get(j).add(values[j]);
+			}
+		} catch (EOFException e){
+			throw new IOException("Scratch file "+p.binFiles[bin].getName()+" is truncated");
+		} finally {
+			dis.close();
+		}
+	}
+}
@@ -0,0 +1,416 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import static model.io.SnapshotFormat.*;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import javax.swing.filechooser.FileFilter;
+
+import common.FastTFloatArrayList;
+import common.ThreadPool;
+import common.ColorTable.ColorBarScheme;
+import common.Vec3;
+import crystalStructures.PolygrainMetadata;
+import gui.PrimitiveProperty;
+import gui.PrimitiveProperty.BooleanProperty;
+import gui.ProgressMonitor;
+import model.*;
+import model.DataColumnInfo.Component;
+import processingModules.toolchain.Toolchain;
+
+/**
+ * Reads files written by {@link SnapshotFileWriter}. The data is restored as it has been written,
+ * atoms are not classified again and the toolchain is not reapplied.
+ * All chunks are read in parallel. Data columns can be excluded from the import to save time and
+ * memory, the chunks of excluded columns are not read at all.
+ */
+public class SnapshotFileLoader extends MDFileLoader {
+
+	private BooleanProperty importAllColumns = new BooleanProperty("importAll", "Import all data columns",
+			"If disabled, only the data columns selected in the import configuration are read", true);
+
+	@Override
+	public String getName() {
+		return "AtomViewer snapshot";
+	}
+
+	@Override
+	public List<PrimitiveProperty<?>> getOptions(){
+		ArrayList<PrimitiveProperty<?>> list = new ArrayList<PrimitiveProperty<?>>();
+		list.add(importAllColumns);
+		return list;
+	}
+
+	@Override
+	public AtomData readInputData(File f, AtomData previous, Filter<Atom> atomFilter) throws Exception {
+		ProgressMonitor.getProgressMonitor().setActivityName("Reading file");
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			final FileChannel channel = raf.getChannel();
+			Directory dir = readDirectory(channel);
+
+			ImportDataContainer idc = new ImportDataContainer();
+			idc.name = f.getName();
+			idc.fullPathAndFilename = f.getCanonicalPath();
+			idc.dataProcessed = true;
+
+			idc.boxSizeX.setTo(dir.box[0]);
+			idc.boxSizeY.setTo(dir.box[1]);
+			idc.boxSizeZ.setTo(dir.box[2]);
+			idc.pbc = dir.pbc;
+			idc.offset.setTo(dir.offset);
+			idc.makeBox();
+
+			idc.maxElementNumber = (byte)Math.max(1, dir.elementNames.length);
+			for (int i=0; i<dir.elementNames.length; i++)
+				if (dir.elementNames[i] != null) idc.elementNames.put(i, dir.elementNames[i]);
+
+			idc.fileMetaData = new HashMap<String, Object>(dir.metaData);
+			if (dir.grainMetaData.length > 0){
+				BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(dir.grainMetaData)));
+				String s = br.readLine();
+				while (s != null){
+					PolygrainMetadata.processMetadataLine(s, idc.fileMetaData, br, idc);
+					s = br.readLine();
+				}
+			}
+			if (dir.toolchain.length > 0){
+				try {
+					idc.toolchain = Toolchain.readToolchain(new ByteArrayInputStream(dir.toolchain));
+				} catch (Exception e){
+					idc.toolchain = null; //The history is not essential
+				}
+			}
+
+			//Select the data columns to be imported
+			List<DataColumnInfo> columns = new ArrayList<DataColumnInfo>();
+			if (importAllColumns.getValue())
+				columns.addAll(dir.dataColumns);
+			else {
+				List<DataColumnInfo> selected = ImportConfiguration.getInstance().getDataColumns();
+				for (DataColumnInfo dci : dir.dataColumns)
+					if (selected.contains(dci)) columns.add(dci);
+			}
+
+			//Read all columns in parallel chunks
+			final int n = dir.numAtoms;
+			final float[] x = new float[n], y = new float[n], z = new float[n];
+			final int[] number = dir.columns.containsKey(COLUMN_NUMBER) ? new int[n] : null;
+			final byte[] element = dir.columns.containsKey(COLUMN_ELEMENT) ? new byte[n] : null;
+			final byte[] type = dir.columns.containsKey(COLUMN_TYPE) ? new byte[n] : null;
+			final short[] grain = dir.columns.containsKey(COLUMN_GRAIN) ? new short[n] : null;
+
+			Map<String, Object> targets = new HashMap<String, Object>();
+			targets.put(COLUMN_X, x); targets.put(COLUMN_Y, y); targets.put(COLUMN_Z, z);
+			if (number != null) targets.put(COLUMN_NUMBER, number);
+			if (element != null) targets.put(COLUMN_ELEMENT, element);
+			if (type != null) targets.put(COLUMN_TYPE, type);
+			if (grain != null) targets.put(COLUMN_GRAIN, grain);
+
+			List<FastTFloatArrayList> dataArrays = new ArrayList<FastTFloatArrayList>();
+			for (DataColumnInfo dci : columns){
+				FastTFloatArrayList values = new FastTFloatArrayList(n, true);
+				dataArrays.add(values);
+				targets.put(dci.getId(), values.getData());
+			}
+
+			int[] rbvAtom = null;
+			float[][] rbv = null;
+			if (dir.columns.containsKey(COLUMN_RBV_ATOM)){
+				int numRBV = dir.columns.get(COLUMN_RBV_ATOM).length;
+				rbvAtom = new int[numRBV];
+				rbv = new float[6][numRBV];
+				targets.put(COLUMN_RBV_ATOM, rbvAtom);
+				for (int i=0; i<6; i++)
+					targets.put(COLUMN_RBV[i], rbv[i]);
+			}
+
+			readColumns(channel, dir, targets);
+
+			//Create atoms
+			final Atom[] atoms = new Atom[n];
+			Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+			for (int i=0; i<ThreadPool.availProcessors(); i++){
+				final int start = ThreadPool.getSliceStart(n, i);
+				final int end = ThreadPool.getSliceEnd(n, i);
+				parallelTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						Vec3 pos = new Vec3();
+						for (int j=start; j<end; j++){
+							pos.setTo(x[j], y[j], z[j]);
+							Atom a = new Atom(pos, number == null ? 0 : number[j], element == null ? 0 : element[j]);
+							if (type != null) a.setType(type[j]);
+							if (grain != null) a.setGrain(grain[j]);
+							atoms[j] = a;
+						}
+						return null;
+					}
+				});
+			}
+			ThreadPool.executeParallel(parallelTasks);
+
+			//Apply the import filter by compacting all arrays, keeping the mapping for Burgers vectors
+			int[] newIndex = null;
+			int kept = n;
+			if (atomFilter != null){
+				newIndex = new int[n];
+				kept = 0;
+				for (int i=0; i<n; i++){
+					if (atomFilter.accept(atoms[i])){
+						newIndex[i] = kept;
+						atoms[kept] = atoms[i];
+						for (FastTFloatArrayList values : dataArrays)
+							values.getData()[kept] = values.getData()[i];
+						kept++;
+					} else newIndex[i] = -1;
+				}
+				for (FastTFloatArrayList values : dataArrays)
+					values.remove(kept, n-kept);
+			}
+			idc.atoms.addAll(Arrays.asList(atoms).subList(0, kept));
+			idc.dataArrays = dataArrays;
+			idc.dataColumns = columns;
+
+			if (rbvAtom != null){
+				Vec3 b = new Vec3(), l = new Vec3();
+				for (int i=0; i<rbvAtom.length; i++){
+					int index = newIndex == null ? rbvAtom[i] : newIndex[rbvAtom[i]];
+					if (index == -1) continue;
+					l.setTo(rbv[0][i], rbv[1][i], rbv[2][i]);
+					b.setTo(rbv[3][i], rbv[4][i], rbv[5][i]);
+					idc.rbvStorage.addRBV(index, b, l);
+				}
+				idc.rbvAvailable = true;
+			}
+
+			idc.atomTypesAvailable = type != null;
+			idc.grainsImported = grain != null;
+
+			return new AtomData(previous, idc);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads all chunks of the columns in parallel into the given target arrays
+	 * @param targets maps the id of each column to be read to a primitive array of matching type
+	 */
+	private static void readColumns(final FileChannel channel, Directory dir, final Map<String, Object> targets) throws IOException{
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (final String id : targets.keySet()){
+			final ColumnEntry ce = dir.columns.get(id);
+			if (ce == null) throw new IOException("Column "+id+" not found in snapshot file");
+			for (int c=0; c<ce.getNumChunks(); c++){
+				final int chunk = c;
+				tasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						readChunk(channel, ce, chunk, targets.get(id));
+						ProgressMonitor.getProgressMonitor().addToCounter(1);
+						return null;
+					}
+				});
+			}
+		}
+		ProgressMonitor.getProgressMonitor().start(tasks.size());
+		try {
+			ThreadPool.executeParallelOrThrow(tasks);
+		} finally {
+			ProgressMonitor.getProgressMonitor().stop();
+		}
+	}
+
+	private static void readChunk(FileChannel channel, ColumnEntry ce, int chunk, Object target) throws IOException{
+		int start = ce.getChunkStart(chunk);
+		int end = ce.getChunkEnd(chunk);
+		int bytesPerValue = getBytesPerValue(ce.type);
+
+		ByteBuffer stored = ByteBuffer.allocate(ce.chunkStoredSize[chunk]);
+		readFully(channel, stored, ce.chunkOffset[chunk]);
+		ByteBuffer bb;
+		if (ce.chunkCompressed[chunk])
+			bb = decompress(stored.array(), (end-start)*bytesPerValue, bytesPerValue);
+		else bb = stored;
+		bb.order(ByteOrder.LITTLE_ENDIAN);
+		bb.rewind();
+
+		switch (ce.type){
+			case TYPE_BYTE: bb.get((byte[])target, start, end-start); break;
+			case TYPE_SHORT: bb.asShortBuffer().get((short[])target, start, end-start); break;
+			case TYPE_INT: bb.asIntBuffer().get((int[])target, start, end-start); break;
+			case TYPE_FLOAT: bb.asFloatBuffer().get((float[])target, start, end-start); break;
+			default: throw new IOException("Unknown column type in snapshot file");
+		}
+	}
+
+	/**
+	 * Content of the directory of a snapshot file
+	 */
+	private static class Directory {
+		int numAtoms;
+		Vec3[] box = new Vec3[3];
+		boolean[] pbc = new boolean[3];
+		Vec3 offset = new Vec3();
+		String[] elementNames;
+		Map<String, Object> metaData = new HashMap<String, Object>();
+		byte[] grainMetaData;
+		byte[] toolchain;
+		List<DataColumnInfo> dataColumns = new ArrayList<DataColumnInfo>();
+		Map<String, ColumnEntry> columns = new HashMap<String, ColumnEntry>();
+	}
+
+	private static Directory readDirectory(FileChannel channel) throws IOException{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		readFully(channel, header, 0l);
+		header.flip();
+		byte[] magic = new byte[MAGIC.length];
+		header.get(magic);
+		if (!Arrays.equals(magic, MAGIC))
+			throw new IOException("Not an AtomViewer snapshot file");
+		if (header.getInt() != VERSION)
+			throw new IOException("Unsupported version of the snapshot file");
+		long directoryOffset = header.getLong();
+
+		ByteBuffer bb = ByteBuffer.allocate((int)(channel.size()-directoryOffset));
+		readFully(channel, bb, directoryOffset);
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bb.array()));
+
+		Directory dir = new Directory();
+		dis.readUTF(); //Name of the original data set
+		dir.numAtoms = dis.readInt();
+		for (int i=0; i<3; i++)
+			dir.box[i] = new Vec3(dis.readFloat(), dis.readFloat(), dis.readFloat());
+		for (int i=0; i<3; i++)
+			dir.pbc[i] = dis.readBoolean();
+		dir.offset.setTo(dis.readFloat(), dis.readFloat(), dis.readFloat());
+
+		dir.elementNames = new String[dis.readInt()];
+		for (int i=0; i<dir.elementNames.length; i++)
+			if (dis.readBoolean()) dir.elementNames[i] = dis.readUTF();
+
+		int numMeta = dis.readInt();
+		for (int i=0; i<numMeta; i++){
+			String key = dis.readUTF();
+			double[] v = new double[dis.readInt()];
+			for (int j=0; j<v.length; j++)
+				v[j] = dis.readDouble();
+			dir.metaData.put(key, v);
+		}
+
+		dir.grainMetaData = new byte[dis.readInt()];
+		dis.readFully(dir.grainMetaData);
+		dir.toolchain = new byte[dis.readInt()];
+		dis.readFully(dir.toolchain);
+
+		int numDataColumns = dis.readInt();
+		Map<String, DataColumnInfo> byId = new HashMap<String, DataColumnInfo>();
+		Map<DataColumnInfo, String[]> vectors = new HashMap<DataColumnInfo, String[]>();
+		for (int i=0; i<numDataColumns; i++){
+			String id = dis.readUTF();
+			String name = dis.readUTF();
+			String unit = dis.readUTF();
+			float lower = dis.readFloat();
+			float upper = dis.readFloat();
+			boolean fixedRange = dis.readBoolean();
+			boolean initialRange = dis.readBoolean();
+			String scheme = dis.readUTF();
+			String component = dis.readUTF();
+
+			DataColumnInfo dci;
+			if (initialRange || !scheme.isEmpty())
+				dci = new DataColumnInfo(name, id, unit, lower, upper, fixedRange,
+						scheme.isEmpty() ? null : ColorBarScheme.valueOf(scheme));
+			else dci = new DataColumnInfo(name, id, unit);
+			dci.setComponent(Component.valueOf(component));
+
+			if (dis.readBoolean())
+				vectors.put(dci, new String[]{dis.readUTF(), dis.readUTF(), dis.readUTF(), dis.readUTF()});
+			dir.dataColumns.add(dci);
+			byId.put(id, dci);
+		}
+		for (DataColumnInfo dci : vectors.keySet()){
+			String[] v = vectors.get(dci);
+			if (byId.containsKey(v[1]) && byId.containsKey(v[2]) && byId.containsKey(v[3]))
+				dci.setAsFirstVectorComponent(byId.get(v[1]), byId.get(v[2]), byId.get(v[3]), v[0], false);
+		}
+
+		int numColumns = dis.readInt();
+		for (int i=0; i<numColumns; i++){
+			ColumnEntry ce = ColumnEntry.read(dis);
+			dir.columns.put(ce.id, ce);
+		}
+		return dir;
+	}
+
+	@Override
+	public String[][] getColumnNamesUnitsFromHeader(File f) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try {
+			Directory dir = readDirectory(raf.getChannel());
+			String[][] names = new String[dir.dataColumns.size()][];
+			for (int i=0; i<names.length; i++)
+				names[i] = new String[]{dir.dataColumns.get(i).getId(), dir.dataColumns.get(i).getUnit()};
+			return names;
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Override
+	public Map<String, Component> getDefaultNamesForComponents() {
+		return new HashMap<String, Component>();
+	}
+
+	@Override
+	public FileFilter getDefaultFileFilter() {
+		FileFilter snapshotFileFilter = new FileFilter() {
+			@Override
+			public String getDescription() {
+				return "AtomViewer snapshot files (*.avs)";
+			}
+
+			@Override
+			public boolean accept(File f) {
+				if (f.isDirectory()) return true;
+				return f.getName().endsWith(".avs");
+			}
+		};
+		return snapshotFileFilter;
+	}
+}
@@ -0,0 +1,374 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import static model.io.SnapshotFormat.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.ThreadPool;
+import common.Vec3;
+import gui.PrimitiveProperty;
+import gui.PrimitiveProperty.BooleanProperty;
+import model.Atom;
+import model.AtomData;
+import model.DataColumnInfo;
+import model.Filter;
+import model.RBV;
+import model.polygrain.Grain;
+
+/**
+ * Writes the complete state of a processed {@link AtomData} into the binary columnar
+ * AtomViewer snapshot format, see {@link SnapshotFormat}.
+ * Chunks of all columns are encoded and written in parallel.
+ */
+public class SnapshotFileWriter extends MDFileWriter {
+
+	private BooleanProperty compress = new PrimitiveProperty.BooleanProperty("compress", "Compression",
+			"Compress the columns, reduces the file size at the cost of slower writing and reading", false);
+
+	private boolean exportNumber = true;
+	private boolean exportElement = true;
+	private boolean exportType = true;
+	private boolean exportRBV = true;
+	private boolean exportGrain = true;
+
+	private DataColumnInfo[] toExportColumns;
+
+	@Override
+	public void setDataToExport(boolean number, boolean element, boolean type, boolean rbv, boolean grain,
+			DataColumnInfo... dci) {
+		this.exportNumber = number;
+		this.exportElement = element;
+		this.exportType = type;
+		this.exportRBV = rbv;
+		this.exportGrain = grain;
+		toExportColumns = dci;
+	}
+
+	public void setCompression(boolean compress){
+		this.compress.setValue(compress);
+	}
+
+	@Override
+	public void writeFile(File path, String filenamePrefix, final AtomData data, Filter<Atom> filter) throws IOException {
+		String fullFilename = filenamePrefix;
+		if (!fullFilename.endsWith(".avs"))
+			fullFilename += ".avs";
+		File out = new File(path, fullFilename);
+
+		final List<Atom> atoms;
+		if (filter == null) atoms = data.getAtoms();
+		else {
+			atoms = new ArrayList<Atom>();
+			for (Atom a : data.getAtoms())
+				if (filter.accept(a)) atoms.add(a);
+		}
+
+		DataColumnInfo[] columns = toExportColumns;
+		if (columns == null)
+			columns = data.getDataColumnInfos().toArray(new DataColumnInfo[data.getDataColumnInfos().size()]);
+		boolean writeGrain = exportGrain && data.isPolyCrystalline();
+
+		//All columns to be written
+		List<ColumnSource> sources = new ArrayList<ColumnSource>();
+		sources.add(new ColumnSource(COLUMN_X, TYPE_FLOAT, atoms.size()) {
+			@Override
+			void put(ByteBuffer bb, int i) { bb.putFloat(atoms.get(i).x); }
+		});
+		sources.add(new ColumnSource(COLUMN_Y, TYPE_FLOAT, atoms.size()) {
+			@Override
+			void put(ByteBuffer bb, int i) { bb.putFloat(atoms.get(i).y); }
+		});
+		sources.add(new ColumnSource(COLUMN_Z, TYPE_FLOAT, atoms.size()) {
+			@Override
+			void put(ByteBuffer bb, int i) { bb.putFloat(atoms.get(i).z); }
+		});
+		if (exportNumber){
+			sources.add(new ColumnSource(COLUMN_NUMBER, TYPE_INT, atoms.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) { bb.putInt(atoms.get(i).getNumber()); }
+			});
+		}
+		if (exportElement){
+			sources.add(new ColumnSource(COLUMN_ELEMENT, TYPE_BYTE, atoms.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) { bb.put((byte)atoms.get(i).getElement()); }
+			});
+		}
+		if (exportType){
+			sources.add(new ColumnSource(COLUMN_TYPE, TYPE_BYTE, atoms.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) { bb.put((byte)atoms.get(i).getType()); }
+			});
+		}
+		if (writeGrain){
+			sources.add(new ColumnSource(COLUMN_GRAIN, TYPE_SHORT, atoms.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) { bb.putShort((short)atoms.get(i).getGrain()); }
+			});
+		}
+		for (DataColumnInfo dci : columns){
+			final float[] values = data.getDataArray(data.getDataColumnIndex(dci)).getData();
+			sources.add(new ColumnSource(dci.getId(), TYPE_FLOAT, atoms.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) { bb.putFloat(values[atoms.get(i).getID()]); }
+			});
+		}
+		if (exportRBV && data.isRbvAvailable())
+			addRBVColumns(sources, data, atoms);
+
+		RandomAccessFile raf = new RandomAccessFile(out, "rw");
+		try {
+			raf.setLength(0);
+			final FileChannel channel = raf.getChannel();
+			final AtomicLong position = new AtomicLong(HEADER_SIZE);
+			final boolean compressChunks = compress.getValue();
+
+			final List<ColumnEntry> entries = new ArrayList<ColumnEntry>();
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			for (final ColumnSource cs : sources){
+				final ColumnEntry ce = new ColumnEntry(cs.id, cs.type, cs.length);
+				entries.add(ce);
+				for (int c=0; c<ce.getNumChunks(); c++){
+					final int chunk = c;
+					tasks.add(new Callable<Void>() {
+						@Override
+						public Void call() throws Exception {
+							writeChunk(channel, position, cs, ce, chunk, compressChunks);
+							return null;
+						}
+					});
+				}
+			}
+			ThreadPool.executeParallelOrThrow(tasks);
+
+			//Directory at the end of the file, its position is stored in the header
+			long directoryOffset = position.get();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(bos);
+			writeDirectory(dos, data, atoms.size(), columns, writeGrain, entries);
+			dos.close();
+			writeFully(channel, ByteBuffer.wrap(bos.toByteArray()), directoryOffset);
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.put(MAGIC);
+			header.putInt(VERSION);
+			header.putLong(directoryOffset);
+			header.flip();
+			writeFully(channel, header, 0l);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void addRBVColumns(List<ColumnSource> sources, AtomData data, List<Atom> atoms){
+		//Burgers vectors are sparse, store the index of the atom and the six components
+		final List<Integer> atomIndex = new ArrayList<Integer>();
+		final List<RBV> rbvs = new ArrayList<RBV>();
+		for (int i=0; i<atoms.size(); i++){
+			RBV rbv = data.getRbvStorage().getRBV(atoms.get(i));
+			if (rbv != null){
+				atomIndex.add(i);
+				rbvs.add(rbv);
+			}
+		}
+		sources.add(new ColumnSource(COLUMN_RBV_ATOM, TYPE_INT, rbvs.size()) {
+			@Override
+			void put(ByteBuffer bb, int i) { bb.putInt(atomIndex.get(i)); }
+		});
+		for (int c=0; c<6; c++){
+			final int component = c;
+			sources.add(new ColumnSource(COLUMN_RBV[c], TYPE_FLOAT, rbvs.size()) {
+				@Override
+				void put(ByteBuffer bb, int i) {
+					RBV r = rbvs.get(i);
+					Vec3 v = component < 3 ? r.lineDirection : r.bv;
+					switch (component%3){
+						case 0: bb.putFloat(v.x); break;
+						case 1: bb.putFloat(v.y); break;
+						default: bb.putFloat(v.z); break;
+					}
+				}
+			});
+		}
+	}
+
+	private static void writeChunk(FileChannel channel, AtomicLong position, ColumnSource cs, ColumnEntry ce,
+			int chunk, boolean compress) throws IOException{
+		int start = ce.getChunkStart(chunk);
+		int end = ce.getChunkEnd(chunk);
+		int bytesPerValue = getBytesPerValue(cs.type);
+
+		ByteBuffer bb = ByteBuffer.allocate((end-start)*bytesPerValue).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i=start; i<end; i++)
+			cs.put(bb, i);
+		bb.flip();
+
+		byte[] compressed = compress ? SnapshotFormat.compress(bb, bytesPerValue) : null;
+		ByteBuffer stored = compressed != null ? ByteBuffer.wrap(compressed) : bb;
+		stored.rewind();
+		int size = stored.remaining();
+
+		//Reserve space, chunks are placed in the order in which they are finished
+		long offset = position.getAndAdd(size);
+		writeFully(channel, stored, offset);
+
+		ce.chunkOffset[chunk] = offset;
+		ce.chunkStoredSize[chunk] = size;
+		ce.chunkCompressed[chunk] = compressed != null;
+	}
+
+	private void writeDirectory(DataOutputStream dos, AtomData data, int numAtoms, DataColumnInfo[] columns,
+			boolean writeGrain, List<ColumnEntry> entries) throws IOException {
+		dos.writeUTF(data.getName());
+		dos.writeInt(numAtoms);
+
+		//Box
+		for (Vec3 v : data.getBox().getBoxSize()){
+			dos.writeFloat(v.x); dos.writeFloat(v.y); dos.writeFloat(v.z);
+		}
+		for (boolean p : data.getBox().getPbc())
+			dos.writeBoolean(p);
+		Vec3 offset = data.getBox().getOffset();
+		dos.writeFloat(offset.x); dos.writeFloat(offset.y); dos.writeFloat(offset.z);
+
+		//Elements
+		dos.writeInt(data.getNumberOfElements());
+		for (int i=0; i<data.getNumberOfElements(); i++){
+			String name = data.getNameOfElement(i);
+			dos.writeBoolean(name != null);
+			if (name != null) dos.writeUTF(name);
+		}
+
+		//Metadata, only numerical values are supported
+		List<String> keys = new ArrayList<String>();
+		Map<String, Object> meta = data.getFileMetaData();
+		if (meta != null){
+			for (String k : meta.keySet())
+				if (meta.get(k) instanceof double[]) keys.add(k);
+		}
+		Collections.sort(keys);
+		dos.writeInt(keys.size());
+		for (String k : keys){
+			double[] v = (double[])meta.get(k);
+			dos.writeUTF(k);
+			dos.writeInt(v.length);
+			for (double d : v) dos.writeDouble(d);
+		}
+
+		//Grains, stored in the same format as in IMD files
+		ByteArrayOutputStream grainMeta = new ByteArrayOutputStream();
+		if (writeGrain){
+			DataOutputStream gdos = new DataOutputStream(grainMeta);
+			for (Grain g: data.getGrains()){
+				float[][] rot = g.getCystalRotationTools().getDefaultRotationMatrix();
+				gdos.writeBytes(String.format("##grain %d %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f %.4f\n",
+						g.getGrainNumber(), rot[0][0], rot[1][0], rot[2][0]
+						, rot[0][1], rot[1][1], rot[2][1]
+						, rot[0][2], rot[1][2], rot[2][2]));
+				gdos.writeBytes(String.format("##atomsInGrain %d %d\n",
+						g.getGrainNumber(), g.getNumberOfAtoms()));
+				g.getMesh().getFinalMesh().printMetaData(gdos, g.getGrainNumber());
+			}
+			gdos.close();
+		}
+		dos.writeInt(grainMeta.size());
+		grainMeta.writeTo(dos);
+
+		//Toolchain, omitted if it cannot be exported completely
+		ByteArrayOutputStream toolchain = new ByteArrayOutputStream();
+		try {
+			if (!data.getToolchain().saveToolchain(toolchain))
+				toolchain.reset();
+		} catch (Exception e){
+			toolchain.reset();
+		}
+		dos.writeInt(toolchain.size());
+		toolchain.writeTo(dos);
+
+		//Description of data columns
+		dos.writeInt(columns.length);
+		for (DataColumnInfo dci : columns){
+			dos.writeUTF(dci.getId());
+			dos.writeUTF(dci.getName());
+			dos.writeUTF(dci.getUnit());
+			dos.writeFloat(dci.getLowerLimit());
+			dos.writeFloat(dci.getUpperLimit());
+			dos.writeBoolean(dci.isFixedRange());
+			dos.writeBoolean(dci.isInitialRangeGiven());
+			dos.writeUTF(dci.getScheme() == null ? "" : dci.getScheme().name());
+			dos.writeUTF(dci.getComponent().name());
+			boolean firstVector = dci.isVectorComponent() && dci.isFirstVectorComponent();
+			dos.writeBoolean(firstVector);
+			if (firstVector){
+				DataColumnInfo[] v = dci.getVectorComponents();
+				dos.writeUTF(dci.getVectorName());
+				dos.writeUTF(v[1].getId());
+				dos.writeUTF(v[2].getId());
+				dos.writeUTF(v[3].getId());
+			}
+		}
+
+		//Location of all columns
+		dos.writeInt(entries.size());
+		for (ColumnEntry ce : entries)
+			ce.write(dos);
+	}
+
+	/**
+	 * Provides the values of a column for each atom
+	 */
+	private static abstract class ColumnSource {
+		final String id;
+		final byte type;
+		final int length;
+
+		ColumnSource(String id, byte type, int length){
+			this.id = id;
+			this.type = type;
+			this.length = length;
+		}
+
+		/**
+		 * Appends the i-th value to the buffer
+		 */
+		abstract void put(ByteBuffer bb, int i);
+	}
+
+	@Override
+	public List<PrimitiveProperty<?>> getAdditionalProperties(AtomData data, boolean allFiles) {
+		ArrayList<PrimitiveProperty<?>> options = new ArrayList<PrimitiveProperty<?>>();
+		options.add(compress);
+		return options;
+	}
+}
@@ -0,0 +1,217 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Layout of AtomViewer snapshot files (*.avs).
+ *
+ * A file starts with a fixed header: the magic bytes, the format version and the position of the
+ * directory. It is followed by the chunks of all columns and finally the directory,
+ * describing the data set and listing for each column the position of its chunks.
+ * Each column holds one value per atom (or per Burgers vector for the Burgers vector columns)
+ * and is split into chunks of at most {@link #CHUNK_SIZE} values, which can be written and read
+ * independently of each other. Values are stored in little endian order, optionally
+ * compressed using deflate, in which case the bytes of multi-byte values are grouped by significance
+ * before compression.
+ */
+final class SnapshotFormat {
+	static final byte[] MAGIC = new byte[]{'A', 'V', 'S', 'N', 'A', 'P', 0, 0};
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+
+	static final int CHUNK_SIZE = 1<<20;
+
+	static final byte TYPE_BYTE = 1;
+	static final byte TYPE_SHORT = 2;
+	static final byte TYPE_INT = 4;
+	static final byte TYPE_FLOAT = 5;
+
+	//Identifiers of the columns that are not data columns, the prefix cannot be part of a data column id
+	static final String COLUMN_X = "#x";
+	static final String COLUMN_Y = "#y";
+	static final String COLUMN_Z = "#z";
+	static final String COLUMN_NUMBER = "#number";
+	static final String COLUMN_ELEMENT = "#element";
+	static final String COLUMN_TYPE = "#type";
+	static final String COLUMN_GRAIN = "#grain";
+	static final String COLUMN_RBV_ATOM = "#rbv_atom";
+	static final String[] COLUMN_RBV = new String[]{"#ls_x", "#ls_y", "#ls_z", "#rbv_x", "#rbv_y", "#rbv_z"};
+
+	private SnapshotFormat() {}
+
+	static int getBytesPerValue(byte type){
+		switch (type){
+			case TYPE_BYTE: return 1;
+			case TYPE_SHORT: return 2;
+			default: return 4;
+		}
+	}
+
+	/**
+	 * Location of a column in the file
+	 */
+	static class ColumnEntry {
+		final String id;
+		final byte type;
+		final int length;
+		final long[] chunkOffset;
+		final int[] chunkStoredSize;
+		final boolean[] chunkCompressed;
+
+		ColumnEntry(String id, byte type, int length){
+			this.id = id;
+			this.type = type;
+			this.length = length;
+			int chunks = (length+CHUNK_SIZE-1)/CHUNK_SIZE;
+			chunkOffset = new long[chunks];
+			chunkStoredSize = new int[chunks];
+			chunkCompressed = new boolean[chunks];
+		}
+
+		int getNumChunks(){
+			return chunkOffset.length;
+		}
+
+		int getChunkStart(int chunk){
+			return chunk*CHUNK_SIZE;
+		}
+
+		int getChunkEnd(int chunk){
+			return Math.min(length, (chunk+1)*CHUNK_SIZE);
+		}
+
+		void write(DataOutputStream dos) throws IOException{
+			dos.writeUTF(id);
+			dos.writeByte(type);
+			dos.writeInt(length);
+			for (int i=0; i<chunkOffset.length; i++){
+				dos.writeLong(chunkOffset[i]);
+				dos.writeInt(chunkStoredSize[i]);
+				dos.writeBoolean(chunkCompressed[i]);
+			}
+		}
+
+		static ColumnEntry read(DataInputStream dis) throws IOException{
+			ColumnEntry ce = new ColumnEntry(dis.readUTF(), dis.readByte(), dis.readInt());
+			for (int i=0; i<ce.chunkOffset.length; i++){
+				ce.chunkOffset[i] = dis.readLong();
+				ce.chunkStoredSize[i] = dis.readInt();
+				ce.chunkCompressed[i] = dis.readBoolean();
+			}
+			return ce;
+		}
+	}
+
+	/**
+	 * Compresses the raw little endian values in the buffer, if this reduces their size
+	 * @param raw the values, from position 0 to limit
+	 * @param bytesPerValue
+	 * @return the compressed data or null if compression is not beneficial
+	 */
+	static byte[] compress(ByteBuffer raw, int bytesPerValue){
+		byte[] shuffled = shuffle(raw, bytesPerValue);
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(shuffled);
+			deflater.finish();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(shuffled.length/2);
+			byte[] buffer = new byte[65536];
+			while (!deflater.finished()){
+				int n = deflater.deflate(buffer);
+				bos.write(buffer, 0, n);
+				if (bos.size() >= shuffled.length) return null;
+			}
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Reverts {@link #compress(ByteBuffer, int)}
+	 * @param stored the compressed data
+	 * @param rawSize the size of the uncompressed data in bytes
+	 * @param bytesPerValue
+	 * @return the values in little endian order
+	 * @throws IOException
+	 */
+	static ByteBuffer decompress(byte[] stored, int rawSize, int bytesPerValue) throws IOException{
+		byte[] shuffled = new byte[rawSize];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(stored);
+			int n = 0;
+			while (n < rawSize && !inflater.finished())
+				n += inflater.inflate(shuffled, n, rawSize-n);
+			if (n != rawSize) throw new IOException("Corrupted chunk in snapshot file");
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupted chunk in snapshot file");
+		} finally {
+			inflater.end();
+		}
+		return unshuffle(shuffled, bytesPerValue);
+	}
+
+	/**
+	 * Groups the bytes by their significance. The higher bytes of similar values are mostly
+	 * identical, which is exploited by the compression
+	 */
+	private static byte[] shuffle(ByteBuffer raw, int bytesPerValue){
+		int size = raw.limit();
+		byte[] out = new byte[size];
+		int values = size/bytesPerValue;
+		for (int i=0; i<values; i++)
+			for (int b=0; b<bytesPerValue; b++)
+				out[b*values+i] = raw.get(i*bytesPerValue+b);
+		return out;
+	}
+
+	private static ByteBuffer unshuffle(byte[] shuffled, int bytesPerValue){
+		int values = shuffled.length/bytesPerValue;
+		ByteBuffer bb = ByteBuffer.allocate(shuffled.length).order(ByteOrder.LITTLE_ENDIAN);
+		for (int i=0; i<values; i++)
+			for (int b=0; b<bytesPerValue; b++)
+				bb.put(i*bytesPerValue+b, shuffled[b*values+i]);
+		return bb;
+	}
+
+	static void writeFully(FileChannel channel, ByteBuffer bb, long position) throws IOException{
+		while (bb.hasRemaining())
+			position += channel.write(bb, position);
+	}
+
+	static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException{
+		while (bb.hasRemaining()){
+			int n = channel.read(bb, position);
+			if (n < 0) throw new IOException("Unexpected end of snapshot file");
+			position += n;
+		}
+	}
+}
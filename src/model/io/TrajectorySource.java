@@ -0,0 +1,212 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import model.Atom;
+import model.AtomData;
+import model.Filter;
+import processingModules.ProcessingModule;
+import processingModules.toolchain.Toolchain;
+import processingModules.toolchain.Toolchain.ReferenceMode;
+
+/**
+ * Provides the frames of a trajectory one after another, the trajectory can consist of
+ * a sequence of files and of files containing multiple frames.
+ * Files are opened only when they are reached, and only the frames selected in the options
+ * of the loader are provided.
+ * Each frame is processed by the toolchain when it is read. Only the frames needed as references by
+ * the toolchain are kept in memory, i.e. the first frame ({@link ReferenceMode#FIRST}),
+ * the previous frame ({@link ReferenceMode#PREVIOUS}) and the reference data set
+ * ({@link ReferenceMode#REF}), which must be provided by {@link #setReference(AtomData)}.
+ * All other frames are released, thus the memory needed to process long trajectories
+ * does not depend on the number of frames.
+ *
+ * The first and previous frames are linked in the list of AtomData in front of the current frame,
+ * the reference behind it, such that {@link Toolchain#getReferenceData(AtomData, ReferenceMode)}
+ * finds them. References to
+ * following frames ({@link ReferenceMode#NEXT}, {@link ReferenceMode#LAST}) are not supported.
+ */
+public class TrajectorySource {
+	private final MDFileLoader loader;
+	private final Toolchain toolchain;
+	private final List<File> files;
+	//Index of the next file to open
+	private int fileIndex = 0;
+	//Provides the frames of the current file, null for formats storing a single frame per file
+	private FrameIndex.FrameReader reader;
+	private File currentFile;
+	//Set once the current file is read, for formats storing a single frame per file
+	private boolean currentFileRead = false;
+
+	private final boolean keepFirst;
+	private final boolean keepPrevious;
+	private final boolean needsReference;
+
+	private AtomData first, previous, reference, current;
+
+	/**
+	 * @param loader the loader for the files
+	 * @param inputFiles the files in the order of the trajectory
+	 * @param toolchain applied on each frame, can be null
+	 * @throws IllegalArgumentException if the toolchain references following frames
+	 */
+	public TrajectorySource(MDFileLoader loader, List<File> inputFiles, Toolchain toolchain) {
+		this.loader = loader;
+		this.toolchain = toolchain;
+
+		boolean keepFirst = false, keepPrevious = false, needsReference = false;
+		if (toolchain != null){
+			for (ProcessingModule pm : toolchain.getProcessingModules()){
+				ReferenceMode mode = pm.getReferenceModeUsed();
+				if (mode == ReferenceMode.LAST || mode == ReferenceMode.NEXT)
+					throw new IllegalArgumentException("References to following frames cannot be resolved "
+							+ "while reading a trajectory frame by frame");
+				if (mode == ReferenceMode.FIRST) keepFirst = true;
+				if (mode == ReferenceMode.PREVIOUS) keepPrevious = true;
+				if (mode == ReferenceMode.REF) needsReference = true;
+			}
+		}
+		this.keepFirst = keepFirst;
+		this.keepPrevious = keepPrevious;
+		this.needsReference = needsReference;
+
+		this.files = new ArrayList<File>(inputFiles);
+	}
+
+	/**
+	 * Sets the data used by modules with the reference mode {@link ReferenceMode#REF}.
+	 * The data must be completely processed and is marked as reference
+	 * @param reference
+	 */
+	public void setReference(AtomData reference) {
+		this.reference = reference;
+		if (reference != null) reference.setAsReferenceForProcessingModule();
+	}
+
+	/**
+	 * Tests if another frame is selected. Files of which no frame is selected are skipped,
+	 * which may require indexing them.
+	 * @return
+	 * @throws IOException
+	 */
+	public boolean hasNext() throws IOException {
+		while (true){
+			if (currentFile != null){
+				if (reader == null ? !currentFileRead : reader.hasNext()) return true;
+			}
+			if (fileIndex == files.size()) return false;
+			//Files are indexed only when they are reached
+			currentFile = files.get(fileIndex++);
+			currentFileRead = false;
+			reader = loader.getFrameReader(currentFile);
+		}
+	}
+
+	/**
+	 * The file from which the next frame is read
+	 * @return
+	 * @throws IOException
+	 */
+	public File getNextFile() throws IOException {
+		if (!hasNext()) throw new NoSuchElementException();
+		return currentFile;
+	}
+
+	/**
+	 * Reads the next frame and applies the toolchain.
+	 * The frame returned by the previous call is released, unless it is needed as a reference,
+	 * and must not be used anymore.
+	 * @param atomFilter A filter that ignores certain atoms already during import.
+	 * Can be null, in which case no atoms are filtered
+	 * @return
+	 * @throws Exception
+	 */
+	public AtomData next(Filter<Atom> atomFilter) throws Exception {
+		if (!hasNext()) throw new NoSuchElementException();
+		if (needsReference && reference == null)
+			throw new IllegalStateException("The toolchain requires a reference, but none is set");
+
+		if (current != null){
+			if (keepFirst && first == null) first = current;
+			if (previous != null && previous != first)
+				previous.clear();
+			previous = null;
+			if (keepPrevious) previous = current;
+			else if (current != first) current.clear();
+			current = null;
+		}
+
+		AtomData predecessor = linkReferences();
+		AtomData data;
+		if (reader != null){
+			data = new AtomData(predecessor, reader.next(atomFilter));
+		} else {
+			data = loader.readInputData(currentFile, predecessor, atomFilter);
+			currentFileRead = true;
+		}
+
+		//The reference is appended behind the current frame, thus the current frame remains
+		//the first one in the list if no other frame has been read before
+		if (needsReference){
+			data.setNextToNull();
+			reference.setNextToNull();
+			reference.setPrevious(data);
+		}
+		
+		if (toolchain != null){
+			for (ProcessingModule pm : toolchain.getProcessingModules())
+				data.applyProcessingModule(pm);
+		}
+		current = data;
+		return data;
+	}
+
+	/**
+	 * Closes the file currently read, needed only if not all frames are read
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (reader != null) reader.close();
+		reader = null;
+	}
+
+	/**
+	 * Links the first and the previous frame, if they are kept as references
+	 * @return the last frame in the list, which is the predecessor of the next frame
+	 */
+	private AtomData linkReferences(){
+		List<AtomData> chain = new ArrayList<AtomData>();
+		if (first != null) chain.add(first);
+		if (previous != null && previous != first) chain.add(previous);
+		
+		AtomData last = null;
+		for (AtomData d : chain){
+			d.setNextToNull();
+			d.setPrevious(last);
+			last = d;
+		}
+		return last;
+	}
+}
@@ -43,11 +43,13 @@ public class XYZFileLoader extends MDFileLoader {
 
 	private BooleanProperty autoAtomNumbers = new BooleanProperty("autoNumbers", "Assign atom number",
 			"Generate a number for each atom in the order they appear in the file. Otherwise each atom is assigned 0", false);
+	private FrameIndex.Selection frameSelection = new FrameIndex.Selection();
 
 	@Override
 	public List<PrimitiveProperty<?>> getOptions(){
 		ArrayList<PrimitiveProperty<?>> list = new ArrayList<PrimitiveProperty<?>>();
 		list.add(autoAtomNumbers);
+		frameSelection.addOptions(list);
 		return list;
 	}
 	
@@ -58,138 +60,207 @@ public class XYZFileLoader extends MDFileLoader {
 	
 	@Override
 	public AtomData readInputData(File f, AtomData previous, Filter<Atom> atomFilter) throws Exception {
-		String line = null;
-		
+		return getFrameReader(f).readAll(previous, atomFilter);
+	}
+	
+	@Override
+	FrameIndex.FrameReader getFrameReader(final File f){
+		return new FrameIndex.FrameReader(f, this, frameSelection, new FrameIndex.FrameParser() {
+			@Override
+			public ImportDataContainer parseFrame(FrameIndex.LineInput in, String name, Filter<Atom> atomFilter) throws Exception {
+				return readFrame(in, name, atomFilter);
+			}
+		});
+	}
+	
+	@Override
+	public FrameIndex getFrameIndex(File f) throws IOException {
+		return FrameIndex.getIndex(f, new FrameIndex.FrameScanner() {
+			@Override
+			public FrameIndex.Frame scanFrame(FrameIndex.LineInput in, int index) throws IOException {
+				String line = in.readLine();
+				while (line != null && line.trim().isEmpty()) line = in.readLine();
+				if (line == null) return null;
+				
+				long offset = in.getLineStart();
+				int atomsCount = Integer.parseInt(line.trim());
+				long timestep = index;
+				float[] box = new float[12];
+				
+				String header = in.readLine();
+				if (header == null) throw new IOException("Incomplete frame at the end of the file");
+				Map<String, String> map = readKeyValuesFromHeader(header);
+				if (map != null){
+					if (map.containsKey("Lattice")){
+						Vec3[] lattice = splitLattice(map.get("Lattice"));
+						for (int i=0; i<3; i++){
+							box[3+3*i] = lattice[i].x;
+							box[4+3*i] = lattice[i].y;
+							box[5+3*i] = lattice[i].z;
+						}
+					}
+					for (String key : new String[]{"Timestep", "timestep", "Step", "step"}){
+						if (map.containsKey(key)){
+							try {
+								timestep = Long.parseLong(map.get(key));
+							} catch (NumberFormatException e){}
+							break;
+						}
+					}
+				}
+				
+				in.skipLines(atomsCount);
+				return new FrameIndex.Frame(index, offset, timestep, atomsCount, box);
+			}
+		});
+	}
+	
+	@Override
+	public AtomData readFrame(File f, FrameIndex.Frame frame, AtomData previous, Filter<Atom> atomFilter) throws Exception {
+		FrameIndex.LineInput in = FrameIndex.open(f);
+		try {
+			in.skipTo(frame.getOffset());
+			String name = String.format("%s (%05d)", f.getName(), frame.getIndex());
+			return new AtomData(previous, readFrame(in, name, atomFilter));
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * Reads a single frame starting at the current position of the input
+	 */
+	private ImportDataContainer readFrame(FrameIndex.LineInput in, String name, Filter<Atom> atomFilter) throws Exception {
 		ImportDataContainer idc = new ImportDataContainer();
-		Pattern p = Pattern.compile("\\s+");
 		
 		Map<String,Integer> typeMap = new TreeMap<String, Integer>(); 
 		
-		idc.name = f.getName();
+		idc.name = name;
 		
 		int atomNumber = 0;
 		
-		boolean gzipped = CommonUtils.isFileGzipped(f);
-		FileInputStream fis = new FileInputStream(f);
-		BufferedReader inputReader = CommonUtils.createBufferedReader(fis, gzipped);
+		String line = in.readLine(); // Number of atoms
+		while (line != null && line.trim().isEmpty()) line = in.readLine();
+		if (line == null) throw new IllegalArgumentException("No data found");
 		
-		try {
-			boolean extendedFormat = false;
-			line = inputReader.readLine(); // Number of atoms -> don't care
-			line = inputReader.readLine(); // Actual header
+		boolean extendedFormat = false;
+		int atomsCount = Integer.parseInt(line.trim());
+		line = in.readLine(); // Actual header
+		
+		Map<String, String> map = readKeyValuesFromHeader(line);
+		if (map != null) extendedFormat = true;
+		
+		if (extendedFormat){
 			
-			Map<String, String> map = readKeyValuesFromHeader(line);
-			if (map != null) extendedFormat = true;
+			int[] dataColumns = new int[ImportConfiguration.getInstance().getDataColumns().size()];
+			for (int i = 0; i<dataColumns.length; i++)
+				dataColumns[i] = -1;
 			
-			if (extendedFormat){
-				
-				int[] dataColumns = new int[ImportConfiguration.getInstance().getDataColumns().size()];
-				for (int i = 0; i<dataColumns.length; i++)
-					dataColumns[i] = -1;
-				
-				Vec3[] lattice = splitLattice(map.get("Lattice"));
-				idc.boxSizeX.setTo(lattice[0]);
-				idc.boxSizeY.setTo(lattice[1]);
-				idc.boxSizeZ.setTo(lattice[2]);
-				
-				if (map.containsKey("pbc")){
-					boolean[] pbc = splitPBC(map.get("pbc"));
-					idc.pbc[0] = pbc[0];
-					idc.pbc[1] = pbc[1];
-					idc.pbc[2] = pbc[2];
+			Vec3[] lattice = splitLattice(map.get("Lattice"));
+			idc.boxSizeX.setTo(lattice[0]);
+			idc.boxSizeY.setTo(lattice[1]);
+			idc.boxSizeZ.setTo(lattice[2]);
+			
+			if (map.containsKey("pbc")){
+				boolean[] pbc = splitPBC(map.get("pbc"));
+				idc.pbc[0] = pbc[0];
+				idc.pbc[1] = pbc[1];
+				idc.pbc[2] = pbc[2];
+			}
+			
+			idc.makeBox();
+			
+			String[][] properties = splitProperties(map.get("Properties"));
+			
+			for (int j = 0; j<properties.length; j++){
+				for (int i = 0; i<ImportConfiguration.getInstance().getDataColumns().size(); i++){
+				if (properties[j][0].equals(ImportConfiguration.getInstance().getDataColumns().get(i).getId()))
+					dataColumns[i] = j + 4;
 				}
+			}
+			
+			FieldScanner fields = new FieldScanner();
+			for (int i = 0; i < atomsCount; i++){
+				line = in.readLine();
+				if (line == null || line.isEmpty()) break;
+				fields.setLine(line);
+				String element = fields.getString(0);
+				int ele = 0;
 				
-				idc.makeBox();
+				if (!typeMap.containsKey(element))
+					typeMap.put(element, typeMap.size());
 				
-				String[][] properties = splitProperties(map.get("Properties"));
+				ele = typeMap.get(element);
+				Vec3 pos = new Vec3();
+				pos.x = fields.getFloat(1);
+				pos.y = fields.getFloat(2);
+				pos.z = fields.getFloat(3);
 				
-				for (int j = 0; j<properties.length; j++){
-					for (int i = 0; i<ImportConfiguration.getInstance().getDataColumns().size(); i++){
-					if (properties[j][0].equals(ImportConfiguration.getInstance().getDataColumns().get(i).getId()))
-						dataColumns[i] = j + 4;
-					}
-				}
+				idc.box.backInBox(pos);
 				
-				while ( (line = inputReader.readLine())!=null && !line.isEmpty()){
-					String[] parts = p.split(line);
-					String element = parts[0];
-					int ele = 0;
-					
-					if (!typeMap.containsKey(element))
-						typeMap.put(element, typeMap.size());
-					
-					ele = typeMap.get(element);
-					Vec3 pos = new Vec3();
-					pos.x = Float.parseFloat(parts[1]);
-					pos.y = Float.parseFloat(parts[2]);
-					pos.z = Float.parseFloat(parts[3]);
-					
-					idc.box.backInBox(pos);
-					
-					Atom a = new Atom(pos, atomNumber, (byte)ele);
-					if (autoAtomNumbers.getValue()) atomNumber++;
-					
-					if (atomFilter == null || atomFilter.accept(a)){
-						idc.atoms.add(a);
-						//Custom columns
-						for (int j = 0; j<dataColumns.length; j++){
-							if (dataColumns[j] != -1)
-								idc.dataArrays.get(j).add(Float.parseFloat(parts[dataColumns[j]]));
-						}
+				Atom a = new Atom(pos, atomNumber, (byte)ele);
+				if (autoAtomNumbers.getValue()) atomNumber++;
+				
+				if (atomFilter == null || atomFilter.accept(a)){
+					idc.atoms.add(a);
+					//Custom columns
+					for (int j = 0; j<dataColumns.length; j++){
+						if (dataColumns[j] != -1)
+							idc.dataArrays.get(j).add(fields.getFloat(dataColumns[j]));
 					}
 				}
+			}
+			
+			
+		} else {
+			Vec3 box = new Vec3();
+			
+			FieldScanner fields = new FieldScanner();
+			for (int i = 0; i < atomsCount; i++){
+				line = in.readLine();
+				if (line == null || line.isEmpty()) break;
+				fields.setLine(line);
+				String element = fields.getString(0);
+				int ele = 0;
 				
+				if (!typeMap.containsKey(element))
+					typeMap.put(element, typeMap.size());
 				
-			} else {
-				Vec3 box = new Vec3();
+				ele = typeMap.get(element);
+				Vec3 pos = new Vec3();
+				pos.x = fields.getFloat(1);
+				pos.y = fields.getFloat(2);
+				pos.z = fields.getFloat(3);
 				
-				while ( (line = inputReader.readLine())!=null){
-					String[] parts = p.split(line);
-					String element = parts[0];
-					int ele = 0;
-					
-					if (!typeMap.containsKey(element))
-						typeMap.put(element, typeMap.size());
-					
-					ele = typeMap.get(element);
-					Vec3 pos = new Vec3();
-					pos.x = Float.parseFloat(parts[1]);
-					pos.y = Float.parseFloat(parts[2]);
-					pos.z = Float.parseFloat(parts[3]);
+				Atom a = new Atom(pos, atomNumber, (byte)ele);
+				if (autoAtomNumbers.getValue()) atomNumber++;
+				idc.atoms.add(a);
+			}
+			
+			if (!extendedFormat){
+				Vec3 offset = new Vec3();
+				for (Atom a : idc.atoms){
+					if (a.x > box.x) box.x = a.x;
+					if (a.y > box.y) box.y = a.y;
+					if (a.z > box.z) box.z = a.z;
 					
-					Atom a = new Atom(pos, atomNumber, (byte)ele);
-					if (autoAtomNumbers.getValue()) atomNumber++;
-					idc.atoms.add(a);
+					if (a.x<offset.x) offset.x = a.x;
+					if (a.y<offset.y) offset.y = a.y;
+					if (a.z<offset.z) offset.z = a.z;
 				}
 				
-				if (!extendedFormat){
-					Vec3 offset = new Vec3();
-					for (Atom a : idc.atoms){
-						if (a.x > box.x) box.x = a.x;
-						if (a.y > box.y) box.y = a.y;
-						if (a.z > box.z) box.z = a.z;
-						
-						if (a.x<offset.x) offset.x = a.x;
-						if (a.y<offset.y) offset.y = a.y;
-						if (a.z<offset.z) offset.z = a.z;
-					}
-					
-					for (Atom a : idc.atoms){
-						a.sub(offset);
-					}
-					box.sub(offset);
-					
-					idc.offset.setTo(offset);
-					idc.boxSizeX.x = box.x;
-					idc.boxSizeY.y = box.y;
-					idc.boxSizeZ.z = box.z;
+				for (Atom a : idc.atoms){
+					a.sub(offset);
 				}
+				box.sub(offset);
 				
-				idc.makeBox();
+				idc.offset.setTo(offset);
+				idc.boxSizeX.x = box.x;
+				idc.boxSizeY.y = box.y;
+				idc.boxSizeZ.z = box.z;
 			}
 			
-		} finally {
-			inputReader.close();
+			idc.makeBox();
 		}
 		
 		//Add the names of the elements to the input
@@ -198,7 +269,7 @@ public class XYZFileLoader extends MDFileLoader {
 		}
 		idc.maxElementNumber = (byte)(typeMap.size());
 		
-		return new AtomData(previous, idc);
+		return idc;
 	}
 
 	@Override
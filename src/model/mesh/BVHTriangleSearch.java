@@ -0,0 +1,473 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2015  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.mesh;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+
+import common.ThreadPool;
+import common.Vec3;
+import model.BoxParameter;
+
+/**
+ * Exact closest triangle search using a bounding volume hierarchy of axis aligned boxes.
+ * The hierarchy is built on the first query using the surface area heuristic, the
+ * subtrees are built in parallel. Periodic boundary conditions are considered by querying
+ * the periodic images of a point that are close to the bounds of the mesh.
+ */
+public class BVHTriangleSearch<T extends Vec3> extends ClosestTriangleSearchAlgorithm<T>{
+	private static final int MAX_TRIANGLES_IN_LEAF = 4;
+	/**
+	 * Leaves are always split if they contain more triangles, even if the heuristic rates this as unfavorable
+	 */
+	private static final int MAX_TRIANGLES_IN_UNSPLITTABLE_LEAF = 32;
+	private static final int SAH_BINS = 16;
+	/**
+	 * Costs to traverse a node, relative to the costs of computing the distance to a triangle
+	 */
+	private static final float TRAVERSAL_COSTS = 0.5f;
+	/**
+	 * Subtrees smaller than this are always built by a single thread
+	 */
+	private static final int MIN_PARALLEL_SUBTREE_SIZE = 4096;
+
+	private ArrayList<FinalizedTriangle> addedTriangles = new ArrayList<FinalizedTriangle>();
+	private FinalizedTriangle[] triangles;
+	private BVHNode root;
+	private final float sqrThreshold;
+	private final ArrayList<Vec3> periodicShifts = new ArrayList<Vec3>();
+
+	public BVHTriangleSearch(float threshold, BoxParameter box) {
+		super(threshold, box);
+		this.sqrThreshold = threshold*threshold;
+
+		//The unshifted position is always tested first
+		periodicShifts.add(new Vec3());
+		boolean[] pbc = box.getPbc();
+		Vec3[] size = box.getBoxSize();
+		for (int i=-1; i<=1; i++){
+			if (i!=0 && !pbc[0]) continue;
+			for (int j=-1; j<=1; j++){
+				if (j!=0 && !pbc[1]) continue;
+				for (int k=-1; k<=1; k++){
+					if (k!=0 && !pbc[2]) continue;
+					if (i==0 && j==0 && k==0) continue;
+					Vec3 s = size[0].multiplyClone(i).add(size[1].multiplyClone(j)).add(size[2].multiplyClone(k));
+					periodicShifts.add(s);
+				}
+			}
+		}
+	}
+
+	@Override
+	public synchronized void add(FinalizedTriangle t) {
+		addedTriangles.add(t);
+		root = null;
+	}
+
+	/**
+	 * Provides the exact squared distance to the closest triangle
+	 * @return the squared distance or Float.MAX_VALUE if the mesh is empty
+	 */
+	@Override
+	public float sqrDistToMeshElement(Vec3 p) {
+		BVHNode root = getRoot();
+		if (root == null) return Float.MAX_VALUE;
+		return new Query().sqrDistToClosest(root, p);
+	}
+
+	/**
+	 * Returns all sites within the threshold distance to the mesh,
+	 * in the same order as in the given list.
+	 * The sites are processed in batches, one per thread, which share their traversal stack and test
+	 * the triangle found in the previous query first. For spatially ordered input, most queries are
+	 * thus resolved without traversing the hierarchy.
+	 */
+	@Override
+	public List<T> getElementsWithinThreshold(final List<T> sites) {
+		final BVHNode root = getRoot();
+		ArrayList<T> elementsWithin = new ArrayList<T>();
+		if (root == null) return elementsWithin;
+
+		final List<ArrayList<T>> partialResults = new ArrayList<ArrayList<T>>();
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(sites.size(), i);
+			final int end = ThreadPool.getSliceEnd(sites.size(), i);
+			final ArrayList<T> within = new ArrayList<T>();
+			partialResults.add(within);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					Query q = new Query();
+					for (int i=start; i<end; i++){
+						if ((i-start)%1000 == 0 && Thread.interrupted()) return null;
+						T a = sites.get(i);
+						if (q.isWithinThreshold(root, a))
+							within.add(a);
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		for (ArrayList<T> l : partialResults)
+			elementsWithin.addAll(l);
+		return elementsWithin;
+	}
+
+	private synchronized BVHNode getRoot(){
+		if (root == null && !addedTriangles.isEmpty())
+			build();
+		return root;
+	}
+
+	private void build(){
+		final FinalizedTriangle[] tri = addedTriangles.toArray(new FinalizedTriangle[addedTriangles.size()]);
+		final int n = tri.length;
+		final float[] bounds = new float[6*n];
+		final float[] centroids = new float[3*n];
+		final int[] index = new int[n];
+
+		//Precompute bounds and centroids of all triangles
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(n, i);
+			final int end = ThreadPool.getSliceEnd(n, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++){
+						FinalizedTriangle t = tri[i];
+						bounds[6*i+0] = Math.min(t.a.x, Math.min(t.b.x, t.c.x));
+						bounds[6*i+1] = Math.min(t.a.y, Math.min(t.b.y, t.c.y));
+						bounds[6*i+2] = Math.min(t.a.z, Math.min(t.b.z, t.c.z));
+						bounds[6*i+3] = Math.max(t.a.x, Math.max(t.b.x, t.c.x));
+						bounds[6*i+4] = Math.max(t.a.y, Math.max(t.b.y, t.c.y));
+						bounds[6*i+5] = Math.max(t.a.z, Math.max(t.b.z, t.c.z));
+						for (int j=0; j<3; j++)
+							centroids[3*i+j] = 0.5f*(bounds[6*i+j]+bounds[6*i+j+3]);
+						index[i] = i;
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		//Split the upper levels of the tree serially until enough subtrees exist to keep all threads busy
+		final Builder builder = new Builder(bounds, centroids, index);
+		BVHNode newRoot = builder.createNode(0, n);
+		ArrayList<BVHNode> deferred = new ArrayList<BVHNode>();
+		int deferSize = Math.max(MIN_PARALLEL_SUBTREE_SIZE, n/(4*ThreadPool.availProcessors()));
+		builder.split(newRoot, deferred, deferSize);
+
+		parallelTasks.clear();
+		for (final BVHNode node : deferred){
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					builder.split(node, null, 0);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		//Store the triangles in the order of the leaves
+		this.triangles = new FinalizedTriangle[n];
+		for (int i=0; i<n; i++)
+			this.triangles[i] = tri[index[i]];
+		this.root = newRoot;
+	}
+
+	private static class BVHNode {
+		float minX, minY, minZ, maxX, maxY, maxZ;
+		BVHNode left, right;
+		/**
+		 * Range of triangles in a leaf
+		 */
+		int start, end;
+
+		boolean isLeaf(){
+			return left == null;
+		}
+
+		float sqrDist(float x, float y, float z){
+			float dx = Math.max(0f, Math.max(minX-x, x-maxX));
+			float dy = Math.max(0f, Math.max(minY-y, y-maxY));
+			float dz = Math.max(0f, Math.max(minZ-z, z-maxZ));
+			return dx*dx+dy*dy+dz*dz;
+		}
+	}
+
+	/**
+	 * Recursive construction of the hierarchy using a binned surface area heuristic.
+	 * Different subtrees operate on disjoint ranges of the index array and can be built concurrently.
+	 */
+	private static class Builder {
+		private final float[] bounds, centroids;
+		private final int[] index;
+
+		Builder(float[] bounds, float[] centroids, int[] index){
+			this.bounds = bounds;
+			this.centroids = centroids;
+			this.index = index;
+		}
+
+		BVHNode createNode(int start, int end){
+			BVHNode node = new BVHNode();
+			node.start = start;
+			node.end = end;
+			node.minX = node.minY = node.minZ = Float.POSITIVE_INFINITY;
+			node.maxX = node.maxY = node.maxZ = Float.NEGATIVE_INFINITY;
+			for (int i=start; i<end; i++){
+				int t = 6*index[i];
+				node.minX = Math.min(node.minX, bounds[t+0]);
+				node.minY = Math.min(node.minY, bounds[t+1]);
+				node.minZ = Math.min(node.minZ, bounds[t+2]);
+				node.maxX = Math.max(node.maxX, bounds[t+3]);
+				node.maxY = Math.max(node.maxY, bounds[t+4]);
+				node.maxZ = Math.max(node.maxZ, bounds[t+5]);
+			}
+			return node;
+		}
+
+		/**
+		 * Splits the node recursively
+		 * @param node
+		 * @param deferred if not null, nodes with at most deferSize triangles are not split, but
+		 * added to this list instead
+		 * @param deferSize
+		 */
+		void split(BVHNode node, List<BVHNode> deferred, int deferSize){
+			int count = node.end-node.start;
+			if (count <= MAX_TRIANGLES_IN_LEAF) return;
+			if (deferred != null && count <= deferSize){
+				deferred.add(node);
+				return;
+			}
+
+			//Bounds of the centroids
+			float[] cMin = new float[]{Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY};
+			float[] cMax = new float[]{Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+			for (int i=node.start; i<node.end; i++){
+				for (int j=0; j<3; j++){
+					float c = centroids[3*index[i]+j];
+					if (c < cMin[j]) cMin[j] = c;
+					if (c > cMax[j]) cMax[j] = c;
+				}
+			}
+
+			//Evaluate the surface area heuristic for all bin borders on all axes
+			int bestAxis = -1, bestBin = -1;
+			float bestCosts = Float.POSITIVE_INFINITY;
+			int[] binCount = new int[SAH_BINS];
+			float[] binBounds = new float[6*SAH_BINS];
+			float[] rightArea = new float[SAH_BINS];
+			int[] rightCount = new int[SAH_BINS];
+			for (int axis=0; axis<3; axis++){
+				float extent = cMax[axis]-cMin[axis];
+				if (extent <= 0f) continue;
+
+				for (int b=0; b<SAH_BINS; b++){
+					binCount[b] = 0;
+					for (int j=0; j<3; j++){
+						binBounds[6*b+j] = Float.POSITIVE_INFINITY;
+						binBounds[6*b+j+3] = Float.NEGATIVE_INFINITY;
+					}
+				}
+				for (int i=node.start; i<node.end; i++){
+					int t = index[i];
+					int b = getBin(centroids[3*t+axis], cMin[axis], extent);
+					binCount[b]++;
+					for (int j=0; j<3; j++){
+						binBounds[6*b+j] = Math.min(binBounds[6*b+j], bounds[6*t+j]);
+						binBounds[6*b+j+3] = Math.max(binBounds[6*b+j+3], bounds[6*t+j+3]);
+					}
+				}
+
+				//Sweep from right to left, rightArea[b] are the bins b..SAH_BINS-1
+				float[] acc = newEmptyBounds();
+				int accCount = 0;
+				for (int b=SAH_BINS-1; b>0; b--){
+					accCount += binCount[b];
+					grow(acc, binBounds, b);
+					rightCount[b] = accCount;
+					rightArea[b] = area(acc);
+				}
+				//Sweep from left to right, splitting between bin b-1 and b
+				acc = newEmptyBounds();
+				accCount = 0;
+				for (int b=1; b<SAH_BINS; b++){
+					accCount += binCount[b-1];
+					grow(acc, binBounds, b-1);
+					if (accCount == 0 || rightCount[b] == 0) continue;
+					float costs = area(acc)*accCount + rightArea[b]*rightCount[b];
+					if (costs < bestCosts){
+						bestCosts = costs;
+						bestAxis = axis;
+						bestBin = b;
+					}
+				}
+			}
+
+			int mid;
+			if (bestAxis == -1){
+				//All centroids are identical, split by count
+				if (count <= MAX_TRIANGLES_IN_UNSPLITTABLE_LEAF) return;
+				mid = node.start + count/2;
+			} else {
+				float nodeArea = area(new float[]{node.minX, node.minY, node.minZ, node.maxX, node.maxY, node.maxZ});
+				float splitCosts = TRAVERSAL_COSTS + (nodeArea > 0f ? bestCosts/nodeArea : count);
+				if (splitCosts >= count && count <= MAX_TRIANGLES_IN_UNSPLITTABLE_LEAF) return;
+
+				//Partition the index range
+				float extent = cMax[bestAxis]-cMin[bestAxis];
+				int i = node.start, j = node.end-1;
+				while (i <= j){
+					if (getBin(centroids[3*index[i]+bestAxis], cMin[bestAxis], extent) < bestBin) i++;
+					else {
+						int tmp = index[i]; index[i] = index[j]; index[j] = tmp;
+						j--;
+					}
+				}
+				mid = i;
+			}
+
+			node.left = createNode(node.start, mid);
+			node.right = createNode(mid, node.end);
+			split(node.left, deferred, deferSize);
+			split(node.right, deferred, deferSize);
+		}
+
+		private static int getBin(float c, float min, float extent){
+			int b = (int)((c-min)/extent*SAH_BINS);
+			return Math.max(0, Math.min(SAH_BINS-1, b));
+		}
+
+		private static float[] newEmptyBounds(){
+			return new float[]{Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+					Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+		}
+
+		private static void grow(float[] b, float[] binBounds, int bin){
+			for (int j=0; j<3; j++){
+				b[j] = Math.min(b[j], binBounds[6*bin+j]);
+				b[j+3] = Math.max(b[j+3], binBounds[6*bin+j+3]);
+			}
+		}
+
+		private static float area(float[] b){
+			float dx = b[3]-b[0], dy = b[4]-b[1], dz = b[5]-b[2];
+			if (dx < 0f || dy < 0f || dz < 0f) return 0f;
+			return dx*dy + dy*dz + dz*dx;
+		}
+	}
+
+	/**
+	 * State of a sequence of queries processed by a single thread
+	 */
+	private class Query {
+		private BVHNode[] stack = new BVHNode[64];
+		private final Vec3 shifted = new Vec3();
+		/**
+		 * The triangle found within the threshold distance in the previous query
+		 */
+		private FinalizedTriangle lastHit;
+
+		boolean isWithinThreshold(BVHNode root, Vec3 p){
+			if (lastHit != null){
+				for (int s=0; s<periodicShifts.size(); s++){
+					shifted.setTo(p).add(periodicShifts.get(s));
+					if (lastHit.getMinSqrDist(shifted) < sqrThreshold) return true;
+				}
+			}
+
+			for (int s=0; s<periodicShifts.size(); s++){
+				shifted.setTo(p).add(periodicShifts.get(s));
+				if (root.sqrDist(shifted.x, shifted.y, shifted.z) >= sqrThreshold) continue;
+
+				int size = 0;
+				stack[size++] = root;
+				while (size > 0){
+					BVHNode node = stack[--size];
+					if (node.sqrDist(shifted.x, shifted.y, shifted.z) >= sqrThreshold) continue;
+					if (node.isLeaf()){
+						for (int i=node.start; i<node.end; i++){
+							if (triangles[i].getMinSqrDist(shifted) < sqrThreshold){
+								lastHit = triangles[i];
+								return true;
+							}
+						}
+					} else {
+						ensureStackSize(size+2);
+						stack[size++] = node.right;
+						stack[size++] = node.left;
+					}
+				}
+			}
+			return false;
+		}
+
+		float sqrDistToClosest(BVHNode root, Vec3 p){
+			float best = Float.MAX_VALUE;
+			for (int s=0; s<periodicShifts.size(); s++){
+				shifted.setTo(p).add(periodicShifts.get(s));
+				float x = shifted.x, y = shifted.y, z = shifted.z;
+				if (root.sqrDist(x, y, z) >= best) continue;
+
+				int size = 0;
+				stack[size++] = root;
+				while (size > 0){
+					BVHNode node = stack[--size];
+					if (node.sqrDist(x, y, z) >= best) continue;
+					if (node.isLeaf()){
+						for (int i=node.start; i<node.end; i++){
+							float d = triangles[i].getMinSqrDist(shifted);
+							if (d < best) best = d;
+						}
+					} else {
+						//Visit the closer child first
+						ensureStackSize(size+2);
+						if (node.left.sqrDist(x, y, z) < node.right.sqrDist(x, y, z)){
+							stack[size++] = node.right;
+							stack[size++] = node.left;
+						} else {
+							stack[size++] = node.left;
+							stack[size++] = node.right;
+						}
+					}
+				}
+			}
+			return best;
+		}
+
+		private void ensureStackSize(int size){
+			if (size > stack.length){
+				BVHNode[] newStack = new BVHNode[stack.length*2];
+				System.arraycopy(stack, 0, newStack, 0, stack.length);
+				stack = newStack;
+			}
+		}
+	}
+}
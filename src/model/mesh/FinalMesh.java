@@ -30,6 +30,7 @@ import java.util.List;
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL3;
 
+import common.Ray;
 import common.Vec3;
 
 public class FinalMesh {
@@ -135,6 +136,20 @@ public class FinalMesh {
 		return triangles;
 	}
 	
+	/**
+	 * Distance from the origin of the ray to the closest triangle of the mesh
+	 * @param ray
+	 * @return the distance or Float.POSITIVE_INFINITY if the mesh is not hit 
+	 */
+	public float intersect(Ray ray){
+		float closest = Float.POSITIVE_INFINITY;
+		for (int i=0; i<triangles.length; i+=3){
+			float d = ray.intersectTriangle(vertices, triangles[i], triangles[i+1], triangles[i+2]);
+			if (d < closest) closest = d;
+		}
+		return closest;
+	}
+	
 	private Vec3 getTriangleUnitNormal(int index){
 		return getTriangleNormal(index).normalize();
 	}
@@ -44,6 +44,14 @@ public class FinalizedTriangle implements MeshElement{
 	public Vec3 getVertex() {
 		return a;
 	}
+	
+	/**
+	 * The three corners of the triangle in the order they were given
+	 * @return array of length 3
+	 */
+	public Vec3[] getCorners() {
+		return new Vec3[]{a, b, c};
+	}
 
 	@Override
 	public boolean isPointInMesh(Vec3 p) {
@@ -46,69 +46,33 @@ public class HalfEdge implements MeshElement{
 		return true;
 	}
 	
+	/**
+	 * Tests if moving both vertices of this edge to the given coordinate
+	 * neither flips the normal of a remaining adjacent face nor creates a badly shaped face.
+	 * The mesh itself is not modified, thus the test can be run on several edges concurrently.
+	 * @param newCoord
+	 * @return
+	 */
 	public boolean isContractableForGivenPoint(Vec3 newCoord){
-//		if (!isContractable()) return false;
-		
-		//Test if contraction does not flip face normals
-		//Always contract to the node with the higher order
-		Vertex v1 = this.vertexEnd;
-		Vertex v2 = this.pair.vertexEnd;
-		
-		//Always contract to the node with the higher order
-		if (v2.compareTo(v1)>0){
-			v2 = this.pair.vertexEnd;
-			v1 = this.vertexEnd;
-		}
-		
-		Vec3 c = v1.clone();
-		
-		HalfEdge n = v1.neighborEdge;
-		do {
-			Triangle t1 = n.triangle;
-			//Test only triangles, that are not deleted during edge collapse
-			if (t1 != this.triangle  && t1 != this.pair.triangle){
-				Vec3 normal1 = t1.getNormalVector();
-				//Move node as in an merging process
-				v1.setTo(newCoord);
-				
-				boolean badlyShaped = t1.isBadlyShaped();
-				
-				Vec3 normal2 = t1.getNormalVector();
-				//Move node back
-				v1.setTo(c);
-				//Test if the face normal has flipped
-				if (normal1.dot(normal2)<0 || badlyShaped) 
-					return false;
-			}
-			n = n.pair.next;
-		} while (n!=v1.neighborEdge);
-		
-		
-		n = v2.neighborEdge;
-		c = v2.clone();
-		
+		return !isFlippingOrDegenerating(this.vertexEnd, newCoord) 
+				&& !isFlippingOrDegenerating(this.pair.vertexEnd, newCoord);
+	}
+	
+	private boolean isFlippingOrDegenerating(Vertex v, Vec3 newCoord){
+		HalfEdge n = v.neighborEdge;
 		do {
 			Triangle t1 = n.triangle;
 			//Test only triangles, that are not deleted during edge collapse
 			if (t1 != this.triangle  && t1 != this.pair.triangle){
-			
 				Vec3 normal1 = t1.getNormalVector();
-				//Move node as in an merging process
-				v2.setTo(newCoord);
-				Vec3 normal2 = t1.getNormalVector();
-				
-				boolean badlyShaped = t1.isBadlyShaped();
-				
-				//Move node back
-				v2.setTo(c);
+				Vec3 normal2 = t1.getNormalVector(v, newCoord);
 				//Test if the face normal has flipped
-				if (normal1.dot(normal2)<0 || badlyShaped) 
-					return false;
+				if (normal1.dot(normal2)<0 || t1.isBadlyShaped(v, newCoord)) 
+					return true;
 			}
 			n = n.pair.next;
-		} while (n!=v2.neighborEdge);
-		
-		return true;
+		} while (n!=v.neighborEdge);
+		return false;
 	}
 	
 	float getLength(){
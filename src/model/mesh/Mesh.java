@@ -21,6 +21,13 @@ package model.mesh;
 import java.awt.event.InputEvent;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import gnu.trove.iterator.TLongObjectIterator;
+import gnu.trove.map.hash.TLongIntHashMap;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
 
 import common.CommonUtils;
 import common.ThreadPool;
@@ -84,7 +91,6 @@ public class Mesh implements Callable<Void>, Pickable{
 	public synchronized void createMesh() {
 		if (isFinalized()) return;
 		final float invCellSize = 1f/CELL_SIZE;
-		int gridX, gridY, gridZ;
 		
 		for (int i=0; i<atomsInGrain.size(); i++){
 			Vec3 a = atomsInGrain.get(i);
@@ -100,114 +106,404 @@ public class Mesh implements Callable<Void>, Pickable{
 		lowerBounds.x -= HALF_CELL_SIZE; lowerBounds.y -= HALF_CELL_SIZE; lowerBounds.z -= HALF_CELL_SIZE;
 		upperBounds.x += HALF_CELL_SIZE; upperBounds.y += HALF_CELL_SIZE; upperBounds.z += HALF_CELL_SIZE;
 		
-		gridX = (int)(((upperBounds.x-lowerBounds.x)*invCellSize)+1)+2;
-		gridY = (int)(((upperBounds.y-lowerBounds.y)*invCellSize)+1)+2;
-		gridZ = (int)(((upperBounds.z-lowerBounds.z)*invCellSize)+1)+2;
+		int gridX = (int)(((upperBounds.x-lowerBounds.x)*invCellSize)+1)+2;
+		int gridY = (int)(((upperBounds.y-lowerBounds.y)*invCellSize)+1)+2;
+		int gridZ = (int)(((upperBounds.z-lowerBounds.z)*invCellSize)+1)+2;
 		
-		final byte[][][] grid = new byte[gridX][gridY][gridZ];
+		final OccupancyGrid grid = OccupancyGrid.createGrid(gridX, gridY, gridZ, atomsInGrain.size());
+		final int[][] cellOfAtom = new int[atomsInGrain.size()][];
 		
-		//Mark all cells containing a atom
+		//Compute the cell of each atom
 		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
 		for (int i=0; i<ThreadPool.availProcessors(); i++){
-			final int j = i;
+			final int start = ThreadPool.getSliceStart(atomsInGrain.size(), i);
+			final int end = ThreadPool.getSliceEnd(atomsInGrain.size(), i);
 			parallelTasks.add(new Callable<Void>() {
 				@Override
 				public Void call() throws Exception {
-					int start = (int)(((long)atomsInGrain.size() * j)/ThreadPool.availProcessors());
-					int end = (int)(((long)atomsInGrain.size() * (j+1))/ThreadPool.availProcessors());
-
 					for (int i=start; i<end; i++){
 						Vec3 a = atomsInGrain.get(i);
-						
-						int x = (int)((a.x-lowerBounds.x)*invCellSize)+1;
-						int y = (int)((a.y-lowerBounds.y)*invCellSize)+1;
-						int z = (int)((a.z-lowerBounds.z)*invCellSize)+1;
-						grid[x][y][z] = (byte)1;
+						cellOfAtom[i] = new int[]{
+							(int)((a.x-lowerBounds.x)*invCellSize)+1,
+							(int)((a.y-lowerBounds.y)*invCellSize)+1,
+							(int)((a.z-lowerBounds.z)*invCellSize)+1};
 					}
-					
 					return null;
 				}
 			});
 		}
 		ThreadPool.executeParallelSecondLevel(parallelTasks);
-				
+		
+		for (int[] c : cellOfAtom)
+			grid.allocate(c[0], c[1], c[2]);
+		
+		//Mark all cells containing a atom
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(atomsInGrain.size(), i);
+			final int end = ThreadPool.getSliceEnd(atomsInGrain.size(), i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++)
+						grid.set(cellOfAtom[i][0], cellOfAtom[i][1], cellOfAtom[i][2], (byte)1);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallelSecondLevel(parallelTasks);
+		
 		//Identify cells inside the grid which are completely surrounded with other filled cells
 		//Mark these cells, because the atoms stored there can be ignored during mesh refinement
-		for (int x=1; x<gridX-1; x++){
-			for (int y=1; y<gridY-1; y++){
-				for (int z=1; z<gridZ-1; z++){
-						if (grid[x-1][y-1][z-1] != 0 && grid[x-1][y-1][z+0] != 0 && grid[x-1][y-1][z+1] != 0 &&
-							grid[x-1][y+0][z-1] != 0 && grid[x-1][y+0][z+0] != 0 && grid[x-1][y+0][z+1] != 0 &&
-							grid[x-1][y+1][z-1] != 0 && grid[x-1][y+1][z+0] != 0 && grid[x-1][y+1][z+1] != 0 &&
-							grid[x+0][y-1][z-1] != 0 && grid[x+0][y-1][z+0] != 0 && grid[x+0][y-1][z+1] != 0 &&
-							grid[x+0][y+0][z-1] != 0 && grid[x+0][y+0][z+0] != 0 && grid[x+0][y+0][z+1] != 0 &&
-							grid[x+0][y+1][z-1] != 0 && grid[x+0][y+1][z+0] != 0 && grid[x+0][y+1][z+1] != 0 &&
-							grid[x+1][y-1][z-1] != 0 && grid[x+1][y-1][z+0] != 0 && grid[x+1][y-1][z+1] != 0 &&
-							grid[x+1][y+0][z-1] != 0 && grid[x+1][y+0][z+0] != 0 && grid[x+1][y+0][z+1] != 0 &&
-							grid[x+1][y+1][z-1] != 0 && grid[x+1][y+1][z+0] != 0 && grid[x+1][y+1][z+1] != 0) 
-						    	grid[x][y][z] = (byte)2;
+		//Only cells containing atoms need to be tested, marking a cell as inner cell (2) does not
+		//interfere with the tests of other cells since only empty cells (0) are relevant
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(atomsInGrain.size(), i);
+			final int end = ThreadPool.getSliceEnd(atomsInGrain.size(), i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++){
+						int x = cellOfAtom[i][0], y = cellOfAtom[i][1], z = cellOfAtom[i][2];
+						if (grid.get(x, y, z) != 1) continue;
+						boolean surrounded = true;
+						for (int dx=-1; dx<=1 && surrounded; dx++)
+							for (int dy=-1; dy<=1 && surrounded; dy++)
+								for (int dz=-1; dz<=1 && surrounded; dz++)
+									if (grid.get(x+dx, y+dy, z+dz) == 0) surrounded = false;
+						if (surrounded) grid.set(x, y, z, (byte)2);
+					}
+					return null;
 				}
-			}
+			});
 		}
+		ThreadPool.executeParallelSecondLevel(parallelTasks);
 		
 		//Include all atoms in boundary cells in a kd-tree
 		for (int i=0; i<atomsInGrain.size(); i++){
-			Vec3 a = atomsInGrain.get(i);
-			
-			int x = (int)((a.x-lowerBounds.x)*invCellSize)+1;
-			int y = (int)((a.y-lowerBounds.y)*invCellSize)+1;
-			int z = (int)((a.z-lowerBounds.z)*invCellSize)+1;
-			
-			if (grid[x][y][z] == (byte) 1)
-				nearestVertex.add(a);
+			if (grid.get(cellOfAtom[i][0], cellOfAtom[i][1], cellOfAtom[i][2]) == (byte) 1)
+				nearestVertex.add(atomsInGrain.get(i));
 		}
 		
-		TreeMap<int[],Vertex> vertexMap = new TreeMap<int[],Vertex>(new Comparator<int[]>() {
-			@Override
-			public int compare(int[] o1, int[] o2) {
-				if (o1[0]<o2[0]) return -1;
-				if (o1[0]>o2[0]) return 1;
-				
-				if (o1[1]<o2[1]) return -1;
-				if (o1[1]>o2[1]) return 1;
-				
-				if (o1[2]<o2[2]) return -1;
-				if (o1[2]>o2[2]) return 1;
-				return 0;
+		//Marching Tetrahedrons
+		//The grid is split into regions processed in parallel. In a first pass, the positions of all
+		//vertices are collected and the vertices are created in a deterministic order. In the second pass
+		//the triangles are created and their half edges are paired, half edges crossing region borders are
+		//paired afterwards
+		List<int[]> regions = grid.getCubeRegions(4*ThreadPool.availProcessors());
+		int numTasks = Math.min(regions.size(), ThreadPool.availProcessors());
+		List<MarchingTetrahedraTask> tasks = new ArrayList<MarchingTetrahedraTask>();
+		for (int i=0; i<numTasks; i++){
+			List<int[]> regionsInTask = new ArrayList<int[]>();
+			for (int j=i; j<regions.size(); j+=numTasks)
+				regionsInTask.add(regions.get(j));
+			tasks.add(new MarchingTetrahedraTask(regionsInTask, grid));
+		}
+		ThreadPool.executeParallelSecondLevel(tasks);
+		
+		TLongHashSet allKeys = new TLongHashSet();
+		for (MarchingTetrahedraTask t : tasks){
+			allKeys.addAll(t.vertexKeys);
+			t.vertexKeys.clear();
+		}
+		long[] keys = allKeys.toArray();
+		Arrays.sort(keys);
+		
+		TLongIntHashMap vertexIndex = new TLongIntHashMap(keys.length);
+		vertices = new ArrayList<Vertex>(keys.length);
+		for (long k : keys){
+			int x = (int)(k>>>42), y = (int)((k>>>21) & 0x1FFFFF), z = (int)(k & 0x1FFFFF);
+			Vertex v = new Vertex(
+					new Vec3(
+						lowerBounds.x+(x-1)*HALF_CELL_SIZE,
+						lowerBounds.y+(y-1)*HALF_CELL_SIZE,
+						lowerBounds.z+(z-1)*HALF_CELL_SIZE), 
+					id_source++);
+			vertexIndex.put(k, vertices.size());
+			vertices.add(v);
+		}
+		
+		for (MarchingTetrahedraTask t : tasks)
+			t.setVertices(vertexIndex, vertices);
+		ThreadPool.executeParallelSecondLevel(tasks);
+		
+		TLongObjectHashMap<HalfEdge> edgeToHalfEdgeMap = new TLongObjectHashMap<HalfEdge>();
+		for (MarchingTetrahedraTask t : tasks){
+			triangles.addAll(t.triangles);
+			TLongObjectIterator<HalfEdge> iter = t.edgeToHalfEdgeMap.iterator();
+			while (iter.hasNext()){
+				iter.advance();
+				pairHalfEdge(iter.key(), iter.value(), edgeToHalfEdgeMap);
 			}
-		});
+		}
+		atomsInGrain = null;
+	}
+	
+	/**
+	 * Creates the triangles in a set of regions of the occupancy grid
+	 * by the marching tetrahedrons algorithm.
+	 * If no vertices are provided, the keys of all vertices are collected instead.
+	 */
+	private class MarchingTetrahedraTask implements Callable<Void>{
+		private final List<int[]> regions;
+		private final OccupancyGrid grid;
 		
-		TreeMap<Edge, HalfEdge> edgeToHalfEdgeMap = new TreeMap<Edge, HalfEdge>();
+		private TLongIntHashMap vertexIndex;
+		private List<Vertex> vertices;
 		
-		int[][] cubeCoord = new int[8][3];
+		final TLongHashSet vertexKeys = new TLongHashSet();
+		final ArrayList<Triangle> triangles = new ArrayList<Triangle>();
+		//Unpaired half edges 
+		final TLongObjectHashMap<HalfEdge> edgeToHalfEdgeMap = new TLongObjectHashMap<HalfEdge>();
 		
-		//Marching Tetrahedrons
-		for (int x=0; x<gridX-1; ++x){
-			cubeCoord[0][0] = x  ; cubeCoord[4][0] = x  ;
-			cubeCoord[1][0] = x  ; cubeCoord[5][0] = x  ;
-			cubeCoord[2][0] = x+1; cubeCoord[6][0] = x+1;
-			cubeCoord[3][0] = x+1; cubeCoord[7][0] = x+1;
-			for (int y=0; y<gridY-1; ++y){
-				cubeCoord[0][1] = y  ; cubeCoord[4][1] = y  ;
-				cubeCoord[1][1] = y+1; cubeCoord[5][1] = y+1;
-				cubeCoord[2][1] = y+1; cubeCoord[6][1] = y+1;
-				cubeCoord[3][1] = y  ; cubeCoord[7][1] = y  ;
-				for (int z=0; z<gridZ-1; ++z){
-					cubeCoord[0][2] = z  ; cubeCoord[4][2] = z+1;
-					cubeCoord[1][2] = z  ; cubeCoord[5][2] = z+1;
-					cubeCoord[2][2] = z  ; cubeCoord[6][2] = z+1;
-					cubeCoord[3][2] = z  ; cubeCoord[7][2] = z+1;
-					
-					polyTetra(cubeCoord[0],cubeCoord[2],cubeCoord[3],cubeCoord[7],grid,vertexMap, edgeToHalfEdgeMap);
-			     	polyTetra(cubeCoord[0],cubeCoord[6],cubeCoord[2],cubeCoord[7],grid,vertexMap, edgeToHalfEdgeMap);
-			     	polyTetra(cubeCoord[0],cubeCoord[4],cubeCoord[6],cubeCoord[7],grid,vertexMap, edgeToHalfEdgeMap);
-			     	polyTetra(cubeCoord[0],cubeCoord[6],cubeCoord[1],cubeCoord[2],grid,vertexMap, edgeToHalfEdgeMap);
-			     	polyTetra(cubeCoord[6],cubeCoord[0],cubeCoord[1],cubeCoord[4],grid,vertexMap, edgeToHalfEdgeMap);
-					polyTetra(cubeCoord[6],cubeCoord[5],cubeCoord[4],cubeCoord[1],grid,vertexMap, edgeToHalfEdgeMap);
+		MarchingTetrahedraTask(List<int[]> regions, OccupancyGrid grid){
+			this.regions = regions;
+			this.grid = grid;
+		}
+		
+		void setVertices(TLongIntHashMap vertexIndex, List<Vertex> vertices){
+			this.vertexIndex = vertexIndex;
+			this.vertices = vertices;
+		}
+		
+		@Override
+		public Void call() throws Exception {
+			int[][] cubeCoord = new int[8][3];
+			for (int[] r : regions){
+				for (int x=r[0]; x<r[1]; ++x){
+					cubeCoord[0][0] = x  ; cubeCoord[4][0] = x  ;
+					cubeCoord[1][0] = x  ; cubeCoord[5][0] = x  ;
+					cubeCoord[2][0] = x+1; cubeCoord[6][0] = x+1;
+					cubeCoord[3][0] = x+1; cubeCoord[7][0] = x+1;
+					for (int y=r[2]; y<r[3]; ++y){
+						cubeCoord[0][1] = y  ; cubeCoord[4][1] = y  ;
+						cubeCoord[1][1] = y+1; cubeCoord[5][1] = y+1;
+						cubeCoord[2][1] = y+1; cubeCoord[6][1] = y+1;
+						cubeCoord[3][1] = y  ; cubeCoord[7][1] = y  ;
+						for (int z=r[4]; z<r[5]; ++z){
+							cubeCoord[0][2] = z  ; cubeCoord[4][2] = z+1;
+							cubeCoord[1][2] = z  ; cubeCoord[5][2] = z+1;
+							cubeCoord[2][2] = z  ; cubeCoord[6][2] = z+1;
+							cubeCoord[3][2] = z  ; cubeCoord[7][2] = z+1;
+							
+							//Cubes completely inside or outside produce no triangles
+							int filled = 0;
+							for (int i=0; i<8; i++)
+								if (grid.get(cubeCoord[i][0], cubeCoord[i][1], cubeCoord[i][2]) != 0) filled++;
+							if (filled == 0 || filled == 8) continue;
+							
+							polyTetra(cubeCoord[0],cubeCoord[2],cubeCoord[3],cubeCoord[7]);
+							polyTetra(cubeCoord[0],cubeCoord[6],cubeCoord[2],cubeCoord[7]);
+							polyTetra(cubeCoord[0],cubeCoord[4],cubeCoord[6],cubeCoord[7]);
+							polyTetra(cubeCoord[0],cubeCoord[6],cubeCoord[1],cubeCoord[2]);
+							polyTetra(cubeCoord[6],cubeCoord[0],cubeCoord[1],cubeCoord[4]);
+							polyTetra(cubeCoord[6],cubeCoord[5],cubeCoord[4],cubeCoord[1]);
+						}
+					}
 				}
-			}	
+			}
+			return null;
 		}
-		atomsInGrain = null;
+		
+		private void polyTetra(int[] c0, int[] c1, int[] c2, int[] c3){
+			int triindex = 0;
+			if (grid.get(c0[0], c0[1], c0[2]) >= 1) triindex |= 1;
+			if (grid.get(c1[0], c1[1], c1[2]) >= 1) triindex |= 2;
+			if (grid.get(c2[0], c2[1], c2[2]) >= 1) triindex |= 4;
+			if (grid.get(c3[0], c3[1], c3[2]) >= 1) triindex |= 8;
+		
+			Vertex a, b, c;
+			switch (triindex) {
+			case 0x00: break;
+			case 0x0F: break;
+		
+			case 0x01:
+				a = getVertex(c0, c1);
+				b = getVertex(c0, c2);
+				c = getVertex(c0, c3);
+				addTriangle(c, b, a);
+				break;
+			case 0x02:
+				a = getVertex(c1, c0);
+				b = getVertex(c1, c3);
+				c = getVertex(c1, c2);
+				addTriangle(c, b, a);
+				break;
+			case 0x04:
+				a = getVertex(c2, c0);
+				b = getVertex(c2, c1);
+				c = getVertex(c2, c3);
+				addTriangle(c, b, a);
+				break;
+			case 0x08:
+				a = getVertex(c3, c0);
+				b = getVertex(c3, c2);
+				c = getVertex(c3, c1);
+				addTriangle(c, b, a);
+				break;
+			
+			
+			case 0x0D:
+				a = getVertex(c1, c0);
+				b = getVertex(c1, c3);
+				c = getVertex(c1, c2);
+				addTriangle(a, b, c);
+				break;	
+			case 0x0E:
+				a = getVertex(c0, c1);
+				b = getVertex(c0, c2);
+				c = getVertex(c0, c3);
+				addTriangle(a, b, c);
+				break;
+			case 0x0B:
+				a = getVertex(c2, c0);
+				b = getVertex(c2, c1);
+				c = getVertex(c2, c3);
+				addTriangle(a, b, c);
+				break;	
+			case 0x07:
+				a = getVertex(c3, c0);
+				b = getVertex(c3, c2);
+				c = getVertex(c3, c1);
+				addTriangle(a, b, c);
+				break;
+		
+			
+			case 0x0C:
+				a = getVertex(c0, c3);
+				b = getVertex(c0, c2);
+				c = getVertex(c1, c3);
+				addTriangle(c, b, a);
+	//			c = getVertex(c0, c2);
+	//			a = getVertex(c1, c3);
+				a = c;
+				c = b;
+				b = getVertex(c1, c2);
+				addTriangle(a, b, c);
+		
+				break;
+			case 0x03:
+				a = getVertex(c0, c3);
+				b = getVertex(c0, c2);
+				c = getVertex(c1, c3);
+				addTriangle(a, b, c);
+	//			a = getVertex(c1, c3);
+				a = c;
+	//			c = getVertex(c0, c2);
+				c = b;
+				b = getVertex(c1, c2);
+				addTriangle(c, b, a);
+				break;
+			
+			case 0x0A:
+				a = getVertex(c0, c1);
+				b = getVertex(c2, c3);
+				c = getVertex(c0, c3);
+				addTriangle(a, b, c);
+	//			a = getVertex(c0, c1);
+	//			c = getVertex(c2, c3);
+				c = b;
+				b = getVertex(c1, c2);
+				addTriangle(a, b, c);
+				break;
+			case 0x05:
+				a = getVertex(c0, c1);
+				b = getVertex(c2, c3);
+				c = getVertex(c0, c3);
+				addTriangle(c, b, a);
+	//			a = getVertex(c0, c1);
+	//			c = getVertex(c2, c3);
+				c = b;
+				b = getVertex(c1, c2);
+				addTriangle(c, b, a);
+				break;
+			
+			case 0x09:
+				a = getVertex(c0, c1);
+				b = getVertex(c1, c3);
+				c = getVertex(c2, c3);
+				addTriangle(a, b, c);
+	//			a = getVertex(c0, c1);
+				b = getVertex(c0, c2);
+	//			c = getVertex(c2, c3);
+				addTriangle(c, b, a);
+				break;
+			case 0x06:
+				a = getVertex(c0, c1);
+				b = getVertex(c1, c3);
+				c = getVertex(c2, c3);
+				addTriangle(c, b, a);
+	//			a = getVertex(c0, c1);
+				b = getVertex(c0, c2);
+	//			c = getVertex(c2, c3);
+				addTriangle(a, b, c);
+				break;
+			}
+
+		}
+	
+		private Vertex getVertex(int[] c1, int[] c2){
+			long key = vertexKey(c1[0]+c2[0], c1[1]+c2[1], c1[2]+c2[2]);
+			if (vertices == null){
+				vertexKeys.add(key);
+				return null;
+			}
+			return vertices.get(vertexIndex.get(key));
+		}
+	
+		private void addTriangle(Vertex a, Vertex b, Vertex c){
+			//Only vertices are collected in the first pass 
+			if (vertices == null) return;
+		
+			HalfEdge he1 = new HalfEdge();
+			he1.vertexEnd = b;
+			HalfEdge he2 = new HalfEdge();
+			he2.vertexEnd = c;
+			HalfEdge he3 = new HalfEdge();
+			he3.vertexEnd = a;
+		
+			a.neighborEdge = he1; b.neighborEdge = he2; c.neighborEdge = he3;   
+			he1.next = he2; he2.next = he3; he3.next = he1;
+		
+			//Pairing half edges
+			pairHalfEdge(edgeKey(a,b), he1, edgeToHalfEdgeMap);
+			pairHalfEdge(edgeKey(b,c), he2, edgeToHalfEdgeMap);
+			pairHalfEdge(edgeKey(c,a), he3, edgeToHalfEdgeMap);
+		
+			Triangle t = new Triangle();
+			t.neighborEdge=he1;
+			he1.triangle = t; he2.triangle = t; he3.triangle = t;
+			triangles.add(t);
+		}
+	}
+	
+	/**
+	 * Key of a vertex located at the given coordinates, given in multiples of half the cell size
+	 */
+	private static long vertexKey(int x, int y, int z){
+		return ((long)x<<42) | ((long)y<<21) | (long)z;
+	}
+	
+	/**
+	 * Key of the undirected edge between two vertices
+	 */
+	private static long edgeKey(Vertex a, Vertex b){
+		assert a != b : "Illegal edge, vertex a and b identical";
+		int i = Math.min(a.getID(), b.getID());
+		int j = Math.max(a.getID(), b.getID());
+		return ((long)i<<32) | (long)j;
+	}
+	
+	/**
+	 * Pairs the half edge with an unpaired half edge on the same edge in the map
+	 * or stores it in the map if no such half edge exists
+	 */
+	private static void pairHalfEdge(long key, HalfEdge he, TLongObjectHashMap<HalfEdge> edgeToHalfEdgeMap){
+		HalfEdge pair = edgeToHalfEdgeMap.remove(key);
+		if (pair!=null) { 
+			pair.pair = he; he.pair = pair;
+		} else edgeToHalfEdgeMap.put(key, he);
 	}
 	
 	public FinalMesh getFinalMesh(){
@@ -233,212 +529,19 @@ public class Mesh implements Callable<Void>, Pickable{
 		else throw new RuntimeException("Mesh is not finalized");
 	}
 	
-	private void polyTetra(int[] c0, int[] c1, int[] c2, int[] c3, byte[][][] grid, 
-			TreeMap<int[], Vertex> vertexMap, TreeMap<Edge,HalfEdge> edgeMap){
-		int triindex = 0;
-		if (grid[c0[0]][c0[1]][c0[2]] >= 1) triindex |= 1;
-		if (grid[c1[0]][c1[1]][c1[2]] >= 1) triindex |= 2;
-		if (grid[c2[0]][c2[1]][c2[2]] >= 1) triindex |= 4;
-		if (grid[c3[0]][c3[1]][c3[2]] >= 1) triindex |= 8;
-		
-		Vertex a, b, c;
-		switch (triindex) {
-		case 0x00: break;
-		case 0x0F: break;
-		
-		case 0x01:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-			c = getVertex(c0, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-		case 0x02:
-			a = getVertex(c1, c0, vertexMap);
-			b = getVertex(c1, c3, vertexMap);
-			c = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-		case 0x04:
-			a = getVertex(c2, c0, vertexMap);
-			b = getVertex(c2, c1, vertexMap);
-			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-		case 0x08:
-			a = getVertex(c3, c0, vertexMap);
-			b = getVertex(c3, c2, vertexMap);
-			c = getVertex(c3, c1, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-			
-			
-		case 0x0D:
-			a = getVertex(c1, c0, vertexMap);
-			b = getVertex(c1, c3, vertexMap);
-			c = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;	
-		case 0x0E:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-			c = getVertex(c0, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;
-		case 0x0B:
-			a = getVertex(c2, c0, vertexMap);
-			b = getVertex(c2, c1, vertexMap);
-			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;	
-		case 0x07:
-			a = getVertex(c3, c0, vertexMap);
-			b = getVertex(c3, c2, vertexMap);
-			c = getVertex(c3, c1, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;
-		
-			
-		case 0x0C:
-			a = getVertex(c0, c3, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-			c = getVertex(c1, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-//			c = getVertex(c0, c2, vertexMap);
-//			a = getVertex(c1, c3, vertexMap);
-			a = c;
-			c = b;
-			b = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-		
-			break;
-		case 0x03:
-			a = getVertex(c0, c3, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-			c = getVertex(c1, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-//			a = getVertex(c1, c3, vertexMap);
-			a = c;
-//			c = getVertex(c0, c2, vertexMap);
-			c = b;
-			b = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-			
-		case 0x0A:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c2, c3, vertexMap);
-			c = getVertex(c0, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-//			a = getVertex(c0, c1, vertexMap);
-//			c = getVertex(c2, c3, vertexMap);
-			c = b;
-			b = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;
-		case 0x05:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c2, c3, vertexMap);
-			c = getVertex(c0, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-//			a = getVertex(c0, c1, vertexMap);
-//			c = getVertex(c2, c3, vertexMap);
-			c = b;
-			b = getVertex(c1, c2, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-			
-		case 0x09:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c1, c3, vertexMap);
-			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-//			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-//			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-			break;
-		case 0x06:
-			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c1, c3, vertexMap);
-			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(c, b, a, edgeMap));
-//			a = getVertex(c0, c1, vertexMap);
-			b = getVertex(c0, c2, vertexMap);
-//			c = getVertex(c2, c3, vertexMap);
-			triangles.add(createTriangle(a, b, c, edgeMap));
-			break;
-		}
-
-	}
-	
-	private Vertex getVertex(int[] c1, int[] c2, TreeMap<int[],Vertex> map){
-		int[] d = new int[]{
-			(c1[0]+c2[0]),
-			(c1[1]+c2[1]),
-			(c1[2]+c2[2]),
-		};
-				
-		Vertex v = map.get(d);
-		if (v == null){
-			v = new Vertex(
-					new Vec3(
-						lowerBounds.x+(d[0]-1)*HALF_CELL_SIZE,
-						lowerBounds.y+(d[1]-1)*HALF_CELL_SIZE,
-						lowerBounds.z+(d[2]-1)*HALF_CELL_SIZE), 
-					id_source++);
-			vertices.add(v);
-			map.put(d,v);
-		}
-
-		return v;
-	}
-	
-	private Triangle createTriangle(Vertex a, Vertex b, Vertex c, TreeMap<Edge, HalfEdge> edgeToHalfEdgeMap){
-		HalfEdge he1 = new HalfEdge();
-		he1.vertexEnd = b;
-		HalfEdge he2 = new HalfEdge();
-		he2.vertexEnd = c;
-		HalfEdge he3 = new HalfEdge();
-		he3.vertexEnd = a;
-		
-		a.neighborEdge = he1; b.neighborEdge = he2; c.neighborEdge = he3;   
-		he1.next = he2; he2.next = he3; he3.next = he1;
-		
-		//Pairing half edges
-		Edge e1 = new Edge(a,b);
-		HalfEdge pair1 = edgeToHalfEdgeMap.remove(e1);
-		if (pair1!=null) { 
-			pair1.pair = he1; he1.pair = pair1;
-		} else edgeToHalfEdgeMap.put(e1, he1);
-		
-		Edge e2 = new Edge(b,c);
-		HalfEdge pair2 = edgeToHalfEdgeMap.remove(e2);
-		if (pair2!=null) { 
-			pair2.pair = he2; he2.pair = pair2;
-		} else edgeToHalfEdgeMap.put(e2, he2);
-		
-		Edge e3 = new Edge(c,a);
-		HalfEdge pair3 = edgeToHalfEdgeMap.remove(e3);
-		if (pair3!=null) { 
-			pair3.pair = he3; he3.pair = pair3;
-		} else edgeToHalfEdgeMap.put(e3, he3);
-		
-		Triangle t = new Triangle();
-		t.neighborEdge=he1;
-		he1.triangle = t; he2.triangle = t; he3.triangle = t;
-		return t;
-	}
-	
 	/**
 	 * Collapsing an half edge and effectively remove the
 	 * end vertex from the mesh. The vertex is not deleted from the
 	 * list of vertices immediately, instead its edge is set to null
 	 * to indicate removal. After the mesh is simplified, all vertices with
 	 * nulled edges can be deleted in linear time.
+	 * Likewise, the two removed faces are added to a list and must be removed
+	 * from the set of triangles afterwards.
 	 * @param he
 	 * @param moveTo
+	 * @param removedTriangles
 	 */
-	private void edgeCollapse(HalfEdge he, Vec3 moveTo){
+	private void edgeCollapse(HalfEdge he, Vec3 moveTo, List<Triangle> removedTriangles){
 		HalfEdge hePair = he.pair;
 		
 		Vertex v1 = hePair.vertexEnd;
@@ -448,8 +551,8 @@ public class Mesh implements Callable<Void>, Pickable{
 		v1.setTo(moveTo);
 		
 		//Delete Faces
-		triangles.remove(he.triangle);
-		triangles.remove(hePair.triangle);
+		removedTriangles.add(he.triangle);
+		removedTriangles.add(hePair.triangle);
 		
 		Vertex v3 = he.next.vertexEnd;
 		Vertex v4 = hePair.next.vertexEnd;
@@ -572,119 +675,172 @@ public class Mesh implements Callable<Void>, Pickable{
 	}
 	
 	public void simplifyMesh(float maxCosts){
+		simplifyMesh(maxCosts, 0);
+	}
+	
+	/**
+	 * Simplifies the mesh by quadric error based edge collapses.
+	 * Edges are collapsed in rounds, in each round an independent set of edges is collapsed in parallel.
+	 * An edge is part of the set if it is the cheapest edge among all candidate edges that share any vertex
+	 * with the 1-rings of its two vertices. These collapses do not interfere with each other.
+	 * Only edges in the vicinity of collapsed edges are re-evaluated for the next round.
+	 * @param maxCosts Only edges with costs below this value are collapsed
+	 * @param targetNumTriangles The simplification stops once the number of triangles is reduced to this value
+	 */
+	public void simplifyMesh(float maxCosts, int targetNumTriangles){
 		if (maxCosts <= 0f) return;
 		if (finalMesh != null) return;
 		
-		final SortedMap<Vertex,float[]> vertexQs = Collections.synchronizedSortedMap(new TreeMap<Vertex, float[]>());
+		final float maxCost = maxCosts;
+		final float[][] vertexQs = new float[id_source][];
 		
-		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
-		for (int i=0; i<ThreadPool.availProcessors(); i++){
-			final int j = i;
-			parallelTasks.add(new Callable<Void>() {
-				@Override
-				public Void call() throws Exception {
-					int start = (int)((long)(vertices.size() * j)/ThreadPool.availProcessors());
-					int end = (int)((long)(vertices.size() * (j+1))/ThreadPool.availProcessors());
-
-					for (int i=start; i<end; i++){
-						Vertex v = vertices.get(i);
-						float[] q = new float[10];
-						ArrayList<Triangle> t = v.getAdjacentFaces();
-						for (int j=0; j<t.size(); j++){
-							Vec3 n = t.get(j).getUnitNormalVector();
-							float d = -n.dot(v);
-							
-							q[0] += n.x*n.x;	//a²
-							q[1] += n.x*n.y;	//ab
-							q[2] += n.x*n.z;	//ac
-							q[3] += n.x*d;		//ad
-							q[4] += n.y*n.y;	//b²
-							q[5] += n.y*n.z;	//bc
-							q[6] += n.y*d;		//bd
-							q[7] += n.z*n.z;	//c²
-							q[8] += n.z*d;		//cd
-							q[9] += d*d;		//d²
-						}
-						vertexQs.put(v, q);
-					}
-					return null;
+		parallelForEach(vertices, new VertexTask() {
+			@Override
+			public void process(Vertex v, List<Object> out) {
+				float[] q = new float[10];
+				ArrayList<Triangle> t = v.getAdjacentFaces();
+				for (int j=0; j<t.size(); j++){
+					Vec3 n = t.get(j).getUnitNormalVector();
+					float d = -n.dot(v);
+					
+					q[0] += n.x*n.x;	//a²
+					q[1] += n.x*n.y;	//ab
+					q[2] += n.x*n.z;	//ac
+					q[3] += n.x*d;		//ad
+					q[4] += n.y*n.y;	//b²
+					q[5] += n.y*n.z;	//bc
+					q[6] += n.y*d;		//bd
+					q[7] += n.z*n.z;	//c²
+					q[8] += n.z*d;		//cd
+					q[9] += d*d;		//d²
 				}
-			});
-		}
-		ThreadPool.executeParallelSecondLevel(parallelTasks);
+				vertexQs[v.getID()] = q;
+			}
+		});
 		
-		TreeSet<HalfEdgePair> sortedCosts = new TreeSet<HalfEdgePair>();
+		//Vertices that are modified in the current round, initially all vertices are to be evaluated
+		final AtomicIntegerArray dirtyInRound = new AtomicIntegerArray(id_source);
+		//Key of the cheapest collapse in the vicinity of each vertex 
+		final AtomicLongArray cheapestCollapse = new AtomicLongArray(id_source);
+		List<Vertex> dirtyVertices = new ArrayList<Vertex>(vertices);
+		List<CollapseCandidate> candidates = new ArrayList<CollapseCandidate>();
+		int round = 0;
 		
-		for (Triangle t : triangles){
-			HalfEdge n = t.neighborEdge;
-			if (n.isContractable()) sortedCosts.add(new HalfEdgePair(n, vertexQs));
-			n = n.next;
-			if (n.isContractable()) sortedCosts.add(new HalfEdgePair(n, vertexQs));
-			n = n.next;
-			if (n.isContractable()) sortedCosts.add(new HalfEdgePair(n, vertexQs));
-		}
-//		float[] m = new float[16];
-		
-		HalfEdgePair collapse = sortedCosts.pollFirst();
-		while (collapse != null && collapse.cost<maxCosts) {
-			HalfEdge n = collapse.a;
-			if (n.isContractable()){
-				Vertex a = collapse.a.vertexEnd;
-				Vertex b = collapse.b.vertexEnd;
-				
-				//Calculate new vertex costs
-				float[] q_sum = new float[10];
-				float[] v1_q = vertexQs.get(a);
-				float[] v2_q = vertexQs.get(b);
-				q_sum[0] = v1_q[0] + v2_q[0]; q_sum[1] = v1_q[1] + v2_q[1];
-				q_sum[2] = v1_q[2] + v2_q[2]; q_sum[3] = v1_q[3] + v2_q[3];
-				q_sum[4] = v1_q[4] + v2_q[4]; q_sum[5] = v1_q[5] + v2_q[5];
-				q_sum[6] = v1_q[6] + v2_q[6]; q_sum[7] = v1_q[7] + v2_q[7];
-				q_sum[8] = v1_q[8] + v2_q[8]; q_sum[9] = v1_q[9] + v2_q[9];
-				
-				//Something is wrong in this calculation, use center of the two points to contract instead
-//				//Calculate optimal contraction point
-//				m[0] = q_sum[0]; m[1] = q_sum[1]; m[2] = q_sum[2]; m[3] = q_sum[3];
-//				m[4] = q_sum[1]; m[5] = q_sum[4]; m[6] = q_sum[5]; m[7] = q_sum[6];
-//				m[8] = q_sum[2]; m[9] = q_sum[5]; m[10] = q_sum[7]; m[11] = q_sum[8];
-////				m[12] = 0f; m[13] = 0f; m[14] = 0f; 
-//				m[15] = 1f;
-//				
-//				Vec3 contractionPoint = calculateContractionPoint(m);
-//				if (contractionPoint == null) //Matrix is not invertable
-//					contractionPoint = a.addClone(b).multiply(0.5f);
-				
-				Vec3 contractionPoint = a.addClone(b).multiply(0.5f);
-				
-				if (n.isContractableForGivenPoint(contractionPoint)){
-					//remove all affected edges from costs
-					do {
-						sortedCosts.remove(new HalfEdgePair(n, vertexQs));
-						n = n.pair.next;
-					} while (n!=collapse.a);
-					
-					n = collapse.b;
+		while (true){
+			final int currentRound = round;
+			//Keep all candidates that are not affected by the previous round, evaluate edges at dirty vertices 
+			List<CollapseCandidate> validCandidates = new ArrayList<CollapseCandidate>();
+			for (CollapseCandidate c : candidates){
+				if (dirtyInRound.get(c.he.vertexEnd.getID()) != round && dirtyInRound.get(c.he.pair.vertexEnd.getID()) != round)
+					validCandidates.add(c);
+			}
+			for (Object o : parallelForEach(dirtyVertices, new VertexTask() {
+				@Override
+				public void process(Vertex v, List<Object> out) {
+					if (v.neighborEdge == null) return; //Deleted
+					HalfEdge n = v.neighborEdge;
 					do {
-						sortedCosts.remove(new HalfEdgePair(n, vertexQs));
+						Vertex w = n.vertexEnd;
+						//Each edge only once
+						boolean wIsDirty = currentRound == 0 || dirtyInRound.get(w.getID()) == currentRound;
+						if (!wIsDirty || w.getID() > v.getID()){
+							//Always collapse the edge onto the vertex with the higher id
+							HalfEdge he = w.getID() < v.getID() ? n : n.pair;
+							CollapseCandidate c = createCollapseCandidate(he, vertexQs, maxCost);
+							if (c != null) out.add(c);
+						}
 						n = n.pair.next;
-					} while (n!=collapse.b);
-					
-					edgeCollapse(collapse.a, contractionPoint);
+					} while (n!=v.neighborEdge);
+				}
+			})) validCandidates.add((CollapseCandidate)o);
+			candidates = validCandidates;
+			
+			if (candidates.isEmpty() || triangles.size() <= targetNumTriangles) break;
+			
+			//Select independent edges to collapse as local minima
+			for (int i=0; i<candidates.size(); i++)
+				candidates.get(i).key = ((long)Float.floatToIntBits(candidates.get(i).cost) << 32) | i;
+			
+			parallelForEachCandidate(candidates, new CandidateTask() {
+				@Override
+				public void process(CollapseCandidate c, List<Object> out) {
+					for (Vertex v : c.affectedVertices)
+						cheapestCollapse.set(v.getID(), Long.MAX_VALUE);
+				}
+			});
+			parallelForEachCandidate(candidates, new CandidateTask() {
+				@Override
+				public void process(CollapseCandidate c, List<Object> out) {
+					for (Vertex v : c.affectedVertices){
+						long current = cheapestCollapse.get(v.getID());
+						while (c.key < current && !cheapestCollapse.compareAndSet(v.getID(), current, c.key))
+							current = cheapestCollapse.get(v.getID());
+					}
+				}
+			});
+			List<Object> selectedObjects = parallelForEachCandidate(candidates, new CandidateTask() {
+				@Override
+				public void process(CollapseCandidate c, List<Object> out) {
+					for (Vertex v : c.affectedVertices)
+						if (cheapestCollapse.get(v.getID()) != c.key) return;
+					out.add(c);
+				}
+			});
+			List<CollapseCandidate> selected = new ArrayList<CollapseCandidate>(selectedObjects.size());
+			for (Object o : selectedObjects) selected.add((CollapseCandidate)o);
+			
+			//Do not collapse more edges than needed to reach the target, each collapse removes two triangles
+			int maxCollapses = (triangles.size() - targetNumTriangles + 1)/2;
+			if (selected.size() > maxCollapses){
+				Collections.sort(selected);
+				selected = selected.subList(0, maxCollapses);
+			}
+			
+			//Collapse and mark the vicinity as dirty
+			round++;
+			final int nextRound = round;
+			List<Object> removedTrianglesAndDirtyVertices = parallelForEachCandidate(selected, new CandidateTask() {
+				@Override
+				public void process(CollapseCandidate c, List<Object> out) {
+					Vertex removed = c.he.vertexEnd;
+					Vertex remaining = c.he.pair.vertexEnd;
+					float[] q_sum = new float[10];
+					float[] v1_q = vertexQs[removed.getID()];
+					float[] v2_q = vertexQs[remaining.getID()];
+					for (int i=0; i<10; i++)
+						q_sum[i] = v1_q[i] + v2_q[i];
 					
-					//Update vertex costs
-					vertexQs.remove(a);
-					vertexQs.put(b, q_sum);
+					List<Triangle> removedTriangles = new ArrayList<Triangle>(2);
+					edgeCollapse(c.he, c.contractionPoint, removedTriangles);
+					out.addAll(removedTriangles);
+					vertexQs[removed.getID()] = null;
+					vertexQs[remaining.getID()] = q_sum;
 					
-					//reinsert edges to costs
-					n = collapse.b.vertexEnd.neighborEdge;
+					//All edges with a vertex within two hops of the remaining vertex need to be re-evaluated
+					markDirty(remaining, nextRound, dirtyInRound, out);
+					HalfEdge n = remaining.neighborEdge;
 					do {
-						if (n.isContractable()) 
-							sortedCosts.add(new HalfEdgePair(n, vertexQs));
+						Vertex w = n.vertexEnd;
+						markDirty(w, nextRound, dirtyInRound, out);
+						HalfEdge n2 = w.neighborEdge;
+						do {
+							markDirty(n2.vertexEnd, nextRound, dirtyInRound, out);
+							n2 = n2.pair.next;
+						} while (n2 != w.neighborEdge);
 						n = n.pair.next;
-					} while (n!=collapse.b.vertexEnd.neighborEdge);
+					} while (n!=remaining.neighborEdge);
+					//The removed vertex must be excluded from remaining candidates as well
+					dirtyInRound.set(removed.getID(), nextRound);
 				}
+			});
+			
+			dirtyVertices = new ArrayList<Vertex>();
+			Set<Triangle> removedTriangles = new HashSet<Triangle>();
+			for (Object o : removedTrianglesAndDirtyVertices){
+				if (o instanceof Vertex) dirtyVertices.add((Vertex)o);
+				else removedTriangles.add((Triangle)o);
 			}
-			collapse = sortedCosts.pollFirst();
+			triangles.removeAll(removedTriangles);
 		}
 		
 		//Remove all vertices marked as deleted from the list
@@ -694,6 +850,108 @@ public class Mesh implements Callable<Void>, Pickable{
 		vertices = newVertices;
 	}
 	
+	private static void markDirty(Vertex v, int round, AtomicIntegerArray dirtyInRound, List<Object> dirtyVertices){
+		int old = dirtyInRound.get(v.getID());
+		if (old != round && dirtyInRound.compareAndSet(v.getID(), old, round))
+			dirtyVertices.add(v);
+	}
+	
+	/**
+	 * Creates a candidate to collapse the given half edge, the end vertex of the half edge is removed
+	 * @return the candidate or null if the edge cannot be collapsed
+	 */
+	private CollapseCandidate createCollapseCandidate(HalfEdge he, float[][] vertexQs, float maxCosts){
+		if (!he.isContractable()) return null;
+		float cost = calculateEdgeCost(he, vertexQs);
+		if (!(cost < maxCosts)) return null;
+		Vec3 contractionPoint = he.vertexEnd.addClone(he.pair.vertexEnd).multiply(0.5f);
+		if (!he.isContractableForGivenPoint(contractionPoint)) return null;
+		return new CollapseCandidate(he, Math.max(0f, cost), contractionPoint);
+	}
+	
+	private class CollapseCandidate implements Comparable<CollapseCandidate>{
+		final HalfEdge he;
+		final float cost;
+		final Vec3 contractionPoint;
+		/**
+		 * The vertices that are read or modified during a collapse:
+		 * both vertices of the edge and their adjacent vertices.
+		 * Remains valid as long as none of the two vertices is marked as dirty
+		 */
+		final List<Vertex> affectedVertices;
+		long key;
+		
+		CollapseCandidate(HalfEdge he, float cost, Vec3 contractionPoint) {
+			this.he = he;
+			this.cost = cost;
+			this.contractionPoint = contractionPoint;
+			this.affectedVertices = he.vertexEnd.getAdjacentVertices();
+			this.affectedVertices.add(he.vertexEnd);
+			this.affectedVertices.addAll(he.pair.vertexEnd.getAdjacentVertices());
+		}
+		
+		@Override
+		public int compareTo(CollapseCandidate o) {
+			return this.key < o.key ? -1 : (this.key > o.key ? 1 : 0);
+		}
+	}
+	
+	private interface VertexTask {
+		void process(Vertex v, List<Object> out);
+	}
+	
+	private interface CandidateTask {
+		void process(CollapseCandidate c, List<Object> out);
+	}
+	
+	private static List<Object> parallelForEach(final List<Vertex> list, final VertexTask task){
+		final List<List<Object>> results = new ArrayList<List<Object>>();
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(list.size(), i);
+			final int end = ThreadPool.getSliceEnd(list.size(), i);
+			final List<Object> out = new ArrayList<Object>();
+			results.add(out);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++)
+						task.process(list.get(i), out);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallelSecondLevel(parallelTasks);
+		
+		List<Object> all = new ArrayList<Object>();
+		for (List<Object> r : results) all.addAll(r);
+		return all;
+	}
+	
+	private static List<Object> parallelForEachCandidate(final List<CollapseCandidate> list, final CandidateTask task){
+		final List<List<Object>> results = new ArrayList<List<Object>>();
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(list.size(), i);
+			final int end = ThreadPool.getSliceEnd(list.size(), i);
+			final List<Object> out = new ArrayList<Object>();
+			results.add(out);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i=start; i<end; i++)
+						task.process(list.get(i), out);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallelSecondLevel(parallelTasks);
+		
+		List<Object> all = new ArrayList<Object>();
+		for (List<Object> r : results) all.addAll(r);
+		return all;
+	}
+	
 	private float calculateVertexCost(Vec3 v, float[] q){
 		float c = (q[0]*v.x + q[1]*v.y + q[2]*v.z + q[3])*v.x;
 			 c += (q[1]*v.x + q[4]*v.y + q[5]*v.z + q[6])*v.y;
@@ -702,13 +960,13 @@ public class Mesh implements Callable<Void>, Pickable{
 		return c;
 	}
 	
-	private float calculateEdgeCost(HalfEdge he, SortedMap<Vertex,float[]> vertexQs){
+	private float calculateEdgeCost(HalfEdge he, float[][] vertexQs){
 		Vertex a = he.vertexEnd;
 		Vertex b = he.pair.vertexEnd;
 		Vec3 v_average = a.addClone(b).multiply(0.5f);
 		float[] q_sum = new float[10];
-		float[] v1_q = vertexQs.get(a);
-		float[] v2_q = vertexQs.get(b);
+		float[] v1_q = vertexQs[a.getID()];
+		float[] v2_q = vertexQs[b.getID()];
 		q_sum[0] = v1_q[0] + v2_q[0]; q_sum[1] = v1_q[1] + v2_q[1];
 		q_sum[2] = v1_q[2] + v2_q[2]; q_sum[3] = v1_q[3] + v2_q[3];
 		q_sum[4] = v1_q[4] + v2_q[4]; q_sum[5] = v1_q[5] + v2_q[5];
@@ -794,41 +1052,6 @@ public class Mesh implements Callable<Void>, Pickable{
 		return (finalMesh != null);
 	}
 	
-	private class HalfEdgePair implements Comparable<HalfEdgePair>{
-		public HalfEdge a,b;
-		public float cost;
-		
-		public HalfEdgePair(HalfEdge a, SortedMap<Vertex, float[]> vertexQs){
-			HalfEdge b = a.pair;
-			if (a.vertexEnd.compareTo(b.vertexEnd)<0){
-				this.a = a;
-				this.b = b;
-			} else {
-				this.a = b;
-				this.b = a;
-			}
-			
-			this.cost = calculateEdgeCost(a, vertexQs);
-		}
-
-		@Override
-		public boolean equals(Object obj) {
-			HalfEdgePair hep = (HalfEdgePair) obj;
-			return this.a.vertexEnd == hep.a.vertexEnd && this.b.vertexEnd == hep.b.vertexEnd;
-		}
-		
-		@Override
-		public int compareTo(HalfEdgePair o) {
-			if (this.cost < o.cost) return -1;
-			if (this.cost > o.cost) return 1;
-			if (this.a.vertexEnd.compareTo(o.a.vertexEnd)<0) return 1; 
-			if (this.a.vertexEnd.compareTo(o.a.vertexEnd)>0) return -1;
-			if (this.b.vertexEnd.compareTo(o.b.vertexEnd)<0) return 1; 
-			if (this.b.vertexEnd.compareTo(o.b.vertexEnd)>0) return -1;
-			return 0;
-		}
-	}
-	
 	@SuppressWarnings("unused")
 	private Vec3 calculateContractionPoint(float[] mat) {
 		//this is a 4x4 matrix inverter, but only the entries 3,7 and 11
@@ -867,28 +1090,6 @@ public class Mesh implements Callable<Void>, Pickable{
 		return dst;
 	}
 	
-	private class Edge implements Comparable<Edge>{
-		public Vertex a, b;
-		
-		public Edge(Vertex a, Vertex b) {
-			assert a != b : "Illegal edge, vertex a and b identical";
-			if (a.compareTo(b) < 0) {
-				this.a = a; this.b = b;
-			} else {
-				this.a = b; this.b = a;
-			}
-		}
-
-		@Override
-		public int compareTo(Edge o) {
-			if (this.a.compareTo(o.a) < 0) return 1; 
-			if (this.a.compareTo(o.a) > 0) return -1;
-			if (this.b.compareTo(o.b) < 0) return 1; 
-			if (this.b.compareTo(o.b) > 0) return -1;
-			return 0;
-		}
-	}
-
 	@Override
 	public Collection<?> getHighlightedObjects() {
 		return null;
@@ -0,0 +1,187 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2013  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package model.mesh;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import gnu.trove.map.hash.TLongObjectHashMap;
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * Grid of cells storing a single byte per cell, used to mark occupied cells during meshing.
+ * Cells outside the allocated area are always 0.
+ * Reading and setting values from multiple threads is safe,
+ * allocating new cells via {@link #allocate(int, int, int)} is not.
+ */
+abstract class OccupancyGrid {
+	final int sizeX, sizeY, sizeZ;
+
+	OccupancyGrid(int sizeX, int sizeY, int sizeZ){
+		this.sizeX = sizeX;
+		this.sizeY = sizeY;
+		this.sizeZ = sizeZ;
+	}
+
+	/**
+	 * Creates a dense grid, or a sparse grid if a dense grid would
+	 * mostly consist of empty cells, e.g. for very elongated or scattered sets of points
+	 * @param sizeX
+	 * @param sizeY
+	 * @param sizeZ
+	 * @param numPoints the number of points to be inserted into the grid
+	 * @return
+	 */
+	static OccupancyGrid createGrid(int sizeX, int sizeY, int sizeZ, int numPoints){
+		long cells = (long)sizeX * sizeY * sizeZ;
+		if (cells > Integer.MAX_VALUE - 8 || cells > 32L*numPoints + (1<<22))
+			return new SparseOccupancyGrid(sizeX, sizeY, sizeZ);
+		return new DenseOccupancyGrid(sizeX, sizeY, sizeZ);
+	}
+
+	abstract byte get(int x, int y, int z);
+
+	/**
+	 * Sets the value of the cell, the cell must have been allocated
+	 */
+	abstract void set(int x, int y, int z, byte value);
+
+	/**
+	 * Ensures that the given cell can be set, not thread-safe
+	 */
+	abstract void allocate(int x, int y, int z);
+
+	/**
+	 * Returns regions {xMin, xMax, yMin, yMax, zMin, zMax} (max exclusive) of cube origins
+	 * for which the eight cells (x..x+1, y..y+1, z..z+1) may not be all empty.
+	 * The regions are disjoint and returned in a deterministic order
+	 * @param minRegions the minimal number of regions requested to balance work among threads
+	 * @return
+	 */
+	abstract List<int[]> getCubeRegions(int minRegions);
+
+	private static class DenseOccupancyGrid extends OccupancyGrid {
+		private final byte[] data;
+
+		DenseOccupancyGrid(int sizeX, int sizeY, int sizeZ){
+			super(sizeX, sizeY, sizeZ);
+			this.data = new byte[sizeX*sizeY*sizeZ];
+		}
+
+		@Override
+		byte get(int x, int y, int z){
+			return data[(x*sizeY+y)*sizeZ+z];
+		}
+
+		@Override
+		void set(int x, int y, int z, byte value){
+			data[(x*sizeY+y)*sizeZ+z] = value;
+		}
+
+		@Override
+		void allocate(int x, int y, int z) {}
+
+		@Override
+		List<int[]> getCubeRegions(int minRegions){
+			//Slabs along the x-axis
+			int cubesX = sizeX-1;
+			int slabs = Math.max(1, Math.min(cubesX, minRegions));
+			List<int[]> regions = new ArrayList<int[]>();
+			for (int i=0; i<slabs; i++){
+				int start = (int)((long)cubesX*i/slabs);
+				int end = (int)((long)cubesX*(i+1)/slabs);
+				if (end>start)
+					regions.add(new int[]{start, end, 0, sizeY-1, 0, sizeZ-1});
+			}
+			return regions;
+		}
+	}
+
+	/**
+	 * Only blocks of 8x8x8 cells that contain non-zero values are allocated
+	 */
+	private static class SparseOccupancyGrid extends OccupancyGrid {
+		private static final int SHIFT = 3;
+		private static final int BLOCK_SIZE = 1<<SHIFT;
+		private static final int MASK = BLOCK_SIZE-1;
+
+		private final TLongObjectHashMap<byte[]> blocks = new TLongObjectHashMap<byte[]>();
+
+		SparseOccupancyGrid(int sizeX, int sizeY, int sizeZ){
+			super(sizeX, sizeY, sizeZ);
+		}
+
+		private static long key(int bx, int by, int bz){
+			return ((long)bx<<42) | ((long)by<<21) | (long)bz;
+		}
+		
+		private static int index(int x, int y, int z){
+			return ((x&MASK)*BLOCK_SIZE + (y&MASK))*BLOCK_SIZE + (z&MASK);
+		}
+
+		@Override
+		byte get(int x, int y, int z){
+			byte[] b = blocks.get(key(x>>SHIFT, y>>SHIFT, z>>SHIFT));
+			if (b == null) return 0;
+			return b[index(x, y, z)];
+		}
+
+		@Override
+		void set(int x, int y, int z, byte value){
+			byte[] b = blocks.get(key(x>>SHIFT, y>>SHIFT, z>>SHIFT));
+			b[index(x, y, z)] = value;
+		}
+
+		@Override
+		void allocate(int x, int y, int z){
+			long k = key(x>>SHIFT, y>>SHIFT, z>>SHIFT);
+			if (!blocks.containsKey(k))
+				blocks.put(k, new byte[BLOCK_SIZE*BLOCK_SIZE*BLOCK_SIZE]);
+		}
+
+		@Override
+		List<int[]> getCubeRegions(int minRegions){
+			//A cube touches the cells in its own block and the blocks in positive directions
+			//thus the cubes in each allocated block and the blocks in negative direction must be processed
+			TLongHashSet candidates = new TLongHashSet();
+			for (long k : blocks.keys()){
+				int bx = (int)(k>>>42), by = (int)((k>>>21) & 0x1FFFFF), bz = (int)(k & 0x1FFFFF);
+				for (int i=Math.max(0, bx-1); i<=bx; i++)
+					for (int j=Math.max(0, by-1); j<=by; j++)
+						for (int l=Math.max(0, bz-1); l<=bz; l++)
+							candidates.add(key(i, j, l));
+			}
+			long[] keys = candidates.toArray();
+			Arrays.sort(keys);
+
+			List<int[]> regions = new ArrayList<int[]>(keys.length);
+			for (long k : keys){
+				int bx = (int)(k>>>42), by = (int)((k>>>21) & 0x1FFFFF), bz = (int)(k & 0x1FFFFF);
+				int[] r = new int[]{
+						bx*BLOCK_SIZE, Math.min(sizeX-1, (bx+1)*BLOCK_SIZE),
+						by*BLOCK_SIZE, Math.min(sizeY-1, (by+1)*BLOCK_SIZE),
+						bz*BLOCK_SIZE, Math.min(sizeZ-1, (bz+1)*BLOCK_SIZE)};
+				if (r[0]<r[1] && r[2]<r[3] && r[4]<r[5])
+					regions.add(r);
+			}
+			return regions;
+		}
+	}
+}
@@ -65,14 +65,43 @@ public class Triangle implements MeshElement{
 		return 0.5f*v1.cross(v2).getLength();
 	}
 	
+	/**
+	 * The normal vector of this triangle if vertex v would be located at newCoord 
+	 */
+	Vec3 getNormalVector(Vertex v, Vec3 newCoord){
+		Vec3[] p = getVerticesMoved(v, newCoord);
+		return p[1].subClone(p[0]).cross(p[2].subClone(p[0]));
+	}
+	
 	boolean isBadlyShaped(){
+		Vertex[] v = getVertices();
+		return isBadlyShaped(v[0], v[1], v[2]);
+	}
+	
+	/**
+	 * Test if this triangle would be badly shaped if vertex v would be located at newCoord 
+	 */
+	boolean isBadlyShaped(Vertex v, Vec3 newCoord){
+		Vec3[] p = getVerticesMoved(v, newCoord);
+		return isBadlyShaped(p[0], p[1], p[2]);
+	}
+	
+	private Vec3[] getVerticesMoved(Vertex v, Vec3 newCoord){
+		Vertex[] vert = getVertices();
+		Vec3[] p = new Vec3[]{vert[0], vert[1], vert[2]};
+		for (int i=0; i<3; i++)
+			if (p[i] == v) p[i] = newCoord;
+		return p;
+	}
+	
+	private static boolean isBadlyShaped(Vec3 a, Vec3 b, Vec3 c){
 		//Test area vs. edge length, length of the basis should not be 10 times larger than the heigth
-		float area = getArea();
-		float l = neighborEdge.getLength(); 
+		float area = 0.5f*b.subClone(a).cross(c.subClone(a)).getLength();
+		float l = a.getDistTo(b); 
 		if (area/l < l*0.1f) return true;
-		l = neighborEdge.next.getLength(); 
+		l = b.getDistTo(c); 
 		if (area/l < l*0.1f) return true;
-		l = neighborEdge.next.next.getLength(); 
+		l = c.getDistTo(a); 
 		if (area/l < l*0.1f) return true;
 		return false;
 	}
@@ -21,12 +21,14 @@ package model.polygrain;
 import java.awt.event.InputEvent;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import common.CommonUtils;
 import common.ThreadPool;
 import common.Tupel;
 import common.Vec3;
 import crystalStructures.CrystalStructure;
+import gui.ProgressMonitor;
 import model.*;
 import model.mesh.*;
 
@@ -37,7 +39,10 @@ public class Grain implements Pickable{
 	private CrystalRotationTools rotTools;
 	private List<Atom> atomsInGrain;
 	private int grainNumber, numAtoms;
-	private Future<Void> f;
+	/**
+	 * Creates the mesh, either scheduled by {@link #createMeshes(List)} or on demand in {@link #getMesh()}
+	 */
+	private final FutureTask<Void> f;
 	
 	public Grain(Mesh mesh, List<Atom> atomsInGrain, int grainNumber, CrystalStructure cs, BoxParameter box) {
 		this.cs = cs;
@@ -59,7 +64,7 @@ public class Grain implements Pickable{
 		for (Atom a : atomsInGrain)
 			a.setGrain(grainNumber);
 		
-		this.f = ThreadPool.submit(mesh);
+		this.f = new FutureTask<Void>(mesh);
 	}
 	
 	public Grain(Mesh mesh, List<Atom> atomsInGrain, int grainNumber, CrystalStructure cs, Vec3[] latticeRotation) {
@@ -73,29 +78,21 @@ public class Grain implements Pickable{
 		for (Atom a : atomsInGrain)
 			a.setGrain(grainNumber);
 		
-		this.f = ThreadPool.submit(mesh);
+		this.f = new FutureTask<Void>(mesh);
 	}
 	
 	
 	public static void processGrains(final AtomData data, float filterDistance){
 		if (filterDistance==0f || data.isGrainsImported()) return; 
 		
-		//The BSPTree implementation is often slower
 		final float threshold = filterDistance;
-		final ClosestTriangleSearchAlgorithm<Atom> ctsa = 
-//				new ClosestTriangleSearchBruteForce<Atom>(threshold, data.getBox(), data.getCrystalStructure().getDistanceToNearestNeighbor());		 
-				new GridRasterTriangleSearch<Atom>(threshold, data.getBox());
-		
+		final ClosestTriangleSearchAlgorithm<Atom> ctsa = new BVHTriangleSearch<Atom>(threshold, data.getBox());
 		
-		ArrayList<FinalizedTriangle> trias = new ArrayList<FinalizedTriangle>();
 		for (Grain g : data.getGrains()){
-			trias.addAll(g.getMesh().getTriangles());
+			for (FinalizedTriangle t : g.getMesh().getTriangles())
+				ctsa.add(t);
 		}
 		
-		Collections.shuffle(trias);
-		for (FinalizedTriangle t : trias)
-			ctsa.add(t);
-		
 		List<Atom> closeToMesh = ctsa.getElementsWithinThreshold(data.getAtoms());
 		
 		for (Atom a : closeToMesh){
@@ -107,16 +104,76 @@ public class Grain implements Pickable{
 		}
 	}
 	
-	public synchronized Mesh getMesh() {
-		if (f!=null){
-			try {
-				f.get();
-				f = null;
-			} catch (InterruptedException e) {
+	/**
+	 * Creates the meshes of all grains as independent tasks, the largest grains are scheduled first.
+	 * The calling thread processes meshes as well, thus the method can be safely called from within
+	 * a thread of the ThreadPool. Each mesh uses the second level ThreadPool for its internal loops.
+	 * Returns once all meshes are created.
+	 * @param grains
+	 */
+	public static void createMeshes(List<Grain> grains){
+		final ArrayList<Grain> sorted = new ArrayList<Grain>(grains);
+		Collections.sort(sorted, new Comparator<Grain>() {
+			@Override
+			public int compare(Grain o1, Grain o2) {
+				int s1 = o1.atomsInGrain.size(), s2 = o2.atomsInGrain.size();
+				return s1 > s2 ? -1 : (s1 < s2 ? 1 : 0);
+			}
+		});
+		
+		long totalAtoms = 0l;
+		for (Grain g : sorted)
+			totalAtoms += g.atomsInGrain.size();
+		ProgressMonitor.getProgressMonitor().start(totalAtoms);
+		
+		final AtomicInteger next = new AtomicInteger();
+		Callable<Void> worker = new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				int i;
+				while ((i = next.getAndIncrement()) < sorted.size()){
+					Grain g = sorted.get(i);
+					g.f.run();
+					ProgressMonitor.getProgressMonitor().addToCounter(g.atomsInGrain.size());
+				}
 				return null;
-			} catch (ExecutionException e) {
-				e.printStackTrace();
 			}
+		};
+		
+		int numWorkers = Math.min(ThreadPool.availProcessors(), sorted.size());
+		ArrayList<Future<Void>> workers = new ArrayList<Future<Void>>();
+		for (int i=1; i<numWorkers; i++)
+			workers.add(ThreadPool.submit(worker));
+		
+		try {
+			worker.call();
+			//Meshes may still be in progress in other threads
+			for (Future<Void> w : workers)
+				w.get();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		
+		for (Grain g : sorted)
+			g.getMesh();
+		
+		ProgressMonitor.getProgressMonitor().stop();
+	}
+	
+	/**
+	 * Provides the mesh of this grain, the mesh is created in the calling thread if it
+	 * is not yet created or scheduled
+	 * @return
+	 */
+	public Mesh getMesh() {
+		//Does nothing if the task is already running or completed
+		f.run();
+		try {
+			f.get();
+		} catch (InterruptedException e) {
+			return null;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
 		}
 		return mesh;
 	}
@@ -6,34 +6,19 @@ import model.Atom;
 
 public class AtomToGrainObject extends Vec3 {
 
-	private GrainObject grain = null;
-	private Atom atom;
-	
-	public AtomToGrainObject(Atom atom){
+	private final Atom atom;
+	/**
+	 * Position of this object in the list of atoms processed by the GrainDetector
+	 */
+	final int index;
+
+	AtomToGrainObject(Atom atom, int index){
 		this.atom = atom;
+		this.index = index;
 		this.setTo(atom);
 	}
-	
+
 	public Atom getAtom() {
 		return atom;
 	}
-	
-	/**
-	 * Sets the grain of this object to the given object
-	 * @param grain the new grain
-	 * @return the previous grainObject, if not null 
-	 */
-	public GrainObject setGrainObject(GrainObject grain){
-		GrainObject oldObject = this.grain;
-		this.grain = grain;
-		return oldObject;
-	}
-	
-	public synchronized boolean isGrainObjectNull(){
-		return grain == null;
-	}
-	
-	public GrainObject getGrainObject(){
-		return grain;
-	}
 }
@@ -1,95 +1,222 @@
 package model.polygrain.grainDetection;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import common.ThreadPool;
 import model.Atom;
 import model.BoxParameter;
 import model.NearestNeighborBuilder;
 
+/**
+ * Identifies grains as connected components of atoms.
+ * An atom is called expanding if {@link GrainDetectionCriteria#includeAtom(AtomToGrainObject, List)}
+ * is true. All expanding atoms that are nearest neighbors belong to the same grain.
+ * Non-expanding atoms are assigned to the grain of one of their expanding neighbors, but do not
+ * connect grains themselves. Grains are tested in the order of their first atom passing
+ * {@link GrainDetectionCriteria#acceptAsFirstAtomInGrain(Atom, List)}, a non-expanding atom belongs
+ * to the first accepted grain it is adjacent to. A grain is only accepted if at least one of its expanding atoms passes
+ * {@link GrainDetectionCriteria#acceptAsFirstAtomInGrain(Atom, List)} and if it contains more
+ * than {@link GrainDetectionCriteria#getMinNumberOfAtoms()} atoms.
+ *
+ * The components are computed with a lock-free union-find structure that is build in parallel.
+ */
 public class GrainDetector {
-	
+
+	private static final int NO_GRAIN = -1;
+
 	public static List<List<Atom>> identifyGrains(List<Atom> atoms, final GrainDetectionCriteria gdc, BoxParameter box){
 		final List<List<Atom>> allDetectedGrainSets = new ArrayList<List<Atom>>();
-		
-		GrainObject.init();
-		final NearestNeighborBuilder<AtomToGrainObject> nnb = new NearestNeighborBuilder<AtomToGrainObject>( 
-				box, gdc.getNeighborDistance());
-		ArrayList<AtomToGrainObject> allAtoms = new ArrayList<AtomToGrainObject>(atoms.size());
-		
+
+		final NearestNeighborBuilder<AtomToGrainObject> nnb = new NearestNeighborBuilder<AtomToGrainObject>(
+				box, gdc.getNeighborDistance(), true);
+		final ArrayList<AtomToGrainObject> allAtoms = new ArrayList<AtomToGrainObject>(atoms.size());
+
 		for (int i=0; i<atoms.size();i++){
-			if (gdc.includeAtom(atoms.get(i))){
-				AtomToGrainObject atog = new AtomToGrainObject(atoms.get(i));
-				nnb.add(atog);
-				allAtoms.add(atog);
+			if (gdc.includeAtom(atoms.get(i)))
+				allAtoms.add(new AtomToGrainObject(atoms.get(i), allAtoms.size()));
+		}
+		nnb.addAll(allAtoms);
+
+		final int size = allAtoms.size();
+		final boolean[] expanding = new boolean[size];
+		final boolean[] startAtom = new boolean[size];
+		final AtomicIntegerArray parent = new AtomicIntegerArray(size);
+
+		//Step 1: Classify atoms as expanding and as possible start atoms of a grain
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(size, i);
+			final int end = ThreadPool.getSliceEnd(size, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j=start; j<end; j++){
+						AtomToGrainObject a = allAtoms.get(j);
+						ArrayList<AtomToGrainObject> neigh = nnb.getNeigh(a);
+						expanding[j] = gdc.includeAtom(a, neigh);
+						startAtom[j] = expanding[j] && gdc.acceptAsFirstAtomInGrain(a.getAtom(), neigh);
+						parent.set(j, j);
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		//Step 2: Union of all pairs of expanding neighbors
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(size, i);
+			final int end = ThreadPool.getSliceEnd(size, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j=start; j<end; j++){
+						if (!expanding[j]) continue;
+						for (AtomToGrainObject n : nnb.getNeigh(allAtoms.get(j))){
+							//Each pair is visited from both sides, one union is sufficient
+							if (n.index > j && expanding[n.index])
+								union(parent, j, n.index);
+						}
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		//Step 3: Flatten the trees. Roots are always the smallest index in a component,
+		//thus a single forward pass is sufficient. Propagate whether a component can form a grain
+		//Components are ordered by their first start atom, the order in which grains are grown
+		final boolean[] validRoot = new boolean[size];
+		int[] rootOrder = new int[size];
+		int numValidRoots = 0;
+		for (int j=0; j<size; j++){
+			if (!expanding[j]) continue;
+			int r = parent.get(parent.get(j));
+			while (r != parent.get(r)) r = parent.get(r);
+			parent.set(j, r);
+			if (startAtom[j] && !validRoot[r]){
+				validRoot[r] = true;
+				rootOrder[numValidRoots++] = r;
 			}
 		}
-		
-		final AtomListHandler alh = new AtomListHandler(allAtoms);
-	
-		AtomToGrainObject atog = null;
-		while ( (atog = alh.getNextStartAtom()) != null) {
-			
-			ArrayList<AtomToGrainObject> neighA = nnb.getNeigh(atog);
-			if (!gdc.acceptAsFirstAtomInGrain(atog.getAtom(), neighA)) continue;
-			
-			GrainObject grainObj = new GrainObject();
-			
-			ArrayList<AtomToGrainObject> stack = new ArrayList<AtomToGrainObject>();
-			//From each item in the grain array the bfs is continued
-			//There is no need to keep a second list, the index of processed
-			//atoms is enough
-			int queuePosition = 0;
-			GrainObject oldGrain = atog.setGrainObject(grainObj);
-			stack.add(atog);	
-
-			while (queuePosition < stack.size()) {
-				AtomToGrainObject c = stack.get(queuePosition++);
-				
-				ArrayList<AtomToGrainObject> neighC = nnb.getNeigh(c);
-				
-				if (gdc.includeAtom(c, neighC)) {
-					for (int i = 0; i < neighC.size(); i++) {
-						oldGrain = neighC.get(i).setGrainObject(grainObj);
-						if (oldGrain == null)
-							stack.add(neighC.get(i));
+
+		//Step 4: Find the adjacent components of all non-expanding atoms
+		final int[][] adjacentRoots = new int[size][];
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(size, i);
+			final int end = ThreadPool.getSliceEnd(size, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int[] roots = new int[16];
+					for (int j=start; j<end; j++){
+						if (expanding[j]) continue;
+						int n = 0;
+						for (AtomToGrainObject a : nnb.getNeigh(allAtoms.get(j))){
+							if (!expanding[a.index]) continue;
+							int r = parent.get(a.index);
+							if (!validRoot[r]) continue;
+							boolean known = false;
+							for (int k=0; k<n && !known; k++)
+								known = roots[k] == r;
+							if (known) continue;
+							if (n == roots.length) roots = Arrays.copyOf(roots, 2*n);
+							roots[n++] = r;
+						}
+						if (n > 0) adjacentRoots[j] = Arrays.copyOf(roots, n);
 					}
+					return null;
 				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		//Step 5: Accept components in the order of their first start atom. A non-expanding atom belongs
+		//to the first accepted component it is adjacent to. It is counted for every component that is
+		//tested before, since atoms of discarded components are available for later ones
+		int[] expandingSize = new int[size];
+		int[] adjacentCount = new int[size+1];
+		for (int j=0; j<size; j++){
+			if (expanding[j]){
+				if (validRoot[parent.get(j)]) expandingSize[parent.get(j)]++;
+			} else if (adjacentRoots[j] != null){
+				for (int r : adjacentRoots[j]) adjacentCount[r+1]++;
 			}
-			
-			if (stack.size() > gdc.getMinNumberOfAtoms()){
-				ArrayList<Atom> at = new ArrayList<Atom>();
-				for (AtomToGrainObject a : stack)
-					at.add(a.getAtom());
-				
-				allDetectedGrainSets.add(at);
-			} else {
-				for (AtomToGrainObject a : stack)
-					a.setGrainObject(null);
+		}
+		for (int j=0; j<size; j++)
+			adjacentCount[j+1] += adjacentCount[j];
+		int[] adjacentAtoms = new int[adjacentCount[size]];
+		int[] fill = Arrays.copyOf(adjacentCount, size);
+		for (int j=0; j<size; j++){
+			if (adjacentRoots[j] != null)
+				for (int r : adjacentRoots[j]) adjacentAtoms[fill[r]++] = j;
+		}
+
+		int[] grainIndex = new int[size];
+		int[] claimedBy = new int[size];
+		Arrays.fill(grainIndex, NO_GRAIN);
+		Arrays.fill(claimedBy, NO_GRAIN);
+		List<Integer> grainSize = new ArrayList<Integer>();
+		for (int i=0; i<numValidRoots; i++){
+			int r = rootOrder[i];
+			int s = expandingSize[r];
+			for (int k=adjacentCount[r]; k<adjacentCount[r+1]; k++)
+				if (claimedBy[adjacentAtoms[k]] == NO_GRAIN) s++;
+			if (s > gdc.getMinNumberOfAtoms()){
+				grainIndex[r] = grainSize.size();
+				grainSize.add(s);
+				for (int k=adjacentCount[r]; k<adjacentCount[r+1]; k++)
+					if (claimedBy[adjacentAtoms[k]] == NO_GRAIN) claimedBy[adjacentAtoms[k]] = r;
 			}
 		}
-		
+
+		for (int s : grainSize)
+			allDetectedGrainSets.add(new ArrayList<Atom>(s));
+		for (int j=0; j<size; j++){
+			int r = expanding[j] ? parent.get(j) : claimedBy[j];
+			if (r != NO_GRAIN && grainIndex[r] != NO_GRAIN)
+				allDetectedGrainSets.get(grainIndex[r]).add(allAtoms.get(j).getAtom());
+		}
+
 		return allDetectedGrainSets;
 	}
-		
-	private static class AtomListHandler{
-		ArrayList<AtomToGrainObject> allAtoms;
-		int i = 0;
-		
-		AtomListHandler(ArrayList<AtomToGrainObject> allAtoms) {
-			this.allAtoms = allAtoms;
+
+	/**
+	 * Lock-free find with path halving
+	 */
+	private static int find(AtomicIntegerArray parent, int i){
+		int p = parent.get(i);
+		while (p != i){
+			int gp = parent.get(p);
+			//Path halving, failures are harmless since other threads only move nodes closer to the root
+			parent.compareAndSet(i, p, gp);
+			i = gp;
+			p = parent.get(i);
 		}
-		
-		synchronized AtomToGrainObject getNextStartAtom(){
-			AtomToGrainObject nextNullObject = null;
-			while (i<allAtoms.size() && nextNullObject == null){
-				if (allAtoms.get(i).isGrainObjectNull()){
-					nextNullObject = allAtoms.get(i);
-				}
-				i++;
+		return i;
+	}
+
+	/**
+	 * Lock-free union, the root with the larger index is attached to the root with the smaller one
+	 */
+	private static void union(AtomicIntegerArray parent, int a, int b){
+		while (true){
+			a = find(parent, a);
+			b = find(parent, b);
+			if (a == b) return;
+			if (a > b){
+				int t = a; a = b; b = t;
 			}
-			
-			return nextNullObject;
+			//Only succeeds if b is still a root, otherwise retry with the new roots
+			if (parent.compareAndSet(b, b, a)) return;
 		}
 	}
 }
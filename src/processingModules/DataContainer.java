@@ -23,7 +23,9 @@ import gui.ViewerGLJPanel;
 
 import com.jogamp.opengl.GL3;
 
+import common.Ray;
 import model.AtomData;
+import model.PickingHit;
 
 public abstract class DataContainer {
 	
@@ -44,6 +46,27 @@ public abstract class DataContainer {
 	
 	public abstract JDataPanel getDataControlPanel();
 	
+	/**
+	 * Indicates if {@link #pick(Ray, RenderRange, AtomData)} is implemented for all
+	 * objects that can be picked in this container. If not, picking is performed by rendering
+	 * the scene with unique colors per object.
+	 * @return
+	 */
+	public boolean isRayPickingSupported(){
+		return false;
+	}
+	
+	/**
+	 * Intersects the ray with all objects of this container that are currently visible
+	 * @param ray
+	 * @param renderRange
+	 * @param data
+	 * @return the closest hit object or null if nothing is hit
+	 */
+	public PickingHit pick(Ray ray, RenderRange renderRange, AtomData data){
+		return null;
+	}
+	
 	public static class DefaultDataContainerProcessingResult implements ProcessingResult{
 		private DataContainer dc;
 		private String s;
@@ -22,7 +22,6 @@ import gui.JPrimitiveVariablesPropertiesDialog;
 import gui.ProgressMonitor;
 import gui.PrimitiveProperty.*;
 
-import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 
@@ -37,7 +36,6 @@ import processingModules.ClonableProcessingModule;
 import processingModules.toolchain.Toolchainable.ExportableValue;
 import processingModules.toolchain.Toolchainable.ToolchainSupport;
 import common.ThreadPool;
-import common.Vec3;
 
 @ToolchainSupport()
 public class CentroSymmetryModule extends ClonableProcessingModule {
@@ -109,43 +107,15 @@ public class CentroSymmetryModule extends ClonableProcessingModule {
 					
 					final int start = (int)(((long)data.getAtoms().size() * j)/ThreadPool.availProcessors());
 					final int end = (int)(((long)data.getAtoms().size() * (j+1))/ThreadPool.availProcessors());
+					CentroSymmetryKernel kernel = 
+							new CentroSymmetryKernel(radius, adaptiveCentroSymmetry, maxBonds, scaling);
 					
 					for (int i=start; i<end; i++){
 						if ((i-start)%1000 == 0)
 							ProgressMonitor.getProgressMonitor().addToCounter(1000);
 						
 						Atom a = data.getAtoms().get(i);
-
-						float csd = 0f;
-						
-						ArrayList<Vec3> neigh;
-						if (adaptiveCentroSymmetry)
-							neigh = nnb.getNeighVec(a, maxBonds);
-						else neigh = nnb.getNeighVec(a);
-						
-						boolean[] paired = new boolean[neigh.size()];
-						for (int j=0; j<neigh.size(); j++){
-							
-							if (!paired[j]){
-								Vec3 inv = neigh.get(j).multiplyClone(-1f);
-								int minIndex = j;
-								float minDistance = 4*radius*radius;
-								for (int k=j+1; k<neigh.size(); k++){
-									float d = inv.getSqrDistTo(neigh.get(k));
-									if (d<minDistance) {
-										minIndex = k;
-										minDistance = d;
-									}
-								}
-								
-								csd += minDistance;
-								paired[minIndex] = true;
-							}
-						}
-						
-						csd /= radius;
-						csd *= scaling;
-						csdArray[i] = csd;
+						csdArray[i] = kernel.compute(a, nnb);
 					}
 					
 					ProgressMonitor.getProgressMonitor().addToCounter(end-start%1000);
@@ -189,4 +159,122 @@ public class CentroSymmetryModule extends ClonableProcessingModule {
 		}
 		return ok;
 	}
+	
+	/**
+	 * Computes the centrosymmetry deviation of a single atom.
+	 * Neighbors are paired greedily in the order provided: each unpaired neighbor is paired with the
+	 * following neighbor closest to its inverted position.
+	 * In the adaptive mode only the nearest neighbors are considered, ordered by their distance.
+	 */
+	static class CentroSymmetryKernel extends NeighborKernel {
+		private final float radius;
+		private final boolean adaptive;
+		private final int maxBonds;
+		private final float scaling;
+		
+		private float[] nearest = new float[0];
+		private float[] sqrLength = new float[0];
+		private int[] index = new int[0];
+		private boolean[] paired = new boolean[32];
+		
+		CentroSymmetryKernel(float radius, boolean adaptive, int maxBonds, float scaling) {
+			this.radius = radius;
+			this.adaptive = adaptive;
+			this.maxBonds = maxBonds;
+			this.scaling = scaling;
+		}
+		
+		@Override
+		float getCutoff() {
+			return radius;
+		}
+		
+		@Override
+		DataColumnInfo getColumn() {
+			return centroSymmetryColumn;
+		}
+		
+		@Override
+		int getMaxNeighbors() {
+			return adaptive ? maxBonds : -1;
+		}
+		
+		@Override
+		float compute(float[] neighVec, int count) {
+			if (adaptive && count>maxBonds){
+				selectNearest(neighVec, count);
+				neighVec = nearest;
+				count = maxBonds;
+			}
+			
+			if (paired.length < count) paired = new boolean[Math.max(count, 2*paired.length)];
+			for (int j=0; j<count; j++)
+				paired[j] = false;
+			
+			float csd = 0f;
+			for (int j=0; j<count; j++){
+				if (!paired[j]){
+					//Inverted vector to neighbor j
+					float ix = -neighVec[3*j], iy = -neighVec[3*j+1], iz = -neighVec[3*j+2];
+					int minIndex = j;
+					float minDistance = 4*radius*radius;
+					for (int k=j+1; k<count; k++){
+						float dx = ix - neighVec[3*k];
+						float dy = iy - neighVec[3*k+1];
+						float dz = iz - neighVec[3*k+2];
+						float d = dx*dx + dy*dy + dz*dz;
+						if (d<minDistance) {
+							minIndex = k;
+							minDistance = d;
+						}
+					}
+					
+					csd += minDistance;
+					paired[minIndex] = true;
+				}
+			}
+			
+			csd /= radius;
+			csd *= scaling;
+			return csd;
+		}
+		
+		/**
+		 * Copies the maxBonds nearest neighbors in ascending order of their distance into nearest.
+		 * Neighbors at equal distance remain in their original order.
+		 * The selection is a bounded insertion sort, the remaining neighbors are never sorted.
+		 */
+		private void selectNearest(float[] neighVec, int count){
+			if (maxBonds == 0) return;
+			if (index.length < maxBonds){
+				index = new int[maxBonds];
+				sqrLength = new float[maxBonds];
+				nearest = new float[3*maxBonds];
+			}
+			
+			int selected = 0;
+			for (int i=0; i<count; i++){
+				float x = neighVec[3*i], y = neighVec[3*i+1], z = neighVec[3*i+2];
+				float l = x*x + y*y + z*z;
+				int p;
+				if (selected < maxBonds) p = selected++;
+				else if (l < sqrLength[maxBonds-1]) p = maxBonds-1;
+				else continue;
+				
+				while (p>0 && sqrLength[p-1] > l){
+					sqrLength[p] = sqrLength[p-1];
+					index[p] = index[p-1];
+					p--;
+				}
+				sqrLength[p] = l;
+				index[p] = i;
+			}
+			
+			for (int i=0; i<maxBonds; i++){
+				nearest[3*i] = neighVec[3*index[i]];
+				nearest[3*i+1] = neighVec[3*index[i]+1];
+				nearest[3*i+2] = neighVec[3*index[i]+2];
+			}
+		}
+	}
 }
@@ -88,15 +88,6 @@ public class CommonNeighborsAnalysisModule extends ClonableProcessingModule {
 	public ProcessingResult process(final AtomData data) throws Exception {
 		ProgressMonitor.getProgressMonitor().start(data.getAtoms().size());
 		
-		final Pattern[] pattern = new Pattern[]{
-				new Pattern(4, 2, 1),
-				new Pattern(4, 2, 2),
-				new Pattern(6, 6, 6),
-				new Pattern(4, 4, 4),
-				new Pattern(5, 4, 3),
-				new Pattern(6, 6, 3)	
-		};
-		
 		final float[] cnaArray = data.getDataArray(data.getDataColumnIndex(cnaColumn)).getData();
 		
 		final NearestNeighborBuilder<Atom> nnb = new NearestNeighborBuilder<Atom>(data.getBox(), cutoff, true);
@@ -110,126 +101,19 @@ public class CommonNeighborsAnalysisModule extends ClonableProcessingModule {
 				public Void call() throws Exception {
 					final int start = (int)(((long)data.getAtoms().size() * j)/ThreadPool.availProcessors());
 					final int end = (int)(((long)data.getAtoms().size() * (j+1))/ThreadPool.availProcessors());
+					CommonNeighborsKernel kernel = new CommonNeighborsKernel(cutoff);
 					
 					for (int i=start; i<end; i++){
-						int[] counter = new int[pattern.length];
-						
 						if ((i-start)%1000 == 0)
 							ProgressMonitor.getProgressMonitor().addToCounter(1000);
 						
 						Atom a = data.getAtoms().get(i);	
-						List<Vec3> neigh = nnb.getNeighVec(a);
-						
-						for (Vec3 n : neigh){
-							List<Vec3> common = new ArrayList<Vec3>(neigh.size());
-							
-							for (Vec3 n2 : neigh){
-								if (!n.equals(n2) && n.getDistTo(n2)<cutoff){
-									common.add(n2);
-								}
-							}
-							ArrayList<Bond> bonds = new ArrayList<Bond>();
-
-							for (int k=0; k<common.size()-1; k++){
-								for (int l=k+1; l<common.size(); l++){
-									if(common.get(k).getDistTo(common.get(l))<cutoff)
-										bonds.add(new Bond(k,l));
-								}
-							}
-							
-							
-							int longestChain = 0;
-							for (int k = 0; k < bonds.size(); k++) {
-
-								/* Initialize bond data */
-								int start1 = bonds.get(k).v1;
-								int end1 = bonds.get(k).v2;
-								for (int l = 0; l < bonds.size(); l++)
-									bonds.get(l).length = 0;
-								bonds.get(k).length = 1;
-
-								int tmp_cna_chain = 1;
-								longestChain = Math.max(longestChain, tmp_cna_chain);
-								if (longestChain == bonds.size()) break;
-
-								/* Add further bonds to start bond recursively */
-								Tupel<Integer, Integer> r = chain(start1, end1, bonds, longestChain, tmp_cna_chain);
-								longestChain = r.o1;
-								
-								
-								if (longestChain ==  bonds.size()) break;
-
-							}
-							
-							Pattern p = new Pattern(common.size(), bonds.size(), longestChain);
-							
-							for (int l=0; l<pattern.length; l++)
-								if (pattern[l].equals(p)) counter[l]++;
-						}
-						
-						if (counter[0] == 12) cnaArray[i] = 1f; 
-						else if (counter[0] == 6 && counter[1] == 6) cnaArray[i] = 2f;
-						else if (counter[2] == 8 && counter[3] == 6) cnaArray[i] = 3f;
-						else if (counter[4] == 12 && counter[5] == 4) cnaArray[i] = 4f;
-						else cnaArray[i] = 5f;
+						cnaArray[i] = kernel.compute(a, nnb);
 					}
 					
 					ProgressMonitor.getProgressMonitor().addToCounter(end-start%1000);
 					return null;
 				}
-				
-				Tupel<Integer, Integer> chain(int start, int end, ArrayList<Bond> bonds, int max_chain, int chain){
-					int i, start_old, end_old;
-
-					/* Check all unused bonds */
-					for (i = 0; i < bonds.size(); i++){
-						if (bonds.get(i).length == 0) {
-
-							start_old = start;
-							end_old = end;
-
-							if (bonds.get(i).v1 == start)
-								start = bonds.get(i).v2;
-							else if (bonds.get(i).v1 == end)
-								end = bonds.get(i).v2;
-							else if (bonds.get(i).v2 == start)
-								start = bonds.get(i).v1;
-							else if (bonds.get(i).v2 == end)
-								end = bonds.get(i).v1;
-							else continue;
-
-							/* If a bond is found, remove it from the list of bonds */
-							/* and invoke domino recursively */
-
-							/* Update bond data */
-							bonds.get(i).length = 1;
-							++(chain);
-
-							max_chain = Math.max(max_chain, chain);
-							if (max_chain == bonds.size()) break;
-
-							Tupel<Integer, Integer> r = chain(start, end, bonds, max_chain, chain);
-
-							max_chain = r.o1;
-							chain = r.o2;
-							/* Reset bond data */
-							--chain;
-							start = start_old;
-							end = end_old;
-							bonds.get(i).length = 0;
-						}
-					}
-					return new Tupel<Integer, Integer>(max_chain, chain);
-				}
-				
-				class Bond{
-					final int v1,v2;
-					int length = 0;
-					public Bond(int v1, int v2) {
-						this.v1 = v1;
-						this.v2 = v2;
-					}
-				}
 			});
 		}
 		ThreadPool.executeParallel(parallelTasks);	
@@ -252,7 +136,7 @@ public class CommonNeighborsAnalysisModule extends ClonableProcessingModule {
 		return ok;
 	}
 	
-	private class Pattern implements Comparator<Pattern>{
+	private static class Pattern implements Comparator<Pattern>{
 		int j,k,l;
 		
 		public Pattern(int j, int k, int l) {
@@ -283,4 +167,148 @@ public class CommonNeighborsAnalysisModule extends ClonableProcessingModule {
 		}
 	}
 	
+	/**
+	 * Classifies a single atom by the common neighbor signatures of its neighbors
+	 */
+	static class CommonNeighborsKernel extends NeighborKernel {
+		private static final Pattern[] pattern = new Pattern[]{
+			new Pattern(4, 2, 1),
+			new Pattern(4, 2, 2),
+			new Pattern(6, 6, 6),
+			new Pattern(4, 4, 4),
+			new Pattern(5, 4, 3),
+			new Pattern(6, 6, 3)	
+		};
+		
+		private final float cutoff;
+		
+		CommonNeighborsKernel(float cutoff) {
+			this.cutoff = cutoff;
+		}
+		
+		@Override
+		float getCutoff() {
+			return cutoff;
+		}
+		
+		@Override
+		DataColumnInfo getColumn() {
+			return cnaColumn;
+		}
+		
+		@Override
+		float compute(float[] neighVec, int count) {
+			ArrayList<Vec3> neigh = new ArrayList<Vec3>(count);
+			for (int i=0; i<count; i++)
+				neigh.add(new Vec3(neighVec[3*i], neighVec[3*i+1], neighVec[3*i+2]));
+			
+			int[] counter = new int[pattern.length];
+			
+			for (Vec3 n : neigh){
+				List<Vec3> common = new ArrayList<Vec3>(neigh.size());
+				
+				for (Vec3 n2 : neigh){
+					if (!n.equals(n2) && n.getDistTo(n2)<cutoff){
+						common.add(n2);
+					}
+				}
+				ArrayList<Bond> bonds = new ArrayList<Bond>();
+
+				for (int k=0; k<common.size()-1; k++){
+					for (int l=k+1; l<common.size(); l++){
+						if(common.get(k).getDistTo(common.get(l))<cutoff)
+							bonds.add(new Bond(k,l));
+					}
+				}
+				
+				
+				int longestChain = 0;
+				for (int k = 0; k < bonds.size(); k++) {
+
+					/* Initialize bond data */
+					int start1 = bonds.get(k).v1;
+					int end1 = bonds.get(k).v2;
+					for (int l = 0; l < bonds.size(); l++)
+						bonds.get(l).length = 0;
+					bonds.get(k).length = 1;
+
+					int tmp_cna_chain = 1;
+					longestChain = Math.max(longestChain, tmp_cna_chain);
+					if (longestChain == bonds.size()) break;
+
+					/* Add further bonds to start bond recursively */
+					Tupel<Integer, Integer> r = chain(start1, end1, bonds, longestChain, tmp_cna_chain);
+					longestChain = r.o1;
+					
+					
+					if (longestChain ==  bonds.size()) break;
+
+				}
+				
+				Pattern p = new Pattern(common.size(), bonds.size(), longestChain);
+				
+				for (int l=0; l<pattern.length; l++)
+					if (pattern[l].equals(p)) counter[l]++;
+			}
+			
+			if (counter[0] == 12) return 1f; 
+			else if (counter[0] == 6 && counter[1] == 6) return 2f;
+			else if (counter[2] == 8 && counter[3] == 6) return 3f;
+			else if (counter[4] == 12 && counter[5] == 4) return 4f;
+			else return 5f;
+		}
+		
+		Tupel<Integer, Integer> chain(int start, int end, ArrayList<Bond> bonds, int max_chain, int chain){
+			int i, start_old, end_old;
+
+			/* Check all unused bonds */
+			for (i = 0; i < bonds.size(); i++){
+				if (bonds.get(i).length == 0) {
+
+					start_old = start;
+					end_old = end;
+
+					if (bonds.get(i).v1 == start)
+						start = bonds.get(i).v2;
+					else if (bonds.get(i).v1 == end)
+						end = bonds.get(i).v2;
+					else if (bonds.get(i).v2 == start)
+						start = bonds.get(i).v1;
+					else if (bonds.get(i).v2 == end)
+						end = bonds.get(i).v1;
+					else continue;
+
+					/* If a bond is found, remove it from the list of bonds */
+					/* and invoke domino recursively */
+
+					/* Update bond data */
+					bonds.get(i).length = 1;
+					++(chain);
+
+					max_chain = Math.max(max_chain, chain);
+					if (max_chain == bonds.size()) break;
+
+					Tupel<Integer, Integer> r = chain(start, end, bonds, max_chain, chain);
+
+					max_chain = r.o1;
+					chain = r.o2;
+					/* Reset bond data */
+					--chain;
+					start = start_old;
+					end = end_old;
+					bonds.get(i).length = 0;
+				}
+			}
+			return new Tupel<Integer, Integer>(max_chain, chain);
+		}
+		
+		class Bond{
+			final int v1,v2;
+			int length = 0;
+			public Bond(int v1, int v2) {
+				this.v1 = v1;
+				this.v2 = v2;
+			}
+		}
+	}
 }
@@ -128,4 +128,30 @@ public class CoordinationNumberModule extends ClonableProcessingModule {
 		}
 		return ok;
 	}
+	
+	/**
+	 * Counts the neighbors of a single atom
+	 */
+	static class CoordinationKernel extends NeighborKernel {
+		private final float radius;
+		
+		CoordinationKernel(float radius) {
+			this.radius = radius;
+		}
+		
+		@Override
+		float getCutoff() {
+			return radius;
+		}
+		
+		@Override
+		DataColumnInfo getColumn() {
+			return coordNumColumn;
+		}
+		
+		@Override
+		float compute(float[] neighVec, int count) {
+			return count;
+		}
+	}
 }
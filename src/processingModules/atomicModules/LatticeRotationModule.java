@@ -133,6 +133,7 @@ public class LatticeRotationModule extends ClonableProcessingModule {
 					double[] a = new double[9];
 					double[] b = new double[9];
 					Matrix lcmMatrix = new Matrix(lcm);
+					float[] neighVec = new float[3*numPerf];
 					
 					for (int k=start; k<end; k++){
 						if ((k-start)%1000 == 0)
@@ -154,28 +155,28 @@ public class LatticeRotationModule extends ClonableProcessingModule {
 						Vec3[] p_0 = p.get(grain);
 						float[] p_l_0 = p_l.get(grain);
 						
-						ArrayList<Vec3> neighVecList = nnb.getNeighVec(atom,numPerf);
+						int numNeigh = nnb.getKNearest(atom, numPerf, neighVec, null);
 						
-						for (int i=0; i<neighVecList.size(); i++){
+						for (int i=0; i<numNeigh; i++){
 							float bestAngle = -1;
 							int best = 0;
-							Vec3 n = neighVecList.get(i);
-							float l = n.getLength();
+							float nx = neighVec[3*i], ny = neighVec[3*i+1], nz = neighVec[3*i+2];
+							float l = (float)Math.sqrt(nx*nx + ny*ny + nz*nz);
 							for (int j=0; j<p_0.length; j++){
-								float angle = n.dot(p_0[j]) / (l* p_l_0[j]);
+								float angle = (nx*p_0[j].x + ny*p_0[j].y + nz*p_0[j].z) / (l* p_l_0[j]);
 								if (angle>bestAngle){
 									best = j;
 									bestAngle = angle;
 								}
 							}
 							//if (bestAngle>PHI_MAX){
-								a[0] += n.x * p_0[best].x; a[1] += n.x * p_0[best].y; a[2] += n.x * p_0[best].z;
-								a[3] += n.y * p_0[best].x; a[4] += n.y * p_0[best].y; a[5] += n.y * p_0[best].z;
-								a[6] += n.z * p_0[best].x; a[7] += n.z * p_0[best].y; a[8] += n.z * p_0[best].z;
+								a[0] += nx * p_0[best].x; a[1] += nx * p_0[best].y; a[2] += nx * p_0[best].z;
+								a[3] += ny * p_0[best].x; a[4] += ny * p_0[best].y; a[5] += ny * p_0[best].z;
+								a[6] += nz * p_0[best].x; a[7] += nz * p_0[best].y; a[8] += nz * p_0[best].z;
 								
-								b[0] += n.x * n.x; b[1] += n.x * n.y; b[2] += n.x * n.z;
-								b[3] += n.y * n.x; b[4] += n.y * n.y; b[5] += n.y * n.z;
-								b[6] += n.z * n.x; b[7] += n.z * n.y; b[8] += n.z * n.z;
+								b[0] += nx * nx; b[1] += nx * ny; b[2] += nx * nz;
+								b[3] += ny * nx; b[4] += ny * ny; b[5] += ny * nz;
+								b[6] += nz * nx; b[7] += nz * ny; b[8] += nz * nz;
 //							}
 						}
 						
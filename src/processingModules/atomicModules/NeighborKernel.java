@@ -0,0 +1,84 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2014  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package processingModules.atomicModules;
+
+import model.Atom;
+import model.DataColumnInfo;
+import model.NearestNeighborBuilder;
+
+/**
+ * A per-atom analysis that computes a single value from the vectors towards the neighbors of an atom.
+ * Kernels are used by their own modules and by {@link StructuralAnalysisModule}, which evaluates
+ * several kernels on a single neighbor query per atom.
+ * Kernels keep internal buffers and are not thread-safe, each thread uses its own instance.
+ */
+abstract class NeighborKernel {
+	private float[] neighVec = new float[3*32];
+
+	/**
+	 * @return the cut-off radius of the neighbors passed to {@link #compute(float[], int)}
+	 */
+	abstract float getCutoff();
+
+	/**
+	 * @return the column the result is stored in
+	 */
+	abstract DataColumnInfo getColumn();
+
+	/**
+	 * Computes the value for a single atom
+	 * @param neighVec vectors towards all neighbors within the cut-off radius, three consecutive
+	 * components per neighbor in the order provided by the NearestNeighborBuilder.
+	 * The array must not be modified.
+	 * @param count number of neighbors
+	 * @return
+	 */
+	abstract float compute(float[] neighVec, int count);
+	
+	/**
+	 * Kernels that only consider a fixed number of nearest neighbors provide this number,
+	 * these neighbors are then queried directly by {@link #compute(Atom, NearestNeighborBuilder)}
+	 * in the order of {@link NearestNeighborBuilder#getKNearest(common.Vec3, int, float[], common.Vec3[])}
+	 * @return the maximum number of neighbors considered, or -1 if all neighbors are considered
+	 */
+	int getMaxNeighbors(){
+		return -1;
+	}
+
+	/**
+	 * Queries the neighbors of an atom and computes the value
+	 * @param a
+	 * @param nnb nearest neighbor builder with the cut-off radius of this kernel
+	 * @return
+	 */
+	final float compute(Atom a, NearestNeighborBuilder<Atom> nnb){
+		int k = getMaxNeighbors();
+		if (k >= 0){
+			if (neighVec.length < 3*k) neighVec = new float[3*k];
+			return compute(neighVec, nnb.getKNearest(a, k, neighVec, null));
+		}
+		
+		int n = nnb.getNeighAndNeighVec(a, neighVec, null);
+		if (3*n > neighVec.length){
+			neighVec = new float[3*Math.max(n, 2*neighVec.length/3)];
+			n = nnb.getNeighAndNeighVec(a, neighVec, null);
+		}
+		return compute(neighVec, n);
+	}
+}
@@ -0,0 +1,284 @@
+// Part of AtomViewer: AtomViewer is a tool to display and analyse
+// atomistic simulations
+//
+// Copyright (C) 2014  ICAMS, Ruhr-Universität Bochum
+//
+// AtomViewer is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// AtomViewer is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License along
+// with AtomViewer. If not, see <http://www.gnu.org/licenses/>
+
+package processingModules.atomicModules;
+
+import gui.JPrimitiveVariablesPropertiesDialog;
+import gui.ProgressMonitor;
+import gui.PrimitiveProperty.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+
+import javax.swing.JFrame;
+
+import model.Atom;
+import model.AtomData;
+import model.DataColumnInfo;
+import model.Filter;
+import model.NearestNeighborBuilder;
+import processingModules.ClonableProcessingModule;
+import processingModules.ProcessingResult;
+import processingModules.toolchain.Toolchainable.ExportableValue;
+import processingModules.toolchain.Toolchainable.ToolchainSupport;
+import common.ThreadPool;
+import crystalStructures.CrystalStructure;
+
+/**
+ * Performs the atom classification, centrosymmetry deviation, coordination number and
+ * common neighbor analysis in a single pass over all atoms.
+ * The per atom analyses share one neighbor query per atom, each one only considers the neighbors within
+ * its own cut-off radius. The results are identical to those of the individual modules, apart from the
+ * order in which neighbors are visited, which may change the pairing in the centrosymmetry deviation
+ * in the case of equal distances.
+ */
+@ToolchainSupport()
+public class StructuralAnalysisModule extends ClonableProcessingModule {
+
+	@ExportableValue
+	private boolean classifyAtoms = true;
+
+	@ExportableValue
+	private boolean centroSymmetry = false;
+	@ExportableValue
+	private float csdRadius = 0f;
+	@ExportableValue
+	private int maxBonds = 0;
+	@ExportableValue
+	private boolean adaptiveCentroSymmetry = false;
+	@ExportableValue
+	private float csdScaling = 1f;
+
+	@ExportableValue
+	private boolean coordinationNumber = false;
+	@ExportableValue
+	private float coordinationRadius = 5f;
+
+	@ExportableValue
+	private boolean commonNeighbors = false;
+	@ExportableValue
+	private float cnaCutoff = 5f;
+
+	@Override
+	public String getShortName() {
+		return "Structural analysis";
+	}
+
+	@Override
+	public String getFunctionDescription() {
+		return "Performs the atom classification and any combination of the centrosymmetry deviation, "
+				+ "the coordination number and the common neighbor analysis in a single pass over all atoms.";
+	}
+
+	@Override
+	public String getRequirementDescription() {
+		return "";
+	}
+
+	@Override
+	public boolean isApplicable(AtomData data) {
+		return true;
+	}
+
+	@Override
+	public boolean canBeAppliedToMultipleFilesAtOnce() {
+		return true;
+	}
+
+	@Override
+	public DataColumnInfo[] getDataColumnsInfo() {
+		List<NeighborKernel> kernels = createKernels();
+		if (kernels.isEmpty()) return null;
+		DataColumnInfo[] dci = new DataColumnInfo[kernels.size()];
+		for (int i=0; i<dci.length; i++)
+			dci[i] = kernels.get(i).getColumn();
+		return dci;
+	}
+
+	private List<NeighborKernel> createKernels(){
+		List<NeighborKernel> kernels = new ArrayList<NeighborKernel>();
+		if (centroSymmetry)
+			kernels.add(new CentroSymmetryModule.CentroSymmetryKernel(
+					csdRadius, adaptiveCentroSymmetry, maxBonds, csdScaling));
+		if (coordinationNumber)
+			kernels.add(new CoordinationNumberModule.CoordinationKernel(coordinationRadius));
+		if (commonNeighbors)
+			kernels.add(new CommonNeighborsAnalysisModule.CommonNeighborsKernel(cnaCutoff));
+		return kernels;
+	}
+
+	@Override
+	public ProcessingResult process(final AtomData data) throws Exception {
+		final List<Atom> atoms = data.getAtoms();
+		final CrystalStructure cs = data.getCrystalStructure();
+
+		final List<NeighborKernel> kernelList = createKernels();
+		final float[][] results = new float[kernelList.size()][];
+		final float[] sqrCutoffs = new float[kernelList.size()];
+		float maxCutoff = 0f;
+		for (int i=0; i<kernelList.size(); i++){
+			NeighborKernel k = kernelList.get(i);
+			results[i] = data.getDataArray(data.getDataColumnIndex(k.getColumn())).getData();
+			sqrCutoffs[i] = k.getCutoff()*k.getCutoff();
+			maxCutoff = Math.max(maxCutoff, k.getCutoff());
+		}
+
+		NearestNeighborBuilder<Atom> classificationNnb = null;
+		NearestNeighborBuilder<Atom> kernelNnb = null;
+		if (classifyAtoms){
+			Filter<Atom> filter = cs.getFilterForAtomsNotNeedingClassificationByNeighbors();
+			classificationNnb = new NearestNeighborBuilder<Atom>(data.getBox(),
+					cs.getStructuralAnalysisSearchRadius(), true);
+			classificationNnb.addAll(atoms, filter);
+			//The same grid is used for all analyses if it contains all atoms and a sufficient cut-off radius
+			if (filter == null && maxCutoff <= cs.getStructuralAnalysisSearchRadius())
+				kernelNnb = classificationNnb;
+		}
+		if (!kernelList.isEmpty() && kernelNnb == null){
+			kernelNnb = new NearestNeighborBuilder<Atom>(data.getBox(), maxCutoff, true);
+			kernelNnb.addAll(atoms);
+		}
+
+		final NearestNeighborBuilder<Atom> cnnb = classificationNnb;
+		final NearestNeighborBuilder<Atom> knnb = kernelNnb;
+		//Classifications in several phases cannot be combined with the other analyses per atom
+		final boolean separateClassification = classifyAtoms && !cs.isClassificationPerAtom();
+		final CyclicBarrier barrier = new CyclicBarrier(ThreadPool.availProcessors());
+
+		ProgressMonitor.getProgressMonitor().start(atoms.size());
+
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int j = i;
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					final int start = (int)(((long)atoms.size() * j)/ThreadPool.availProcessors());
+					final int end = (int)(((long)atoms.size() * (j+1))/ThreadPool.availProcessors());
+
+					if (separateClassification)
+						cs.identifyDefectAtoms(atoms, cnnb, start, end, barrier);
+
+					//Kernels are not thread-safe, each thread uses its own instances
+					NeighborKernel[] kernels = createKernels().toArray(new NeighborKernel[0]);
+					float[] neighVec = new float[3*32];
+					float[] subset = new float[3*32];
+
+					for (int i=start; i<end; i++){
+						if (Thread.interrupted()) return null;
+						if ((i-start)%1000 == 0 && !separateClassification)
+							ProgressMonitor.getProgressMonitor().addToCounter(1000);
+
+						Atom a = atoms.get(i);
+						if (classifyAtoms && !separateClassification)
+							a.setType(cs.identifyAtomType(a, cnnb));
+
+						if (kernels.length == 0) continue;
+
+						int count = knnb.getNeighAndNeighVec(a, neighVec, null);
+						if (3*count > neighVec.length){
+							neighVec = new float[3*Math.max(count, 2*neighVec.length/3)];
+							subset = new float[neighVec.length];
+							count = knnb.getNeighAndNeighVec(a, neighVec, null);
+						}
+						
+						for (int k=0; k<kernels.length; k++){
+							if (kernels[k].getCutoff() == knnb.getCutoff()){
+								results[k][i] = kernels[k].compute(neighVec, count);
+							} else {
+								int n = 0;
+								for (int l=0; l<count; l++){
+									float x = neighVec[3*l], y = neighVec[3*l+1], z = neighVec[3*l+2];
+									if (x*x + y*y + z*z <= sqrCutoffs[k]){
+										subset[3*n] = x;
+										subset[3*n+1] = y;
+										subset[3*n+2] = z;
+										n++;
+									}
+								}
+								results[k][i] = kernels[k].compute(subset, n);
+							}
+						}
+					}
+
+					if (!separateClassification)
+						ProgressMonitor.getProgressMonitor().addToCounter((end-start)%1000);
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+
+		ProgressMonitor.getProgressMonitor().stop();
+		if (classifyAtoms)
+			data.countAtomTypes();
+		return null;
+	}
+
+	@Override
+	public boolean showConfigurationDialog(JFrame frame, AtomData data) {
+		JPrimitiveVariablesPropertiesDialog dialog = new JPrimitiveVariablesPropertiesDialog(frame, getShortName());
+		dialog.addLabel(getFunctionDescription());
+
+		BooleanProperty classify = dialog.addBoolean("classifyAtoms", "Classify atoms", "", classifyAtoms);
+
+		dialog.startGroup("Centrosymmetry deviation");
+		BooleanProperty csd = dialog.addBoolean("centroSymmetry", "Compute centrosymmetry deviation", "", centroSymmetry);
+		float def = this.csdRadius == 0f ? data.getCrystalStructure().getNearestNeighborSearchRadius() : csdRadius;
+		FloatProperty csdRadius = dialog.addFloat("csdRadius", "Radius of a sphere to find neighbors.",
+				"", def, 0f, 1e10f);
+		BooleanProperty adaptive = dialog.addBoolean("adaptive", "Adaptive Centrosymmetry, "
+				+ "only consider a fixed number of nearest neighbors",
+				"If more neighbors are found, the farthest once are excluded", adaptiveCentroSymmetry);
+		IntegerProperty maxBonds = dialog.addInteger("maxBonds", "Maximum number of bonds for adaptive centrosymmetry",
+				"", this.maxBonds, 0, 100000);
+		FloatProperty csdScaling = dialog.addFloat("scalingFactor", "Scaling factor for the result.",
+				"", this.csdScaling, 0f, 1e20f);
+		dialog.endGroup();
+
+		dialog.startGroup("Coordination number");
+		BooleanProperty coord = dialog.addBoolean("coordinationNumber", "Compute coordination number",
+				"", coordinationNumber);
+		FloatProperty coordRadius = dialog.addFloat("coordRadius", "Radius", "", coordinationRadius, 0f, 1000f);
+		dialog.endGroup();
+
+		dialog.startGroup("Common neighbor analysis");
+		BooleanProperty cna = dialog.addBoolean("commonNeighbors", "Perform common neighbor analysis",
+				"", commonNeighbors);
+		FloatProperty cutoff = dialog.addFloat("cnaCutoff", "cutoff_radius", "", cnaCutoff, 0f, 1000f);
+		dialog.endGroup();
+
+		boolean ok = dialog.showDialog();
+		if (ok){
+			this.classifyAtoms = classify.getValue();
+			this.centroSymmetry = csd.getValue();
+			this.csdRadius = csdRadius.getValue();
+			this.adaptiveCentroSymmetry = adaptive.getValue();
+			this.maxBonds = maxBonds.getValue();
+			this.csdScaling = csdScaling.getValue();
+			this.coordinationNumber = coord.getValue();
+			this.coordinationRadius = coordRadius.getValue();
+			this.commonNeighbors = cna.getValue();
+			this.cnaCutoff = cutoff.getValue();
+		}
+		return ok;
+	}
+}
@@ -113,10 +113,9 @@ public class GrainIdentificationModule extends ClonableProcessingModule {
 		
 		ProgressMonitor.getProgressMonitor().setActivityName("Processing grains");
 		
-		for (Grain g : gr){
+		for (Grain g : gr)
 			data.addGrain(g);
-			g.getMesh();
-		}
+		Grain.createMeshes(gr);
 		
 		if (orderGrainsBySize){
 			ArrayList<Grain> sortedGrains = new ArrayList<Grain>(gr);
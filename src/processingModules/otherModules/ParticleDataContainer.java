@@ -40,10 +40,12 @@ import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import common.FastTFloatArrayList;
+import common.Ray;
 import common.Vec3;
 import model.AtomData;
 import model.DataColumnInfo;
 import model.Pickable;
+import model.PickingHit;
 import model.RenderingConfiguration;
 import processingModules.DataContainer;
 import processingModules.JDataPanel;
@@ -111,6 +113,17 @@ public abstract class ParticleDataContainer<T extends Vec3 & Pickable> extends D
 		viewer.drawSpheres(gl, ord, picking);
 	}
 	
+	@Override
+	public boolean isRayPickingSupported() {
+		return true;
+	}
+	
+	@Override
+	public PickingHit pick(Ray ray, RenderRange renderRange, AtomData data) {
+		if (!getDataControlPanel().isDataVisible() || ord == null) return null;
+		return ord.pick(ray);
+	}
+	
 	protected ColoringFilter<T> getColoringFilter(){
 		return new ColoringFilter<T>() {
 			@Override
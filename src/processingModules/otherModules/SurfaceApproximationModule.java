@@ -22,6 +22,7 @@ import javax.swing.*;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import common.Ray;
 import common.ThreadPool;
 import model.*;
 import model.mesh.Mesh;
@@ -137,7 +138,9 @@ public class SurfaceApproximationModule extends ClonableProcessingModule {
 		private JCheckBox showMeshCheckbox = new JCheckBox("Show mesh", false);
 		private JSlider transparencySlider = new JSlider(0, 100, 0);
 		
-		float[] color = new float[]{0.5f, 0.5f, 0.5f};
+		static final float[] DEFAULT_COLOR = new float[]{0.5f, 0.5f, 0.5f};
+		
+		float[] color = DEFAULT_COLOR.clone();
 		boolean showMesh = false;
 		
 		private JColorSelectPanel colorPanel = new JColorSelectPanel(color, new Color(color[0], color[1], color[2]));
@@ -209,7 +212,7 @@ public class SurfaceApproximationModule extends ClonableProcessingModule {
 		}
 	}
 	
-	private class SurfaceApproximationDataContainer extends DataContainer{
+	public class SurfaceApproximationDataContainer extends DataContainer{
 		private ArrayList<Mesh> meshes = new ArrayList<Mesh>();
 		
 		@Override
@@ -269,6 +272,37 @@ public class SurfaceApproximationModule extends ClonableProcessingModule {
 			return true;
 		}
 		
+		@Override
+		public boolean isRayPickingSupported() {
+			return true;
+		}
+		
+		@Override
+		public PickingHit pick(Ray ray, RenderRange renderRange, AtomData data) {
+			//Mirror the conditions under which the meshes are rendered
+			if (!getDataControlPanel().isDataVisible() || dataPanel.transparency <= 0.02f) return null;
+			PickingHit hit = null;
+			for (Mesh mesh : meshes){
+				float d = mesh.getFinalMesh().intersect(ray);
+				if (d != Float.POSITIVE_INFINITY)
+					hit = PickingHit.closest(hit, new PickingHit(mesh, d));
+			}
+			return hit;
+		}
+		
+		/**
+		 * The meshes that are shown in the viewer, or an empty list if the surface is hidden.
+		 * If the control panel has never been created (e.g. in batch processing) all meshes are returned.
+		 */
+		public List<Mesh> getVisibleMeshes(){
+			if (dataPanel != null && (!dataPanel.isDataVisible() || dataPanel.transparency <= 0.02f))
+				return Collections.emptyList();
+			return meshes;
+		}
+		
+		public float[] getColor(){
+			return dataPanel == null ? JSurfaceMeshControlPanel.DEFAULT_COLOR : dataPanel.color;
+		}
 		
 		public boolean processData(AtomData atomData) throws Exception {
 			FilterSet<Atom> afs = null;
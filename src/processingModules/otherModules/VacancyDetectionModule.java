@@ -153,8 +153,6 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 			//The total set of atoms is only considered for the typically search radius
 			final NearestNeighborBuilder<Vec3> allNearestNeighbors = 
 					new NearestNeighborBuilder<Vec3>(data.getBox(), nndSearch, true);
-			//Data structure to get all possible vacancies in small neighborhood
-			final NearestNeighborBuilder<Vacancy> possibleVacancies = new NearestNeighborBuilder<Vacancy>(data.getBox(), minDistanceToAtom, false);
 			
 			//This list is holding candidates that need to be tested for vacancy positions
 			final ArrayList<Atom> nextToVancanyCandidateAtoms = new ArrayList<Atom>();
@@ -173,6 +171,11 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 			
 			ProgressMonitor.getProgressMonitor().start(nextToVancanyCandidateAtoms.size());
 
+			//Each thread stores the possible vacancy sites in its own list
+			final List<List<Vacancy>> possibleVacanciesPerThread = new ArrayList<List<Vacancy>>();
+			for (int i = 0; i < ThreadPool.availProcessors(); i++)
+				possibleVacanciesPerThread.add(new ArrayList<Vacancy>());
+			
 			/*
 			 * Identify possible vacancy sites for each defect atom in parallel.
 			 * In this case, vacancy sites are typically identified multiple times.
@@ -187,6 +190,7 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 				
 					@Override
 					public Void call() throws Exception {
+						final List<Vacancy> possibleVacancies = possibleVacanciesPerThread.get(j);
 					
 						final int start = ThreadPool.getSliceStart(nextToVancanyCandidateAtoms.size(), j);
 						final int end = ThreadPool.getSliceEnd(nextToVancanyCandidateAtoms.size(), j);
@@ -219,19 +223,13 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 								Vec3 absolutePoint = voro.addClone(a);
 								data.getBox().backInBox(absolutePoint);
 								
-								//Compute the distance from the voronoi vertex to all atoms
-								//Test if all of them are further away than the minimal distance
-								final List<Vec3> neigh = allNearestNeighbors.getNeighVec(absolutePoint);
+								//Compute the distance from the voronoi vertex to the nearest atom
+								//Test if it is further away than the minimal distance
+								Vec3 nearest = allNearestNeighbors.getVectorToNearest(absolutePoint);
 								float minDist = nndSearch;
-								boolean valid = true;
-								for (Vec3 p : neigh) {
-									float d = p.getLength();
-									minDist = Math.min(d, minDist);
-									if (minDist < minDistanceToAtom) {
-										valid = false;
-										break;
-									}
-								}
+								if (nearest != null)
+									minDist = Math.min(nearest.getLength(), minDist);
+								boolean valid = minDist >= minDistanceToAtom;
 								
 								//Test if vertex is inside a convex hull if requested
 								if (testForSurfaces && valid){
@@ -244,28 +242,8 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 								}
 								    
 								//The vertex is far enough away from any atom
-								if (valid) {
-									Vacancy v = new Vacancy(absolutePoint, minDist);
-									//Start with the first step in the reduction of points that are found multiple times
-									synchronized (possibleVacancies) {
-										//Get the already identified vacancies close to the new one
-										List<Tupel<Vacancy,Vec3>> nearOnes = possibleVacancies.getNeighAndNeighVec(v);
-										Vacancy bestFit = v;
-										//Delete those points that are close to the new vacancy
-										//The one that has the largest distance to an atom will survive
-										for (Tupel<Vacancy,Vec3> t : nearOnes){
-											if (t.o2.getLength()<0.01f*minDistanceToAtom){
-												if (bestFit.dist<t.o1.dist)
-													bestFit = t.o1;
-												possibleVacancies.remove(t.o1);
-											}
-										}
-
-										possibleVacancies.add(bestFit);
-											
-										
-									}
-								}
+								if (valid)
+									possibleVacancies.add(new Vacancy(absolutePoint, minDist));
 							}
 						}
 						ProgressMonitor.getProgressMonitor().addToCounter(end-start%1000);
@@ -276,40 +254,62 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 			ThreadPool.executeParallel(parallelTasks);
 			
 			
-			//Start the second part of the reduction part
-			//First get all possible vacancies and sort the with ascending distance to
-			//neighboring atoms
-			List<Vacancy> possibleVacancyList = possibleVacancies.getAllElements();
-			possibleVacancies.removeAll();
+			//All possible sites in the order of the defect atoms, independent of the number of threads
+			final List<Vacancy> possibleVacancies = new ArrayList<Vacancy>();
+			for (List<Vacancy> l : possibleVacanciesPerThread)
+				possibleVacancies.addAll(l);
+			for (int i = 0; i < possibleVacancies.size(); i++)
+				possibleVacancies.get(i).index = i;
 			
-			Collections.sort(possibleVacancyList, new Comparator<Vacancy>() {
-				@Override
-				public int compare(Vacancy o1, Vacancy o2) {
-					if (o1.dist>o2.dist) return 1;
-					else if (o1.dist<o2.dist) return -1;
-					else return 0;
-				}
-			});
+			/*
+			 * Reduction of sites that are found multiple times or are too close to each other.
+			 * A site is kept if no other site closer than minDistanceToAtom is located further away from
+			 * the atoms (or, at equal distance, has a larger index). This is equivalent to inserting
+			 * the sites one by one in ascending order of their distance to the atoms and deleting
+			 * all previously inserted sites close to the new one, but each site can be tested independently.
+			 */
+			final NearestNeighborBuilder<Vacancy> vacancyGrid = 
+					new NearestNeighborBuilder<Vacancy>(data.getBox(), minDistanceToAtom, false);
+			vacancyGrid.addAll(possibleVacancies);
+			final boolean[] isVacancy = new boolean[possibleVacancies.size()];
 			
-			//Again, insert vacancies one by one
-			for (Vacancy v : possibleVacancyList){
-				List<Tupel<Vacancy,Vec3>> nearOnes = possibleVacancies.getNeighAndNeighVec(v);
-				Vacancy bestFit = v;
-				//And delete all neighboring ones and keep only that one that is
-				//furthest away from an atom
-				for (Tupel<Vacancy,Vec3> t : nearOnes){
-					if (t.o2.getLength()<minDistanceToAtom){
-//						if (bestFit.dist<t.o1.dist)		Vacancies are ordered ascendingly in dist, no need to test here
-//							bestFit = t.o1;
-						possibleVacancies.remove(t.o1);
+			parallelTasks.clear();
+			for (int i = 0; i < ThreadPool.availProcessors(); i++){
+				final int j = i;
+				parallelTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						final int start = ThreadPool.getSliceStart(possibleVacancies.size(), j);
+						final int end = ThreadPool.getSliceEnd(possibleVacancies.size(), j);
+						float[] neighVec = new float[3*16];
+						Vacancy[] neigh = new Vacancy[16];
+						
+						for (int k = start; k < end; k++) {
+							Vacancy v = possibleVacancies.get(k);
+							int n = vacancyGrid.getNeighAndNeighVec(v, neighVec, neigh);
+							if (n > neigh.length){
+								neighVec = new float[3*n];
+								neigh = new Vacancy[n];
+								n = vacancyGrid.getNeighAndNeighVec(v, neighVec, neigh);
+							}
+							
+							boolean survives = true;
+							for (int l = 0; l < n && survives; l++){
+								float x = neighVec[3*l], y = neighVec[3*l+1], z = neighVec[3*l+2];
+								if ((float)Math.sqrt(x*x + y*y + z*z) < minDistanceToAtom)
+									survives = !neigh[l].isPreferredTo(v);
+							}
+							isVacancy[k] = survives;
+						}
+						return null;
 					}
-				}
-
-				possibleVacancies.add(bestFit);
+				});
 			}
+			ThreadPool.executeParallel(parallelTasks);
 			
 			//Copy data into the final results container
-			this.particles.addAll(possibleVacancies.getAllElements());
+			for (int i = 0; i < isVacancy.length; i++)
+				if (isVacancy[i]) this.particles.add(possibleVacancies.get(i));
 			
 			ProgressMonitor.getProgressMonitor().stop();
 		}
@@ -394,6 +394,8 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 	
 	static class Vacancy extends Vec3 implements Pickable{
 		private float dist;
+		//Position in the list of possible vacancy sites
+		private int index;
 		
 		public Vacancy(Vec3 v, float d) {
 			super(v.x,v.y, v.z);
@@ -417,6 +419,15 @@ public final class VacancyDetectionModule extends ClonableProcessingModule {
 							new String[]{"Position", "Distance to atom"}, new Object[]{this, dist}));
 		}
 		
+		/**
+		 * Of two sites close to each other, the one further away from the atoms is kept
+		 * @param v
+		 * @return true if this site is kept instead of v
+		 */
+		boolean isPreferredTo(Vacancy v){
+			return dist > v.dist || (dist == v.dist && index > v.index);
+		}
+		
 		@Override
 		public boolean equals(Object obj) {
 			return this == obj;
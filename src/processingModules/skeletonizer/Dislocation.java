@@ -78,44 +78,49 @@ public class Dislocation implements Pickable{
 	 * has to be called in order to determine the relationship between stacking faults and dislocations
 	 * The nearest neighborhood graph between dislocation core atoms and stacking fault atoms has to be
 	 * created before or no relationship will be detected
+	 * Dislocations only modify their own state, thus this method can be called for different
+	 * dislocations in parallel.
+	 * @param nnb contains all atoms that are part of a planar defect
 	 */
-	protected void findAdjacentStackingFaults(Map<Atom, PlanarDefect> defectMap, NearestNeighborBuilder<Atom> nnb) {
-		//Map which stacking fault is in contact with how many nodes
-		HashMap<PlanarDefect, Integer> contactSurface = new HashMap<PlanarDefect, Integer>();
+	protected void findAdjacentStackingFaults(NearestNeighborBuilder<PlanarDefectAtom> nnb) {
+		//Which stacking fault is in contact with how many nodes, the number of
+		//contacts is stored at the same index as the stacking fault
+		ArrayList<PlanarDefect> contactSurface = new ArrayList<PlanarDefect>();
+		int[] contacts = new int[4];
+		ArrayList<PlanarDefect> inContact = new ArrayList<PlanarDefect>();
 		
 		for (int l = 0; l < polyline.length; l++) {
 			// Count for the every node of a line which surfaces are in contact
 			// (one of the dislocation core atoms is sharing a nearest neighbor with a stacking fault)
 			// Each surface is counted once per each node
-			ArrayList<PlanarDefect> inContact = new ArrayList<PlanarDefect>();
+			inContact.clear();
 			for (int j = 0; j < polyline[l].getMappedAtoms().size(); j++) {
 				Atom a = polyline[l].getMappedAtoms().get(j);
-				ArrayList<Atom> stackingFaultNeigh = nnb.getNeigh(a);
+				ArrayList<PlanarDefectAtom> stackingFaultNeigh = nnb.getNeigh(a);
 				
 				for (int i = 0; i < stackingFaultNeigh.size(); i++) {
-					Atom b = stackingFaultNeigh.get(i);
-					PlanarDefect pd = defectMap.get(b);
-					if (pd != null) {
-						if (!inContact.contains(pd)) inContact.add(pd);
-					}
+					PlanarDefectAtom b = stackingFaultNeigh.get(i);
+					if (b.getAtom() == a) continue;
+					PlanarDefect pd = b.getPlanarDefect();
+					if (!inContact.contains(pd)) inContact.add(pd);
 				}
 			}
 
 			for (PlanarDefect s : inContact) {
-				if (contactSurface.containsKey(s)){
-					contactSurface.put(s, contactSurface.get(s)+1);
-				} else {
-					contactSurface.put(s, 1);
-				}		
+				int index = contactSurface.indexOf(s);
+				if (index == -1){
+					index = contactSurface.size();
+					contactSurface.add(s);
+					if (index == contacts.length) contacts = Arrays.copyOf(contacts, 2*index);
+				}
+				contacts[index]++;
 			}
 		}
 		// if more than half of the nodes are in contact with a surface,
 		// this surface is adjacent
 		ArrayList<PlanarDefect> surfaces = new ArrayList<PlanarDefect>();
-		if (contactSurface.size() > 0) {
-			for (PlanarDefect s : contactSurface.keySet()) {
-				if (contactSurface.get(s) > polyline.length / 2) surfaces.add(s);
-			}
+		for (int i = 0; i < contactSurface.size(); i++) {
+			if (contacts[i] > polyline.length / 2) surfaces.add(contactSurface.get(i));
 		}
 		this.adjacentPlanarDefect = surfaces;
 	}
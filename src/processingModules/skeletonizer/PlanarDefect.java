@@ -21,10 +21,14 @@ package processingModules.skeletonizer;
 import java.awt.event.InputEvent;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import model.*;
 import model.polygrain.Grain;
 import common.CommonUtils;
+import common.ThreadPool;
 import common.Tupel;
 import common.Vec3;
 
@@ -47,216 +51,402 @@ public class PlanarDefect implements Pickable{
 	 */
 	private int planeComposedOfType;
 	
-	protected PlanarDefect(final Set<PlanarDefectAtom> planarDefectAtoms, Vec3 normal,
-			Map<PlanarDefectAtom, PlanarDefect> defectMap, Grain grain, int id) {
+	/**
+	 * Creates a planar defect and assigns its atoms to it. The ID is assigned after all planar defects
+	 * are created.
+	 * @param planarDefectAtoms the atoms of the plane in ascending order of their IDs
+	 * @param normal
+	 * @param grain
+	 */
+	protected PlanarDefect(List<PlanarDefectAtom> planarDefectAtoms, Vec3 normal, Grain grain) {
 		if (planarDefectAtoms.size() < 3) throw new IllegalArgumentException("To small set (need >=3 points)");
 		this.grain = grain;
-		this.id = id;
 		
 		this.numberOfAtoms = planarDefectAtoms.size();
 		this.normal = normal.normalizeClone();
 		
 		for (PlanarDefectAtom a : planarDefectAtoms) {
-			defectMap.put(a, this);
+			a.setPlanarDefect(this);
 		}
 		
 		createFaces(planarDefectAtoms);
 		
 		if (numberOfAtoms!=0)
-			this.planeComposedOfType = planarDefectAtoms.iterator().next().getAtom().getType();
+			this.planeComposedOfType = planarDefectAtoms.get(0).getAtom().getType();
 	}
 	
 	/**
 	 * Creates planar defects 
-	 * nearest neighbor atoms between defects need to be created before calling this method
-	 * Important note: the relationship between planar defects and atoms in returned in the defectMap!
+	 * Important note: the relationship between planar defects and atoms is returned in planarDefectAtoms!
+	 * Planes can only grow along nearest neighbors in the same grain, thus each connected component
+	 * of stacking fault atoms is processed independently in parallel. The planes of all components
+	 * are then ordered and numbered as if the atoms were processed in a single pass.
 	 * @param data the set of atom Data 
-	 * @param defectMap contains the relationship between planar defects and atoms AFTER completion
+	 * @param planarDefectAtoms is filled with all stacking fault atoms, the planar defect an atom
+	 * is part of is provided by {@link PlanarDefectAtom#getPlanarDefect()}
 	 * @return a list of all created planar defects
 	 */
 	public static ArrayList<PlanarDefect> createPlanarDefects(AtomData data, 
-			Map<PlanarDefectAtom, PlanarDefect> defectMap){
+			List<PlanarDefectAtom> planarDefectAtoms){
 
 		List<Atom> sfAtoms = data.getCrystalStructure().getStackingFaultAtoms(data);
-		TreeSet<PlanarDefectAtom> planarDefectAtoms = new TreeSet<PlanarDefectAtom>();
-		int id = 0;
+		final ArrayList<PlanarDefectAtom> atoms = new ArrayList<PlanarDefectAtom>(sfAtoms.size());
 		for (Atom a: sfAtoms)
-			planarDefectAtoms.add(new PlanarDefectAtom(a, id++));
+			atoms.add(new PlanarDefectAtom(a, atoms.size()));
+		planarDefectAtoms.addAll(atoms);
+		final int size = atoms.size();
 		
-		NearestNeighborBuilder<PlanarDefectAtom> nnb = new NearestNeighborBuilder<PlanarDefectAtom>(
+		final NearestNeighborBuilder<PlanarDefectAtom> nnb = new NearestNeighborBuilder<PlanarDefectAtom>(
 				data.getBox(), data.getCrystalStructure().getNearestNeighborSearchRadius());
+		nnb.addAll(atoms);
 		
-		for (PlanarDefectAtom p : planarDefectAtoms)
-			nnb.add(p);
-		
-		for (PlanarDefectAtom p : planarDefectAtoms)
-			p.setNeigh(nnb.getNeigh(p));
-		
+		//Planes are only created from atoms in the same group, which is the grain in polycrystalline
+		//material. Atoms without a group (-1) are only considered as neighbors 
+		final int[] group = new int[size];
+		ArrayList<Vec3[]> planeNormals = new ArrayList<Vec3[]>();
+		ArrayList<Grain> grains = new ArrayList<Grain>();
 		if (!data.isPolyCrystalline()){
-			return createPlanarDefects(planarDefectAtoms, 
-					data.getCrystalStructure().getStackingFaultNormals(data.getCrystalRotation()),
-					defectMap, null, data);
+			planeNormals.add(data.getCrystalStructure().getStackingFaultNormals(data.getCrystalRotation()));
+			grains.add(null);
 		} else {
-			//For polycrystalline material, split everything into separate grains
-			HashMap<Integer, TreeSet<PlanarDefectAtom>> sfPerGrain = new HashMap<Integer, TreeSet<PlanarDefectAtom>>();
-			for (PlanarDefectAtom a : planarDefectAtoms){
-				if (a.getAtom().getGrain() != Atom.IGNORED_GRAIN && !sfPerGrain.containsKey(a.getAtom().getGrain())){
-					sfPerGrain.put(a.getAtom().getGrain(), new TreeSet<PlanarDefectAtom>());
+			//Groups are ordered as the grains are iterated in a hash map
+			HashMap<Integer, Integer> groupOfGrain = new HashMap<Integer, Integer>();
+			for (PlanarDefectAtom a : atoms)
+				groupOfGrain.put(a.getAtom().getGrain(), -1);
+			for (Entry<Integer, Integer> e : groupOfGrain.entrySet()){
+				if (e.getKey() != Atom.DEFAULT_GRAIN && e.getKey() != Atom.IGNORED_GRAIN){
+					Grain g = data.getGrains(e.getKey());
+					e.setValue(grains.size());
+					planeNormals.add(g.getCrystalStructure().getStackingFaultNormals(g.getCystalRotationTools()));
+					grains.add(g);
 				}
-				sfPerGrain.get(a.getAtom().getGrain()).add(a);
 			}
-			planarDefectAtoms.clear();	//Not needed anymore, dereference all its members
-			
-			ArrayList<PlanarDefect> def = new ArrayList<PlanarDefect>();
-			
-			for (Entry<Integer, TreeSet<PlanarDefectAtom>> e : sfPerGrain.entrySet()){
-				sfPerGrain.remove(e);	//reference in the map is not needed anymore
-				if (e.getKey() != Atom.DEFAULT_GRAIN  && e.getKey() != Atom.IGNORED_GRAIN){
-					Grain g = data.getGrains(e.getKey()); 
-					
-					def.addAll(createPlanarDefects(e.getValue(), 
-							g.getCrystalStructure().getStackingFaultNormals(g.getCystalRotationTools()),
-							defectMap, g, data));
+			for (int i=0; i<size; i++)
+				group[i] = groupOfGrain.get(atoms.get(i).getAtom().getGrain());
+		}
+		
+		final AtomicIntegerArray parent = new AtomicIntegerArray(size);
+		//Create nearest neighbors and the connected components of neighbors in the same group
+		Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(size, i);
+			final int end = ThreadPool.getSliceEnd(size, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j=start; j<end; j++){
+						atoms.get(j).setNeigh(nnb.getNeigh(atoms.get(j)));
+						parent.set(j, j);
+					}
+					return null;
 				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+		
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			final int start = ThreadPool.getSliceStart(size, i);
+			final int end = ThreadPool.getSliceEnd(size, i);
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j=start; j<end; j++){
+						if (group[j] == -1) continue;
+						for (PlanarDefectAtom n : atoms.get(j).getNeigh())
+							if (group[n.getID()] == group[j])
+								union(parent, j, n.getID());
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+		
+		//Sort the atoms by components, the root of each component is its atom with the lowest ID  
+		int[] componentOfRoot = new int[size];
+		int[] componentStart = new int[size+1];
+		int numComponents = 0;
+		for (int i=0; i<size; i++){
+			if (group[i] == -1) continue;
+			int r = find(parent, i);
+			if (r == i) componentOfRoot[i] = numComponents++;
+			componentStart[componentOfRoot[r]+1]++;
+		}
+		for (int i=0; i<numComponents; i++)
+			componentStart[i+1] += componentStart[i];
+		final int[] members = new int[componentStart[numComponents]];
+		int[] fill = Arrays.copyOf(componentStart, numComponents);
+		for (int i=0; i<size; i++){
+			if (group[i] != -1)
+				members[fill[componentOfRoot[find(parent, i)]]++] = i;
+		}
+		
+		//Process large components first to balance the load
+		final Integer[] order = new Integer[numComponents];
+		for (int i=0; i<numComponents; i++) order[i] = i;
+		final int[] start = Arrays.copyOf(componentStart, numComponents+1);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				int s1 = start[o1+1]-start[o1];
+				int s2 = start[o2+1]-start[o2];
+				return s1 > s2 ? -1 : (s1 < s2 ? 1 : 0);
+			}
+		});
+		
+		final PlaneDetection detection = new PlaneDetection(atoms, group, planeNormals, grains, data.getBox());
+		final AtomicInteger next = new AtomicInteger();
+		parallelTasks.clear();
+		for (int i=0; i<ThreadPool.availProcessors(); i++){
+			parallelTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					int i;
+					while ((i = next.getAndIncrement()) < order.length){
+						int c = order[i];
+						detection.processComponent(members, start[c], start[c+1]);
+					}
+					return null;
+				}
+			});
+		}
+		ThreadPool.executeParallel(parallelTasks);
+		
+		//Planes are ordered by group, then by the run they are created in and by the seed atom,
+		//IDs are numbered per group and run
+		ArrayList<ArrayList<PlanarDefect>> planesPerGroupAndRun = new ArrayList<ArrayList<PlanarDefect>>();
+		for (int i=0; i<2*grains.size(); i++)
+			planesPerGroupAndRun.add(new ArrayList<PlanarDefect>());
+		for (int run=0; run<2; run++){
+			for (int i=0; i<size; i++){
+				PlanarDefect pd = detection.planeOfSeed[run][i];
+				if (pd != null) planesPerGroupAndRun.get(2*group[i]+run).add(pd);
+			}
+		}
+		ArrayList<PlanarDefect> planarDefectList = new ArrayList<PlanarDefect>();
+		for (ArrayList<PlanarDefect> planes : planesPerGroupAndRun){
+			int id = 0;
+			for (PlanarDefect pd : planes){
+				pd.id = id++;
+				planarDefectList.add(pd);
 			}
-			
-			return def;
 		}
+		
+		return planarDefectList;
 	}
 	
 	/**
-	 * @param planarDefectAtoms
-	 * @param planeNormals
-	 * @return
+	 * Lock-free find with path halving
 	 */
-	private static ArrayList<PlanarDefect> createPlanarDefects(TreeSet<PlanarDefectAtom> planarDefectAtoms, 
-			Vec3[] planeNormals, Map<PlanarDefectAtom, PlanarDefect> defectMap, Grain grain, AtomData data){
-		HashSet<PlanarDefectAtom> planarDefectAtomsLookup = new HashSet<PlanarDefectAtom>(planarDefectAtoms);
-		ArrayList<PlanarDefect> planarDefectList = new ArrayList<PlanarDefect>();
-		
-		TreeSet<PlanarDefectAtom> leftOverAtoms = findDefects(planarDefectAtoms, true, 
-				planarDefectList, planarDefectAtomsLookup, planeNormals, defectMap, grain, data);
-		findDefects(leftOverAtoms, false, planarDefectList, planarDefectAtomsLookup, planeNormals, defectMap, grain, data);
+	private static int find(AtomicIntegerArray parent, int i){
+		int p = parent.get(i);
+		while (p != i){
+			int gp = parent.get(p);
+			//Path halving, failures are harmless since other threads only move nodes closer to the root
+			parent.compareAndSet(i, p, gp);
+			i = gp;
+			p = parent.get(i);
+		}
+		return i;
+	}
 
-		//wait till all planarDefects are processed in worker threads
-		for (PlanarDefect pd : planarDefectList)
-			pd.getFaces();
-		
-		return planarDefectList;
+	/**
+	 * Lock-free union, the root with the larger index is attached to the root with the smaller one
+	 */
+	private static void union(AtomicIntegerArray parent, int a, int b){
+		while (true){
+			a = find(parent, a);
+			b = find(parent, b);
+			if (a == b) return;
+			if (a > b){
+				int t = a; a = b; b = t;
+			}
+			//Only succeeds if b is still a root, otherwise retry with the new roots
+			if (parent.compareAndSet(b, b, a)) return;
+		}
 	}
 	
-	private static TreeSet<PlanarDefectAtom> findDefects(
-			TreeSet<PlanarDefectAtom> atomSet, 
-			boolean firstRun, 
-			ArrayList<PlanarDefect> planarDefectList, 
-			HashSet<PlanarDefectAtom> planarDefectAtomsLookup,
-			Vec3[] planeNormals, 
-			Map<PlanarDefectAtom, PlanarDefect> defectMap, 
-			Grain grain,
-			AtomData data){
+	/**
+	 * The detection of planes in connected components of stacking fault atoms.
+	 * All state is stored in arrays indexed by the IDs of the atoms. Different components never
+	 * access the same entries, thus components can be processed concurrently.
+	 */
+	private static final class PlaneDetection {
+		private final List<PlanarDefectAtom> atoms;
+		private final int[] group;
+		private final List<Vec3[]> planeNormals;
+		private final List<Grain> grains;
+		private final BoxParameter box;
+		/**
+		 * Atoms of the group that are not yet part of a planar defect
+		 */
+		private final boolean[] lookup;
+		/**
+		 * The run (1 or 2) in which an atom was removed from the set of seed atoms
+		 */
+		private final byte[] removedInRun;
+		/**
+		 * Marks the atoms in the plane that is currently grown
+		 */
+		private final int[] planeMark;
+		/**
+		 * The planar defects created in the first and second run, indexed by their seed atom
+		 */
+		final PlanarDefect[][] planeOfSeed;
 		
-		int id = 0;
+		PlaneDetection(List<PlanarDefectAtom> atoms, int[] group, List<Vec3[]> planeNormals,
+				List<Grain> grains, BoxParameter box) {
+			this.atoms = atoms;
+			this.group = group;
+			this.planeNormals = planeNormals;
+			this.grains = grains;
+			this.box = box;
+			int size = atoms.size();
+			this.lookup = new boolean[size];
+			for (int i=0; i<size; i++)
+				lookup[i] = group[i] != -1;
+			this.removedInRun = new byte[size];
+			this.planeMark = new int[size];
+			this.planeOfSeed = new PlanarDefect[2][size];
+		}
 		
-		int bondThreshold = firstRun ? 3 : 2;
-		PlanarDefectAtom[] fittingArray = new PlanarDefectAtom[20];
-	
-		TreeSet<PlanarDefectAtom> leftOverAtoms = new TreeSet<PlanarDefectAtom>();
+		void processComponent(int[] members, int start, int end){
+			int[] leftOverAtoms = new int[end-start];
+			int leftOver = findDefects(members, start, end, true, leftOverAtoms);
+			findDefects(leftOverAtoms, 0, leftOver, false, null);
+		}
 		
-		while (!atomSet.isEmpty()){
-			PlanarDefectAtom c = atomSet.pollFirst();
+		private boolean isInLookup(PlanarDefectAtom n, PlanarDefectAtom c){
+			return group[n.getID()] == group[c.getID()] && lookup[n.getID()];
+		}
+		
+		/**
+		 * Processes the given atoms in ascending order as seeds of planes
+		 * @param seeds
+		 * @param start
+		 * @param end
+		 * @param firstRun
+		 * @param leftOverAtoms receives the seeds without a sufficient number of straight bonds, may be null
+		 * @return the number of left over atoms
+		 */
+		private int findDefects(int[] seeds, int start, int end, boolean firstRun, int[] leftOverAtoms){
+			int bondThreshold = firstRun ? 3 : 2;
+			int run = firstRun ? 0 : 1;
+			int leftOver = 0;
+			PlanarDefectAtom[] fittingArray = new PlanarDefectAtom[20];
+			Vec3[] straightBonds = new Vec3[3];
 			
-			//Identify straight bonds between nearest neighbors in the set of planar defects
-			//In the first run consider only atoms in the list of planar defects
-			//In the second run all atoms are considered
-			ArrayList<Vec3> straightBonds = new ArrayList<Vec3>(); 
-			for (int i=0; i<c.getNeigh().size()-1; i++){
-				if (!firstRun || planarDefectAtomsLookup.contains(c.getNeigh().get(i))){
-					
-					Vec3 vec1 = data.getBox().getPbcCorrectedDirection(c, c.getNeigh().get(i));
-					float vec1_sqrlength = vec1.getLengthSqr();
-					float v1LengthTimesThreshold = 0.9025f * vec1_sqrlength;
-					
-					for (int j=i+1; j<c.getNeigh().size(); j++){
-						if (!firstRun || planarDefectAtomsLookup.contains(c.getNeigh().get(j))){
-							
-							Vec3 vec2 = data.getBox().getPbcCorrectedDirection(c, c.getNeigh().get(j));
-							float p = vec1.dot(vec2);
-							
-							if (p < 0f && (p*p) > v1LengthTimesThreshold * vec2.getLengthSqr()){ 
-								straightBonds.add(data.getBox().getPbcCorrectedDirection(c.getNeigh().get(i), c.getNeigh().get(j)));
+			for (int s=start; s<end; s++){
+				if (removedInRun[seeds[s]] == run+1) continue;
+				PlanarDefectAtom c = atoms.get(seeds[s]);
+				ArrayList<PlanarDefectAtom> neigh = c.getNeigh();
+				
+				//Identify straight bonds between nearest neighbors in the set of planar defects
+				//In the first run consider only atoms in the list of planar defects
+				//In the second run all atoms are considered
+				//Only the first three bonds are needed
+				int numStraightBonds = 0;
+				for (int i=0; i<neigh.size()-1; i++){
+					if (!firstRun || isInLookup(neigh.get(i), c)){
+						
+						Vec3 vec1 = box.getPbcCorrectedDirection(c, neigh.get(i));
+						float vec1_sqrlength = vec1.getLengthSqr();
+						float v1LengthTimesThreshold = 0.9025f * vec1_sqrlength;
+						
+						for (int j=i+1; j<neigh.size(); j++){
+							if (!firstRun || isInLookup(neigh.get(j), c)){
+								
+								Vec3 vec2 = box.getPbcCorrectedDirection(c, neigh.get(j));
+								float p = vec1.dot(vec2);
+								
+								if (p < 0f && (p*p) > v1LengthTimesThreshold * vec2.getLengthSqr()){
+									if (numStraightBonds < straightBonds.length)
+										straightBonds[numStraightBonds] = 
+											box.getPbcCorrectedDirection(neigh.get(i), neigh.get(j));
+									numStraightBonds++;
+								}
 							}
 						}
 					}
 				}
-			}
-			if (straightBonds.size()>=bondThreshold){
-				//Three straight bonds are found, now test if they are in the same plane or forming multiple planes.
-				//If there is only one plane, start BFS to detect the whole surface.
-				Vec3 normal = straightBonds.get(0).cross(straightBonds.get(1)).normalize();
-				if (bondThreshold == 3){
-					float thirdBondInSamePlane = Math.abs(straightBonds.get(2).dot(normal));
-					if (thirdBondInSamePlane > 0.1f) continue; //Not a single plane -> do nothing
-				}
-				
-				TreeSet<PlanarDefectAtom> atomsInSet = new TreeSet<PlanarDefectAtom>();
-				Queue<PlanarDefectAtom> atomsQueue = new LinkedList<PlanarDefectAtom>();
-				
-				//Surface is detected, now test which glide plane fits best
-				int t=0;
-				float best = 0;
-				for (int i=0; i<planeNormals.length;i++){
-					float sim = Math.abs(normal.dot(planeNormals[i]));
-					if (sim>best){
-						best = sim;
-						t = i;
+				if (numStraightBonds>=bondThreshold){
+					//Three straight bonds are found, now test if they are in the same plane or forming multiple planes.
+					//If there is only one plane, start BFS to detect the whole surface.
+					Vec3 normal = straightBonds[0].cross(straightBonds[1]).normalize();
+					if (bondThreshold == 3){
+						float thirdBondInSamePlane = Math.abs(straightBonds[2].dot(normal));
+						if (thirdBondInSamePlane > 0.1f) continue; //Not a single plane -> do nothing
+					}
+					
+					//Surface is detected, now test which glide plane fits best
+					Vec3[] normals = planeNormals.get(group[c.getID()]);
+					int t=0;
+					float best = 0;
+					for (int i=0; i<normals.length;i++){
+						float sim = Math.abs(normal.dot(normals[i]));
+						if (sim>best){
+							best = sim;
+							t = i;
+						}
 					}
-				}
-				
-				//BFS to find the surface atoms
-				atomsInSet.add(c);
-				atomsQueue.add(c);
-				while (!atomsQueue.isEmpty()){
-					PlanarDefectAtom b = atomsQueue.poll();
-					int fittingAtoms = 0;
-					int fittingArraySize = 0;
 					
-					for (int i=0; i<b.getNeigh().size(); i++){
-						PlanarDefectAtom n = b.getNeigh().get(i);
+					//BFS to find the surface atoms, the list of atoms in the plane is used as queue
+					//Each atom is the seed of at most one plane per run, thus the mark is unique
+					int mark = 2*c.getID()+run+1;
+					ArrayList<PlanarDefectAtom> atomsInSet = new ArrayList<PlanarDefectAtom>();
+					atomsInSet.add(c);
+					planeMark[c.getID()] = mark;
+					for (int q=0; q<atomsInSet.size(); q++){
+						PlanarDefectAtom b = atomsInSet.get(q);
+						int fittingAtoms = 0;
+						int fittingArraySize = 0;
 						
-						//Count nearest neighbor hcp-atoms in the same plane 
-						if (planarDefectAtomsLookup.contains(n)){
-							// equals (vec/|vec|)*normal < 0.2, but this method is more efficient 
-							Vec3 vec = data.getBox().getPbcCorrectedDirection(b, n);
-							float p = vec.dot(normal);
-							if ( p*p < 0.04f * vec.getLengthSqr() && n.getAtom().getType() == c.getAtom().getType()){
-								fittingAtoms++;
-								if (!atomsInSet.contains(n)){
-									fittingArray[fittingArraySize] = n;
-									fittingArraySize++;
+						for (int i=0; i<b.getNeigh().size(); i++){
+							PlanarDefectAtom n = b.getNeigh().get(i);
+							
+							//Count nearest neighbor hcp-atoms in the same plane 
+							if (isInLookup(n, c)){
+								// equals (vec/|vec|)*normal < 0.2, but this method is more efficient 
+								Vec3 vec = box.getPbcCorrectedDirection(b, n);
+								float p = vec.dot(normal);
+								if ( p*p < 0.04f * vec.getLengthSqr() && n.getAtom().getType() == c.getAtom().getType()){
+									fittingAtoms++;
+									if (planeMark[n.getID()] != mark){
+										if (fittingArraySize == fittingArray.length)
+											fittingArray = Arrays.copyOf(fittingArray, 2*fittingArray.length);
+										fittingArray[fittingArraySize] = n;
+										fittingArraySize++;
+									}
 								}
 							}
 						}
-					}
-					//if the atom has at least three neighbors in the same plane, the surface detection can proceed at this atom.
-					//If not, the detection should stop here, otherwise the plane might extend itself as a line in other planes
-					//Atoms that are ignored in first step by this are attached later to their planes.
-					if (fittingAtoms>=3){
-						for (int i=0; i<fittingArraySize; i++){
-							atomSet.remove(fittingArray[i]);
-							atomsInSet.add(fittingArray[i]);
-							atomsQueue.add(fittingArray[i]);
+						//if the atom has at least three neighbors in the same plane, the surface detection can proceed at this atom.
+						//If not, the detection should stop here, otherwise the plane might extend itself as a line in other planes
+						//Atoms that are ignored in first step by this are attached later to their planes.
+						if (fittingAtoms>=3){
+							for (int i=0; i<fittingArraySize; i++){
+								PlanarDefectAtom n = fittingArray[i];
+								removedInRun[n.getID()] = (byte)(run+1);
+								if (planeMark[n.getID()] != mark){
+									planeMark[n.getID()] = mark;
+									atomsInSet.add(n);
+								}
+							}
 						}
 					}
+					if (atomsInSet.size()>=3){
+						Collections.sort(atomsInSet);
+						planeOfSeed[run][c.getID()] = new PlanarDefect(atomsInSet, normals[t], grains.get(group[c.getID()]));
+						for (PlanarDefectAtom a : atomsInSet)
+							lookup[a.getID()] = false;
+					}
+					
 				}
-				if (atomsInSet.size()>=3){
-					planarDefectList.add(new PlanarDefect(atomsInSet, planeNormals[t], defectMap, grain, id++));
-					planarDefectAtomsLookup.removeAll(atomsInSet);
-				}
-				
+				else if (leftOverAtoms != null) leftOverAtoms[leftOver++] = c.getID();
 			}
-			else leftOverAtoms.add(c);
+			return leftOver;
 		}
-		return leftOverAtoms;
 	}
 
 
@@ -307,7 +497,7 @@ public class PlanarDefect implements Pickable{
 	}
 	
 	
-	private void createFaces(Set<PlanarDefectAtom> planarDefectAtoms){
+	private void createFaces(List<PlanarDefectAtom> planarDefectAtoms){
 		ArrayList<Atom> faces = new ArrayList<Atom>();
 		//Find three atoms in triangular configuration in the same plane
 		//if a triangle is found and the first atom has the highest number,
@@ -317,16 +507,16 @@ public class PlanarDefect implements Pickable{
 		for (PlanarDefectAtom a : planarDefectAtoms){
 			for (int i=0; i<a.getNeigh().size(); i++){
 				PlanarDefectAtom n1 = a.getNeigh().get(i);
-				if (a.compareTo(n1)>0 && planarDefectAtoms.contains(a.getNeigh().get(i))){
+				if (a.compareTo(n1)>0 && n1.getPlanarDefect() == this){
 					//Look for common neighbors
 					for (int j=i; j<a.getNeigh().size(); j++){
+						PlanarDefectAtom n2 = a.getNeigh().get(j);
+						if (a.compareTo(n2) <= 0 || n2.getPlanarDefect() != this) continue;
 						for (int k=0; k<n1.getNeigh().size(); k++){
-							if (a.getNeigh().get(j) == n1.getNeigh().get(k) && 
-									a.compareTo(a.getNeigh().get(j)) > 0 && 
-									planarDefectAtoms.contains(a.getNeigh().get(j))){
+							if (n2 == n1.getNeigh().get(k)){
 								faces.add(a.getAtom());
 								faces.add(n1.getAtom());
-								faces.add(a.getNeigh().get(j).getAtom());
+								faces.add(n2.getAtom());
 							}
 						}	
 					}
@@ -27,6 +27,7 @@ class PlanarDefectAtom extends Vec3 implements Comparable<PlanarDefectAtom>{
 	private ArrayList<PlanarDefectAtom> neigh;
 	private Atom atom;
 	private int id;
+	private PlanarDefect planarDefect;
 	
 	public PlanarDefectAtom(Atom a, int id){
 		this.atom = a;
@@ -39,6 +40,26 @@ class PlanarDefectAtom extends Vec3 implements Comparable<PlanarDefectAtom>{
 		return atom;
 	}
 	
+	/**
+	 * The index of this atom in the list of all planar defect atoms
+	 * @return
+	 */
+	public int getID() {
+		return id;
+	}
+	
+	/**
+	 * The planar defect this atom is part of
+	 * @return the planar defect or null if the atom is not part of any planar defect
+	 */
+	public PlanarDefect getPlanarDefect() {
+		return planarDefect;
+	}
+	
+	public void setPlanarDefect(PlanarDefect planarDefect) {
+		this.planarDefect = planarDefect;
+	}
+	
 	public ArrayList<PlanarDefectAtom> getNeigh() {
 		return neigh;
 	}
@@ -46,6 +46,12 @@ public class SkeletonNode extends Vec3 implements Comparable<SkeletonNode>{
 	
 	private ArrayList<Dislocation> joiningDislocation;
 	
+	//Bookkeeping during contraction in the Skeletonizer
+	//active is used to create duplicate free sets of nodes to process,
+	//removed marks nodes that have been merged into another node 
+	boolean active = false;
+	boolean removed = false;
+	
 	/**
 	 * Create a SkeletonNode as a representation of an atom 
 	 * @param atom
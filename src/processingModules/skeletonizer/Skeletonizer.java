@@ -33,6 +33,7 @@ import com.jogamp.opengl.GL3;
 
 import common.CommonUtils;
 import common.FastDeletableArrayList;
+import common.Ray;
 import common.ThreadPool;
 import common.UniqueIDCounter;
 import common.Vec3;
@@ -50,7 +51,7 @@ import processingModules.skeletonizer.processors.*;
  */
 public class Skeletonizer extends DataContainer {
 	private static JDislocationMenuPanel dataPanel;
-	private static final float CORE_THICKNESS = 5f;
+	public static final float CORE_THICKNESS = 5f;
 	
 	private FastDeletableArrayList<SkeletonNode> nodes = new FastDeletableArrayList<SkeletonNode>();
 	private ArrayList<Dislocation> dislocations = new ArrayList<Dislocation>();
@@ -61,6 +62,14 @@ public class Skeletonizer extends DataContainer {
 	private AtomData data;
 	
 	private float meshingThreshold = -1;
+	/**
+	 * Upper bound of the length of all edges in the mesh during contraction
+	 */
+	private float maxEdgeLength;
+	/**
+	 * Number of nodes in the list of nodes that have been merged, but are not yet removed from the list
+	 */
+	private int mergedNodesInList;
 	private boolean skeletonizeOverGrains;
 	
 	//Text messages for the result of the dislocation network are stored in here  
@@ -200,13 +209,28 @@ public class Skeletonizer extends DataContainer {
 
 
 		//The skeletonization core process. Alternate contraction and merging until the process converged
+		//Only the active set of nodes is processed in each iteration. These are nodes that have been moved
+		//or whose neighborhood has been changed in the previous iteration
+		List<SkeletonNode> activeNodes = new ArrayList<SkeletonNode>(nodes);
+		maxEdgeLength = meshingThreshold;
+		mergedNodesInList = 0;
 		do {
 			updated = false;
-			if (contractMesh()) updated = true;
-			if (mergeNodes(0.1f*meshingThreshold) && !Thread.interrupted()) updated = true;
+			List<SkeletonNode> touchedByContraction = new ArrayList<SkeletonNode>();
+			List<SkeletonNode> touchedByMerging = new ArrayList<SkeletonNode>();
+			
+			if (contractMesh(activeNodes, touchedByContraction)) updated = true;
+			List<SkeletonNode> mergeCandidates = createActiveSet(activeNodes, touchedByContraction);
+			if (mergeNodes(mergeCandidates, 0.1f*meshingThreshold, touchedByMerging) && !Thread.interrupted()) 
+				updated = true;
+			activeNodes = createActiveSet(touchedByContraction, touchedByMerging);
+			
+			//Remove merged nodes from the list only once in a while
+			if (mergedNodesInList * 8 > nodes.size())
+				removeMergedNodes();
 			iterations++;
-	
 		} while (updated && iterations<10000 && !Thread.interrupted());
+		removeMergedNodes();
 		if (Thread.interrupted()) return;
 		
 		//Apply mesh post-processors
@@ -224,24 +248,50 @@ public class Skeletonizer extends DataContainer {
 		
 		//detect hexagonally shaped stacking faults
 		if (data.getCrystalStructure().hasStackingFaults()){
-			//this map will later contain the relation between atoms and the planes they are part of
-			TreeMap<PlanarDefectAtom, PlanarDefect> planarDefectMap = new TreeMap<PlanarDefectAtom, PlanarDefect>();
+			//after completion, each atom refers to the plane it is part of
+			ArrayList<PlanarDefectAtom> planarDefectAtoms = new ArrayList<PlanarDefectAtom>();
 			
-			this.planarDefects = PlanarDefect.createPlanarDefects(data, planarDefectMap);
+			this.planarDefects = PlanarDefect.createPlanarDefects(data, planarDefectAtoms);
 		
-			NearestNeighborBuilder<Atom> nnb = new NearestNeighborBuilder<Atom>(data.getBox(), meshingThreshold);
-			for (PlanarDefectAtom a : planarDefectMap.keySet())
-				nnb.add(a.getAtom());
+			final NearestNeighborBuilder<PlanarDefectAtom> nnb = 
+					new NearestNeighborBuilder<PlanarDefectAtom>(data.getBox(), meshingThreshold);
+			nnb.addAll(planarDefectAtoms, new Filter<PlanarDefectAtom>() {
+				@Override
+				public boolean accept(PlanarDefectAtom a) {
+					return a.getPlanarDefect() != null;
+				}
+			});
 			
-			//Copy map
-			HashMap<Atom, PlanarDefect> defectAtomMap = new HashMap<Atom, PlanarDefect>();
-			for (Map.Entry<PlanarDefectAtom, PlanarDefect> e : planarDefectMap.entrySet()){
-				defectAtomMap.put(e.getKey().getAtom(), e.getValue());
+			//Create links between stacking faults and dislocations (in parallel)
+			Vector<Callable<Void>> parallelTasks = new Vector<Callable<Void>>();
+			for (int i=0; i<ThreadPool.availProcessors(); i++){
+				final int start = ThreadPool.getSliceStart(dislocations.size(), i);
+				final int end = ThreadPool.getSliceEnd(dislocations.size(), i);
+				parallelTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int j=start; j<end; j++)
+							dislocations.get(j).findAdjacentStackingFaults(nnb);
+						return null;
+					}
+				});
 			}
+			ThreadPool.executeParallel(parallelTasks);
 			
-			//Create links between stacking faults and dislocations
-			for (Dislocation d : dislocations) d.findAdjacentStackingFaults(defectAtomMap, nnb);
-			for (PlanarDefect s : planarDefects) s.findAdjacentDislocations(dislocations);
+			parallelTasks.clear();
+			for (int i=0; i<ThreadPool.availProcessors(); i++){
+				final int start = ThreadPool.getSliceStart(planarDefects.size(), i);
+				final int end = ThreadPool.getSliceEnd(planarDefects.size(), i);
+				parallelTasks.add(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						for (int j=start; j<end; j++)
+							planarDefects.get(j).findAdjacentDislocations(dislocations);
+						return null;
+					}
+				});
+			}
+			ThreadPool.executeParallel(parallelTasks);
 		}
 		
 		//Store dislocation junction information in the junction nodes
@@ -270,15 +320,21 @@ public class Skeletonizer extends DataContainer {
 		nodes = null;
 	}
 	
-	private boolean contractMesh() {
+	/**
+	 * Contracts the mesh by moving the given nodes towards their neighbors
+	 * @param activeNodes the nodes to be moved
+	 * @param touched all nodes that have been moved and their neighbors are added to this list 
+	 * @return true if the mesh is not yet converged
+	 */
+	private boolean contractMesh(List<SkeletonNode> activeNodes, List<SkeletonNode> touched) {
 		CyclicBarrier syncBarrier = new CyclicBarrier(ThreadPool.availProcessors());
 		Vector<ContractionCallable> tasks = new Vector<ContractionCallable>();
 		//Evaluate all new positions (in parallel)
 		for (int i=0; i<ThreadPool.availProcessors(); i++){
-			int start = (int)((long)nodes.size() * i)/ThreadPool.availProcessors();
-			int end = (int)((long)nodes.size() * (i+1))/ThreadPool.availProcessors();
+			int start = ThreadPool.getSliceStart(activeNodes.size(), i);
+			int end = ThreadPool.getSliceEnd(activeNodes.size(), i);
 
-			tasks.add(this.new ContractionCallable(start, end, nodes, syncBarrier));
+			tasks.add(this.new ContractionCallable(start, end, activeNodes, syncBarrier));
 		}
 		
 		List<Future<Integer>> results = ThreadPool.executeParallel(tasks);
@@ -297,46 +353,135 @@ public class Skeletonizer extends DataContainer {
 			}
 		}
 		
+		for (ContractionCallable c : tasks){
+			touched.addAll(c.touched);
+			maxEdgeLength = Math.max(maxEdgeLength, c.maxEdgeLength);
+		}
+		
 		//If less than 0.5% of all remaining nodes have moved, the mesh is considered as converged  
-		return nodesToMove*200 > nodes.size();
+		return nodesToMove*200 > nodes.size()-mergedNodesInList;
 	}
 	
-	private boolean mergeNodes(float mergeTol){
-		mergeTol = mergeTol*mergeTol;
-		boolean deleted = false;
+	/**
+	 * Merges nodes in the given set into their nearest neighbor if they are closer than the given tolerance.
+	 * The nodes are sorted into a grid of cells whose size exceed the range of nodes read or modified during merging.
+	 * The cells are processed in eight passes in a checkerboard pattern, cells within one pass are processed in parallel.
+	 * @param mergeCandidates
+	 * @param mergeTol
+	 * @param touched the nodes whose neighborhood changed due to merging are added to this list
+	 * @return true if any node has been merged
+	 */
+	private boolean mergeNodes(List<SkeletonNode> mergeCandidates, float mergeTol, List<SkeletonNode> touched){
+		if (mergeCandidates.isEmpty()) return false;
+		final float mergeTolSqr = mergeTol*mergeTol;
+		final BoxParameter box = data.getBox();
 		
-		for (int j=0; j<nodes.size(); j++){
-			SkeletonNode t = nodes.get(j);
-			if (!t.isCriticalNode()){
-				//Find the nearest neighbor for t with a common neighbor
-				int nearestIndex = -1;
-				float minDist = Float.POSITIVE_INFINITY;
-				for (int i=0; i<t.getNeigh().size(); i++){
-					SkeletonNode n = t.getNeigh().get(i); 
-					if (!n.isCriticalNode()){
-						float dist = data.getBox().getPbcCorrectedDirection(n, t).getLengthSqr(); 
-						if (dist < minDist && t.hasCommonNeighbor(n)){
-							minDist = dist;
-							nearestIndex = i;
-						}
-					}
-				}
-				//If another atom is the merging tolerance range
-				//merge the node into the other and delete it afterwards
-				if (minDist<mergeTol){
-					t.getNeigh().get(nearestIndex).mergeSkeletonNode(t);
-					deleted = true;
-					nodes.remove(j);
-					//During deletion, the last element in the list is copied to the
-					//position of the element to be deleted. To continue at the same place in the list
-					//with the shifted order, decrease the index by one.
-					j--;
+		//Deciding on a merge reads nodes up to four hops away, the merge itself modifies direct neighbors
+		//Another hop is added as a safety margin for nodes moving during merging
+		float cellSize = 6f*maxEdgeLength;
+		final int[] numCells = new int[3];
+		for (int i=0; i<3; i++){
+			float h = i==0 ? box.getHeight().x : (i==1 ? box.getHeight().y : box.getHeight().z);
+			numCells[i] = Math.max(1, (int)(h/cellSize));
+			//Checkerboard pattern must be consistent across periodic boundaries
+			if (box.getPbc()[i] && numCells[i]>1 && numCells[i]%2==1) numCells[i]--;
+		}
+		
+		List<HashMap<Integer, ArrayList<SkeletonNode>>> cellsPerColor = 
+				new ArrayList<HashMap<Integer, ArrayList<SkeletonNode>>>(8);
+		for (int i=0; i<8; i++)
+			cellsPerColor.add(new HashMap<Integer, ArrayList<SkeletonNode>>());
+		
+		for (SkeletonNode n : mergeCandidates){
+			int[] c = new int[3];
+			for (int i=0; i<3; i++){
+				c[i] = (int)(n.dot(box.getTBoxSize()[i])*numCells[i]);
+				c[i] = Math.max(0, Math.min(numCells[i]-1, c[i]));
+			}
+			int color = (c[0]&1) + 2*(c[1]&1) + 4*(c[2]&1);
+			Integer cell = (c[0]*numCells[1] + c[1])*numCells[2] + c[2];
+			ArrayList<SkeletonNode> l = cellsPerColor.get(color).get(cell);
+			if (l == null){
+				l = new ArrayList<SkeletonNode>();
+				cellsPerColor.get(color).put(cell, l);
+			}
+			l.add(n);
+		}
+		
+		boolean deleted = false;
+		for (int color=0; color<8; color++){
+			final ArrayList<ArrayList<SkeletonNode>> cells = 
+					new ArrayList<ArrayList<SkeletonNode>>(cellsPerColor.get(color).values());
+			if (cells.isEmpty()) continue;
+			
+			Vector<MergeCallable> tasks = new Vector<MergeCallable>();
+			int numTasks = Math.min(cells.size(), ThreadPool.availProcessors());
+			for (int i=0; i<numTasks; i++){
+				//Distribute cells round robin, cells in the list are ordered arbitrarily
+				ArrayList<ArrayList<SkeletonNode>> cellsInTask = new ArrayList<ArrayList<SkeletonNode>>();
+				for (int j=i; j<cells.size(); j+=numTasks)
+					cellsInTask.add(cells.get(j));
+				tasks.add(new MergeCallable(cellsInTask, mergeTolSqr));
+			}
+			
+			if (tasks.size() == 1){
+				try {
+					tasks.get(0).call();
+				} catch (Exception e) {
+					e.printStackTrace();
 				}
+			} else ThreadPool.executeParallel(tasks);
+			
+			for (MergeCallable m : tasks){
+				if (m.merged > 0) deleted = true;
+				mergedNodesInList += m.merged;
+				touched.addAll(m.touched);
+				maxEdgeLength = Math.max(maxEdgeLength, m.maxEdgeLength);
 			}
+			if (Thread.interrupted()) return false;
 		}
+		
 		return deleted;
 	}
 	
+	/**
+	 * Creates a duplicate free list of all nodes in the given lists, excluding merged nodes
+	 * @param a
+	 * @param b
+	 * @return
+	 */
+	private static List<SkeletonNode> createActiveSet(List<SkeletonNode> a, List<SkeletonNode> b){
+		ArrayList<SkeletonNode> activeSet = new ArrayList<SkeletonNode>();
+		for (SkeletonNode n : a){
+			if (!n.removed && !n.active){
+				n.active = true;
+				activeSet.add(n);
+			}
+		}
+		for (SkeletonNode n : b){
+			if (!n.removed && !n.active){
+				n.active = true;
+				activeSet.add(n);
+			}
+		}
+		for (SkeletonNode n : activeSet)
+			n.active = false;
+		return activeSet;
+	}
+	
+	/**
+	 * Deletes all nodes from the list that have been merged into other nodes
+	 */
+	private void removeMergedNodes(){
+		if (mergedNodesInList == 0) return;
+		//Iterate backwards, elements are replaced by the last element on deletion
+		for (int i=nodes.size()-1; i>=0; i--){
+			if (nodes.get(i).removed)
+				nodes.remove(i);
+		}
+		mergedNodesInList = 0;
+	}
+	
 	/**
 	 * Transform the set of nodes into sets of polylines as dislocations
 	 */
@@ -524,6 +669,10 @@ public class Skeletonizer extends DataContainer {
 		private List<SkeletonNode> nodes;
 		private CyclicBarrier syncBarrier;
 		
+		//Moved nodes and their neighbors
+		List<SkeletonNode> touched = new ArrayList<SkeletonNode>();
+		float maxEdgeLength = 0f;
+		
 		
 		public ContractionCallable(int start, int end, List<SkeletonNode> nodes, CyclicBarrier barrier) {
 			this.start = start;
@@ -586,10 +735,80 @@ public class Skeletonizer extends DataContainer {
 				data.getBox().backInBox(n);
 			}
 			
+			syncBarrier.await();
+			
+			//All nodes are moved, measure the modified edges and mark the neighborhood as active
+			for (SkeletonNode n : nodesMoved){
+				touched.add(n);
+				for (SkeletonNode nei : n.getNeigh()){
+					touched.add(nei);
+					float l = data.getBox().getPbcCorrectedDirection(n, nei).getLengthSqr();
+					if (l > maxEdgeLength) maxEdgeLength = l;
+				}
+			}
+			maxEdgeLength = (float)Math.sqrt(maxEdgeLength);
+			
 			return nodesMoved.size();
 		}
 	}
 
+	private class MergeCallable implements Callable<Void> {
+		private List<ArrayList<SkeletonNode>> cells;
+		private float mergeTolSqr;
+		
+		//Nodes with modified neighborhoods
+		List<SkeletonNode> touched = new ArrayList<SkeletonNode>();
+		float maxEdgeLength = 0f;
+		int merged = 0;
+		
+		public MergeCallable(List<ArrayList<SkeletonNode>> cells, float mergeTolSqr) {
+			this.cells = cells;
+			this.mergeTolSqr = mergeTolSqr;
+		}
+		
+		@Override
+		public Void call() throws Exception {
+			for (ArrayList<SkeletonNode> cell : cells){
+				if (Thread.interrupted()) return null;
+				for (SkeletonNode t : cell){
+					if (t.removed || t.isCriticalNode()) continue;
+					
+					//Find the nearest neighbor for t with a common neighbor
+					int nearestIndex = -1;
+					float minDist = Float.POSITIVE_INFINITY;
+					for (int i=0; i<t.getNeigh().size(); i++){
+						SkeletonNode n = t.getNeigh().get(i); 
+						if (!n.isCriticalNode()){
+							float dist = data.getBox().getPbcCorrectedDirection(n, t).getLengthSqr(); 
+							if (dist < minDist && t.hasCommonNeighbor(n)){
+								minDist = dist;
+								nearestIndex = i;
+							}
+						}
+					}
+					//If another atom is the merging tolerance range
+					//merge the node into the other and mark it as deleted
+					if (minDist<mergeTolSqr){
+						SkeletonNode n = t.getNeigh().get(nearestIndex);
+						n.mergeSkeletonNode(t);
+						t.removed = true;
+						merged++;
+						
+						//Topology changes affect the criticality of nodes in the vicinity 
+						touched.add(n);
+						for (SkeletonNode nei : n.getNeigh()){
+							touched.add(nei);
+							touched.addAll(nei.getNeigh());
+							float l = data.getBox().getPbcCorrectedDirection(n, nei).getLength();
+							if (l > maxEdgeLength) maxEdgeLength = l;
+						}
+					}
+				}
+			}
+			return null;
+		}
+	}
+
 	@Override
 	public boolean isTransparenceRenderingRequired() {
 		return Option.STACKING_FAULT.isEnabled();
@@ -614,6 +833,55 @@ public class Skeletonizer extends DataContainer {
 		return dataPanel;
 	}
 	
+	@Override
+	public boolean isRayPickingSupported() {
+		return true;
+	}
+	
+	@Override
+	public PickingHit pick(Ray ray, RenderRange renderRange, AtomData data) {
+		PickingHit hit = null;
+		BoxParameter box = data.getBox();
+		
+		if (Option.DISLOCATIONS.isEnabled()){
+			for (Dislocation dis : this.getDislocations()){
+				if (dis.getBurgersVectorInfo().getBurgersVector().getType() == BurgersVectorType.DONT_SHOW) continue;
+				float closest = Float.POSITIVE_INFINITY;
+				SkeletonNode[] line = dis.getLine();
+				//Same segments as rendered in drawCores
+				for (int j = 0; j < line.length-1; j++) {
+					if (!renderRange.isInInterval(line[j]) || !renderRange.isInInterval(line[j+1])) continue;
+					if (!box.isVectorInPBC(line[j].subClone(line[j+1]))) continue;
+					float d = ray.intersectSegment(line[j], line[j+1], CORE_THICKNESS*0.5f);
+					if (d < closest) closest = d;
+				}
+				if (closest != Float.POSITIVE_INFINITY)
+					hit = PickingHit.closest(hit, new PickingHit(dis, closest));
+			}
+		}
+		
+		if (Option.STACKING_FAULT.isEnabled()){
+			for (PlanarDefect pd : this.getPlanarDefects()){
+				float closest = Float.POSITIVE_INFINITY;
+				Atom[] f = pd.getFaces();
+				//Same triangles as rendered in drawSurfaces
+				for (int j = 0; j < f.length; j+=3) {
+					if (renderRange.isInInterval(f[j]) && 
+							box.isVectorInPBC(f[j].subClone(f[j+1])) && 
+							box.isVectorInPBC(f[j].subClone(f[j+2])) && 
+							box.isVectorInPBC(f[j+1].subClone(f[j+2]))) {
+						float d = ray.intersectTriangle(f[j], f[j+1], f[j+2]);
+						if (d < closest) closest = d;
+					}
+				}
+				if (closest != Float.POSITIVE_INFINITY)
+					hit = PickingHit.closest(hit, new PickingHit(pd, closest));
+			}
+		}
+		
+		return hit;
+	}
+	
 	private void drawSurfaces(ViewerGLJPanel viewer, GL3 gl, RenderRange renderRange, boolean picking, AtomData data){
 		Shader shader = (picking?BuiltInShader.VERTEX_ARRAY_COLOR_UNIFORM:BuiltInShader.OID_VERTEX_ARRAY_NO_LIGHTING).getShader();
 		shader.enable(gl);